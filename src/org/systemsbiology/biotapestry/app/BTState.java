@@ -42,6 +42,7 @@ import org.systemsbiology.biotapestry.cmd.flow.WebServerControlFlowHarness;
 import org.systemsbiology.biotapestry.cmd.flow.add.PropagateDown;
 import org.systemsbiology.biotapestry.cmd.flow.io.LoadSaveSupport;
 import org.systemsbiology.biotapestry.cmd.undo.SelectionChangeCmd;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
 import org.systemsbiology.biotapestry.db.Workspace;
@@ -104,6 +105,11 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   private File serverConfigDirectory_;
   private String modelListFile_;
   private String fullServletContextPath_;
+  private final Object serverLock_ = new Object();
+  private Object modelLock_ = serverLock_;
+  private boolean sharedModel_ = false;
+  private String modelVersionTag_;
+  private ModelMapHistory mapHistory_ = new ModelMapHistory();
   
   //
   // General use:
@@ -177,6 +183,7 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   
   private GroupSettingManager gsm_;
   private int undoChangeCount_;
+  private ChangeJournal journal_;
   private PropagateDown.DownPropState downProp_; // remember user's last down propagation Genome
   private HashMap<String, Boolean> status_;  // Remember e.g. yes no shutup state
   private SearchModifiers searchMod_; 
@@ -237,6 +244,7 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
     dpm_ = new DataPopupManager(this);
     plum_ = new PlugInManager(this);
     undoChangeCount_ = 0;
+    journal_ = new ChangeJournal(this);
     downProp_ = new PropagateDown.DownPropState();
     status_ = new HashMap<String, Boolean>();
     searchMod_ = new SearchModifiers();
@@ -412,6 +420,112 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
     return;
   } 
   
+  /***************************************************************************
+  ** 
+  ** Get the lock that serializes server requests against this state. Each
+  ** session has its own, so independent sessions can be processed in parallel.
+  */
+  
+  public Object getServerLock() {
+    return (serverLock_);  
+  }   
+  
+  /***************************************************************************
+  ** 
+  ** Get the lock that guards the model we hold. That is our own server lock,
+  ** unless we share a model, when it is the lock of the state that owns it.
+  ** Only changes while the server lock is held, so take the server lock first,
+  ** then this one.
+  */
+  
+  public Object getModelLock() {
+    return (modelLock_);  
+  }   
+  
+  /***************************************************************************
+  ** 
+  ** Get the record of the last model map sent to this session's client
+  */
+  
+  public ModelMapHistory getModelMapHistory() {
+    return (mapHistory_);  
+  }   
+  
+  /***************************************************************************
+  ** 
+  ** Use the model held by a fully loaded source state (database, fonts, display
+  ** options, images and tree paths) instead of our own copy. Per-session view state
+  ** (current genome, layout, overlay, selections, harness) stays with us. Since the
+  ** model has lazily built caches, its users are serialized on the source state's
+  ** model lock. Our server lock does not change. Must be called with our server
+  ** lock held, before the view is built.
+  */
+  
+  public void shareModelFrom(BTState source) {
+    db_ = source.db_;
+    fom_ = source.fom_;
+    dom_ = source.dom_;
+    imageMgr_ = source.imageMgr_;
+    utpm_ = source.utpm_;
+    modelLock_ = source.getModelLock();
+    rcx_ = new DynamicDataAccessContext(this);
+    sharedModel_ = true;
+    mapHistory_.clear();
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Stop using a shared model, and go back to holding an (empty) private one,
+  ** guarded by our own server lock. Must be called with our server lock held.
+  ** The view must be rebuilt afterwards.
+  */
+  
+  public void dropSharedModel() {
+    if (!sharedModel_) {
+      return;
+    }
+    fom_ = new FontManager();
+    imageMgr_ = new ImageManager();
+    utpm_ = new UserTreePathManager();
+    db_ = new Database(this);
+    dom_ = new DisplayOptionsManager(this);
+    modelLock_ = serverLock_;
+    rcx_ = new DynamicDataAccessContext(this);
+    sharedModel_ = false;
+    mapHistory_.clear();
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the tag identifying the unmodified model file contents we hold. Null
+  ** if unknown, e.g. after loading some other model.
+  */
+  
+  public String getModelVersionTag() {
+    return (modelVersionTag_);  
+  }   
+  
+  /***************************************************************************
+  ** 
+  ** Set the tag identifying the unmodified model file contents we hold
+  */
+  
+  public void setModelVersionTag(String tag) {
+    modelVersionTag_ = tag;
+    return;
+  }   
+  
+  /***************************************************************************
+  ** 
+  ** Answer if we are using a model shared with other states
+  */
+  
+  public boolean hasSharedModel() {
+    return (sharedModel_);  
+  }   
+  
   /***************************************************************************
   ** 
   ** Get the Web Server Control Flow Harness
@@ -541,9 +655,21 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   */
   
   public void clearUndoTracking() {
-    undoChangeCount_ = 0;  
+    undoChangeCount_ = 0;
+    if (journal_ != null) {
+      journal_.checkpointed();
+    }
     return;
   }  
+  
+  /***************************************************************************
+  **
+  ** Get the autosave journal
+  */
+  
+  public ChangeJournal getChangeJournal() {
+    return (journal_);
+  }  
  
   /***************************************************************************
   **
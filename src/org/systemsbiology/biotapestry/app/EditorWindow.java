@@ -21,6 +21,7 @@
 package org.systemsbiology.biotapestry.app;
 
 import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
 import java.net.URL;
 import java.net.MalformedURLException;
 
@@ -33,6 +34,7 @@ import java.awt.event.WindowEvent;
 import javax.swing.ImageIcon;
 
 import org.systemsbiology.biotapestry.cmd.flow.io.LoadSaveSupport;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.util.FilePreparer;
 import org.systemsbiology.biotapestry.util.ResourceManager;
 import org.systemsbiology.biotapestry.util.ExceptionHandler;
@@ -100,6 +102,14 @@ public class EditorWindow extends JFrame {
       return;
     }
     
+    //
+    // Start the journal before anything can be loaded, so a journal left by
+    // a crash is set aside before it can be written over:
+    //
+    
+    ChangeJournal journal = appState_.getChangeJournal();
+    boolean journaling = journal.start();
+    DynamicDataAccessContext dacx = new DynamicDataAccessContext(appState_);
     if (gurl != null) {
       while (true) {
         FilePreparer.FileInputResultClosure firc = lssup.loadRemoteGenome(gurl, saltUrl, false);
@@ -111,9 +121,11 @@ public class EditorWindow extends JFrame {
         }
       }
     } else {
-      DynamicDataAccessContext dacx = new DynamicDataAccessContext(appState_);
-      lssup.newModelTweaks(dacx);    
-    }    
+      lssup.newModelTweaks(dacx);
+    }
+    if (journaling && journal.haveRecoverableWork()) {
+      offerRecovery(journal, lssup, dacx);
+    }
 
     appState_.getTree().requestTreeFocus(); // Keeps the "save" button from having focus
   }
@@ -150,7 +162,44 @@ public class EditorWindow extends JFrame {
         goose.closeDown();
       }        
     }
+    appState_.getChangeJournal().shutdown(true);
     dispose();
     System.exit(0);
   }
+  
+  /***************************************************************************
+  **
+  ** A previous session did not exit cleanly: offer to load what it autosaved
+  */  
+  
+  private void offerRecovery(ChangeJournal journal, LoadSaveSupport lssup, DynamicDataAccessContext dacx) {
+    ResourceManager rMan = appState_.getRMan();
+    int ok = JOptionPane.showConfirmDialog(this, 
+                                           rMan.getString("autosave.recoverMessage"), 
+                                           rMan.getString("autosave.recoverMessageTitle"),
+                                           JOptionPane.YES_NO_OPTION);
+    if (ok != JOptionPane.YES_OPTION) {
+      journal.discardRecoverableWork();
+      return;
+    }
+    byte[] recovered = journal.recoverXML();
+    if (recovered == null) {
+      JOptionPane.showMessageDialog(this, 
+                                    rMan.getString("autosave.recoverFailed"), 
+                                    rMan.getString("autosave.recoverFailedTitle"),
+                                    JOptionPane.ERROR_MESSAGE);
+      return;
+    }
+    FilePreparer.FileInputResultClosure firc = lssup.loadFromStream(new ByteArrayInputStream(recovered), dacx);
+    if (!firc.wasSuccessful()) {
+      firc.displayFileInputError();
+      return;
+    }
+    //
+    // Recovered work has not been saved anywhere but the journal:
+    //
+    appState_.bumpUndoCount();
+    journal.noteChange(ChangeJournal.ALL_SECTIONS);
+    return;
+  }
 }
@@ -23,11 +23,19 @@ package org.systemsbiology.biotapestry.app;
 import java.awt.Dimension;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.systemsbiology.biotapestry.cmd.flow.BatchJobControlFlowHarness;
 import org.systemsbiology.biotapestry.cmd.flow.ControlFlow;
@@ -242,177 +250,79 @@ public class ImageGeneratorApplication {
   public void process() throws GeneratorException {    
   
     //
-    // Processing of all requests by all IGAs MUST be globally 
-    // serialized in a multi-threaded environment.  At this time, 
-    // BioTapestry core code must run on one thread when in batch mode.
+    // process() calls by all IGAs are still run one at a time, as they always
+    // have been, so existing callers see no change. That is no longer needed
+    // for correctness: the core keeps its model, undo, flow and view state in
+    // each IGA's own BTState (the web server runs sessions in parallel on the
+    // same basis), and the only mutable statics left on this path are in the
+    // debug-only LayoutFailureTracker, which is off. processBatch() counts on
+    // this to run jobs concurrently.
     //
     
     synchronized (MainCommands.class) {
-         
-      boolean needInit = (appState_ == null);
+      processGuts();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** In-process batch entry point. Each job is processed with its own BTState,
+  ** which is the same isolation the web server relies on to run sessions in
+  ** parallel, so the jobs are run on a pool of the given number of threads
+  ** without the global lock that process() takes (see there for why that is
+  ** safe).
+  ** Each job's outputs (streams, model ID, node ID and intersection maps) are
+  ** its own, and are the same as if it were run through process(). Returns,
+  ** in job order, null for each job that succeeded, or why it failed. Jobs
+  ** must be distinct and not yet processed.
+  */
 
-      if (needInit) {
-        System.setProperty("java.awt.headless", "true"); 
+  public static List<GeneratorException> processBatch(List<ImageGeneratorApplication> jobs, int threads) 
+                                                      throws InterruptedException {
+    if (new HashSet<ImageGeneratorApplication>(jobs).size() != jobs.size()) {
+      throw new IllegalArgumentException();
+    }
+    System.setProperty("java.awt.headless", "true"); 
+    final AtomicInteger count = new AtomicInteger(0);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, jobs.size())), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        return (new Thread(r, "BioTapImageGenerator-" + count.incrementAndGet()));
       }
-
-      try {  
-        ResourceManager rMan = appState_.getRMan();
-        HashMap<String, Object> args = new HashMap<String, Object>();   
-        if (needInit) {
-          appState_ = new BTState("WJRL", args, true, false);
-          appState_.setExceptionHandler(new ExceptionHandler(appState_, appState_.getRMan(), true));
-          appState_.getDB().newModelViaDACX(); // Bogus, but no DACX yet
-          appState_.setIsEditor(true);
-          CommonView cview = new CommonView(appState_);
-          cview.buildTheView();       
-        }
-        FlowMeister flom = appState_.getFloM();
-        boolean haveInput = false;
-        DataAccessContext dacx = new DataAccessContext(appState_, appState_.getGenome());
-
-        switch (inputType_) {
-          case BTP_INPUT:
-            Object[] osArgs = new Object[2];
-            osArgs[0] = Boolean.valueOf(false);
-            osArgs[1] = input_;
-            BatchJobControlFlowHarness dcf0 = new BatchJobControlFlowHarness(appState_, null); 
-            ControlFlow myFlow0 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
-            LoadSaveOps.StepState pre0 = (LoadSaveOps.StepState)myFlow0.getEmptyStateForPreload(dacx);
-            pre0.setParams(osArgs);     
-            dcf0.initFlow(myFlow0, dacx);
-            DialogAndInProcessCmd daipc0 = dcf0.stepTheFlow(pre0);          
-            if (daipc0.state != DialogAndInProcessCmd.Progress.DONE) {
-              throw new GeneratorException(rMan.getString("headless.btpInputFailure"));
-            }
-            haveInput = true;
-            break;
-          case CSV_INPUT:
-            osArgs = new Object[7];
-            osArgs[0] = csvCompress_;
-            osArgs[1] = csvMode_;
-            osArgs[2] = csvOverlayMode_;
-            osArgs[3] = Boolean.valueOf(false);
-            osArgs[4] = input_;
-            osArgs[5] = nodeIDMap_;
-            osArgs[6] = modelIDMap_;
-            BatchJobControlFlowHarness dcf1 = new BatchJobControlFlowHarness(appState_, null); 
-            ControlFlow myFlow1 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
-            ImportCSV.StepState pre1 = (ImportCSV.StepState)myFlow1.getEmptyStateForPreload(dacx);
-            pre1.setParams(osArgs);     
-            dcf1.initFlow(myFlow1, dacx);
-            DialogAndInProcessCmd daipc1 = dcf1.stepTheFlow(pre1);          
-            if (daipc1.state != DialogAndInProcessCmd.Progress.DONE) {
-              throw new GeneratorException(rMan.getString("headless.csvInputFailure"));
-            }
-            haveInput = true;
-            break;
-          case BTP_PRE_INPUT_CSV_PRUNED:
-            osArgs = new Object[2];
-            osArgs[0] = Boolean.valueOf(false);
-            osArgs[1] = input_;
-            BatchJobControlFlowHarness dcf2 = new BatchJobControlFlowHarness(appState_, null); 
-            ControlFlow myFlow2 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
-            LoadSaveOps.StepState pre2 = (LoadSaveOps.StepState)myFlow2.getEmptyStateForPreload(dacx);
-            pre2.setParams(osArgs);     
-            dcf2.initFlow(myFlow2, dacx);
-            DialogAndInProcessCmd daipc2 = dcf2.stepTheFlow(pre2);          
-            if (daipc2.state != DialogAndInProcessCmd.Progress.DONE) {
-              throw new GeneratorException(rMan.getString("headless.btpInputFailure"));
-            }
-            osArgs = new Object[7];
-            osArgs[0] = csvCompress_;
-            osArgs[1] = csvMode_;
-            osArgs[2] = csvOverlayMode_;
-            osArgs[3] = Boolean.valueOf(false);
-            osArgs[4] = input2_;
-            osArgs[5] = nodeIDMap_;
-            osArgs[6] = modelIDMap_;
-            BatchJobControlFlowHarness dcf3 = new BatchJobControlFlowHarness(appState_, null); 
-            ControlFlow myFlow3 = flom.getControlFlow(FlowMeister.MainFlow.IMPORT_FULL_HIERARCHY_FROM_CSV, null);
-            ImportCSV.StepState pre3 = (ImportCSV.StepState)myFlow3.getEmptyStateForPreload(dacx);
-            pre3.setParams(osArgs);     
-            dcf3.initFlow(myFlow3, dacx);
-            DialogAndInProcessCmd daipc3 = dcf3.stepTheFlow(pre3);          
-            if (daipc3.state != DialogAndInProcessCmd.Progress.DONE) {
-              throw new GeneratorException(rMan.getString("headless.csvInputFailure"));
-            }
-            haveInput = true;
-            break;
-          default:
-            throw new IllegalArgumentException();
-        }   
-        if (!haveInput) {
-          throw new GeneratorException(rMan.getString("headless.noInputFailure"));
-        }   
-
-        boolean haveOutput = false;
-        switch (outputType_) {
-          case PNG_OUTPUT:
-            Object[] osArgs = imageExportPrepForStream(args, output_);       
-            if (osArgs != null) {
-              BatchJobControlFlowHarness dcf = new BatchJobControlFlowHarness(appState_, null); 
-              ControlFlow myFlow = flom.getControlFlow(FlowMeister.MainFlow.EXPORT, null);
-              LoadSaveOps.StepState pre = (LoadSaveOps.StepState)myFlow.getEmptyStateForPreload(dacx);
-              pre.setParams(osArgs);     
-              dcf.initFlow(myFlow, dacx);
-              DialogAndInProcessCmd daipc = dcf.stepTheFlow(pre);          
-              if (daipc.state != DialogAndInProcessCmd.Progress.DONE) {
-                throw new GeneratorException(rMan.getString("headless.imageExportFailure"));
-              } else {
-                haveOutput = true;
-              }
-            } else {
-              throw new GeneratorException(rMan.getString("headless.imageExportFailure"));
-            }
-            break;
-          case BTP_OUTPUT:
-            osArgs = new Object[2];
-            osArgs[0] = Boolean.valueOf(false);
-            osArgs[1] = output_;
-            BatchJobControlFlowHarness dcf = new BatchJobControlFlowHarness(appState_, null); 
-            ControlFlow myFlow = flom.getControlFlow(FlowMeister.MainFlow.SAVE_AS, null);
-            LoadSaveOps.StepState pre = (LoadSaveOps.StepState)myFlow.getEmptyStateForPreload(dacx);
-            pre.setParams(osArgs);     
-            dcf.initFlow(myFlow, dacx);
-            DialogAndInProcessCmd daipc = dcf.stepTheFlow(pre);          
-            if (daipc.state != DialogAndInProcessCmd.Progress.DONE) {
-              throw new GeneratorException(rMan.getString("headless.btpExportFailure"));
-            } else {
-              haveOutput = true;
+    });
+    ArrayList<Future<GeneratorException>> pending = new ArrayList<Future<GeneratorException>>();
+    try {
+      int numJobs = jobs.size();
+      for (int i = 0; i < numJobs; i++) {
+        final ImageGeneratorApplication job = jobs.get(i);
+        pending.add(pool.submit(new Callable<GeneratorException>() {
+          public GeneratorException call() {
+            try {
+              job.processGuts();
+              return (null);
+            } catch (GeneratorException gex) {
+              return (gex);
+            } catch (RuntimeException rex) {
+              return (new GeneratorException(rex.toString(), rex));
             }
-            break;
-          case FULL_HIERARCHY_OUTPUT_:
-            osArgs = new Object[4];
-            osArgs[0] = Boolean.valueOf(false);
-            osArgs[1] = noss_;
-            osArgs[2] = intersectionMap_;
-            osArgs[3] = publishKeys_;
-            BatchJobControlFlowHarness dcf2 = new BatchJobControlFlowHarness(appState_, null); 
-            ControlFlow myFlow2 = flom.getControlFlow(FlowMeister.MainFlow.WEB, null);
-            ExportWeb.StepState pre2 = (ExportWeb.StepState)myFlow2.getEmptyStateForPreload(dacx);
-            pre2.setParams(osArgs);     
-            dcf2.initFlow(myFlow2, dacx);
-            DialogAndInProcessCmd daipc2 = dcf2.stepTheFlow(pre2);          
-            if (daipc2.state != DialogAndInProcessCmd.Progress.DONE) {
-              throw new GeneratorException(rMan.getString("headless.webExportFailure"));
-            } else {
-              haveOutput = true;
-            }
-            break;
-          default:
-            throw new IllegalArgumentException();
-        }   
-
-        if (!haveOutput) {
-          throw new GeneratorException(rMan.getString("headless.totalExportFailure"));
+          }
+        }));
+      }
+      ArrayList<GeneratorException> retval = new ArrayList<GeneratorException>();
+      int numPend = pending.size();
+      for (int i = 0; i < numPend; i++) {
+        try {
+          retval.add(pending.get(i).get());
+        } catch (ExecutionException eex) {
+          // Errors (not Exceptions) end up here:
+          throw new IllegalStateException(eex.getCause());
         }
-      } catch (ExceptionHandler.HeadlessException hex) {
-        throw new GeneratorException(appState_.getRMan().getString("headless.wrappedExceptionFailure"), hex);
       }
+      return (retval);
+    } finally {
+      pool.shutdownNow();
     }
- 
-    return;
-  }    
+  }
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -468,6 +378,177 @@ public class ImageGeneratorApplication {
   //
   ////////////////////////////////////////////////////////////////////////////    
   
+  /***************************************************************************
+  ** 
+  ** Do the work of a process() call. Only touches this job's own state.
+  */
+
+  private void processGuts() throws GeneratorException {    
+  
+    boolean needInit = (appState_ == null);
+
+    if (needInit) {
+      System.setProperty("java.awt.headless", "true"); 
+    }
+
+    try {  
+      HashMap<String, Object> args = new HashMap<String, Object>();   
+      if (needInit) {
+        appState_ = new BTState("WJRL", args, true, false);
+        appState_.setExceptionHandler(new ExceptionHandler(appState_, appState_.getRMan(), true));
+        appState_.getDB().newModelViaDACX(); // Bogus, but no DACX yet
+        appState_.setIsEditor(true);
+        CommonView cview = new CommonView(appState_);
+        cview.buildTheView();       
+      }
+      ResourceManager rMan = appState_.getRMan();
+      FlowMeister flom = appState_.getFloM();
+      boolean haveInput = false;
+      DataAccessContext dacx = new DataAccessContext(appState_, appState_.getGenome());
+
+      switch (inputType_) {
+        case BTP_INPUT:
+          Object[] osArgs = new Object[2];
+          osArgs[0] = Boolean.valueOf(false);
+          osArgs[1] = input_;
+          BatchJobControlFlowHarness dcf0 = new BatchJobControlFlowHarness(appState_, null); 
+          ControlFlow myFlow0 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
+          LoadSaveOps.StepState pre0 = (LoadSaveOps.StepState)myFlow0.getEmptyStateForPreload(dacx);
+          pre0.setParams(osArgs);     
+          dcf0.initFlow(myFlow0, dacx);
+          DialogAndInProcessCmd daipc0 = dcf0.stepTheFlow(pre0);          
+          if (daipc0.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException(rMan.getString("headless.btpInputFailure"));
+          }
+          haveInput = true;
+          break;
+        case CSV_INPUT:
+          osArgs = new Object[7];
+          osArgs[0] = csvCompress_;
+          osArgs[1] = csvMode_;
+          osArgs[2] = csvOverlayMode_;
+          osArgs[3] = Boolean.valueOf(false);
+          osArgs[4] = input_;
+          osArgs[5] = nodeIDMap_;
+          osArgs[6] = modelIDMap_;
+          BatchJobControlFlowHarness dcf1 = new BatchJobControlFlowHarness(appState_, null); 
+          ControlFlow myFlow1 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
+          ImportCSV.StepState pre1 = (ImportCSV.StepState)myFlow1.getEmptyStateForPreload(dacx);
+          pre1.setParams(osArgs);     
+          dcf1.initFlow(myFlow1, dacx);
+          DialogAndInProcessCmd daipc1 = dcf1.stepTheFlow(pre1);          
+          if (daipc1.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException(rMan.getString("headless.csvInputFailure"));
+          }
+          haveInput = true;
+          break;
+        case BTP_PRE_INPUT_CSV_PRUNED:
+          osArgs = new Object[2];
+          osArgs[0] = Boolean.valueOf(false);
+          osArgs[1] = input_;
+          BatchJobControlFlowHarness dcf2 = new BatchJobControlFlowHarness(appState_, null); 
+          ControlFlow myFlow2 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
+          LoadSaveOps.StepState pre2 = (LoadSaveOps.StepState)myFlow2.getEmptyStateForPreload(dacx);
+          pre2.setParams(osArgs);     
+          dcf2.initFlow(myFlow2, dacx);
+          DialogAndInProcessCmd daipc2 = dcf2.stepTheFlow(pre2);          
+          if (daipc2.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException(rMan.getString("headless.btpInputFailure"));
+          }
+          osArgs = new Object[7];
+          osArgs[0] = csvCompress_;
+          osArgs[1] = csvMode_;
+          osArgs[2] = csvOverlayMode_;
+          osArgs[3] = Boolean.valueOf(false);
+          osArgs[4] = input2_;
+          osArgs[5] = nodeIDMap_;
+          osArgs[6] = modelIDMap_;
+          BatchJobControlFlowHarness dcf3 = new BatchJobControlFlowHarness(appState_, null); 
+          ControlFlow myFlow3 = flom.getControlFlow(FlowMeister.MainFlow.IMPORT_FULL_HIERARCHY_FROM_CSV, null);
+          ImportCSV.StepState pre3 = (ImportCSV.StepState)myFlow3.getEmptyStateForPreload(dacx);
+          pre3.setParams(osArgs);     
+          dcf3.initFlow(myFlow3, dacx);
+          DialogAndInProcessCmd daipc3 = dcf3.stepTheFlow(pre3);          
+          if (daipc3.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException(rMan.getString("headless.csvInputFailure"));
+          }
+          haveInput = true;
+          break;
+        default:
+          throw new IllegalArgumentException();
+      }   
+      if (!haveInput) {
+        throw new GeneratorException(rMan.getString("headless.noInputFailure"));
+      }   
+
+      boolean haveOutput = false;
+      switch (outputType_) {
+        case PNG_OUTPUT:
+          Object[] osArgs = imageExportPrepForStream(args, output_);       
+          if (osArgs != null) {
+            BatchJobControlFlowHarness dcf = new BatchJobControlFlowHarness(appState_, null); 
+            ControlFlow myFlow = flom.getControlFlow(FlowMeister.MainFlow.EXPORT, null);
+            LoadSaveOps.StepState pre = (LoadSaveOps.StepState)myFlow.getEmptyStateForPreload(dacx);
+            pre.setParams(osArgs);     
+            dcf.initFlow(myFlow, dacx);
+            DialogAndInProcessCmd daipc = dcf.stepTheFlow(pre);          
+            if (daipc.state != DialogAndInProcessCmd.Progress.DONE) {
+              throw new GeneratorException(rMan.getString("headless.imageExportFailure"));
+            } else {
+              haveOutput = true;
+            }
+          } else {
+            throw new GeneratorException(rMan.getString("headless.imageExportFailure"));
+          }
+          break;
+        case BTP_OUTPUT:
+          osArgs = new Object[2];
+          osArgs[0] = Boolean.valueOf(false);
+          osArgs[1] = output_;
+          BatchJobControlFlowHarness dcf = new BatchJobControlFlowHarness(appState_, null); 
+          ControlFlow myFlow = flom.getControlFlow(FlowMeister.MainFlow.SAVE_AS, null);
+          LoadSaveOps.StepState pre = (LoadSaveOps.StepState)myFlow.getEmptyStateForPreload(dacx);
+          pre.setParams(osArgs);     
+          dcf.initFlow(myFlow, dacx);
+          DialogAndInProcessCmd daipc = dcf.stepTheFlow(pre);          
+          if (daipc.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException(rMan.getString("headless.btpExportFailure"));
+          } else {
+            haveOutput = true;
+          }
+          break;
+        case FULL_HIERARCHY_OUTPUT_:
+          osArgs = new Object[4];
+          osArgs[0] = Boolean.valueOf(false);
+          osArgs[1] = noss_;
+          osArgs[2] = intersectionMap_;
+          osArgs[3] = publishKeys_;
+          BatchJobControlFlowHarness dcf2 = new BatchJobControlFlowHarness(appState_, null); 
+          ControlFlow myFlow2 = flom.getControlFlow(FlowMeister.MainFlow.WEB, null);
+          ExportWeb.StepState pre2 = (ExportWeb.StepState)myFlow2.getEmptyStateForPreload(dacx);
+          pre2.setParams(osArgs);     
+          dcf2.initFlow(myFlow2, dacx);
+          DialogAndInProcessCmd daipc2 = dcf2.stepTheFlow(pre2);          
+          if (daipc2.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException(rMan.getString("headless.webExportFailure"));
+          } else {
+            haveOutput = true;
+          }
+          break;
+        default:
+          throw new IllegalArgumentException();
+      }   
+
+      if (!haveOutput) {
+        throw new GeneratorException(rMan.getString("headless.totalExportFailure"));
+      }
+    } catch (ExceptionHandler.HeadlessException hex) {
+      throw new GeneratorException(appState_.getRMan().getString("headless.wrappedExceptionFailure"), hex);
+    }
+ 
+    return;
+  }    
+  
   /***************************************************************************
   ** 
   ** Check args:
@@ -526,9 +607,8 @@ public class ImageGeneratorApplication {
   private String generate() {
     
     //
-    // Processing of all requests by all IGAs MUST be globally 
-    // serialized in a multi-threaded environment.  At this time, 
-    // BioTapestry core code must run on one thread when in batch mode.
+    // Command-line runs take the same global lock as process(), for the same
+    // reason: compatibility, not correctness (see process()).
     //
 
     synchronized(MainCommands.class) {
@@ -0,0 +1,166 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.app;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.genome.Genome;
+import org.systemsbiology.biotapestry.genome.Linkage;
+import org.systemsbiology.biotapestry.ui.Layout;
+import org.systemsbiology.biotapestry.ui.SourceAndTargetSelector;
+
+/****************************************************************************
+**
+** For published model files, the link segments each link resolves to,
+** worked out on the first lookup for a model and file version and then
+** shared by all sessions. Holds a bounded number of models, least-recently-used going
+** first. Models that may have been edited are never indexed.
+*/
+
+public class LinkIntersectionIndex {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private LinkedHashMap<String, Map<String, Map<String, Object>>> models_;
+  private int maxModels_;
+  private long hits_;
+  private long misses_;
+  private long builds_;
+  private long buildMillis_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public LinkIntersectionIndex(int maxModels) {
+    models_ = new LinkedHashMap<String, Map<String, Map<String, Object>>>(16, 0.75F, true);
+    maxModels_ = maxModels;
+    hits_ = 0L;
+    misses_ = 0L;
+    builds_ = 0L;
+    buildMillis_ = 0L;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build the key for a model of a given file version
+  */
+
+  public static String keyFor(String versionTag, String modelID) {
+    return (versionTag + "|" + modelID);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the results for a link, in the form SearchResult.mapToResults()
+  ** produces. Null if the model has not been indexed; empty if the link is
+  ** not in it. The caller gets its own map, but the segment ID sets are shared.
+  */
+
+  public synchronized Map<String, Object> lookup(String key, String linkID) {
+    Map<String, Map<String, Object>> model = models_.get(key);
+    if (model == null) {
+      misses_++;
+      return (null);
+    }
+    hits_++;
+    Map<String, Object> forLink = model.get(linkID);
+    return ((forLink == null) ? new HashMap<String, Object>() : new HashMap<String, Object>(forLink));
+  }
+
+  /***************************************************************************
+  **
+  ** Index every link of the model. The caller must hold the state's model
+  ** lock, so the model does not change underneath us.
+  */
+
+  public void build(String key, Genome genome, Layout lo, DataAccessContext rcx) {
+    long start = System.currentTimeMillis();
+    HashMap<String, Map<String, Object>> model = new HashMap<String, Map<String, Object>>();
+    Iterator<Linkage> lit = genome.getLinkageIterator();
+    while (lit.hasNext()) {
+      String linkID = lit.next().getID();
+      model.put(linkID, resultsForLink(lo, rcx, linkID));
+    }
+    synchronized (this) {
+      models_.put(key, model);
+      while (models_.size() > maxModels_) {
+        Iterator<String> kit = models_.keySet().iterator();
+        kit.next();
+        kit.remove();
+      }
+      builds_++;
+      buildMillis_ += System.currentTimeMillis() - start;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Work out the results for one link directly
+  */
+
+  public static Map<String, Object> resultsForLink(Layout lo, DataAccessContext rcx, String linkID) {
+    HashSet<String> links = new HashSet<String>();
+    links.add(linkID);
+    Map<String, Object> retval = new HashMap<String, Object>();
+    SourceAndTargetSelector.SearchResult found = new SourceAndTargetSelector.SearchResult(true);
+    found.linkIntersections.addAll(lo.getIntersectionsForLinks(rcx, links, true));
+    found.mapToResults(retval);
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Get counts for reporting
+  */
+
+  public synchronized Map<String, Object> getStatus() {
+    HashMap<String, Object> retval = new HashMap<String, Object>();
+    retval.put("models", Integer.valueOf(models_.size()));
+    retval.put("hits", Long.valueOf(hits_));
+    retval.put("misses", Long.valueOf(misses_));
+    retval.put("builds", Long.valueOf(builds_));
+    retval.put("buildMillis", Long.valueOf(buildMillis_));
+    return (retval);
+  }
+}
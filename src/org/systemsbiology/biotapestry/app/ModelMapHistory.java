@@ -0,0 +1,288 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import flexjson.JSONSerializer;
+
+import org.systemsbiology.biotapestry.web.serialization.BioTapSerializerFactory;
+
+/****************************************************************************
+**
+** Remembers the last model map sent to a web session, so the next one can be
+** sent as a delta against it: for each draw layer (and the overlay data), the
+** cache groups that were added, removed or replaced, keyed by object ID. Each
+** map sent gets a new version number; a client asks for a delta by giving the
+** version it holds. If that is not the version remembered here (or the model
+** is different), the full map is sent instead.
+**
+** Exported groups hold arrays (path points, transform matrices) and font
+** exports, none of which compare by value. So groups are compared by the JSON
+** the client would be sent for them, and only that JSON is kept between maps.
+*/
+
+public class ModelMapHistory {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public static final String VERSION_KEY = "version";
+  public static final String DELTA_KEY = "delta";
+  public static final String BASE_VERSION_KEY = "baseVersion";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final String LAYER_GROUPS_KEY_ = "draw_layer_groups";
+  private static final String OVERLAY_GROUPS_KEY_ = "overlay_data";
+  private static final String MODEL_ID_KEY_ = "modelID";
+  private static final Map<Object, String> INVALID_ = new HashMap<Object, String>();
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private String modelID_;
+  private long version_;
+  private HashMap<String, Map<Object, String>> lastCanonical_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public ModelMapHistory() {
+    modelID_ = null;
+    version_ = 0L;
+    lastCanonical_ = null;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Record a freshly built model map, and get back what to send: a delta
+  ** against the given version if we still have it, else the full map. Both
+  ** carry the new version.
+  */
+
+  @SuppressWarnings("unchecked")
+  public synchronized Map<String, Object> update(Map<String, Object> fresh, long sinceVersion) {
+    String modelID = (String)fresh.get(MODEL_ID_KEY_);
+    HashMap<String, Map<Object, String>> last = lastCanonical_;
+    boolean canDelta = (last != null) && (sinceVersion == version_) && (modelID != null) && modelID.equals(modelID_);
+    long baseVersion = version_;
+    version_++;
+    modelID_ = modelID;
+
+    //
+    // The canonical forms are needed for the next request even when this one
+    // gets the full map:
+    //
+
+    JSONSerializer serializer = BioTapSerializerFactory.getModelMapTransformer();
+    HashMap<String, Map<Object, String>> canonical = new HashMap<String, Map<Object, String>>();
+    Map<String, Object> newLayers = (Map<String, Object>)fresh.get(LAYER_GROUPS_KEY_);
+    if (newLayers != null) {
+      Iterator<String> lit = newLayers.keySet().iterator();
+      while (lit.hasNext()) {
+        String layer = lit.next();
+        canonical.put(LAYER_GROUPS_KEY_ + "/" + layer, canonicalByID((List<Object>)newLayers.get(layer), serializer));
+      }
+    }
+    List<Object> newOverlay = (List<Object>)fresh.get(OVERLAY_GROUPS_KEY_);
+    if (newOverlay != null) {
+      canonical.put(OVERLAY_GROUPS_KEY_, canonicalByID(newOverlay, serializer));
+    }
+    lastCanonical_ = canonical;
+
+    HashMap<String, Object> retval = new HashMap<String, Object>(fresh);
+    retval.put(VERSION_KEY, Long.valueOf(version_));
+    if (!canDelta) {
+      retval.put(DELTA_KEY, Boolean.FALSE);
+      return (retval);
+    }
+    retval.put(DELTA_KEY, Boolean.TRUE);
+    retval.put(BASE_VERSION_KEY, Long.valueOf(baseVersion));
+
+    if (newLayers != null) {
+      HashMap<String, Object> layerDeltas = new HashMap<String, Object>();
+      Iterator<String> lit = newLayers.keySet().iterator();
+      while (lit.hasNext()) {
+        String layer = lit.next();
+        String key = LAYER_GROUPS_KEY_ + "/" + layer;
+        layerDeltas.put(layer, diffGroups(last.get(key), canonical.get(key), (List<Object>)newLayers.get(layer)));
+      }
+      retval.put(LAYER_GROUPS_KEY_, layerDeltas);
+    }
+    if (newOverlay != null) {
+      retval.put(OVERLAY_GROUPS_KEY_, diffGroups(last.get(OVERLAY_GROUPS_KEY_), canonical.get(OVERLAY_GROUPS_KEY_), newOverlay));
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if a delta from update() carries no changes: every group list has
+  ** nothing added, replaced or removed. A full map is never empty.
+  */
+
+  @SuppressWarnings("unchecked")
+  public static boolean isEmptyDelta(Map<String, Object> delta) {
+    if (!Boolean.TRUE.equals(delta.get(DELTA_KEY))) {
+      return (false);
+    }
+    ArrayList<Object> diffs = new ArrayList<Object>();
+    Map<String, Object> layers = (Map<String, Object>)delta.get(LAYER_GROUPS_KEY_);
+    if (layers != null) {
+      diffs.addAll(layers.values());
+    }
+    if (delta.get(OVERLAY_GROUPS_KEY_) != null) {
+      diffs.add(delta.get(OVERLAY_GROUPS_KEY_));
+    }
+    int numDiffs = diffs.size();
+    for (int i = 0; i < numDiffs; i++) {
+      Map<String, Object> diff = (Map<String, Object>)diffs.get(i);
+      if (diff.containsKey("full") || !((List<Object>)diff.get("added")).isEmpty() ||
+          !((List<Object>)diff.get("replaced")).isEmpty() || !((List<Object>)diff.get("removed")).isEmpty()) {
+        return (false);
+      }
+    }
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Forget the last map. Called whenever a model is loaded or created, since
+  ** model IDs (e.g. the root) repeat from one model to the next
+  */
+
+  public synchronized void clear() {
+    lastCanonical_ = null;
+    modelID_ = null;
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Diff a list of exported cache groups against the canonical forms of the
+  ** last list. Groups are matched by ID; any whose JSON differs is replaced.
+  ** If IDs are not unique within either list, the whole new list is sent as
+  ** "full".
+  */
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> diffGroups(Map<Object, String> oldByID, Map<Object, String> newByID, List<Object> newGroups) {
+    HashMap<String, Object> retval = new HashMap<String, Object>();
+    if (oldByID == null) {
+      oldByID = new HashMap<Object, String>();
+    }
+    if ((oldByID == INVALID_) || (newByID == INVALID_)) {
+      retval.put("full", newGroups);
+      return (retval);
+    }
+
+    ArrayList<Object> added = new ArrayList<Object>();
+    ArrayList<Object> replaced = new ArrayList<Object>();
+    ArrayList<Object> removed = new ArrayList<Object>();
+    ArrayList<Object> order = new ArrayList<Object>();
+    int numNew = newGroups.size();
+    for (int i = 0; i < numNew; i++) {
+      Map<String, Object> group = (Map<String, Object>)newGroups.get(i);
+      Object id = group.get("id");
+      order.add(id);
+      String oldGroup = oldByID.get(id);
+      if (oldGroup == null) {
+        added.add(group);
+      } else if (!oldGroup.equals(newByID.get(id))) {
+        replaced.add(group);
+      }
+    }
+    Iterator<Object> oit = oldByID.keySet().iterator();
+    while (oit.hasNext()) {
+      Object id = oit.next();
+      if (!newByID.containsKey(id)) {
+        removed.add(id);
+      }
+    }
+    retval.put("added", added);
+    retval.put("replaced", replaced);
+    retval.put("removed", removed);
+    retval.put("order", order);
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** The JSON of each exported group, by ID. INVALID_ if any are missing an ID
+  ** or share one.
+  */
+
+  @SuppressWarnings("unchecked")
+  private Map<Object, String> canonicalByID(List<Object> groups, JSONSerializer serializer) {
+    HashMap<Object, String> retval = new HashMap<Object, String>();
+    if (groups == null) {
+      return (retval);
+    }
+    int numGroups = groups.size();
+    for (int i = 0; i < numGroups; i++) {
+      Object groupObj = groups.get(i);
+      if (!(groupObj instanceof Map)) {
+        return (INVALID_);
+      }
+      Map<String, Object> group = (Map<String, Object>)groupObj;
+      Object id = group.get("id");
+      if ((id == null) || retval.containsKey(id)) {
+        return (INVALID_);
+      }
+      retval.put(id, serializer.deepSerialize(group));
+    }
+    return (retval);
+  }
+}
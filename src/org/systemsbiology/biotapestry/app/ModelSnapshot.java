@@ -0,0 +1,148 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/****************************************************************************
+**
+** A model file that is read once and parsed into a small number of loaded
+** states (replicas) that viewer sessions share. Each viewer session only
+** holds its own view state on top of one of the replicas. Sessions that need
+** a private, mutable model (editors) get a fork parsed from the cached bytes.
+*/
+
+public class ModelSnapshot {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private String name_;
+  private byte[] contents_;
+  private long version_;
+  private int maxReplicas_;
+  private ArrayList<BTState> replicas_;
+  private int nextReplica_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Reads the whole stream and closes it. The version is an
+  ** opaque stamp (e.g. the file modification time) identifying the contents.
+  */
+
+  public ModelSnapshot(String name, InputStream is, long version, int maxReplicas) throws IOException {
+    if (maxReplicas < 1) {
+      throw new IllegalArgumentException();
+    }
+    name_ = name;
+    version_ = version;
+    maxReplicas_ = maxReplicas;
+    replicas_ = new ArrayList<BTState>();
+    nextReplica_ = 0;
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int count;
+      while ((count = is.read(buf)) != -1) {
+        baos.write(buf, 0, count);
+      }
+      contents_ = baos.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the name of the model file
+  */
+
+  public String getName() {
+    return (name_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the version stamp of the model file contents
+  */
+
+  public long getVersion() {
+    return (version_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get a fresh stream over the cached file contents
+  */
+
+  public InputStream openStream() {
+    return (new ByteArrayInputStream(contents_));
+  }
+
+  /***************************************************************************
+  **
+  ** Get a loaded replica to share. Replicas are built on demand up to the
+  ** maximum, then handed out round-robin. Sessions on the same replica are
+  ** serialized on its model lock, so more replicas buy more parallelism at
+  ** the cost of one model copy each.
+  */
+
+  public synchronized BTState getReplica(WebServerApplication wsa) throws WebServerApplication.GeneratorException {
+    if (replicas_.size() < maxReplicas_) {
+      BTState replica = new BTState(name_ + "-replica-" + replicas_.size(), new HashMap<String, Object>(), true, true);
+      wsa.initNewState(replica, openStream());
+      replicas_.add(replica);
+      return (replica);
+    }
+    BTState retval = replicas_.get(nextReplica_);
+    nextReplica_ = (nextReplica_ + 1) % replicas_.size();
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the replicas built so far
+  */
+
+  public synchronized List<BTState> getReplicas() {
+    return (new ArrayList<BTState>(replicas_));
+  }
+}
@@ -0,0 +1,211 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.ui.Intersection;
+import org.systemsbiology.biotapestry.ui.SelectionChange;
+import org.systemsbiology.biotapestry.ui.freerender.NetModuleFree;
+import org.systemsbiology.biotapestry.util.Indenter;
+import org.systemsbiology.biotapestry.util.TaggedSet;
+
+/****************************************************************************
+**
+** The compact form of an idle web session's state. A session still looking
+** at the published model file just remembers which file version it was; one
+** whose model may have changed (editor, or a model loaded or created in the
+** session) has its model written to disk as a gzipped .btp file. Either way,
+** the view state (current model, overlay, modules, selections) is kept so
+** the session comes back as the user left it. Undo history and any
+** half-finished dialog flow are not kept.
+*/
+
+public class PassivatedState {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private String sessionID_;
+  private String versionTag_;
+  private File modelDump_;
+  private String serverBtpFileList_;
+  private String genomeKey_;
+  private String overlay_;
+  private TaggedSet netMods_;
+  private TaggedSet revealed_;
+  private NetModuleFree.CurrentSettings settings_;
+  private boolean showComponents_;
+  private HashMap<String, Intersection> selections_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Capture the state. If the model needs to be written out, it goes in the
+  ** given directory.
+  */
+
+  public PassivatedState(String sessionID, BTState appState, File dumpDir) throws IOException {
+    sessionID_ = sessionID;
+    synchronized (appState.getServerLock()) {
+      synchronized (appState.getModelLock()) {
+        versionTag_ = appState.getModelVersionTag();
+        serverBtpFileList_ = appState.getServerBtpFileList();
+        genomeKey_ = appState.getGenome();
+        overlay_ = appState.getCurrentOverlay();
+        netMods_ = appState.getCurrentNetModules();
+        revealed_ = new TaggedSet(appState.getRevealedModules());
+        settings_ = appState.getCurrentOverlaySettings();
+        showComponents_ = appState.showingModuleComponents();
+        selections_ = new HashMap<String, Intersection>(appState.getGenomePresentation().getRawSelectionKeys());
+        modelDump_ = null;
+        if (versionTag_ == null) {
+          modelDump_ = File.createTempFile("session", ".btp.gz", dumpDir);
+          PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(modelDump_)), "UTF-8")));
+          try {
+            Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
+            appState.getDB().writeXML(out, ind);
+          } finally {
+            out.close();
+          }
+          if (out.checkError()) {
+            modelDump_.delete();
+            throw new IOException("Failed writing session model to " + modelDump_);
+          }
+        }
+      }
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the session ID
+  */
+
+  public String getSessionID() {
+    return (sessionID_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the model file version the session was showing; null if the model
+  ** was written out instead
+  */
+
+  public String getModelVersionTag() {
+    return (versionTag_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the model list file setting
+  */
+
+  public String getServerBtpFileList() {
+    return (serverBtpFileList_);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the model was written out
+  */
+
+  public boolean hasModelDump() {
+    return (modelDump_ != null);
+  }
+
+  /***************************************************************************
+  **
+  ** Open the written-out model
+  */
+
+  public InputStream openModelDump() throws IOException {
+    return (new GZIPInputStream(new BufferedInputStream(new FileInputStream(modelDump_))));
+  }
+
+  /***************************************************************************
+  **
+  ** Reinstall the view state into a freshly loaded state
+  */
+
+  public void restoreViewState(BTState appState) {
+    synchronized (appState.getServerLock()) {
+      synchronized (appState.getModelLock()) {
+        if ((genomeKey_ != null) && (appState.getDB().getGenome(genomeKey_) != null)) {
+          DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome()).getContextForRoot();
+          appState.setGraphLayout(appState.getLayoutMgr().getLayout(genomeKey_));
+          appState.setGenomeForUndo(genomeKey_, dacx);
+        }
+        appState.setCurrentOverlay(overlay_, true);
+        appState.setCurrentNetModules(netMods_, true);
+        appState.setRevealedModules(revealed_, true);
+        if (settings_ != null) {
+          appState.installCurrentSettings(settings_);
+        }
+        if (appState.showingModuleComponents() != showComponents_) {
+          appState.toggleModuleComponents();
+        }
+        SelectionChange sc = new SelectionChange();
+        sc.newMap = selections_;
+        appState.getGenomePresentation().changeRedo(sc);
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Remove anything left on disk
+  */
+
+  public void discard() {
+    if (modelDump_ != null) {
+      modelDump_.delete();
+      modelDump_ = null;
+    }
+    return;
+  }
+}
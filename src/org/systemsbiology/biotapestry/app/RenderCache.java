@@ -0,0 +1,266 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.systemsbiology.biotapestry.util.DataUtil;
+
+/****************************************************************************
+**
+** Cache of rendered server output (images, model JSON) shared by all sessions.
+** Keys are built by WebServerApplication.getRenderCacheKey() from everything
+** that affects the output. Entries are bounded by a total byte budget and
+** evicted least-recently-used first.
+*/
+
+public class RenderCache {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private LinkedHashMap<String, Entry> entries_;
+  private long maxBytes_;
+  private long currBytes_;
+  private long hits_;
+  private long misses_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public RenderCache(long maxBytes) {
+    maxBytes_ = maxBytes;
+    currBytes_ = 0L;
+    hits_ = 0L;
+    misses_ = 0L;
+    // Access-ordered, so iteration starts with the least recently used:
+    entries_ = new LinkedHashMap<String, Entry>(16, 0.75F, true);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the cached entry, or null if it is not present
+  */
+
+  public synchronized Entry get(String key) {
+    Entry retval = entries_.get(key);
+    if (retval == null) {
+      misses_++;
+    } else {
+      hits_++;
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the key is cached, without counting it as a hit or a miss
+  */
+
+  public synchronized boolean contains(String key) {
+    return (entries_.containsKey(key));
+  }
+
+  /***************************************************************************
+  **
+  ** Build an entry and cache it if it fits in the budget. The entry is
+  ** returned either way.
+  */
+
+  public Entry put(String key, byte[] bytes, String contentType, boolean addGzip) throws IOException {
+    Entry entry = new Entry(bytes, contentType, addGzip);
+    if (entry.size() > maxBytes_) {
+      return (entry);
+    }
+    synchronized (this) {
+      Entry old = entries_.put(key, entry);
+      if (old != null) {
+        currBytes_ -= old.size();
+      }
+      currBytes_ += entry.size();
+      Iterator<Map.Entry<String, Entry>> eit = entries_.entrySet().iterator();
+      while ((currBytes_ > maxBytes_) && eit.hasNext()) {
+        Map.Entry<String, Entry> lru = eit.next();
+        currBytes_ -= lru.getValue().size();
+        eit.remove();
+      }
+    }
+    return (entry);
+  }
+
+  /***************************************************************************
+  **
+  ** Drop everything
+  */
+
+  public synchronized void clear() {
+    entries_.clear();
+    currBytes_ = 0L;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get the number of bytes held
+  */
+
+  public synchronized long getCurrentBytes() {
+    return (currBytes_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the number of entries held
+  */
+
+  public synchronized int getEntryCount() {
+    return (entries_.size());
+  }
+
+  /***************************************************************************
+  **
+  ** Get the hit count
+  */
+
+  public synchronized long getHits() {
+    return (hits_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the miss count
+  */
+
+  public synchronized long getMisses() {
+    return (misses_);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if an If-None-Match header value matches the given tag
+  */
+
+  public static boolean tagMatches(String ifNoneMatch, String useTag) {
+    if (ifNoneMatch == null) {
+      return (false);
+    }
+    String[] tags = ifNoneMatch.split(",");
+    for (int i = 0; i < tags.length; i++) {
+      String tag = tags[i].trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(useTag)) {
+        return (true);
+      }
+    }
+    return (false);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** A cached rendering, optionally with a gzipped copy for clients that accept
+  ** it. The ETag is a hash of the content, so identical output gets the same tag
+  ** no matter how it was keyed. The gzipped copy gets its own tag.
+  */
+
+  public static class Entry {
+    public final byte[] bytes;
+    public final byte[] gzipped;
+    public final String contentType;
+    public final String etag;
+    public final String gzipEtag;
+
+    public Entry(byte[] bytes, String contentType, boolean addGzip) throws IOException {
+      this.bytes = bytes;
+      this.contentType = contentType;
+      String hash = contentHash(bytes);
+      this.etag = "\"" + hash + "\"";
+      if (addGzip) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4);
+        GZIPOutputStream gzos = new GZIPOutputStream(baos);
+        gzos.write(bytes);
+        gzos.close();
+        this.gzipped = baos.toByteArray();
+        this.gzipEtag = "\"" + hash + "-gz\"";
+      } else {
+        this.gzipped = null;
+        this.gzipEtag = null;
+      }
+    }
+    
+    /***************************************************************************
+    **
+    ** Bytes held
+    */
+
+    public long size() {
+      return (bytes.length + ((gzipped == null) ? 0 : gzipped.length));
+    }
+
+    /***************************************************************************
+    **
+    ** Answer if an If-None-Match header value matches the given one of our tags
+    */
+
+    public boolean matches(String ifNoneMatch, String useTag) {
+      return (tagMatches(ifNoneMatch, useTag));
+    }
+
+    private static String contentHash(byte[] bytes) {
+      try {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        return (DataUtil.toHexString(md.digest(bytes)));
+      } catch (NoSuchAlgorithmException nsae) {
+        throw new IllegalStateException(nsae);
+      }
+    }
+  }
+}
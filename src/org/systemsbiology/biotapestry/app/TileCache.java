@@ -0,0 +1,267 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.systemsbiology.biotapestry.util.DataUtil;
+
+/****************************************************************************
+**
+** On-disk cache of rendered image tiles. Tiles for one rendering (as keyed by
+** WebServerApplication.getRenderCacheKey(), which includes the model file
+** version) go in their own directory, so a pan or zoom only renders the tiles
+** that are not already there. Since the key changes with the model version,
+** tiles of an old version are never served again. Only so many renderings are
+** kept; the one used least recently is deleted to make room for a new one.
+*/
+
+public class TileCache {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private File baseDir_;
+  private int maxKeys_;
+  private LinkedHashMap<String, File> keyDirs_;
+  private long written_;
+  private long served_;
+  private long pruned_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Keeps the tiles of at most maxKeys renderings. Renderings
+  ** left by an earlier run count against that, oldest first.
+  */
+
+  public TileCache(File baseDir, int maxKeys) throws IOException {
+    if (!baseDir.isDirectory() && !baseDir.mkdirs()) {
+      throw new IOException("Cannot create tile cache directory " + baseDir);
+    }
+    if (maxKeys < 1) {
+      throw new IllegalArgumentException();
+    }
+    baseDir_ = baseDir;
+    maxKeys_ = maxKeys;
+    keyDirs_ = new LinkedHashMap<String, File>(16, 0.75F, true);
+    written_ = 0L;
+    served_ = 0L;
+    pruned_ = 0L;
+    File[] existing = baseDir.listFiles();
+    if (existing != null) {
+      Arrays.sort(existing, new Comparator<File>() {
+        public int compare(File f1, File f2) {
+          long m1 = f1.lastModified();
+          long m2 = f2.lastModified();
+          return ((m1 < m2) ? -1 : ((m1 > m2) ? 1 : 0));
+        }
+      });
+      for (int i = 0; i < existing.length; i++) {
+        if (existing[i].isDirectory()) {
+          keyDirs_.put(existing[i].getName(), existing[i]);
+        }
+      }
+    }
+    prune();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the directory name used for the given rendering key. Also a good
+  ** basis for an ETag.
+  */
+
+  public String keyHash(String key) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      return (DataUtil.toHexString(md.digest(key.getBytes("UTF-8"))));
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new IllegalStateException(nsae);
+    } catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the tile is cached
+  */
+
+  public boolean hasTile(String key, int level, int column, int row) {
+    return (tileFile(key, level, column, row).isFile());
+  }
+
+  /***************************************************************************
+  **
+  ** Copy the cached tile to the stream. Returns false if it is not cached.
+  */
+
+  public boolean sendTile(String key, int level, int column, int row, OutputStream out) throws IOException {
+    File tile = tileFile(key, level, column, row);
+    InputStream is;
+    try {
+      is = new FileInputStream(tile);
+    } catch (IOException ioex) {
+      return (false);
+    }
+    try {
+      byte[] buf = new byte[8192];
+      int count;
+      while ((count = is.read(buf)) != -1) {
+        out.write(buf, 0, count);
+      }
+    } finally {
+      is.close();
+    }
+    synchronized (this) {
+      served_++;
+      keyDirs_.get(tile.getParentFile().getName());
+    }
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Store a rendered tile. It is written to a scratch file and renamed into
+  ** place, so a concurrent reader never sees a partial tile.
+  */
+
+  public void storeTile(String key, int level, int column, int row, byte[] bytes) throws IOException {
+    File tile = tileFile(key, level, column, row);
+    File dir = tile.getParentFile();
+    synchronized (this) {
+      if (keyDirs_.put(dir.getName(), dir) == null) {
+        prune();
+      }
+    }
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Cannot create tile directory " + dir);
+    }
+    File scratch = File.createTempFile("tile", ".tmp", dir);
+    OutputStream os = new FileOutputStream(scratch);
+    try {
+      os.write(bytes);
+    } finally {
+      os.close();
+    }
+    if (!scratch.renameTo(tile)) {
+      // Lost a race with another session rendering the same tile; theirs is just as good:
+      scratch.delete();
+    }
+    synchronized (this) {
+      written_++;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get the count of tiles rendered and stored
+  */
+
+  public synchronized long getTilesWritten() {
+    return (written_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the count of tiles served from disk
+  */
+
+  public synchronized long getTilesServed() {
+    return (served_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the count of renderings deleted to make room
+  */
+
+  public synchronized long getKeysPruned() {
+    return (pruned_);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Delete the least recently used renderings until we are within the cap.
+  ** A reader that loses its tile to this just renders it again. Caller must
+  ** hold the lock.
+  */
+
+  private void prune() {
+    Iterator<File> dit = keyDirs_.values().iterator();
+    while (keyDirs_.size() > maxKeys_) {
+      File dir = dit.next();
+      dit.remove();
+      File[] tiles = dir.listFiles();
+      if (tiles != null) {
+        for (int i = 0; i < tiles.length; i++) {
+          tiles[i].delete();
+        }
+      }
+      dir.delete();
+      pruned_++;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Where the tile lives
+  */
+
+  private File tileFile(String key, int level, int column, int row) {
+    File dir = new File(baseDir_, keyHash(key));
+    return (new File(dir, level + "_" + column + "_" + row + ".png"));
+  }
+}
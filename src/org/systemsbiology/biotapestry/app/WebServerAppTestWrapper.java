@@ -0,0 +1,282 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.genome.Genome;
+import org.systemsbiology.biotapestry.genome.Linkage;
+
+/****************************************************************************
+**
+** Used to test the in-process usage of the WebServerApplication. Takes a .btp
+** file as the only argument.
+*/
+
+public class WebServerAppTestWrapper {
+
+  //
+  // How long a request on a free session may take, and how long a request
+  // on a held session is watched to make sure it does not get through:
+  //
+
+  private static final long FREE_WAIT_MILLIS_ = 60000L;
+  private static final long HELD_WAIT_MILLIS_ = 2000L;
+
+  public static void main(String argv[]) {
+    if (argv.length != 1) {
+      System.err.println("Usage: WebServerAppTestWrapper model.btp");
+      System.exit(1);
+    }
+    try {
+      WebServerApplication wsa = new WebServerApplication("/test");
+      boolean ok = mapDeltas(wsa, argv[0]);
+      ok = tilesLeaveState(wsa, argv[0]) && ok;
+      ok = linkIndexTiming(wsa, argv[0]) && ok;
+      ok = sessionsInParallel(wsa, argv[0]) && ok;
+      System.exit((ok) ? 0 : 1);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Asking again for a model map that has not changed must give an empty
+  ** delta for every model in the file
+  */
+
+  public static boolean mapDeltas(WebServerApplication wsa, String btpFile) throws Exception {
+    BTState appState = new BTState("deltaTest", new HashMap<String, Object>(), true, true);
+    wsa.initNewState(appState, btpFile);
+    List<String> modelIDs = wsa.getModelIDs(appState);
+    boolean retval = true;
+    int numModels = modelIDs.size();
+    for (int i = 0; i < numModels; i++) {
+      String modelID = modelIDs.get(i);
+      Map<String, Object> full = wsa.getModelMapDelta(appState, modelID, -1L);
+      long version = ((Long)full.get(ModelMapHistory.VERSION_KEY)).longValue();
+      Map<String, Object> delta = wsa.getModelMapDelta(appState, modelID, version);
+      boolean empty = ModelMapHistory.isEmptyDelta(delta);
+      System.out.println("  Model " + modelID + ": unchanged map delta is " + ((empty) ? "empty" : "NOT EMPTY"));
+      retval = retval && empty;
+    }
+    System.out.println("Map deltas: " + ((retval) ? "passed" : "FAILED"));
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Drawing a tile of some model must leave the session on the network it
+  ** had before, including when it had none
+  */
+
+  public static boolean tilesLeaveState(WebServerApplication wsa, String btpFile) throws Exception {
+    BTState appState = new BTState("tileTest", new HashMap<String, Object>(), true, true);
+    wsa.initNewState(appState, btpFile);
+    List<String> modelIDs = wsa.getModelIDs(appState);
+    DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome()).getContextForRoot();
+    appState.setGraphLayout(null);
+    appState.setGenomeForUndo(null, dacx);
+    wsa.getTile(appState, modelIDs.get(modelIDs.size() - 1), 0, 0, 0, new ByteArrayOutputStream());
+    boolean retval = (appState.getGenome() == null) && (appState.getLayoutKey() == null);
+    System.out.println("Tiles leave state: " + ((retval) ? "passed" : "FAILED"));
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Time link intersection requests for every link of the model with the most
+  ** links: worked out per request (no version tag), then from the index built
+  ** on the first lookup. Both must give the same answers.
+  */
+
+  public static boolean linkIndexTiming(WebServerApplication wsa, String btpFile) throws Exception {
+    BTState appState = new BTState("linkTest", new HashMap<String, Object>(), true, true);
+    wsa.initNewState(appState, btpFile);
+    String modelID = null;
+    int mostLinks = -1;
+    Iterator<String> mit = wsa.getModelIDs(appState).iterator();
+    while (mit.hasNext()) {
+      String nextID = mit.next();
+      int count = appState.getDB().getGenome(nextID).getLinkageCount();
+      if (count > mostLinks) {
+        modelID = nextID;
+        mostLinks = count;
+      }
+    }
+    Genome genome = appState.getDB().getGenome(modelID);
+    ArrayList<String> linkIDs = new ArrayList<String>();
+    Iterator<Linkage> lit = genome.getLinkageIterator();
+    while (lit.hasNext()) {
+      linkIDs.add(lit.next().getID());
+    }
+    int numLinks = linkIDs.size();
+    
+    appState.setModelVersionTag(null);
+    ArrayList<Map<String, Object>> direct = new ArrayList<Map<String, Object>>();
+    long start = System.nanoTime();
+    for (int i = 0; i < numLinks; i++) {
+      direct.add(wsa.mapLinksToIntersections(appState, new MapParams(modelID, linkIDs.get(i))));
+    }
+    long directNanos = System.nanoTime() - start;
+    
+    appState.setModelVersionTag(btpFile + "@test");
+    boolean retval = true;
+    long firstNanos = 0L;
+    start = System.nanoTime();
+    for (int i = 0; i < numLinks; i++) {
+      Map<String, Object> indexed = wsa.mapLinksToIntersections(appState, new MapParams(modelID, linkIDs.get(i)));
+      if (i == 0) {
+        firstNanos = System.nanoTime() - start;
+      }
+      retval = retval && indexed.equals(direct.get(i));
+    }
+    long indexNanos = System.nanoTime() - start;
+    
+    System.out.println("  Model " + modelID + ", " + numLinks + " links");
+    System.out.println("  Per request: " + (directNanos / 1000000L) + " ms total, " + 
+                       (directNanos / (1000L * numLinks)) + " us per link");
+    System.out.println("  Indexed: " + (indexNanos / 1000000L) + " ms total, first lookup (builds the index) " + 
+                       (firstNanos / 1000000L) + " ms, then " + ((indexNanos - firstNanos) / (1000L * numLinks)) + 
+                       " us per link");
+    System.out.println("  Index status: " + wsa.getLinkIndexStatus());
+    System.out.println("Link index timing: " + ((retval) ? "passed" : "FAILED"));
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** With one session's server lock held (as it is for the length of any
+  ** request on that session), a model map request on a second session must
+  ** still go through, while one on the held session must wait for the lock.
+  ** Each session loads its own copy of the model, so they share no model lock.
+  */
+
+  public static boolean sessionsInParallel(WebServerApplication wsa, String btpFile) throws Exception {
+    BTState held = new BTState("heldSession", new HashMap<String, Object>(), true, true);
+    wsa.initNewState(held, btpFile);
+    BTState free = new BTState("freeSession", new HashMap<String, Object>(), true, true);
+    wsa.initNewState(free, btpFile);
+   
+    MapRequest otherReq = new MapRequest(wsa, free);
+    long start = System.currentTimeMillis();
+    boolean otherDone = otherReq.runWhileHeld(held, FREE_WAIT_MILLIS_);
+    long otherMillis = System.currentTimeMillis() - start;
+    boolean parallel = otherDone && otherReq.succeeded();
+    System.out.println("  Other session, lock held: " + ((otherDone) ? "done in " + otherMillis + " ms" : "BLOCKED"));
+    
+    MapRequest sameReq = new MapRequest(wsa, held);
+    boolean sameDone = sameReq.runWhileHeld(held, HELD_WAIT_MILLIS_);
+    boolean serialized = !sameDone && sameReq.succeeded();
+    System.out.println("  Same session, lock held: " + ((sameDone) ? "GOT THROUGH" : "waited " + HELD_WAIT_MILLIS_ + 
+                       " ms, done once released"));
+    
+    boolean retval = parallel && serialized;
+    System.out.println("Sessions in parallel: " + ((retval) ? "passed" : "FAILED"));
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** A model map request run on its own thread
+  */
+
+  private static class MapRequest implements Runnable {
+
+    private WebServerApplication wsa_;
+    private BTState appState_;
+    private CountDownLatch done_;
+    private volatile boolean ok_;
+
+    MapRequest(WebServerApplication wsa, BTState appState) {
+      wsa_ = wsa;
+      appState_ = appState;
+      done_ = new CountDownLatch(1);
+      ok_ = false;
+    }
+
+    public void run() {
+      try {
+        ok_ = (wsa_.getModelMap(appState_, null) != null);
+      } catch (WebServerApplication.GeneratorException gex) {
+        gex.printStackTrace();
+      } finally {
+        done_.countDown();
+      }
+    }
+
+    /***************************************************************************
+    **
+    ** Start the request while holding the server lock of the given session,
+    ** and answer if it finished within the wait. Returns once the request
+    ** is over, lock released or not.
+    */
+
+    boolean runWhileHeld(BTState held, long waitMillis) throws InterruptedException {
+      Thread thread = new Thread(this);
+      boolean retval;
+      synchronized (held.getServerLock()) {
+        thread.start();
+        retval = done_.await(waitMillis, TimeUnit.MILLISECONDS);
+      }
+      thread.join();
+      return (retval);
+    }
+
+    boolean succeeded() {
+      return (ok_);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Request parameters for a link intersection lookup
+  */
+
+  private static class MapParams implements WebServerApplication.ParamSource {
+
+    private HashMap<String, String> params_;
+
+    MapParams(String modelID, String linkID) {
+      params_ = new HashMap<String, String>();
+      params_.put("model", modelID);
+      params_.put("linkID", linkID);
+    }
+
+    public String getParameter(String key) {
+      return (params_.get(key));
+    }
+
+    public Iterator<String> getKeys() {
+      return (params_.keySet().iterator());
+    }
+  }
+}
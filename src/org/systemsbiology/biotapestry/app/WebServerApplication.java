@@ -20,8 +20,10 @@
 
 package org.systemsbiology.biotapestry.app;
 
+import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
@@ -41,6 +43,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
@@ -77,10 +80,11 @@ import org.systemsbiology.biotapestry.ui.ImageExporter;
 import org.systemsbiology.biotapestry.ui.Intersection;
 import org.systemsbiology.biotapestry.ui.Layout;
 import org.systemsbiology.biotapestry.ui.LinkSegmentID;
-import org.systemsbiology.biotapestry.ui.SourceAndTargetSelector;
+import org.systemsbiology.biotapestry.ui.SUPanel;
 import org.systemsbiology.biotapestry.ui.ViewExporter;
 import org.systemsbiology.biotapestry.ui.dialogs.factory.SerializableDialogPlatform;
 import org.systemsbiology.biotapestry.ui.freerender.MultiSubID;
+import org.systemsbiology.biotapestry.ui.freerender.NetModuleFree;
 import org.systemsbiology.biotapestry.ui.menu.XPlatCurrentState;
 import org.systemsbiology.biotapestry.ui.menu.XPlatGenericMenu;
 import org.systemsbiology.biotapestry.ui.menu.XPlatKeyBindings;
@@ -114,6 +118,13 @@ public class WebServerApplication {
   //
   ////////////////////////////////////////////////////////////////////////////   
   
+  //
+  // Image tile pyramid: tiles are square, and each zoom level doubles the last:
+  //
+  
+  public static final int TILE_SIZE = 256;
+  public static final double[] TILE_ZOOMS = {0.125, 0.25, 0.5, 1.0, 2.0};
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE MEMBERS
@@ -129,8 +140,10 @@ public class WebServerApplication {
   private final String configDir_ = "/WEB-INF/";
   private final String fullServletContextPath_;
   private final String pluginsDir_;
+  private final LinkIntersectionIndex linkIndex_ = new LinkIntersectionIndex(MAX_INDEXED_MODELS_);
   
   private static final String DEFAULT_MODEL_FILE_DIR_ = "/WEB-INF/data/";
+  private static final int MAX_INDEXED_MODELS_ = 64;
  
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -158,13 +171,11 @@ public class WebServerApplication {
   }
   
   public WebServerApplication(String servPath, String fileDir, String fullServletContextPath,String pluginsDir) throws GeneratorException { 
-	  synchronized (MainCommands.class) {
-	    System.setProperty("java.awt.headless", "true");     	
-	    servletPath_ = servPath;
-	    fileDir_ = (fileDir == null ? DEFAULT_MODEL_FILE_DIR_ : fileDir);
-	    fullServletContextPath_ = fullServletContextPath;
-	    pluginsDir_ = pluginsDir;
-	  }			  
+	  System.setProperty("java.awt.headless", "true");     	
+	  servletPath_ = servPath;
+	  fileDir_ = (fileDir == null ? DEFAULT_MODEL_FILE_DIR_ : fileDir);
+	  fullServletContextPath_ = fullServletContextPath;
+	  pluginsDir_ = pluginsDir;
   }
   
 
@@ -205,52 +216,78 @@ public class WebServerApplication {
   */
 
   public void initNewState(BTState appState, InputStream is) throws GeneratorException {  
-    synchronized (MainCommands.class) {     
-      try {
-    	  Map<String,Object> plugins = new HashMap<String,Object>();
-          if(pluginsDir_ != null) {
-          	plugins.put(ArgParser.PLUG_IN_DIR,
-      			this.fullServletContextPath_+((this.pluginsDir_.startsWith("/") || this.pluginsDir_.startsWith("\\") ? this.pluginsDir_.substring(1) : this.pluginsDir_))
-  			);
-          }
-    	  boolean ok = appState.getPlugInMgr().loadDataDisplayPlugIns(plugins);
-    	  
-        if (!ok) {
-          System.err.println("Problems loading plugins");
+    synchronized (appState.getServerLock()) {     
+      synchronized (appState.getModelLock()) {
+        try {
+          prepNewState(appState);
+          appState.getDB().newModelViaDACX(); // Bogus, but no DACX yet
+          buildNewStateView(appState);
+          FlowMeister flom = appState.getFloM();
+          Object[] osArgs = new Object[2];
+          osArgs[0] = Boolean.valueOf(false);
+          osArgs[1] = is;
+          BatchJobControlFlowHarness dcf0 = new BatchJobControlFlowHarness(appState, null); 
+          ControlFlow myFlow0 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
+          DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+          LoadSaveOps.StepState pre0 = (LoadSaveOps.StepState)myFlow0.getEmptyStateForPreload(dacx);
+          pre0.setParams(osArgs);     
+          dcf0.initFlow(myFlow0, dacx);
+          DialogAndInProcessCmd daipc0 = dcf0.stepTheFlow(pre0);
+          if (daipc0.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException("State is not DONE, it is " + daipc0.state);
+          }      
+        } catch (Exception ex) {
+      	  ex.printStackTrace();
+      	  String message = ex.getMessage();
+      	  if(ex.getMessage() == null) {
+      		  message = ex.toString();
+      	  }
+      	  throw new GeneratorException("Error on BTState init: " + message,ex);
         }
-        DialogAndInProcessCmd daipc0 = null;
-        appState.getDB().newModelViaDACX(); // Bogus, but no DACX yet
-        appState.setIsEditor(compiledAsEditor_);
-        appState.setExceptionHandler(new ExceptionHandler(appState, appState.getRMan(), true));
-        appState.setServerBtpDirectory(fileDir_);
-        appState.setServerConfigDirectory(configDir_);
-        appState.setFullServletContextPath(this.fullServletContextPath_);
-        CommonView cview = new CommonView(appState);
-        cview.buildTheView();               
-        FlowMeister flom = appState.getFloM();
-        Object[] osArgs = new Object[2];
-        osArgs[0] = Boolean.valueOf(false);
-        osArgs[1] = is;
-        BatchJobControlFlowHarness dcf0 = new BatchJobControlFlowHarness(appState, null); 
-        ControlFlow myFlow0 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
-        DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
-        LoadSaveOps.StepState pre0 = (LoadSaveOps.StepState)myFlow0.getEmptyStateForPreload(dacx);
-        pre0.setParams(osArgs);     
-        dcf0.initFlow(myFlow0, dacx);
-        daipc0 = dcf0.stepTheFlow(pre0);
-        if (daipc0.state != DialogAndInProcessCmd.Progress.DONE) {
-          throw new GeneratorException("State is not DONE, it is " + daipc0.state);
-        }      
-      } catch (Exception ex) {
-    	  ex.printStackTrace();
-    	  String message = ex.getMessage();
-    	  if(ex.getMessage() == null) {
-    		  message = ex.toString();
-    	  }
-    	  throw new GeneratorException("Error on BTState init: " + message,ex);
       }
     }       
   }  
+  
+  /***************************************************************************
+  ** 
+  ** Initialize a brand new app State from a model snapshot. Viewers share one of
+  ** the snapshot's loaded replicas and only build their own view state; editors
+  ** get a private fork parsed from the cached file contents.
+  */
+
+  public void initNewState(BTState appState, ModelSnapshot snapshot) throws GeneratorException {  
+    if (compiledAsEditor_) {
+      initNewState(appState, snapshot.openStream());
+      return;
+    }
+    BTState replica = snapshot.getReplica(this);
+    synchronized (appState.getServerLock()) {     
+      synchronized (replica.getModelLock()) {
+        appState.shareModelFrom(replica);
+        try {
+          prepNewState(appState);
+          buildNewStateView(appState);
+          appState.getLSSupport().postLoadOperations(false, new DynamicDataAccessContext(appState));
+        } catch (Exception ex) {
+      	  ex.printStackTrace();
+      	  String message = ex.getMessage();
+      	  if(ex.getMessage() == null) {
+      		  message = ex.toString();
+      	  }
+      	  throw new GeneratorException("Error on BTState init: " + message,ex);
+        }
+      }
+    }       
+  }  
+  
+  /***************************************************************************
+  ** 
+  ** Answer if we are compiled as an editor
+  */
+
+  public boolean isEditor() {  
+    return (compiledAsEditor_);
+  }
 
   /***************************************************************************
   ** 
@@ -258,20 +295,22 @@ public class WebServerApplication {
   */
 
   public String getAnnotationImageType(BTState appState, String modelID) throws GeneratorException {
-    synchronized (MainCommands.class) {
-      try {
-        Genome currGenome = appState.getDB().getGenome(modelID);
-        String mi = currGenome.getGenomeImage();
-        if (mi == null) {
-          return (null);
-        }
-        String type = appState.getImageMgr().getImageType(mi);
-        if (type == null) {
-          return (null);
+    synchronized (appState.getServerLock()) {
+      synchronized (appState.getModelLock()) {
+        try {
+          Genome currGenome = appState.getDB().getGenome(modelID);
+          String mi = currGenome.getGenomeImage();
+          if (mi == null) {
+            return (null);
+          }
+          String type = appState.getImageMgr().getImageType(mi);
+          if (type == null) {
+            return (null);
+          }
+          return("image/" + type.toLowerCase());
+        } catch (Exception ex) {
+          throw new GeneratorException("imageTypeFailure: " + ex.getMessage(),ex);
         }
-        return("image/" + type.toLowerCase());
-      } catch (Exception ex) {
-        throw new GeneratorException("imageTypeFailure: " + ex.getMessage(),ex);
       }
     }
   }
@@ -282,19 +321,21 @@ public class WebServerApplication {
   */
 
   public void getAnnotationImage(BTState appState, String modelID, OutputStream output) throws GeneratorException {  
-    synchronized (MainCommands.class) {    
-      try {
-        Genome currGenome = appState.getDB().getGenome(modelID);
-        String mi = currGenome.getGenomeImage();
-        BufferedImage bi = appState.getImageMgr().getImage(mi);
-        String type = appState.getImageMgr().getImageType(mi);
-        List<Object[]> resList = ImageExporter.getSupportedResolutions(false);       
-        ImageExporter.ResolutionSettings res = new ImageExporter.ResolutionSettings();
-        res.dotsPerUnit = (ImageExporter.RationalNumber)resList.get(0)[ImageExporter.INCHES];       
-        ImageExporter iex = new ImageExporter();    
-        iex.export(output, bi, type, res);
-      } catch (Exception ex) {
-        throw new GeneratorException("getAnnotationImageFailure: " + ex.getMessage(),ex);
+    synchronized (appState.getServerLock()) {    
+      synchronized (appState.getModelLock()) {
+        try {
+          Genome currGenome = appState.getDB().getGenome(modelID);
+          String mi = currGenome.getGenomeImage();
+          BufferedImage bi = appState.getImageMgr().getImage(mi);
+          String type = appState.getImageMgr().getImageType(mi);
+          List<Object[]> resList = ImageExporter.getSupportedResolutions(false);       
+          ImageExporter.ResolutionSettings res = new ImageExporter.ResolutionSettings();
+          res.dotsPerUnit = (ImageExporter.RationalNumber)resList.get(0)[ImageExporter.INCHES];       
+          ImageExporter iex = new ImageExporter();    
+          iex.export(output, bi, type, res);
+        } catch (Exception ex) {
+          throw new GeneratorException("getAnnotationImageFailure: " + ex.getMessage(),ex);
+        }
       }
     }
     return;
@@ -306,41 +347,43 @@ public class WebServerApplication {
   */
 
   public void getImage(BTState appState, String modelID, OutputStream output) throws GeneratorException {  
-    synchronized (MainCommands.class) {    
-      try {
+    synchronized (appState.getServerLock()) {    
+      synchronized (appState.getModelLock()) {
+        try {
         
-        if (modelID == null) {
-          String genomeID = appState.getGenome();          
-          modelID = (genomeID == null) ? appState.getDB().getStartupView().getModel() : genomeID;
-        }       
-        BogoNamedOutputStreamSource boss = new BogoNamedOutputStreamSource(output);
+          if (modelID == null) {
+            String genomeID = appState.getGenome();          
+            modelID = (genomeID == null) ? appState.getDB().getStartupView().getModel() : genomeID;
+          }       
+          BogoNamedOutputStreamSource boss = new BogoNamedOutputStreamSource(output);
              
-        HashSet<WebPublisher.ModelScale> keysToPublish = new HashSet<WebPublisher.ModelScale>();
-        keysToPublish.add(new WebPublisher.ModelScale(modelID, WebPublisher.ModelScale.SMALL));
+          HashSet<WebPublisher.ModelScale> keysToPublish = new HashSet<WebPublisher.ModelScale>();
+          keysToPublish.add(new WebPublisher.ModelScale(modelID, WebPublisher.ModelScale.SMALL));
         
-        HashMap<WebPublisher.ModelScale, ViewExporter.BoundsMaps> intersectionMap = 
-          new HashMap<WebPublisher.ModelScale, ViewExporter.BoundsMaps>();
-
-        FlowMeister flom = appState.getFloM();
-        Object[] osArgs = new Object[4];
-        osArgs[0] = Boolean.valueOf(false);
-        osArgs[1] = boss;
-        osArgs[2] = intersectionMap;
-        osArgs[3] = keysToPublish;
-        BatchJobControlFlowHarness dcf2 = new BatchJobControlFlowHarness(appState, null); 
-        ControlFlow myFlow2 = flom.getControlFlow(FlowMeister.MainFlow.WEB, null);
-        DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
-        ExportWeb.StepState pre2 = (ExportWeb.StepState)myFlow2.getEmptyStateForPreload(dacx);
-        pre2.setParams(osArgs);     
-        dcf2.initFlow(myFlow2, dacx);
-        DialogAndInProcessCmd daipc2 = dcf2.stepTheFlow(pre2);          
-        if (daipc2.state != DialogAndInProcessCmd.Progress.DONE) {
-          throw new GeneratorException("imageExportFailure");
+          HashMap<WebPublisher.ModelScale, ViewExporter.BoundsMaps> intersectionMap = 
+            new HashMap<WebPublisher.ModelScale, ViewExporter.BoundsMaps>();
+
+          FlowMeister flom = appState.getFloM();
+          Object[] osArgs = new Object[4];
+          osArgs[0] = Boolean.valueOf(false);
+          osArgs[1] = boss;
+          osArgs[2] = intersectionMap;
+          osArgs[3] = keysToPublish;
+          BatchJobControlFlowHarness dcf2 = new BatchJobControlFlowHarness(appState, null); 
+          ControlFlow myFlow2 = flom.getControlFlow(FlowMeister.MainFlow.WEB, null);
+          DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+          ExportWeb.StepState pre2 = (ExportWeb.StepState)myFlow2.getEmptyStateForPreload(dacx);
+          pre2.setParams(osArgs);     
+          dcf2.initFlow(myFlow2, dacx);
+          DialogAndInProcessCmd daipc2 = dcf2.stepTheFlow(pre2);          
+          if (daipc2.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException("imageExportFailure");
+          }
+        } catch (GeneratorException gex) {
+      	  throw gex;
+        } catch (Exception ex) {
+      	  	throw new GeneratorException("imageExportFailure: " + ex.getMessage(),ex);
         }
-      } catch (GeneratorException gex) {
-    	  throw gex;
-      } catch (Exception ex) {
-    	  	throw new GeneratorException("imageExportFailure: " + ex.getMessage(),ex);
       }
     }
     return;
@@ -348,34 +391,238 @@ public class WebServerApplication {
 
   /***************************************************************************
   ** 
-  ** Get JSON representation of specified network
+  ** Get the layout of the image tile pyramid for the specified network: the
+  ** full image size and tile grid for each zoom level.
   */
 
-  public Map<String, Object> getModelMap(BTState appState, String modelID) throws GeneratorException {  
-    synchronized (MainCommands.class) {
-      try {
-        if (modelID == null) {
-          String genomeID = appState.getGenome();          
-          modelID = (genomeID == null) ? appState.getDB().getStartupView().getModel() : genomeID;
+  public Map<String, Object> getTileInfo(BTState appState, String modelID) throws GeneratorException {  
+    synchronized (appState.getServerLock()) {    
+      synchronized (appState.getModelLock()) {
+        try {
+          TileHold hold = switchForTiles(appState, modelID);
+          ArrayList<Map<String, Object>> levels = new ArrayList<Map<String, Object>>();
+          try {
+            for (int i = 0; i < TILE_ZOOMS.length; i++) {
+              Dimension full = appState.getSUPanel().getExportSize(TILE_ZOOMS[i], appState);
+              HashMap<String, Object> level = new HashMap<String, Object>();
+              level.put("level", Integer.valueOf(i));
+              level.put("zoom", Double.valueOf(TILE_ZOOMS[i]));
+              level.put("width", Integer.valueOf(full.width));
+              level.put("height", Integer.valueOf(full.height));
+              level.put("columns", Integer.valueOf((full.width + TILE_SIZE - 1) / TILE_SIZE));
+              level.put("rows", Integer.valueOf((full.height + TILE_SIZE - 1) / TILE_SIZE));
+              levels.add(level);
+            }
+          } finally {
+            restoreAfterTiles(appState, hold);
+          }
+          HashMap<String, Object> retval = new HashMap<String, Object>();
+          retval.put("tileSize", Integer.valueOf(TILE_SIZE));
+          retval.put("levels", levels);
+          return (retval);
+        } catch (Exception ex) {
+          throw new GeneratorException("tileInfoFailure: " + ex.getMessage(), ex);
         }
+      }
+    }
+  }
 
-        FlowMeister flom = appState.getFloM();
-        BatchJobControlFlowHarness dcf2 = new BatchJobControlFlowHarness(appState, null); 
-        ControlFlow myFlow2 = flom.getControlFlow(FlowMeister.MainFlow.MODEL_EXPORT, null);
-        DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
-        ExportModel.StepState pre2 = (ExportModel.StepState)myFlow2.getEmptyStateForPreload(dacx);
-        pre2.setParams(modelID);
-        dcf2.initFlow(myFlow2, dacx);
-        DialogAndInProcessCmd daipc2 = dcf2.stepTheFlow(pre2);          
-        if (daipc2.state != DialogAndInProcessCmd.Progress.DONE) {
-          throw new GeneratorException("JSONExportFailure");
+  /***************************************************************************
+  ** 
+  ** Get one PNG tile of the image of the specified network at the given zoom level.
+  ** Only the tile is drawn. Tiles on the right and bottom edges are cut down to
+  ** the image size.
+  */
+
+  public void getTile(BTState appState, String modelID, int level, int column, int row, 
+                      OutputStream output) throws GeneratorException {  
+    if ((level < 0) || (level >= TILE_ZOOMS.length) || (column < 0) || (row < 0)) {
+      throw new GeneratorException("badTileRequest");
+    }
+    synchronized (appState.getServerLock()) {    
+      synchronized (appState.getModelLock()) {
+        try {
+          TileHold hold = switchForTiles(appState, modelID);
+          try {
+            SUPanel sup = appState.getSUPanel();
+            double zoom = TILE_ZOOMS[level];
+            Dimension full = sup.getExportSize(zoom, appState);
+            Rectangle tile = new Rectangle(column * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+            tile = tile.intersection(new Rectangle(0, 0, full.width, full.height));
+            if (tile.isEmpty()) {
+              throw new GeneratorException("badTileRequest");
+            }
+            sup.exportTileToStream(output, "PNG", zoom, full, tile, appState);
+          } finally {
+            restoreAfterTiles(appState, hold);
+          }
+        } catch (GeneratorException gex) {
+          throw gex;
+        } catch (Exception ex) {
+          throw new GeneratorException("imageExportFailure: " + ex.getMessage(), ex);
         }
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  ** 
+  ** Get the RenderCache key for output of the given kind for the specified network,
+  ** covering the model file version and the overlay state that the output depends
+  ** on. Returns null if the output cannot be shared, e.g. the model may have been
+  ** edited. Callers must hold the state's server lock across getting the key and
+  ** producing the output.
+  */
+
+  public String getRenderCacheKey(BTState appState, String kind, String modelID) {  
+    synchronized (appState.getServerLock()) {
+      synchronized (appState.getModelLock()) {
+        return (buildRenderCacheKey(appState, kind, modelID));
+      }
+    }
+  }
+
+  /***************************************************************************
+  ** 
+  ** Like getRenderCacheKey(), but without waiting for the session. The key
+  ** may be stale (or null) if the session is busy, so it is only good as a
+  ** hint, e.g. to guess if a request will be a cache hit.
+  */
+
+  public String peekRenderCacheKey(BTState appState, String kind, String modelID) {  
+    try {
+      return (buildRenderCacheKey(appState, kind, modelID));
+    } catch (RuntimeException rex) {
+      return (null);
+    }
+  }
+
+  /***************************************************************************
+  ** 
+  ** Build the render cache key from the session state
+  */
+
+  private String buildRenderCacheKey(BTState appState, String kind, String modelID) {  
+    String tag = appState.getModelVersionTag();
+    if (compiledAsEditor_ || (tag == null)) {
+      return (null);
+    }
+    if (modelID == null) {
+      String genomeID = appState.getGenome();          
+      modelID = (genomeID == null) ? appState.getDB().getStartupView().getModel() : genomeID;
+    }
+    StringBuffer buf = new StringBuffer();
+    buf.append(kind);
+    buf.append('|');
+    buf.append(tag);
+    buf.append('|');
+    buf.append(modelID);
+    buf.append('|');
+    buf.append(appState.getCurrentOverlay());
+    buf.append('|');
+    appendTaggedSet(buf, appState.getCurrentNetModules());
+    buf.append('|');
+    appendTaggedSet(buf, appState.getRevealedModules());
+    NetModuleFree.CurrentSettings settings = appState.getCurrentOverlaySettings();
+    if (settings != null) {
+      buf.append('|');
+      buf.append(settings.regionLabelAlpha).append(',');
+      buf.append(settings.regionFillAlpha).append(',');
+      buf.append(settings.regionBoundaryAlpha).append(',');
+      buf.append(settings.backgroundOverlayAlpha).append(',');
+      buf.append(settings.intersectionMask).append(',');
+      buf.append(settings.fastDecayLabelVisible);
+    }
+    return (buf.toString());
+  }
+
+  /***************************************************************************
+  ** 
+  ** Make the specified network current for tile drawing; returns what to restore
+  */
+
+  private TileHold switchForTiles(BTState appState, String modelID) {  
+    String holdKey = appState.getGenome();
+    if (modelID == null) {
+      modelID = (holdKey == null) ? appState.getDB().getStartupView().getModel() : holdKey;
+    }
+    if (modelID.equals(holdKey)) {
+      return (null);
+    }
+    TileHold retval = new TileHold(holdKey, appState.getLayoutKey());
+    DataAccessContext dacx = new DataAccessContext(appState, holdKey).getContextForRoot();
+    appState.setGraphLayout(appState.getLayoutMgr().getLayout(modelID));
+    appState.setGenomeForUndo(modelID, dacx);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Undo switchForTiles(). The session may have had no current network at
+  ** all, in which case it goes back to having none.
+  */
+
+  private void restoreAfterTiles(BTState appState, TileHold hold) {  
+    if (hold == null) {
+      return;
+    }
+    DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome()).getContextForRoot();
+    appState.setGraphLayout(hold.layoutKey);
+    appState.setGenomeForUndo(hold.genomeKey, dacx);
+    return;
+  }
+
+  /***************************************************************************
+  ** 
+  ** Get JSON representation of specified network
+  */
+
+  public Map<String, Object> getModelMap(BTState appState, String modelID) throws GeneratorException {  
+    synchronized (appState.getServerLock()) {
+      synchronized (appState.getModelLock()) {
+        try {
+          if (modelID == null) {
+            String genomeID = appState.getGenome();          
+            modelID = (genomeID == null) ? appState.getDB().getStartupView().getModel() : genomeID;
+          }
+
+          FlowMeister flom = appState.getFloM();
+          BatchJobControlFlowHarness dcf2 = new BatchJobControlFlowHarness(appState, null); 
+          ControlFlow myFlow2 = flom.getControlFlow(FlowMeister.MainFlow.MODEL_EXPORT, null);
+          DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+          ExportModel.StepState pre2 = (ExportModel.StepState)myFlow2.getEmptyStateForPreload(dacx);
+          pre2.setParams(modelID);
+          dcf2.initFlow(myFlow2, dacx);
+          DialogAndInProcessCmd daipc2 = dcf2.stepTheFlow(pre2);          
+          if (daipc2.state != DialogAndInProcessCmd.Progress.DONE) {
+            throw new GeneratorException("JSONExportFailure");
+          }
                 
-        return daipc2.commandResults;
+          return daipc2.commandResults;
+
+        } catch (Exception ex) {
+      	  ex.printStackTrace();
+          throw new GeneratorException("JSONExportFailure: " + ex.getMessage(),ex);
+        }
+      }
+    }
+  } 
+  
+  /***************************************************************************
+  ** 
+  ** Get the model map as a delta against the version the client says it
+  ** holds: only the cache groups added, removed or replaced since then. If
+  ** that version is not the last one sent to this session, the full map is
+  ** returned (with "delta" false). Either way, the result carries the new
+  ** version for the client's next request.
+  */
 
-      } catch (Exception ex) {
-    	  ex.printStackTrace();
-        throw new GeneratorException("JSONExportFailure: " + ex.getMessage(),ex);
+  public Map<String, Object> getModelMapDelta(BTState appState, String modelID, long sinceVersion) throws GeneratorException {  
+    synchronized (appState.getServerLock()) {
+      synchronized (appState.getModelLock()) {
+        Map<String, Object> fresh = getModelMap(appState, modelID);
+        return (appState.getModelMapHistory().update(fresh, sinceVersion));
       }
     }
   } 
@@ -386,15 +633,36 @@ public class WebServerApplication {
   */
 
   public XPlatModelTree getModelTree(BTState appState) throws GeneratorException { 
-    synchronized (MainCommands.class) { 
-      try {
-        DataAccessContext dacx = new DataAccessContext(appState);
-        NavTree navTree = dacx.getGenomeSource().getModelHierarchy();  
-        XPlatModelTree xpm = navTree.getXPlatTree(dacx);
-        return (xpm);
-      } catch (Exception hex) {
-    	  hex.printStackTrace();
-        throw new GeneratorException("ExceptionFailure: " + hex.getMessage(), hex);
+    synchronized (appState.getServerLock()) { 
+      synchronized (appState.getModelLock()) {
+        try {
+          DataAccessContext dacx = new DataAccessContext(appState);
+          NavTree navTree = dacx.getGenomeSource().getModelHierarchy();  
+          XPlatModelTree xpm = navTree.getXPlatTree(dacx);
+          return (xpm);
+        } catch (Exception hex) {
+      	  hex.printStackTrace();
+          throw new GeneratorException("ExceptionFailure: " + hex.getMessage(), hex);
+        }
+      }
+    }   
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the IDs of all the models in the tree, in preorder
+  */
+
+  public List<String> getModelIDs(BTState appState) throws GeneratorException { 
+    synchronized (appState.getServerLock()) { 
+      synchronized (appState.getModelLock()) {
+        try {
+          DataAccessContext dacx = new DataAccessContext(appState);
+          NavTree navTree = dacx.getGenomeSource().getModelHierarchy();  
+          return (navTree.getPreorderListing(false));
+        } catch (Exception hex) {
+          throw new GeneratorException("ExceptionFailure: " + hex.getMessage(), hex);
+        }
       }
     }   
   }
@@ -406,18 +674,20 @@ public class WebServerApplication {
 
   public void getIcon(BTState appState, String iconName, OutputStream output) throws GeneratorException {    
   
-    synchronized (MainCommands.class) {   
-      try {
-        if (iconName == null) {
-          throw new GeneratorException("no iconFile");
-        }
-        MainCommands mcmd = appState.getMainCmds();
-        URL ugif = mcmd.getClass().getResource("/org/systemsbiology/biotapestry/images/" + iconName); 
-        Image image = ImageIO.read(ugif);
-        ImageIO.write((BufferedImage)image, "png", output);
-      } catch (Exception hex) {
-        throw new GeneratorException("ExceptionFailure: " + hex.getMessage(),hex);
-      }    
+    synchronized (appState.getServerLock()) {   
+      synchronized (appState.getModelLock()) {
+        try {
+          if (iconName == null) {
+            throw new GeneratorException("no iconFile");
+          }
+          MainCommands mcmd = appState.getMainCmds();
+          URL ugif = mcmd.getClass().getResource("/org/systemsbiology/biotapestry/images/" + iconName); 
+          Image image = ImageIO.read(ugif);
+          ImageIO.write((BufferedImage)image, "png", output);
+        } catch (Exception hex) {
+          throw new GeneratorException("ExceptionFailure: " + hex.getMessage(),hex);
+        }    
+      }
     }
     return;
   }
@@ -428,14 +698,16 @@ public class WebServerApplication {
   */
 
   public MenuSource.SupportedMenus getSupportedMenuRequests(BTState appState) throws GeneratorException {     
-    synchronized (MainCommands.class) {   
-      try { 
-        MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
-        return (mSrc.getSupportedMenuClasses());
-      } catch (Exception ex) {
-        ex.printStackTrace();
-        throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
-      }    
+    synchronized (appState.getServerLock()) {   
+      synchronized (appState.getModelLock()) {
+        try { 
+          MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
+          return (mSrc.getSupportedMenuClasses());
+        } catch (Exception ex) {
+          ex.printStackTrace();
+          throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
+        }    
+      }
     }
   }
    
@@ -446,78 +718,80 @@ public class WebServerApplication {
 
   public XPlatGenericMenu getMenuDefinition(BTState appState, HSRWrapper hsrWrapper) throws GeneratorException {    
   
-    synchronized (MainCommands.class) {   
-      try {
+    synchronized (appState.getServerLock()) {   
+      synchronized (appState.getModelLock()) {
+        try {
     	  
-    	  // Menus require current client state information
-    	  // TODO: move this into POST
+      	  // Menus require current client state information
+      	  // TODO: move this into POST
     	  
-          WebClientState thisState = null;
-          if(hsrWrapper.getParameter("clientstate") != null) {
-          	thisState = parseClientState(hsrWrapper);
+            WebClientState thisState = null;
+            if(hsrWrapper.getParameter("clientstate") != null) {
+            	thisState = parseClientState(hsrWrapper);
+            }
+            DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+            UndoSupport undo = new UndoSupport(appState,"command.chooseOverlay",dacx);
+            if(thisState != null) {
+          	  appState.getNetOverlayController().setFullOverlayState(thisState.currOverlay_, thisState.modsAsTaggedSet(), thisState.shownModsAsTaggedSet(),undo, dacx);
+            } else {
+          	  appState.getNetOverlayController().clearCurrentOverlay(undo, dacx);
+            }
+            dacx = new DataAccessContext(appState, appState.getGenome());
+    	  
+  			String menuClass = hsrWrapper.getParameter("menuClass");
+  			String popClass = hsrWrapper.getParameter("popClass");
+  			String popObjID = hsrWrapper.getParameter("popObjID");
+  			String popObjSubIDString = hsrWrapper.getParameter("objSubID");
+  			Object popObjSubID = null;
+  			if (popObjSubIDString != null) {
+  	    	  JSONDeserializer<LinkSegmentID> rezzer = new JSONDeserializer<LinkSegmentID>();
+  	          LinkSegmentID lsid = (LinkSegmentID)rezzer.deserialize(popObjSubIDString);
+  			  if (lsid != null) {
+  			    popObjSubID = new MultiSubID(lsid);
+  			  }
+  			}
+          if (menuClass == null) {
+            throw new GeneratorException("no menuClass");
           }
-          DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
-          UndoSupport undo = new UndoSupport(appState,"command.chooseOverlay",dacx);
-          if(thisState != null) {
-        	  appState.getNetOverlayController().setFullOverlayState(thisState.currOverlay_, thisState.modsAsTaggedSet(), thisState.shownModsAsTaggedSet(),undo, dacx);
+          MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
+
+          if (menuClass.equals(mSrc.getXPlatMenuBarKey())) {         
+            XPlatMenuBar xpmb = mSrc.getXPlatMenuBar(dacx);
+            MenuSource.BuildInfo bifo = new MenuSource.BuildInfo();
+            boolean readOnly = !appState.getIsEditor();
+            bifo.conditions.put("EDITOR", Boolean.valueOf(!readOnly));
+            bifo.conditions.put("VIEWER", Boolean.valueOf(readOnly));    
+            mSrc.activateXPlatMenuBar(xpmb, bifo, appState.getMainCmds(), appState);
+            return (xpmb);
+          } else if (menuClass.equals(mSrc.getXPlatToolBarKey())) { 
+            XPlatToolBar xptb = mSrc.getXPlatToolBar(dacx); 
+            return (xptb);
+          } else if (menuClass.equals(mSrc.getXPlatTreeKey())) {
+            XPlatMenu xpm = mSrc.getXPlatTreePopup(dacx);
+            return (xpm);
+          } else if (menuClass.equals(mSrc.getXPlatPopupKey())) {
+            if ((popClass == null) || (popObjID == null)) {
+              throw new GeneratorException("Missing pop args: " + popClass + " " + popObjID);
+            }
+            MenuSource.PopType pType = MenuSource.PopType.valueOf(popClass);
+            XPlatMenu xpm = mSrc.getXPlatPopup(pType, popObjID, true, dacx);
+            MenuSource.BuildInfo bifo = new MenuSource.BuildInfo();
+            boolean readOnly = !appState.getIsEditor();
+            bifo.conditions.put("EDITOR", Boolean.valueOf(!readOnly));
+            bifo.conditions.put("VIEWER", Boolean.valueOf(readOnly));
+            mSrc.activateXPlatPopup(xpm, bifo, popObjID, popObjSubID, dacx);
+            return (xpm);
           } else {
-        	  appState.getNetOverlayController().clearCurrentOverlay(undo, dacx);
-          }
-          dacx = new DataAccessContext(appState, appState.getGenome());
-    	  
-			String menuClass = hsrWrapper.getParameter("menuClass");
-			String popClass = hsrWrapper.getParameter("popClass");
-			String popObjID = hsrWrapper.getParameter("popObjID");
-			String popObjSubIDString = hsrWrapper.getParameter("objSubID");
-			Object popObjSubID = null;
-			if (popObjSubIDString != null) {
-	    	  JSONDeserializer<LinkSegmentID> rezzer = new JSONDeserializer<LinkSegmentID>();
-	          LinkSegmentID lsid = (LinkSegmentID)rezzer.deserialize(popObjSubIDString);
-			  if (lsid != null) {
-			    popObjSubID = new MultiSubID(lsid);
-			  }
-			}
-        if (menuClass == null) {
-          throw new GeneratorException("no menuClass");
-        }
-        MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
-
-        if (menuClass.equals(mSrc.getXPlatMenuBarKey())) {         
-          XPlatMenuBar xpmb = mSrc.getXPlatMenuBar(dacx);
-          MenuSource.BuildInfo bifo = new MenuSource.BuildInfo();
-          boolean readOnly = !appState.getIsEditor();
-          bifo.conditions.put("EDITOR", Boolean.valueOf(!readOnly));
-          bifo.conditions.put("VIEWER", Boolean.valueOf(readOnly));    
-          mSrc.activateXPlatMenuBar(xpmb, bifo, appState.getMainCmds(), appState);
-          return (xpmb);
-        } else if (menuClass.equals(mSrc.getXPlatToolBarKey())) { 
-          XPlatToolBar xptb = mSrc.getXPlatToolBar(dacx); 
-          return (xptb);
-        } else if (menuClass.equals(mSrc.getXPlatTreeKey())) {
-          XPlatMenu xpm = mSrc.getXPlatTreePopup(dacx);
-          return (xpm);
-        } else if (menuClass.equals(mSrc.getXPlatPopupKey())) {
-          if ((popClass == null) || (popObjID == null)) {
-            throw new GeneratorException("Missing pop args: " + popClass + " " + popObjID);
+            throw new GeneratorException("Unexpected menu class: " + menuClass);
           }
-          MenuSource.PopType pType = MenuSource.PopType.valueOf(popClass);
-          XPlatMenu xpm = mSrc.getXPlatPopup(pType, popObjID, true, dacx);
-          MenuSource.BuildInfo bifo = new MenuSource.BuildInfo();
-          boolean readOnly = !appState.getIsEditor();
-          bifo.conditions.put("EDITOR", Boolean.valueOf(!readOnly));
-          bifo.conditions.put("VIEWER", Boolean.valueOf(readOnly));
-          mSrc.activateXPlatPopup(xpm, bifo, popObjID, popObjSubID, dacx);
-          return (xpm);
-        } else {
-          throw new GeneratorException("Unexpected menu class: " + menuClass);
-        }
-      } catch (MenuSource.InvalidMenuRequestException imrex) {
-        imrex.printStackTrace();
-        throw new GeneratorException("Unsupported menu class result " + imrex.getMessage(), imrex);          
-      } catch (Exception ex) {
-    	  ex.printStackTrace();
-        throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
-      }    
+        } catch (MenuSource.InvalidMenuRequestException imrex) {
+          imrex.printStackTrace();
+          throw new GeneratorException("Unsupported menu class result " + imrex.getMessage(), imrex);          
+        } catch (Exception ex) {
+      	  ex.printStackTrace();
+          throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
+        }    
+      }
     }   
   }
   
@@ -528,63 +802,65 @@ public class WebServerApplication {
 
   public XPlatCurrentState getMenuStatus(BTState appState) throws GeneratorException {    
   
-    synchronized (MainCommands.class) {
-      try {
-        XPlatCurrentState xpcs = new XPlatCurrentState();
-        DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+    synchronized (appState.getServerLock()) {
+      synchronized (appState.getModelLock()) {
+        try {
+          XPlatCurrentState xpcs = new XPlatCurrentState();
+          DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
         
-        xpcs.fillInMenu("SELECTED", appState.getSUPanel().getSelectedXPlatMenu(dacx));
-        if (appState.getIsEditor()) {
-          xpcs.fillInMenu("CURRENT_MODEL", appState.getTree().getCurrentModelXPlatMenu());
-        }
+          xpcs.fillInMenu("SELECTED", appState.getSUPanel().getSelectedXPlatMenu(dacx));
+          if (appState.getIsEditor()) {
+            xpcs.fillInMenu("CURRENT_MODEL", appState.getTree().getCurrentModelXPlatMenu());
+          }
         
-        if (appState.getRecentMenu().haveRecentMenu()) {
-          boolean readOnly = !appState.getIsEditor();
-          XPlatMenu xpm = appState.getRecentMenu().getXPlatMenu();
-          MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
-          MenuSource.BuildInfo bifo = new MenuSource.BuildInfo();
-          bifo.conditions.put("VIEWER", Boolean.valueOf(readOnly));
-          bifo.conditions.put("EDITOR", Boolean.valueOf(!readOnly));
-          Map<FlowMeister.FlowKey, Boolean> fes = appState.getMainCmds().getFlowEnabledState();
-          mSrc.activateXPlatMenu(xpm, bifo, fes, appState);
-          xpcs.fillInMenu("RECENT", xpm);
-        }        
-        xpcs.fillInMenu("USER_PATH_CHOOSE", appState.getPathControls().getXPlatMenu());
-        xpcs.fillInCombo("PATH_COMBO", appState.getPathControls().getXPlatComboBox());
-        if (appState.getDoGaggle()) {
-          xpcs.fillInMenu("GOOSE_CHOOSE", appState.getGaggleControls().getXPlatMenu());
-          xpcs.fillInCombo("GOOSE_COMBO", appState.getGaggleControls().getXPlatComboBox());
-        }
+          if (appState.getRecentMenu().haveRecentMenu()) {
+            boolean readOnly = !appState.getIsEditor();
+            XPlatMenu xpm = appState.getRecentMenu().getXPlatMenu();
+            MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
+            MenuSource.BuildInfo bifo = new MenuSource.BuildInfo();
+            bifo.conditions.put("VIEWER", Boolean.valueOf(readOnly));
+            bifo.conditions.put("EDITOR", Boolean.valueOf(!readOnly));
+            Map<FlowMeister.FlowKey, Boolean> fes = appState.getMainCmds().getFlowEnabledState();
+            mSrc.activateXPlatMenu(xpm, bifo, fes, appState);
+            xpcs.fillInMenu("RECENT", xpm);
+          }        
+          xpcs.fillInMenu("USER_PATH_CHOOSE", appState.getPathControls().getXPlatMenu());
+          xpcs.fillInCombo("PATH_COMBO", appState.getPathControls().getXPlatComboBox());
+          if (appState.getDoGaggle()) {
+            xpcs.fillInMenu("GOOSE_CHOOSE", appState.getGaggleControls().getXPlatMenu());
+            xpcs.fillInCombo("GOOSE_COMBO", appState.getGaggleControls().getXPlatComboBox());
+          }
         
-        xpcs.setConditionalState("SHOW_PATH", (appState.getPathMgr().getPathCount() > 0));
-        xpcs.setConditionalState("SHOW_OVERLAY", dacx.fgho.overlayExists());
+          xpcs.setConditionalState("SHOW_PATH", (appState.getPathMgr().getPathCount() > 0));
+          xpcs.setConditionalState("SHOW_OVERLAY", dacx.fgho.overlayExists());
     
-        xpcs.mainCommandEnables(appState.getMainCmds().getFlowEnabledState());
+          xpcs.mainCommandEnables(appState.getMainCmds().getFlowEnabledState());
          
-        xpcs.setModelTreeState(appState.getTree().getTreeEnables(dacx));
+          xpcs.setModelTreeState(appState.getTree().getTreeEnables(dacx));
         
-        UndoManager undom = appState.getUndoManager();
-        boolean canUndo = undom.canUndo();
-        boolean canRedo = undom.canRedo();
-        ResourceManager rMan = appState.getRMan();
-        String desc;
-        if (canUndo) {
-          desc = undom.getUndoPresentationName();
-        } else {
-          desc = rMan.getString("command.Undo");
-        }
-        xpcs.setMutableActionName("UNDO", desc);
-        if (canRedo) {
-          desc = undom.getRedoPresentationName();
-        } else {
-          desc = rMan.getString("command.Redo");
-        }
-        xpcs.setMutableActionName("REDO", desc);
+          UndoManager undom = appState.getUndoManager();
+          boolean canUndo = undom.canUndo();
+          boolean canRedo = undom.canRedo();
+          ResourceManager rMan = appState.getRMan();
+          String desc;
+          if (canUndo) {
+            desc = undom.getUndoPresentationName();
+          } else {
+            desc = rMan.getString("command.Undo");
+          }
+          xpcs.setMutableActionName("UNDO", desc);
+          if (canRedo) {
+            desc = undom.getRedoPresentationName();
+          } else {
+            desc = rMan.getString("command.Redo");
+          }
+          xpcs.setMutableActionName("REDO", desc);
         
-        return (xpcs);
-      } catch (Exception ex) {
-        throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
-      }    
+          return (xpcs);
+        } catch (Exception ex) {
+          throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
+        }    
+      }
     }   
   }
   
@@ -595,14 +871,16 @@ public class WebServerApplication {
 
   public XPlatKeyBindings getKeyBindings(BTState appState) throws GeneratorException {    
   
-    synchronized (MainCommands.class) {   
-      try { 
-        MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
-        XPlatKeyBindings xpmb = mSrc.getXPlatKeyBindings();
-        return (xpmb);
-      } catch (Exception ex) {
-        throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
-      }    
+    synchronized (appState.getServerLock()) {   
+      synchronized (appState.getModelLock()) {
+        try { 
+          MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
+          XPlatKeyBindings xpmb = mSrc.getXPlatKeyBindings();
+          return (xpmb);
+        } catch (Exception ex) {
+          throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
+        }    
+      }
     }   
   }
   
@@ -619,371 +897,456 @@ public class WebServerApplication {
    */
   public Map<String,Object> mapLinksToIntersections(BTState appState, ParamSource req) throws GeneratorException {
   
-    synchronized (MainCommands.class) {   
-      try { 
-        String modelID = req.getParameter("model");
-        if (modelID == null) {
-          throw new GeneratorException("A model ID was not provided!");
-        }
+    synchronized (appState.getServerLock()) {   
+      synchronized (appState.getModelLock()) {
+        try { 
+          String modelID = req.getParameter("model");
+          if (modelID == null) {
+            throw new GeneratorException("A model ID was not provided!");
+          }
   
-        Genome genome = appState.getDB().getGenome(modelID);
-        Layout lo = appState.getLayoutForGenomeKey(modelID);      
-        DataAccessContext rcx = new DataAccessContext(appState, genome, lo);
+          Genome genome = appState.getDB().getGenome(modelID);
+          Layout lo = appState.getLayoutForGenomeKey(modelID);      
+          DataAccessContext rcx = new DataAccessContext(appState, genome, lo);
               
-        String linkIDParam = req.getParameter("linkID");
-        if (linkIDParam == null) {
-          throw new GeneratorException("A link ID was not provided!");
-        }
-        HashSet<String> links = new HashSet<String>();
-        links.add(linkIDParam);
-   
-        Map<String,Object> results = new HashMap<String,Object>();
-        SourceAndTargetSelector.SearchResult retval = new SourceAndTargetSelector.SearchResult(true);
-        if (!links.isEmpty()) {
-          retval.linkIntersections.addAll(lo.getIntersectionsForLinks(rcx, links, true));
-          retval.mapToResults(results);
+          String linkIDParam = req.getParameter("linkID");
+          if (linkIDParam == null) {
+            throw new GeneratorException("A link ID was not provided!");
+          }
+        
+          //
+          // The first lookup for a model indexes all of its links, so the model map
+          // request does not have to wait on that:
+          //
+        
+          String indexKey = getLinkIndexKey(appState, modelID);
+          if (indexKey == null) {
+            return (LinkIntersectionIndex.resultsForLink(lo, rcx, linkIDParam));
+          }
+          Map<String,Object> results = linkIndex_.lookup(indexKey, linkIDParam);
+          if (results == null) {
+            linkIndex_.build(indexKey, genome, lo, rcx);
+            results = linkIndex_.lookup(indexKey, linkIDParam);
+          }
+          return (results);
+        } catch (Exception ex) {
+          throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
         }
-        return (results);
-      } catch (Exception ex) {
-        throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
       }
     }
   }
     
+  /***************************************************************************
+  ** 
+  ** Get link intersection index counts for reporting
+  */
+
+  public Map<String, Object> getLinkIndexStatus() {
+    return (linkIndex_.getStatus());
+  }
+  
   /***************************************************************************
   ** 
   ** In-process processing entry point.  This method is synchronized internally
-  ** on a global basis to insure one process call at a time.
+  ** on the per-session state lock to insure one process call at a time per session.
   */
 
   public CommandResult processCommand(BTState appState, ParamSource req) throws GeneratorException {    
+    return (processCommandGuts(appState, req, true));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Process an ordered batch of commands under one acquisition of the state
+  ** lock. The current model, selection and menu state that each command
+  ** would report is only worked out once, after the last command that runs.
+  ** The batch stops early at the first command that does not simply succeed
+  ** (e.g. it wants a dialog or a click); the result is then that command's,
+  ** and the commands after it are not run. Each command's own results are
+  ** returned in order under "batch".
+  */
+
+  public CommandResult processCommandBatch(BTState appState, List<ParamSource> reqs) throws GeneratorException {    
+    synchronized (appState.getServerLock()) {
+      synchronized (appState.getModelLock()) {
+        if (reqs.isEmpty()) {
+          throw new GeneratorException("empty command batch");
+        }
+        ArrayList<Map<String, Object>> each = new ArrayList<Map<String, Object>>();
+        CommandResult last = null;
+        boolean needsClass = false;
+        int numReq = reqs.size();
+        for (int i = 0; i < numReq; i++) {
+          last = processCommandGuts(appState, reqs.get(i), false);
+          if (last == null) {
+            break;
+          }
+          each.add(last.getResultsMap());
+          needsClass |= last.resultNeedsClassAttr();
+          if (last.getResultType() != CommandResult.ResultType.SUCCESS) {
+            break;
+          }
+        }
+        if (last == null) {
+          return (null);
+        }
+        CommandResult retval = new CommandResult(last.getResultType(), new HashMap<String, Object>(last.getResultsMap()));
+        addStateSummary(retval, appState, true);
+        retval.addResult("batch", each);
+        retval.addResult("batchCompleted", Integer.valueOf(each.size()));
+        retval.setNeedsClassAttr(needsClass);
+        return (retval);
+      }
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Add the current model, selection and menu state to a command result. The
+  ** menu state is expensive, so batches skip this for all but the end.
+  */
+
+  private void addStateSummary(CommandResult cmdResult, BTState appState, boolean summarize) throws GeneratorException {    
+    if (!summarize) {
+      return;
+    }
+    cmdResult.addResult("currModel", appState.getGenome());
+    cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
+    cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Process a command; summarize says whether to report the state after it
+  */
+
+  private CommandResult processCommandGuts(BTState appState, ParamSource req, boolean summarize) throws GeneratorException {    
   
     //
-    // Processing of all requests MUST be globally 
-    // serialized in a multi-threaded environment.  At this time, 
-    // BioTapestry core code must run on one thread when in batch mode.
+    // Processing of all requests for a session MUST be serialized in a
+    // multi-threaded environment, since the BTState is not thread-safe.
+    // Shared static state has been made thread-safe, so different sessions
+    // may process in parallel. Sessions sharing a model replica also take its
+    // model lock, so only they wait on each other.
     //
     
-    synchronized (MainCommands.class) {   
-      try {
+    synchronized (appState.getServerLock()) {   
+      synchronized (appState.getModelLock()) {
+        try {
         
-        appState.setCurrentPrintWriter(new PrintWriter(System.out));
+          appState.setCurrentPrintWriter(new PrintWriter(System.out));
         
-        //
-        // Processing a command means that we are given the command class, the flow key, and optional args. Use this info to
-        // go and get the appropriate control flow called for by the request:
-        //
-        String cmdClass = req.getParameter("cmdClass");
-        if (cmdClass == null) {
-          throw new GeneratorException("no cmdClass");
-        }
-        String cmdKey = req.getParameter("cmdKey");
-        if (cmdKey == null) {
-          throw new GeneratorException("no cmdKey");
-        }
+          //
+          // Processing a command means that we are given the command class, the flow key, and optional args. Use this info to
+          // go and get the appropriate control flow called for by the request:
+          //
+          String cmdClass = req.getParameter("cmdClass");
+          if (cmdClass == null) {
+            throw new GeneratorException("no cmdClass");
+          }
+          String cmdKey = req.getParameter("cmdKey");
+          if (cmdKey == null) {
+            throw new GeneratorException("no cmdKey");
+          }
         
-        WebClientState thisState = null;
-        if(req.getParameter("clientstate") != null) {
-        	thisState = parseClientState(req);
-        }
+          WebClientState thisState = null;
+          if(req.getParameter("clientstate") != null) {
+          	thisState = parseClientState(req);
+          }
         
-        FlowMeister flom = appState.getFloM();
-        FlowMeister.FlowKey keyVal = flom.mapToFlowKey(cmdClass, cmdKey);
-        if (keyVal == null) {
-          throw new GeneratorException("no keyVal");
-        }
-        Map<String, String> coa = collectOptArgs(req);
-        FlowMeister.OptArgWithStatus oaws = flom.buildCFArgs(keyVal, coa);
-        if (!oaws.ok) {
-          return (null);
-        }
+          FlowMeister flom = appState.getFloM();
+          FlowMeister.FlowKey keyVal = flom.mapToFlowKey(cmdClass, cmdKey);
+          if (keyVal == null) {
+            throw new GeneratorException("no keyVal");
+          }
         
-        //
-        // OK, we have the flow we want to execute:
-        //
+          //
+          // Loading or creating a model replaces the model contents, which we cannot do
+          // to a model shared with other sessions. Fork a private model first:
+          //
         
-        ControlFlow theFlow = flom.getControlFlow(keyVal, oaws.arg);
-        if (theFlow == null) {
-          return (null);
-        }
+          boolean replacesModel = (keyVal == FlowMeister.MainFlow.LOAD) || (keyVal == FlowMeister.MainFlow.NEW_MODEL);
+          if (replacesModel) {
+            appState.setModelVersionTag(null);
+          }
+          if (appState.hasSharedModel() && replacesModel) {
+            if (appState.getHarness() != null) {
+              appState.getHarness().clearFlow();
+              appState.setHarness(null);
+            }
+            appState.dropSharedModel();
+            appState.getDB().newModelViaDACX();
+            buildNewStateView(appState);
+          }
+        
+          Map<String, String> coa = collectOptArgs(req);
+          FlowMeister.OptArgWithStatus oaws = flom.buildCFArgs(keyVal, coa);
+          if (!oaws.ok) {
+            return (null);
+          }
+        
+          //
+          // OK, we have the flow we want to execute:
+          //
+        
+          ControlFlow theFlow = flom.getControlFlow(keyVal, oaws.arg);
+          if (theFlow == null) {
+            return (null);
+          }
      
-        //
-        // If we have a currently existing harness containing a flow that does not match the incoming flow, clear the harness
-        // and toss it out:
-        //
+          //
+          // If we have a currently existing harness containing a flow that does not match the incoming flow, clear the harness
+          // and toss it out:
+          //
         
-        if (appState.getHarness() != null) {
-          ControlFlow cf = appState.getHarness().getCurrFlow();
-          if ((cf == null) || !cf.getName().equals(theFlow.getName())) {
-            appState.getHarness().clearFlow();
-            appState.setHarness(null);
+          if (appState.getHarness() != null) {
+            ControlFlow cf = appState.getHarness().getCurrFlow();
+            if ((cf == null) || !cf.getName().equals(theFlow.getName())) {
+              appState.getHarness().clearFlow();
+              appState.setHarness(null);
+            }
           }
-        }
         
-        //
-        // If the harness is not in existence, create it.  Then prime the flows with the initialization that is
-        // required by the flow type, i.e. popup flows need object ID and click location info:
-        //
+          //
+          // If the harness is not in existence, create it.  Then prime the flows with the initialization that is
+          // required by the flow type, i.e. popup flows need object ID and click location info:
+          //
          
-        DialogAndInProcessCmd.CmdState cms = null;
-        if (appState.getHarness() == null) {
-          appState.setHarness(new WebServerControlFlowHarness(appState, new SerializableDialogPlatform(servletPath_)));
-          appState.getHarness().clearFlow();
+          DialogAndInProcessCmd.CmdState cms = null;
+          if (appState.getHarness() == null) {
+            appState.setHarness(new WebServerControlFlowHarness(appState, new SerializableDialogPlatform(servletPath_)));
+            appState.getHarness().clearFlow();
           
-          DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
-          UndoSupport undo = new UndoSupport(appState,"command.chooseOverlay",dacx);
+            DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+            UndoSupport undo = new UndoSupport(appState,"command.chooseOverlay",dacx);
           
-          if(thisState != null) {
-        	  // Don't set overlay information if this is a model selection
-        	  // because model selection and overlay setting are done in a 
-        	  // combined fashion. For everything else, set it first
-        	  if(!cmdKey.contains("MODEL_SELECTION")) {
-        		  appState.getNetOverlayController().setFullOverlayState(
-    				  thisState.currOverlay_, thisState.modsAsTaggedSet(), thisState.shownModsAsTaggedSet(),undo, dacx
-				  );
-        	  }
-          }
+            if(thisState != null) {
+          	  // Don't set overlay information if this is a model selection
+          	  // because model selection and overlay setting are done in a 
+          	  // combined fashion. For everything else, set it first
+          	  if(!cmdKey.contains("MODEL_SELECTION")) {
+          		  appState.getNetOverlayController().setFullOverlayState(
+      				  thisState.currOverlay_, thisState.modsAsTaggedSet(), thisState.shownModsAsTaggedSet(),undo, dacx
+  				  );
+          	  }
+            }
           
-          dacx = new DataAccessContext(appState, appState.getGenome());
+            dacx = new DataAccessContext(appState, appState.getGenome());
           
-          //
-          // Prime control flows 
-          //
-          FlowKey.FlowType ft = keyVal.getFlowType();
-          boolean okLoad = false;       
-          switch (ft) {
-            case MAIN:
-              okLoad = true;
-              break;
-            case MODEL_TREE:
-              cms = loadModelTreeFlow(appState, theFlow, req, dacx);
-              okLoad = (cms != null);
-              break;
-            case POP:
-              cms = loadPopupFlow(appState, theFlow, req, dacx);
-              okLoad = (cms != null);
-              break;
-            case KEY_BOUND:
-              okLoad = true;
-              break;
-            case OTHER:
-              cms = loadOtherFlow(appState, theFlow, req, dacx, thisState);
-              okLoad = (cms != null);
-              break;              
-            default:
-              return (null);
+            //
+            // Prime control flows 
+            //
+            FlowKey.FlowType ft = keyVal.getFlowType();
+            boolean okLoad = false;       
+            switch (ft) {
+              case MAIN:
+                okLoad = true;
+                break;
+              case MODEL_TREE:
+                cms = loadModelTreeFlow(appState, theFlow, req, dacx);
+                okLoad = (cms != null);
+                break;
+              case POP:
+                cms = loadPopupFlow(appState, theFlow, req, dacx);
+                okLoad = (cms != null);
+                break;
+              case KEY_BOUND:
+                okLoad = true;
+                break;
+              case OTHER:
+                cms = loadOtherFlow(appState, theFlow, req, dacx, thisState);
+                okLoad = (cms != null);
+                break;              
+              default:
+                return (null);
+            }
+            if (!okLoad) {
+              throw new GeneratorException("bad Control Flow init");
+            }        
+            appState.getHarness().initFlow(theFlow, dacx);
+            appState.setSUF(null);
+            appState.setDialog(null);
+            appState.setPendingClick(null);          
           }
-          if (!okLoad) {
-            throw new GeneratorException("bad Control Flow init");
-          }        
-          appState.getHarness().initFlow(theFlow, dacx);
-          appState.setSUF(null);
-          appState.setDialog(null);
-          appState.setPendingClick(null);          
-        }
         
-        //
-        // OK, note that if we initialized a flow above, we do NOT have any pending input (e.g. lastWebDialog_ was
-        // set to null). If we have previous dialog/pending click stuff, we are waiting for input and need to extract the appropriate
-        // parameters and feed them to the flow.  No previous dialog/click stuff means we just step the flow.
-        //
+          //
+          // OK, note that if we initialized a flow above, we do NOT have any pending input (e.g. lastWebDialog_ was
+          // set to null). If we have previous dialog/pending click stuff, we are waiting for input and need to extract the appropriate
+          // parameters and feed them to the flow.  No previous dialog/click stuff means we just step the flow.
+          //
        
-        CommandResult cmdResult = null;
-
-        // Last thing out the door was a simple user feedback:
-        if (appState.getSUF() != null) {
-          appState.setSUF(null);
-          // The SUF might have been in response to a dialog error request. Send the dialog back out the door:
-          if (appState.getDialog() != null) {
-            cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_DIALOG);
-            cmdResult.addResult("dialog", ((SerializableDialogPlatform.Dialog)appState.getDialog()).getDialog(keyVal));
-            cmdResult.addResult("currModel", appState.getGenome());
-            cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-            cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
-            cmdResult.setNeedsClassAttr(true);
-            return cmdResult;
-          }
-          // SUF is part of normal flow.  Extract and step;
-          DialogAndInProcessCmd daipc = appState.getHarness().getCurrDAIPC();
-          recordSimpleUserFeedback(daipc.suf, req);
-          appState.getHarness().stepTheFlow(daipc.currStateX);
-        } else if (appState.getDialog() != null) {
-          if (userCancel(req)) {
-            appState.getHarness().userCancel();
-            appState.setDialog(null);
-          } else {
-            UserInputs ui = collectInputs(req);
-            SimpleUserFeedback suf = appState.getDialog().checkForErrors(ui);
-            if (suf != null) {
-              appState.setSUF(null);
+          CommandResult cmdResult = null;
+
+          // Last thing out the door was a simple user feedback:
+          if (appState.getSUF() != null) {
+            appState.setSUF(null);
+            // The SUF might have been in response to a dialog error request. Send the dialog back out the door:
+            if (appState.getDialog() != null) {
               cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_DIALOG);
-              cmdResult.addResult("dialog", suf.getXPlatDialog());
-              cmdResult.addResult("currModel", appState.getGenome());
-              cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-              cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
+              cmdResult.addResult("dialog", ((SerializableDialogPlatform.Dialog)appState.getDialog()).getDialog(keyVal));
+              addStateSummary(cmdResult, appState, summarize);
+              cmdResult.setNeedsClassAttr(true);
               return cmdResult;
             }
-            DialogAndInProcessCmd postReceive = appState.getHarness().receiveUserInputs(ui);
-            if(postReceive.state != Progress.SIMPLE_USER_FEEDBACK || postReceive.suf.optionPane != JOP.ERROR) {
-          	  appState.setDialog(null);
+            // SUF is part of normal flow.  Extract and step;
+            DialogAndInProcessCmd daipc = appState.getHarness().getCurrDAIPC();
+            recordSimpleUserFeedback(daipc.suf, req);
+            appState.getHarness().stepTheFlow(daipc.currStateX);
+          } else if (appState.getDialog() != null) {
+            if (userCancel(req)) {
+              appState.getHarness().userCancel();
+              appState.setDialog(null);
+            } else {
+              UserInputs ui = collectInputs(req);
+              SimpleUserFeedback suf = appState.getDialog().checkForErrors(ui);
+              if (suf != null) {
+                appState.setSUF(null);
+                cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_DIALOG);
+                cmdResult.addResult("dialog", suf.getXPlatDialog());
+                addStateSummary(cmdResult, appState, summarize);
+                return cmdResult;
+              }
+              DialogAndInProcessCmd postReceive = appState.getHarness().receiveUserInputs(ui);
+              if(postReceive.state != Progress.SIMPLE_USER_FEEDBACK || postReceive.suf.optionPane != JOP.ERROR) {
+            	  appState.setDialog(null);
+              }
             }
-          }
-        } else if (appState.getPendingClick() != null) {
-          Map<String, String> pVals = collectRequirements(appState.getPendingClick().getRequiredParameters(), req);
-          Point click = appState.getPendingClick().getClickOutput(pVals);
-          if (click == null) {
+          } else if (appState.getPendingClick() != null) {
+            Map<String, String> pVals = collectRequirements(appState.getPendingClick().getRequiredParameters(), req);
+            Point click = appState.getPendingClick().getClickOutput(pVals);
+            if (click == null) {
+              appState.setPendingClick(null);
+              cmdResult = new CommandResult(CommandResult.ResultType.PARAMETER_ERROR);
+              addStateSummary(cmdResult, appState, summarize);
+              return (cmdResult);
+            }            
+            appState.getHarness().handleClick(click, appState.getPendingClick().getShiftOutput(pVals), 10.0);
             appState.setPendingClick(null);
-            cmdResult = new CommandResult(CommandResult.ResultType.PARAMETER_ERROR);
-            cmdResult.addResult("currModel", appState.getGenome());
-            cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-            cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
-            return (cmdResult);
-          }            
-          appState.getHarness().handleClick(click, appState.getPendingClick().getShiftOutput(pVals), 10.0);
-          appState.setPendingClick(null);
-        } else {
-          if (cms == null) {
-            appState.getHarness().stepTheFlow();
           } else {
-            appState.getHarness().stepTheFlow(cms);
+            if (cms == null) {
+              appState.getHarness().stepTheFlow();
+            } else {
+              appState.getHarness().stepTheFlow(cms);
+            }
           }
-        }
 
-        DialogAndInProcessCmd daipc = appState.getHarness().getCurrDAIPC();
+          DialogAndInProcessCmd daipc = appState.getHarness().getCurrDAIPC();
         
-        switch (daipc.state) {
-          // Mouse mode has been installed; return it.        
-          case MOUSE_MODE_RESULT:
-            switch (daipc.pccr) {
-              case CANCELLED:
-                appState.getHarness().clearFlow();
-                cmdResult = new CommandResult(CommandResult.ResultType.CANCEL);
-                cmdResult.addResult("currModel", appState.getGenome());
-                cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-                cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));                
-                return (cmdResult);
-              case ACCEPT:  
-                appState.setPendingClick(new WebServerControlFlowHarness.PendingMouseClick()); // More clicks needed for link drawing.... YES it falls through
-              case PRESENT: // Never seen here?
-              case ACCEPT_DELAYED:            
-              case SELECTED:
-              case PROCESSED:
-                appState.getHarness().clearFlow();
-                cmdResult = new CommandResult(CommandResult.ResultType.SUCCESS);
-                cmdResult.addResult("currModel", appState.getGenome());
-                cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-                cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
-                return (cmdResult);
-              case UNSELECTED:  // Bogus usage in Pulldown? Not Illegal then, but it never gets here (swallowed first in flow?)
-              case ERROR:
-              case REJECT:
-                appState.setPendingClick(new WebServerControlFlowHarness.PendingMouseClick());
-                cmdResult = new CommandResult(CommandResult.ResultType.ILLEGAL_CLICK_PROCESSED);
-                cmdResult.addResult("currModel", appState.getGenome());
-                cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-                cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
-                return (cmdResult);                
-              default:
-                throw new GeneratorException("Unexpected Click Result: " + daipc.pccr);
-            }
+          switch (daipc.state) {
+            // Mouse mode has been installed; return it.        
+            case MOUSE_MODE_RESULT:
+              switch (daipc.pccr) {
+                case CANCELLED:
+                  appState.getHarness().clearFlow();
+                  cmdResult = new CommandResult(CommandResult.ResultType.CANCEL);
+                  addStateSummary(cmdResult, appState, summarize);
+                  return (cmdResult);
+                case ACCEPT:  
+                  appState.setPendingClick(new WebServerControlFlowHarness.PendingMouseClick()); // More clicks needed for link drawing.... YES it falls through
+                case PRESENT: // Never seen here?
+                case ACCEPT_DELAYED:            
+                case SELECTED:
+                case PROCESSED:
+                  appState.getHarness().clearFlow();
+                  cmdResult = new CommandResult(CommandResult.ResultType.SUCCESS);
+                  addStateSummary(cmdResult, appState, summarize);
+                  return (cmdResult);
+                case UNSELECTED:  // Bogus usage in Pulldown? Not Illegal then, but it never gets here (swallowed first in flow?)
+                case ERROR:
+                case REJECT:
+                  appState.setPendingClick(new WebServerControlFlowHarness.PendingMouseClick());
+                  cmdResult = new CommandResult(CommandResult.ResultType.ILLEGAL_CLICK_PROCESSED);
+                  addStateSummary(cmdResult, appState, summarize);
+                  return (cmdResult);                
+                default:
+                  throw new GeneratorException("Unexpected Click Result: " + daipc.pccr);
+              }
             
-          case SIMPLE_USER_FEEDBACK:
-            appState.setSUF(daipc.suf);
-            cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_DIALOG);
-            cmdResult.addResult("dialog", appState.getSUF().getXPlatDialog());
-            cmdResult.addResult("currModel", appState.getGenome());
-            cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-            cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
-            return cmdResult;
+            case SIMPLE_USER_FEEDBACK:
+              appState.setSUF(daipc.suf);
+              cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_DIALOG);
+              cmdResult.addResult("dialog", appState.getSUF().getXPlatDialog());
+              addStateSummary(cmdResult, appState, summarize);
+              return cmdResult;
             
-          case USER_CANCEL:
-            appState.getHarness().clearFlow();
-            cmdResult = new CommandResult(CommandResult.ResultType.CANCEL);
-            cmdResult.addResult("currModel", appState.getGenome());
-            cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-            cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
-            return (cmdResult);
+            case USER_CANCEL:
+              appState.getHarness().clearFlow();
+              cmdResult = new CommandResult(CommandResult.ResultType.CANCEL);
+              addStateSummary(cmdResult, appState, summarize);
+              return (cmdResult);
             
-          case HAVE_ERROR:
-        	  appState.getHarness().clearFlow();
-        	  cmdResult = new CommandResult(CommandResult.ResultType.PROCESSING_ERROR);
-        	  cmdResult.addResult("currModel", appState.getGenome());
-        	  cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-        	  cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
-        	  return cmdResult;           
+            case HAVE_ERROR:
+          	  appState.getHarness().clearFlow();
+          	  cmdResult = new CommandResult(CommandResult.ResultType.PROCESSING_ERROR);
+          	  addStateSummary(cmdResult, appState, summarize);
+          	  return cmdResult;           
            
-        	case HAVE_FRAME_TO_LAUNCH_AND_MOUSE_RESULT:
-        	  UiUtil.fixMePrintout("Anything I need to do with the mouse result for web app?");
-          case HAVE_FRAME_TO_LAUNCH:          
-        	  appState.getHarness().clearFlow();
-            cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_FRAME);
-            cmdResult.addResult("dialog", ((SerializableDialogPlatform.Dialog)daipc.dialog).getDialog(keyVal));
-            cmdResult.addResult("currModel", appState.getGenome());
-            cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-            cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
-            cmdResult.setNeedsClassAttr(true);
-            return cmdResult;
+          	case HAVE_FRAME_TO_LAUNCH_AND_MOUSE_RESULT:
+          	  UiUtil.fixMePrintout("Anything I need to do with the mouse result for web app?");
+            case HAVE_FRAME_TO_LAUNCH:          
+          	  appState.getHarness().clearFlow();
+              cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_FRAME);
+              cmdResult.addResult("dialog", ((SerializableDialogPlatform.Dialog)daipc.dialog).getDialog(keyVal));
+              addStateSummary(cmdResult, appState, summarize);
+              cmdResult.setNeedsClassAttr(true);
+              return cmdResult;
             
-          case HAVE_DIALOG_TO_SHOW:
-        	  appState.setDialog((SerializableDialogPlatform.Dialog)daipc.dialog);
-        	  cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_DIALOG);
-        	  cmdResult.addResult("dialog", ((SerializableDialogPlatform.Dialog)appState.getDialog()).getDialog(keyVal));
-        	  cmdResult.addResult("currModel", appState.getGenome());
-        	  cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-        	  cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState)); 
-        	  cmdResult.setNeedsClassAttr(true);
-        	  return cmdResult;
+            case HAVE_DIALOG_TO_SHOW:
+          	  appState.setDialog((SerializableDialogPlatform.Dialog)daipc.dialog);
+          	  cmdResult = new CommandResult(CommandResult.ResultType.XPLAT_DIALOG);
+          	  cmdResult.addResult("dialog", ((SerializableDialogPlatform.Dialog)appState.getDialog()).getDialog(keyVal));
+          	  addStateSummary(cmdResult, appState, summarize);
+          	  cmdResult.setNeedsClassAttr(true);
+          	  return cmdResult;
             
-          case DONE:
-            cmdResult = new CommandResult(CommandResult.ResultType.SUCCESS);
+            case DONE:
+              cmdResult = new CommandResult(CommandResult.ResultType.SUCCESS);
             
-            Genome currGenome = appState.getDB().getGenome(appState.getGenome());
-            String mi = currGenome.getGenomeImage();
-            if (mi != null) {
-            	cmdResult.addResult("modelAnnotImage", mi);
-            }
+              Genome currGenome = appState.getDB().getGenome(appState.getGenome());
+              String mi = currGenome.getGenomeImage();
+              if (mi != null) {
+              	cmdResult.addResult("modelAnnotImage", mi);
+              }
             
-            cmdResult.addResult("currModel", appState.getGenome());
-            cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-            cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));
+              addStateSummary(cmdResult, appState, summarize);
           
-            if (daipc.commandResults != null) {
-            	for(Map.Entry<String, Object> result : daipc.commandResults.entrySet()) {
-            		cmdResult.addResult(result.getKey(), result.getValue());	
-            	}
-            }
+              if (daipc.commandResults != null) {
+              	for(Map.Entry<String, Object> result : daipc.commandResults.entrySet()) {
+              		cmdResult.addResult(result.getKey(), result.getValue());	
+              	}
+              }
             
-            appState.getHarness().clearFlow();
-            return (cmdResult);
+              appState.getHarness().clearFlow();
+              return (cmdResult);
             
-          case INSTALL_MOUSE_MODE:
-            DialogAndInProcessCmd.ButtonMaskerCmdState bmcs = (DialogAndInProcessCmd.ButtonMaskerCmdState)daipc.currStateX;
-            XPlatMaskingStatus ms = appState.getCommonView().calcDisableControls(bmcs.getMask(), bmcs.pushDisplay());         
-            appState.setPendingClick(new WebServerControlFlowHarness.PendingMouseClick());
-            cmdResult = new CommandResult(CommandResult.ResultType.WAITING_FOR_CLICK);
-            cmdResult.addResult("XPlatMaskingStatus", ms);
-            cmdResult.addResult("currModel", appState.getGenome());
-            cmdResult.addResult("selectedState", appState.getSUPanel().getSelections());
-            cmdResult.addResult("XPlatCurrentState", getMenuStatus(appState));            
-            return (cmdResult);
+            case INSTALL_MOUSE_MODE:
+              DialogAndInProcessCmd.ButtonMaskerCmdState bmcs = (DialogAndInProcessCmd.ButtonMaskerCmdState)daipc.currStateX;
+              XPlatMaskingStatus ms = appState.getCommonView().calcDisableControls(bmcs.getMask(), bmcs.pushDisplay());         
+              appState.setPendingClick(new WebServerControlFlowHarness.PendingMouseClick());
+              cmdResult = new CommandResult(CommandResult.ResultType.WAITING_FOR_CLICK);
+              cmdResult.addResult("XPlatMaskingStatus", ms);
+              addStateSummary(cmdResult, appState, summarize);
+              return (cmdResult);
             
-          case SIMPLE_USER_FEEDBACK_AND_MOUSE_RESULT:
-          case DONE_WITH_SIMPLE_USER_FEEDBACK:
-          case DONE_WITH_ERROR_AND_SIMPLE_USER_FEEDBACK:
-            // FIXME: Above cases need to be implemented for web app Editor
-          case KEEP_PROCESSING: // NOT_EXPECTED
-          case NORMAL: // NOT EXPECTED
-          case HAVE_USER_INPUTS: // NOT_EXPECTED     
-          default:
-            throw new GeneratorException("Unexpected State in WebServerApp.processCommand: " + daipc.state);
-        }      
-      } catch (Exception ex) {
-    	  ex.printStackTrace();
-    	  String errMsg = ex.getMessage();
-    	  if(errMsg == null) {
-    		  errMsg = ex.toString();
-    	  }
-    	  throw new GeneratorException(errMsg,ex);
+            case SIMPLE_USER_FEEDBACK_AND_MOUSE_RESULT:
+            case DONE_WITH_SIMPLE_USER_FEEDBACK:
+            case DONE_WITH_ERROR_AND_SIMPLE_USER_FEEDBACK:
+              // FIXME: Above cases need to be implemented for web app Editor
+            case KEEP_PROCESSING: // NOT_EXPECTED
+            case NORMAL: // NOT EXPECTED
+            case HAVE_USER_INPUTS: // NOT_EXPECTED     
+            default:
+              throw new GeneratorException("Unexpected State in WebServerApp.processCommand: " + daipc.state);
+          }      
+        } catch (Exception ex) {
+      	  ex.printStackTrace();
+      	  String errMsg = ex.getMessage();
+      	  if(errMsg == null) {
+      		  errMsg = ex.toString();
+      	  }
+      	  throw new GeneratorException(errMsg,ex);
+        }
       }
     }
   }    
@@ -1016,6 +1379,69 @@ public class WebServerApplication {
   ////////////////////////////////////////////////////////////////////////////    
   
   
+  /***************************************************************************
+  **
+  ** Plugins and server settings needed by every new state
+  */ 
+  
+  private void prepNewState(BTState appState) { 
+    Map<String,Object> plugins = new HashMap<String,Object>();
+    if(pluginsDir_ != null) {
+      plugins.put(ArgParser.PLUG_IN_DIR,
+        this.fullServletContextPath_+((this.pluginsDir_.startsWith("/") || this.pluginsDir_.startsWith("\\") ? this.pluginsDir_.substring(1) : this.pluginsDir_))
+      );
+    }
+    boolean ok = appState.getPlugInMgr().loadDataDisplayPlugIns(plugins);
+    if (!ok) {
+      System.err.println("Problems loading plugins");
+    }
+    appState.setIsEditor(compiledAsEditor_);
+    appState.setExceptionHandler(new ExceptionHandler(appState, appState.getRMan(), true));
+    appState.setServerBtpDirectory(fileDir_);
+    appState.setServerConfigDirectory(configDir_);
+    appState.setFullServletContextPath(this.fullServletContextPath_);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the headless view for a new state
+  */ 
+  
+  private void buildNewStateView(BTState appState) { 
+    CommonView cview = new CommonView(appState);
+    cview.buildTheView();
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Key for the link intersection index; null if the model may have been edited
+  */ 
+  
+  private String getLinkIndexKey(BTState appState, String modelID) { 
+    String tag = appState.getModelVersionTag();
+    if (compiledAsEditor_ || (tag == null)) {
+      return (null);
+    }
+    return (LinkIntersectionIndex.keyFor(tag, modelID));
+  }
+  
+  /***************************************************************************
+  **
+  ** Tagged set in a stable order for keys
+  */ 
+  
+  private void appendTaggedSet(StringBuffer buf, TaggedSet ts) { 
+    if (ts == null) {
+      buf.append("null");
+      return;
+    }
+    buf.append(ts.tag);
+    buf.append(new TreeSet<String>(ts.set));
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Fill in simple user feedback
@@ -1383,9 +1809,12 @@ public class WebServerApplication {
 	  WebClientState wcs = null;
 	  
 	  try {
-		  InputStream inputStream = ((HSRWrapper)req).getInputStream();
+		  InputStream inputStream = (req instanceof MapWrapper) ? null : ((HSRWrapper)req).getInputStream();
 		  inputs = new StringBuilder();
-		  if (inputStream != null) {
+		  if (req instanceof MapWrapper) {
+			  String clientState = ((MapWrapper)req).getClientState();
+			  inputs.append((clientState == null) ? "" : clientState);
+		  } else if (inputStream != null) {
 			  br = new BufferedReader(new InputStreamReader(inputStream));
 			  char[] charBuffer = new char[128];
 			  int bytesRead = -1;
@@ -1743,9 +2172,19 @@ public class WebServerApplication {
   public static class MapWrapper implements ParamSource {
       
     private Map<String, String> myMap_;
+    private String clientState_;
       
     public MapWrapper(Map<String, String> map) {
+      this(map, null);
+    }
+    
+    public MapWrapper(Map<String, String> map, String clientState) {
       myMap_ = map;
+      clientState_ = clientState;
+    }
+    
+    public String getClientState() {
+      return (clientState_);      
     }
       
     public String getParameter(String key) {
@@ -1836,4 +2275,19 @@ public class WebServerApplication {
       return (os_);
     }
   } 
-}
\ No newline at end of file
+
+  /****************************************************************************
+  **
+  ** The network and layout a session had before switchForTiles()
+  */
+
+  private static class TileHold {
+    final String genomeKey;
+    final String layoutKey;
+
+    TileHold(String genomeKey, String layoutKey) {
+      this.genomeKey = genomeKey;
+      this.layoutKey = layoutKey;
+    }
+  } 
+}
@@ -47,6 +47,7 @@ import org.systemsbiology.biotapestry.util.BackgroundWorkerClient;
 import org.systemsbiology.biotapestry.util.BackgroundWorkerOwner;
 import org.systemsbiology.biotapestry.util.DirectoryNamedOutputStreamSource;
 import org.systemsbiology.biotapestry.util.NamedOutputStreamSource;
+import org.systemsbiology.biotapestry.util.PublishManifest;
 import org.systemsbiology.biotapestry.util.ResourceManager;
 import org.systemsbiology.biotapestry.util.UndoSupport;
 import org.systemsbiology.biotapestry.util.WebPublisher;
@@ -266,7 +267,8 @@ public class ExportWeb extends AbstractControlFlow  {
         // Catch selection clear to undo queue the first time through:        
         support_ = new UndoSupport(appState_, "undo.selection");
         appState_.setGenome(gkey, support_, dacx_);
-        WebRunner runner = new WebRunner(appState_, nos_, skipRoot, gkey, wantHtmlSkeleton_, intersectionMap_, publishKeys_, dacx_);
+        File publishDir = (wantHtmlSkeleton_) ? targetDir_ : null;
+        WebRunner runner = new WebRunner(appState_, nos_, skipRoot, gkey, wantHtmlSkeleton_, intersectionMap_, publishKeys_, dacx_, publishDir);
         
         BackgroundWorkerClient bwc;     
         if (!appState_.isHeadless()) { // not headless, true background thread
@@ -334,12 +336,14 @@ public class ExportWeb extends AbstractControlFlow  {
     private boolean needHtmlSkeleton_;
     private List<WebPublisher.ModelScale> keyList_;
     private DataAccessContext myDacx_;
+    private File publishDir_;
        
     public WebRunner(BTState appState, NamedOutputStreamSource streamSrc,
                      boolean skipRoot, String topID, 
                      boolean needHtmlSkeleton, Map<WebPublisher.ModelScale, ViewExporter.BoundsMaps> mapRepository, 
-                     Set<WebPublisher.ModelScale> publishKeys, DataAccessContext dacx) {
+                     Set<WebPublisher.ModelScale> publishKeys, DataAccessContext dacx, File publishDir) {
       super(null);
+      publishDir_ = publishDir;
       streamSrc_ = streamSrc;
       myAppState_ = appState;
       skipRoot_ = skipRoot;
@@ -362,18 +366,48 @@ public class ExportWeb extends AbstractControlFlow  {
       int total = keyList_.size();
       int done = 0;
       
+      //
+      // When publishing into a directory, images that were published there
+      // before from identical model contents are left as they are:
+      //
+      
+      PublishManifest manifest = null;
+      PublishManifest.Hasher hasher = null;
+      HashMap<String, String> modelHashes = new HashMap<String, String>();
+      if (publishDir_ != null) {
+        manifest = PublishManifest.load(publishDir_);
+        hasher = new PublishManifest.Hasher(myAppState_);
+      }
+      
       try {
         String lastKey = null;
         Iterator<WebPublisher.ModelScale> oit = keyList_.iterator();
         while (oit.hasNext()) {
           WebPublisher.ModelScale scaleKey = oit.next();
           String gkey = scaleKey.getModelID();
+          String hash = null;
+          if (manifest != null) {
+            if (!modelHashes.containsKey(gkey)) {
+              modelHashes.put(gkey, hasher.hashForModel(gkey));
+            }
+            hash = modelHashes.get(gkey);
+            if (manifest.isCurrent(scaleKey, hash, publishDir_)) {
+              ViewExporter.BoundsMaps kept = new ViewExporter.BoundsMaps();
+              kept.noteBounds = manifest.getNoteBounds(scaleKey);
+              boundsMap.put(scaleKey, kept);
+              done = advanceProgress(done, total);
+              continue;
+            }
+          }
           if ((lastKey == null) || !gkey.equals(lastKey)) {
             String layoutID = myAppState_.getLayoutMgr().getLayout(gkey);
             myAppState_.setGraphLayout(layoutID);
             myAppState_.setGenomeForUndo(gkey, myDacx_);
           }
-          done = runForScaleKey(sup, scaleKey, scaleMap, boundsMap, done, total);      
+          done = runForScaleKey(sup, scaleKey, scaleMap, boundsMap, done, total);
+          if (manifest != null) {
+            manifest.record(scaleKey, hash, boundsMap.get(scaleKey).noteBounds);
+          }
         }
         
         if (needHtmlSkeleton_) {
@@ -387,6 +421,9 @@ public class ExportWeb extends AbstractControlFlow  {
           }
           WebPublisher pub = new WebPublisher(myDacx_);  
           pub.printHTML(streamSrc_, justNotes, skipRoot_, topID_);
+          if (manifest != null) {
+            manifest.save(publishDir_);
+          }
         } else {
           mapRepository_.clear();
           mapRepository_.putAll(boundsMap);
@@ -412,6 +449,10 @@ public class ExportWeb extends AbstractControlFlow  {
       OutputStream namedStream = streamSrc_.getNamedStream(scaleKey.getFileName());
       ViewExporter.BoundsMaps smallBounds = sup.exportToStream(namedStream, true, "PNG", null, zoomFacObj.doubleValue(), null, myAppState_);
       boundsMap.put(scaleKey, smallBounds);
+      return (advanceProgress(done, total));          
+    }
+    
+    private int advanceProgress(int done, int total) throws AsynchExitRequestException {          
       double currProg = ((double)++done / (double)total);
       boolean keepGoing = updateProgress((int)(currProg * 100.0));
       if (!keepGoing) {
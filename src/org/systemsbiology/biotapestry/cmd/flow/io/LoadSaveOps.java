@@ -52,6 +52,7 @@ import org.systemsbiology.biotapestry.db.DatabaseChange;
 import org.systemsbiology.biotapestry.event.GeneralChangeEvent;
 import org.systemsbiology.biotapestry.nav.RecentFilesManager;
 import org.systemsbiology.biotapestry.nav.ZoomTarget;
+import org.systemsbiology.biotapestry.parser.BinarySnapshot;
 import org.systemsbiology.biotapestry.parser.ParserClient;
 import org.systemsbiology.biotapestry.parser.SUParser;
 import org.systemsbiology.biotapestry.perturb.PerturbCsvFormatFactory;
@@ -809,10 +810,16 @@ public class LoadSaveOps extends AbstractControlFlow {
     private DialogAndInProcessCmd stepToLoad() {
       File file = null;     
       if (headlessArgs_ == null) { // Note args may be non-null even though not headless (Embedded Viewer Panel)         
-        FileExtensionFilters.SimpleFilter filt = new FileExtensionFilters.SimpleFilter(appState_, ".btp", "filterName.btp");
+        ArrayList<String> modelSuffs = new ArrayList<String>();
+        modelSuffs.add("btp");
+        modelSuffs.add(BinarySnapshot.SUFFIX);
+        ArrayList<FileFilter> filts = new ArrayList<FileFilter>();
+        filts.add(new FileExtensionFilters.MultiExtensionFilter(appState_, modelSuffs, "filterName.model"));
+        filts.add(new FileExtensionFilters.SimpleFilter(appState_, ".btp", "filterName.btp"));
+        filts.add(new FileExtensionFilters.SimpleFilter(appState_, "." + BinarySnapshot.SUFFIX, "filterName.btpb"));
         FileChooserWrapperFactory.BuildArgs ba = 
            new FileChooserWrapperFactory.BuildArgs(FileChooserWrapperFactory.BuildArgs.DialogMode.EXISTING_IMPORT,
-                                                   appState_, myLsSup_.getFprep(), filt, "LoadDirectory");
+                                                   appState_, myLsSup_.getFprep(), filts, "LoadDirectory");
         FileChooserWrapperFactory nopd = new FileChooserWrapperFactory(cfh);
         ServerControlFlowHarness.Dialog cfhd = nopd.getDialog(ba);
         DialogAndInProcessCmd retval = new DialogAndInProcessCmd(cfhd, this);         
@@ -866,6 +873,7 @@ public class LoadSaveOps extends AbstractControlFlow {
       ArrayList<FileFilter> filters = new ArrayList<FileFilter>();
       filters.add(new FileExtensionFilters.SimpleFilter(appState_, ".xml", "filterName.xml"));
       filters.add(new FileExtensionFilters.SimpleFilter(appState_, ".btp", "filterName.btp"));         
+      filters.add(new FileExtensionFilters.SimpleFilter(appState_, "." + BinarySnapshot.SUFFIX, "filterName.btpb"));
       File file = myLsSup_.getFprep().getExistingImportFile("ImportDirectory", filters);
       if (file == null) {
         return;
@@ -951,6 +959,7 @@ public class LoadSaveOps extends AbstractControlFlow {
       ArrayList<FileFilter> filts = new ArrayList<FileFilter>();
       filts.add(new FileExtensionFilters.SimpleFilter(appState_, ".xml", "filterName.xml"));
       filts.add(new FileExtensionFilters.SimpleFilter(appState_, ".btp", "filterName.btp"));     
+      filts.add(new FileExtensionFilters.SimpleFilter(appState_, "." + BinarySnapshot.SUFFIX, "filterName.btpb"));
       FileChooserWrapperFactory.BuildArgs ba = 
            new FileChooserWrapperFactory.BuildArgs(FileChooserWrapperFactory.BuildArgs.DialogMode.EXISTING_IMPORT,
                                                    appState_, myLsSup_.getFprep(), filts, "ImportDirectory");
@@ -1007,6 +1016,7 @@ public class LoadSaveOps extends AbstractControlFlow {
       ArrayList<FileFilter> filts = new ArrayList<FileFilter>();
       filts.add(new FileExtensionFilters.SimpleFilter(appState_, ".xml", "filterName.xml"));
       filts.add(new FileExtensionFilters.SimpleFilter(appState_, ".btp", "filterName.btp"));     
+      filts.add(new FileExtensionFilters.SimpleFilter(appState_, "." + BinarySnapshot.SUFFIX, "filterName.btpb"));
       FileChooserWrapperFactory.BuildArgs ba = 
            new FileChooserWrapperFactory.BuildArgs(FileChooserWrapperFactory.BuildArgs.DialogMode.EXISTING_IMPORT,
                                                    appState_, myLsSup_.getFprep(), filts, "ImportDirectory");
@@ -20,7 +20,10 @@
 package org.systemsbiology.biotapestry.cmd.flow.io;
 
 import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -35,6 +38,7 @@ import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -43,6 +47,8 @@ import javax.swing.JOptionPane;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.tree.TreePath;
 
+import org.xml.sax.InputSource;
+
 import org.systemsbiology.biotapestry.app.ArgParser;
 import org.systemsbiology.biotapestry.app.BTState;
 import org.systemsbiology.biotapestry.app.CommonView;
@@ -65,9 +71,11 @@ import org.systemsbiology.biotapestry.genome.DBGenomeSIFFormatFactory;
 import org.systemsbiology.biotapestry.genome.DynamicInstanceProxy;
 import org.systemsbiology.biotapestry.genome.GenomeInstance;
 import org.systemsbiology.biotapestry.nav.GroupSettingManager;
+import org.systemsbiology.biotapestry.nav.ImageManager;
 import org.systemsbiology.biotapestry.nav.GroupSettings;
 import org.systemsbiology.biotapestry.nav.NavTree;
 import org.systemsbiology.biotapestry.nav.RecentFilesManager;
+import org.systemsbiology.biotapestry.parser.BinarySnapshot;
 import org.systemsbiology.biotapestry.parser.ParserClient;
 import org.systemsbiology.biotapestry.parser.SUParser;
 import org.systemsbiology.biotapestry.ui.DisplayOptions;
@@ -435,7 +443,14 @@ public class LoadSaveSupport {
     db.installLegacyTimeAxisDefinition();
     ((GroupSettingManager)dacx.gsm).drop();
     ArrayList<ParserClient> alist = new ArrayList<ParserClient>();
-    alist.add(new DatabaseFactory(appState_, false));
+    DatabaseFactory dbf = new DatabaseFactory(appState_, false);
+    //
+    // Viewers mostly never look at the experimental data, so only build it if asked:
+    //
+    if ((file != null) && !appState_.getIsEditor()) {
+      dbf.setLazyDataSource(file);
+    }
+    alist.add(dbf);
     SUParser sup = new SUParser(appState_, alist);
     setCurrentFile(file);
     try {
@@ -482,8 +497,10 @@ public class LoadSaveSupport {
     if (fileName == null) { 
       ArrayList<FileFilter> filts = new ArrayList<FileFilter>();
       filts.add(new FileExtensionFilters.SimpleFilter(appState_, ".btp", "filterName.btp"));
+      filts.add(new FileExtensionFilters.SimpleFilter(appState_, "." + BinarySnapshot.SUFFIX, "filterName.btpb"));
       ArrayList<String> suffs = new ArrayList<String>();
       suffs.add("btp");
+      suffs.add(BinarySnapshot.SUFFIX);
       file = fprep_.getOrCreateWritableFileWithSuffix("LoadDirectory", filts, suffs, "btp");   
       if (file == null) {
         return (true);
@@ -497,7 +514,11 @@ public class LoadSaveSupport {
     }
 
     try {
-      saveToOutputStream(new FileOutputStream(file));
+      if (FileExtensionFilters.hasSuffix(file.getName(), "." + BinarySnapshot.SUFFIX)) {
+        saveToSnapshot(file);
+      } else {
+        saveToOutputStream(new FileOutputStream(file));
+      }
       setCurrentFile(file);
       appState_.getCommonView().manageWindowTitle(file.getName());
     } catch (IOException ioe) {
@@ -521,6 +542,31 @@ public class LoadSaveSupport {
     appState_.clearUndoTracking();
     return;
   }  
+  
+  /***************************************************************************
+  **
+  ** Save as a binary snapshot. The snapshot is built from the XML we would
+  ** otherwise write, so the two always hold the same content.
+  */   
+  
+  void saveToSnapshot(File file) throws IOException {
+    Database db = appState_.getDB();
+    ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(xml, "UTF-8")));
+    Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
+    db.writeXML(out, ind);
+    out.close();
+    HashSet<String> base64Elements = new HashSet<String>();
+    base64Elements.add(ImageManager.getImageKeyword());
+    OutputStream snap = new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      BinarySnapshot.fromXML(new InputSource(new ByteArrayInputStream(xml.toByteArray())), snap, base64Elements);
+    } finally {
+      snap.close();
+    }
+    appState_.clearUndoTracking();
+    return;
+  }  
    
   /***************************************************************************
   **
@@ -585,6 +631,7 @@ public class LoadSaveSupport {
     appState_.getZoomCommandSupport().setCurrentZoomForNewModel();
     appState_.getUndoManager().discardAllEdits();
     appState_.clearUndoTracking();  
+    appState_.getModelMapHistory().clear();
     return;
   }
   
@@ -663,6 +710,7 @@ public class LoadSaveSupport {
        
     appState_.getUndoManager().discardAllEdits();
     appState_.clearUndoTracking();
+    appState_.getModelMapHistory().clear();
     return;
   }
                     
@@ -23,6 +23,7 @@ package org.systemsbiology.biotapestry.cmd.undo;
 import javax.swing.undo.AbstractUndoableEdit;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
 
 /****************************************************************************
@@ -80,4 +81,27 @@ public abstract class BTUndoCmd extends AbstractUndoableEdit {
   public boolean changesModel() {
     return (true);
   }
+  
+  /***************************************************************************
+  **
+  ** Answer which top-level sections of the file the command changes, as a
+  ** mask (see ChangeJournal.sections()). Unless told otherwise, we assume all
+  ** of them.
+  */ 
+  
+  public int journalSections() {
+    return (ChangeJournal.ALL_SECTIONS);
+  }
+  
+  /***************************************************************************
+  **
+  ** Add what the command changes to the journal changes. Commands that know
+  ** which layout or genome instance they touch can say so; by default, it is
+  ** all of journalSections().
+  */ 
+  
+  public void journalChanges(ChangeJournal.Changes changes) {
+    changes.addSections(journalSections());
+    return;
+  }
 }
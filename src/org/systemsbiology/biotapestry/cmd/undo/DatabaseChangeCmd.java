@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.db.DatabaseChange;
 
 /****************************************************************************
@@ -73,6 +75,54 @@ public class DatabaseChangeCmd extends BTUndoCmd {
     return ("Database Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change, going by what the change holds
+  */ 
+  
+  @Override
+  public int journalSections() {
+    int retval = 0;
+    if ((restore_.oldGenome != null) || (restore_.newGenome != null)) {
+      retval |= ChangeJournal.sections(Database.ROOT_GENOME_SECTION);
+    }
+    if ((restore_.oldInstance != null) || (restore_.newInstance != null)) {
+      retval |= ChangeJournal.sections(Database.INSTANCES_SECTION, Database.PROXIES_SECTION);
+    }
+    if ((restore_.oldProxy != null) || (restore_.newProxy != null)) {
+      retval |= ChangeJournal.sections(Database.INSTANCES_SECTION, Database.PROXIES_SECTION);
+    }
+    if ((restore_.oldLayout != null) || (restore_.newLayout != null) ||
+        (restore_.oldLayouts != null) || (restore_.newLayouts != null)) {
+      retval |= ChangeJournal.sections(Database.LAYOUTS_SECTION);
+    }
+    if ((restore_.oldTcd != null) || (restore_.newTcd != null)) {
+      retval |= ChangeJournal.sections(Database.TIME_COURSE_SECTION);
+    }
+    if ((restore_.oldCpe != null) || (restore_.newCpe != null)) {
+      retval |= ChangeJournal.sections(Database.COPIES_PER_EMB_SECTION);
+    }
+    if ((restore_.oldTir != null) || (restore_.newTir != null)) {
+      retval |= ChangeJournal.sections(Database.RANGE_DATA_SECTION);
+    }
+    if ((restore_.oldBuildInst != null) || (restore_.newBuildInst != null)) {
+      retval |= ChangeJournal.sections(Database.BUILD_INSTRUCTIONS_SECTION);
+    }
+    if ((restore_.oldInstructSet != null) || (restore_.newInstructSet != null)) {
+      retval |= ChangeJournal.sections(Database.INSTRUCTION_SETS_SECTION);
+    }
+    if ((restore_.oldTimeAxis != null) || (restore_.newTimeAxis != null)) {
+      retval |= ChangeJournal.sections(Database.TIME_AXIS_SECTION);
+    }
+    if ((restore_.oldWorkspace != null) || (restore_.newWorkspace != null)) {
+      retval |= ChangeJournal.sections(Database.WORKSPACE_SECTION);
+    }
+    if ((restore_.oldStartupView != null) || (restore_.newStartupView != null)) {
+      retval |= ChangeJournal.sections(Database.STARTUP_VIEW_SECTION);
+    }
+    return ((retval == 0) ? ChangeJournal.ALL_SECTIONS : retval);
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
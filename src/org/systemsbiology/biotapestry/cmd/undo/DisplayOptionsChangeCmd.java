@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.ui.DisplayOptionsChange;
 
 /****************************************************************************
@@ -72,6 +74,16 @@ public class DisplayOptionsChangeCmd extends BTUndoCmd {
     return ("Display Option Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    return (ChangeJournal.sections(Database.DISPLAY_OPTIONS_SECTION));
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.ui.FontChange;
 import org.systemsbiology.biotapestry.ui.FontManager;
 
@@ -73,6 +75,16 @@ public class FontChangeCmd extends BTUndoCmd {
     return ("Font Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    return (ChangeJournal.sections(Database.FONTS_SECTION));
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
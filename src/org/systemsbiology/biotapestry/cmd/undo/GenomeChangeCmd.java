@@ -21,10 +21,14 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.event.ModelChangeEvent;
+import org.systemsbiology.biotapestry.genome.DynamicGenomeInstance;
 import org.systemsbiology.biotapestry.genome.Genome;
 import org.systemsbiology.biotapestry.genome.GenomeChange;
+import org.systemsbiology.biotapestry.genome.GenomeInstance;
 
 /****************************************************************************
 **
@@ -85,6 +89,39 @@ public class GenomeChangeCmd extends BTUndoCmd {
     return ("Model Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    if ((dacx_ == null) || (restore_.genomeKey == null)) {
+      return (ChangeJournal.ALL_SECTIONS);
+    }
+    if (restore_.genomeKey.equals(dacx_.getDBGenomeID())) {
+      return (ChangeJournal.sections(Database.ROOT_GENOME_SECTION));
+    }
+    // Edits on dynamic instances (e.g. notes) live in their proxies:
+    return (ChangeJournal.sections(Database.INSTANCES_SECTION, Database.PROXIES_SECTION));
+  }
+  
+  /***************************************************************************
+  **
+  ** Just the instance we change, unless it is dynamic
+  */ 
+  
+  @Override
+  public void journalChanges(ChangeJournal.Changes changes) {
+    Genome genome = ((dacx_ == null) || (restore_.genomeKey == null)) ? null : dacx_.getGenomeSource().getGenome(restore_.genomeKey);
+    if ((genome instanceof GenomeInstance) && !(genome instanceof DynamicGenomeInstance)) {
+      changes.addInstance(restore_.genomeKey);
+    } else {
+      changes.addSections(journalSections());
+    }
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.db.GlobalChange;
 import org.systemsbiology.biotapestry.event.GeneralChangeEvent;
 
@@ -84,6 +86,16 @@ public class GlobalChangeCmd extends BTUndoCmd {
     return ("Global Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    return (ChangeJournal.sections(Database.COLORS_SECTION));
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
@@ -20,7 +20,10 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
+import org.systemsbiology.biotapestry.genome.DynamicGenomeInstance;
 import org.systemsbiology.biotapestry.genome.Genome;
 import org.systemsbiology.biotapestry.genome.GenomeInstance;
 import org.systemsbiology.biotapestry.genome.Group;
@@ -74,6 +77,33 @@ public class GroupChangeCmd extends BTUndoCmd {
     return ("Group Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    // Groups of dynamic instances live in their proxies:
+    return (ChangeJournal.sections(Database.INSTANCES_SECTION, Database.PROXIES_SECTION));
+  }
+  
+  /***************************************************************************
+  **
+  ** Just the instance we change, unless it is dynamic
+  */ 
+  
+  @Override
+  public void journalChanges(ChangeJournal.Changes changes) {
+    Genome genome = ((dacx_ == null) || (restore_.genomeKey == null)) ? null : dacx_.getGenomeSource().getGenome(restore_.genomeKey);
+    if ((genome instanceof GenomeInstance) && !(genome instanceof DynamicGenomeInstance)) {
+      changes.addInstance(restore_.genomeKey);
+    } else {
+      changes.addSections(journalSections());
+    }
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
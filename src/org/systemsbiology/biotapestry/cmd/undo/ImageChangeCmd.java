@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.genome.DynamicInstanceProxy;
 import org.systemsbiology.biotapestry.genome.Genome;
 import org.systemsbiology.biotapestry.nav.ImageChange;
@@ -74,6 +76,17 @@ public class ImageChangeCmd extends BTUndoCmd {
     return ("Image Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    return (ChangeJournal.sections(Database.IMAGES_SECTION, Database.ROOT_GENOME_SECTION,
+                                  Database.INSTANCES_SECTION, Database.PROXIES_SECTION));
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.db.ModelData;
 
 /****************************************************************************
@@ -75,6 +77,16 @@ public class ModelDataChangeCmd extends BTUndoCmd {
     return ("Model Data Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    return (ChangeJournal.sections(Database.MODEL_DATA_SECTION));
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
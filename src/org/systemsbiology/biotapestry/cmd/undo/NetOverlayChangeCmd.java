@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.genome.NetModule;
 import org.systemsbiology.biotapestry.genome.NetModuleChange;
 import org.systemsbiology.biotapestry.genome.NetOverlayOwner;
@@ -90,6 +92,17 @@ public class NetOverlayChangeCmd extends BTUndoCmd {
     return ("Network Overlay Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    return (ChangeJournal.sections(Database.ROOT_GENOME_SECTION, Database.INSTANCES_SECTION,
+                                  Database.PROXIES_SECTION));
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
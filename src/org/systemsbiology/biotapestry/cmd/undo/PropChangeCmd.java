@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.ui.Layout;
 
 /****************************************************************************
@@ -102,6 +104,37 @@ public class PropChangeCmd extends BTUndoCmd {
     return ("Property Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    return (ChangeJournal.sections(Database.LAYOUTS_SECTION));
+  }
+  
+  /***************************************************************************
+  **
+  ** Just the layouts we change
+  */ 
+  
+  @Override
+  public void journalChanges(ChangeJournal.Changes changes) {
+    for (int i = 0; i < restore_.length; i++) {
+      Layout.PropChange pc = restore_[i];
+      if (pc == null) {
+        continue;
+      }
+      if (pc.layoutKey == null) {
+        changes.addSections(journalSections());
+      } else {
+        changes.addLayout(pc.layoutKey);
+      }
+    }
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
@@ -21,7 +21,9 @@
 package org.systemsbiology.biotapestry.cmd.undo;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.nav.UserTreePathChange;
 import org.systemsbiology.biotapestry.nav.UserTreePathController;
 
@@ -73,6 +75,16 @@ public class UserTreePathChangeCmd extends BTUndoCmd {
     return ("User Tree Path Change");
   }
 
+  /***************************************************************************
+  **
+  ** Sections of the file we change
+  */ 
+  
+  @Override
+  public int journalSections() {
+    return (ChangeJournal.sections(Database.PATHS_SECTION));
+  }
+  
   /***************************************************************************
   **
   ** Undo the operation
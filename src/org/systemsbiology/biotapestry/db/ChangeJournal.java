@@ -0,0 +1,960 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.db;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.Timer;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.util.Indenter;
+
+/****************************************************************************
+**
+** Autosave journal for the editor. Changes coming through the undo system say
+** what they touch (see BTUndoCmd.journalChanges()): whole top-level sections
+** of the file, or single layouts and genome instances by ID. Each autosave
+** appends just those to a journal that starts with a full checkpoint. A real
+** save makes the journal moot, so it is cleared, and the next autosave writes
+** a fresh checkpoint. After a crash, the newest copy of each section and
+** object is stitched back into a complete file for loading.
+**
+** On the UI thread, an autosave only copies what changed (see
+** Database.snapshotSection() and Database.snapshotObject()). Writing those
+** copies out as XML, and all the disk work, happen on a background thread.
+** That thread also compacts the journal once it grows well past its
+** checkpoint, by folding it into a single new checkpoint.
+**
+** When journaling starts, a journal left behind by a session that did not
+** exit cleanly is first moved aside, so nothing written by this session can
+** replace it before the user is offered the chance to recover it.
+*/
+
+public class ChangeJournal {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public static final int ALL_SECTIONS = (1 << Database.NUM_SECTIONS) - 1;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final int MAGIC_ = 0x4254504A; // "BTPJ"
+  private static final int VERSION_ = 2;
+
+  private static final byte CHECKPOINT_ = 1;
+  private static final byte SECTION_ = 2;
+  private static final byte COMMIT_ = 3;
+  private static final byte ORDER_ = 4;
+  private static final byte OBJECT_ = 5;
+
+  private static final int AUTOSAVE_MILLIS_ = 60 * 1000;
+  private static final long COMPACT_FACTOR_ = 4L;
+
+  private static final String JOURNAL_DIR_ = ".biotapestry";
+  private static final String JOURNAL_FILE_ = "autosave.btpj";
+  private static final String LOCK_FILE_ = "autosave.lock";
+  private static final String RECOVER_SUFFIX_ = ".recover";
+  private static final String BACKUP_SUFFIX_ = ".bak";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private BTState appState_;
+  private File journal_;
+  private File recover_;
+  private RandomAccessFile lockFile_;
+  private FileLock lock_;
+  private Timer timer_;
+  private ExecutorService writer_;
+  private Changes dirty_;
+  private int holds_;
+  private volatile boolean needsCheckpoint_;
+  
+  //
+  // Only touched on the writer thread:
+  //
+  
+  private long checkpointBytes_;
+  private long journalBytes_;
+  private long commitCount_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Does nothing until started.
+  */
+
+  public ChangeJournal(BTState appState) {
+    appState_ = appState;
+    dirty_ = new Changes();
+    holds_ = 0;
+    needsCheckpoint_ = true;
+    checkpointBytes_ = 0L;
+    journalBytes_ = 0L;
+    commitCount_ = 0L;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build a section mask
+  */
+
+  public static int sections(int... sects) {
+    int retval = 0;
+    for (int i = 0; i < sects.length; i++) {
+      retval |= (1 << sects[i]);
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Start journaling. Only one editor at a time owns the journal; answers
+  ** false if another one already does. A journal left over from a session
+  ** that did not exit cleanly is moved aside for haveRecoverableWork() and
+  ** recoverXML(); if it cannot be, we do not journal at all, rather than
+  ** risk writing over it.
+  */
+
+  public boolean start() {
+    if (timer_ != null) {
+      return (true);
+    }
+    File dir = new File(System.getProperty("user.home"), JOURNAL_DIR_);
+    if (!dir.exists() && !dir.mkdirs()) {
+      return (false);
+    }
+    try {
+      lockFile_ = new RandomAccessFile(new File(dir, LOCK_FILE_), "rw");
+      lock_ = lockFile_.getChannel().tryLock();
+    } catch (IOException ioex) {
+      lock_ = null;
+    }
+    if (lock_ == null) {
+      closeLockFile();
+      return (false);
+    }
+    journal_ = new File(dir, JOURNAL_FILE_);
+    recover_ = new File(dir, JOURNAL_FILE_ + RECOVER_SUFFIX_);
+    if (journal_.exists() && (journal_.length() > 0L)) {
+      try {
+        replaceFile(journal_, recover_);
+      } catch (IOException ioex) {
+        System.err.println("Could not set aside autosave journal: " + ioex);
+        releaseLock();
+        return (false);
+      }
+    }
+    writer_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread retval = new Thread(r, "BioTapAutosave");
+        retval.setDaemon(true);
+        return (retval);
+      }
+    });
+    timer_ = new Timer(AUTOSAVE_MILLIS_, new ActionListener() {
+      public void actionPerformed(ActionEvent evt) {
+        autosave();
+      }
+    });
+    timer_.start();
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Note that sections of the model have changed
+  */
+
+  public void noteChange(int sections) {
+    dirty_.addSections(sections);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Note the changes made by an edit
+  */
+
+  public void noteChanges(Changes changes) {
+    dirty_.addAll(changes);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Hold off autosaves while background work is changing the model. Every
+  ** hold must be released.
+  */
+
+  public void hold() {
+    holds_++;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Release a hold
+  */
+
+  public void release() {
+    if (holds_ > 0) {
+      holds_--;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** The model has been saved, loaded, or replaced; nothing in the journal is
+  ** worth keeping.
+  */
+
+  public void checkpointed() {
+    dirty_ = new Changes();
+    needsCheckpoint_ = true;
+    if (writer_ != null) {
+      final File journal = journal_;
+      writer_.submit(new Runnable() {
+        public void run() {
+          if (journal.exists() && !journal.delete()) {
+            System.err.println("Could not clear autosave journal " + journal);
+          }
+        }
+      });
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Copy what changed, and hand the copies off to be written out. Called on
+  ** the UI thread.
+  */
+
+  public void autosave() {
+    if ((writer_ == null) || dirty_.isEmpty() || (holds_ > 0)) {
+      return;
+    }
+    final boolean full = needsCheckpoint_;
+    final ArrayList<Entry> entries = snapshot((full) ? null : dirty_);
+    dirty_ = new Changes();
+    needsCheckpoint_ = false;
+    final File journal = journal_;
+    writer_.submit(new Runnable() {
+      public void run() {
+        writeEntries(journal, entries, full);
+      }
+    });
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if a session that did not exit cleanly left a journal behind.
+  ** Only meaningful once started.
+  */
+
+  public boolean haveRecoverableWork() {
+    return ((recover_ != null) && recover_.exists() && (recover_.length() > 0L));
+  }
+
+  /***************************************************************************
+  **
+  ** The user does not want the work left behind. It is kept as a backup
+  ** until the next one replaces it.
+  */
+
+  public void discardRecoverableWork() {
+    if (!haveRecoverableWork()) {
+      return;
+    }
+    try {
+      replaceFile(recover_, backupFile());
+    } catch (IOException ioex) {
+      System.err.println("Could not set aside autosave journal: " + ioex);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Rebuild the file the left-behind journal describes, using the newest copy
+  ** of every section and object that was committed. Answers null if there is
+  ** no usable journal. The journal is then kept as a backup, so it survives
+  ** if loading the result goes wrong.
+  */
+
+  public byte[] recoverXML() {
+    if (!haveRecoverableWork()) {
+      return (null);
+    }
+    JournalImage image = new JournalImage();
+    try {
+      if (!readJournal(recover_, image)) {
+        return (null);
+      }
+    } catch (IOException ioex) {
+      System.err.println("Could not read autosave journal: " + ioex);
+      return (null);
+    }
+    discardRecoverableWork();
+    try {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(buf, "UTF-8"));
+      Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
+      Database db = appState_.getDB();
+      db.writeXMLOpen(out, ind);
+      ind.up();
+      for (int i = 0; i < Database.NUM_SECTIONS; i++) {
+        if (Database.isObjectSection(i)) {
+          List<String> order = image.orders.get(i);
+          if (order == null) {
+            continue;
+          }
+          db.writeObjectSectionOpen(i, out, ind);
+          out.flush();
+          HashMap<String, byte[]> objects = image.objects.get(i);
+          Iterator<String> oit = order.iterator();
+          while (oit.hasNext()) {
+            byte[] text = objects.get(oit.next());
+            if (text != null) {
+              buf.write(text);
+            }
+          }
+          db.writeObjectSectionClose(i, out, ind);
+        } else if (image.sections[i] != null) {
+          out.flush();
+          buf.write(image.sections[i]);
+        }
+      }
+      ind.down();
+      db.writeXMLClose(out, ind);
+      out.close();
+      return (buf.toByteArray());
+    } catch (IOException ioex) {
+      return (null);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Stop journaling. If the journal is being discarded, it is deleted once
+  ** pending writes are done.
+  */
+
+  public void shutdown(boolean discard) {
+    if (timer_ == null) {
+      return;
+    }
+    timer_.stop();
+    timer_ = null;
+    if (discard) {
+      checkpointed();
+    }
+    writer_.shutdown();
+    try {
+      writer_.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+    }
+    writer_ = null;
+    releaseLock();
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** What edits have changed: whole sections of the file, and single layouts
+  ** and genome instances
+  */
+
+  public static class Changes {
+
+    private int sections_;
+    private HashSet<String> layouts_;
+    private HashSet<String> instances_;
+
+    public Changes() {
+      sections_ = 0;
+      layouts_ = new HashSet<String>();
+      instances_ = new HashSet<String>();
+    }
+
+    public void addSections(int sections) {
+      sections_ |= sections;
+      return;
+    }
+
+    public void addLayout(String layoutID) {
+      layouts_.add(layoutID);
+      return;
+    }
+
+    public void addInstance(String genomeID) {
+      instances_.add(genomeID);
+      return;
+    }
+
+    public void addAll(Changes other) {
+      sections_ |= other.sections_;
+      layouts_.addAll(other.layouts_);
+      instances_.addAll(other.instances_);
+      return;
+    }
+
+    public boolean isEmpty() {
+      return ((sections_ == 0) && layouts_.isEmpty() && instances_.isEmpty());
+    }
+
+    boolean hasSection(int section) {
+      return ((sections_ & (1 << section)) != 0);
+    }
+
+    Set<String> getObjects(int section) {
+      return ((section == Database.LAYOUTS_SECTION) ? layouts_ : instances_);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Copy the changed parts of the model; everything if changes is null. For
+  ** a whole object section, the order of its objects is recorded too.
+  */
+
+  private ArrayList<Entry> snapshot(Changes changes) {
+    ArrayList<Entry> retval = new ArrayList<Entry>();
+    Database db = appState_.getDB();
+    for (int i = 0; i < Database.NUM_SECTIONS; i++) {
+      boolean whole = (changes == null) || changes.hasSection(i);
+      if (!Database.isObjectSection(i)) {
+        if (whole) {
+          retval.add(new Entry(SECTION_, i, null, null, db.snapshotSection(i)));
+        }
+        continue;
+      }
+      Set<String> changed = (changes == null) ? null : changes.getObjects(i);
+      if (!whole && changed.isEmpty()) {
+        continue;
+      }
+      List<String> order = db.getSectionObjectIDs(i);
+      if (whole) {
+        retval.add(new Entry(ORDER_, i, null, order, null));
+      }
+      Iterator<String> oit = order.iterator();
+      while (oit.hasNext()) {
+        String id = oit.next();
+        if (whole || changed.contains(id)) {
+          Database.XMLSnapshot snap = db.snapshotObject(i, id);
+          if (snap != null) {
+            retval.add(new Entry(OBJECT_, i, id, null, snap));
+          }
+        }
+      }
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Write a batch to the journal, compacting it if it has grown too big.
+  ** Called on the writer thread.
+  */
+
+  private void writeEntries(File journal, List<Entry> entries, boolean full) {
+    try {
+      byte[] batch = buildBatch(entries, full);
+      if (full) {
+        rewriteJournal(journal, batch);
+        checkpointBytes_ = batch.length;
+        journalBytes_ = batch.length;
+      } else {
+        appendToJournal(journal, batch);
+        journalBytes_ += batch.length;
+        if (journalBytes_ > (COMPACT_FACTOR_ * checkpointBytes_)) {
+          compact(journal);
+        }
+      }
+    } catch (IOException ioex) {
+      System.err.println("Autosave failed: " + ioex);
+      needsCheckpoint_ = true;
+    } catch (RuntimeException rex) {
+      System.err.println("Autosave failed: " + rex);
+      needsCheckpoint_ = true;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write out the given entries as one committed batch
+  */
+
+  private byte[] buildBatch(List<Entry> entries, boolean full) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(buf);
+    if (full) {
+      writeHeader(dos);
+    }
+    int numEntries = entries.size();
+    for (int i = 0; i < numEntries; i++) {
+      Entry entry = entries.get(i);
+      dos.writeByte(entry.type);
+      dos.writeInt(entry.section);
+      if (entry.type == SECTION_) {
+        writeText(dos, toText(entry.snap, 1));
+      } else if (entry.type == ORDER_) {
+        writeOrder(dos, entry.order);
+      } else {
+        dos.writeUTF(entry.id);
+        writeText(dos, toText(entry.snap, 2));
+      }
+    }
+    dos.writeByte(COMMIT_);
+    dos.writeLong(++commitCount_);
+    dos.close();
+    return (buf.toByteArray());
+  }
+
+  /***************************************************************************
+  **
+  ** Fold the journal into a single checkpoint holding just the newest copy
+  ** of everything. Called on the writer thread.
+  */
+
+  private void compact(File journal) throws IOException {
+    JournalImage image = new JournalImage();
+    if (!readJournal(journal, image)) {
+      return;
+    }
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(buf);
+    writeHeader(dos);
+    for (int i = 0; i < Database.NUM_SECTIONS; i++) {
+      if (Database.isObjectSection(i)) {
+        List<String> order = image.orders.get(i);
+        if (order == null) {
+          continue;
+        }
+        dos.writeByte(ORDER_);
+        dos.writeInt(i);
+        writeOrder(dos, order);
+        HashMap<String, byte[]> objects = image.objects.get(i);
+        Iterator<String> oit = order.iterator();
+        while (oit.hasNext()) {
+          String id = oit.next();
+          byte[] text = objects.get(id);
+          if (text != null) {
+            dos.writeByte(OBJECT_);
+            dos.writeInt(i);
+            dos.writeUTF(id);
+            writeText(dos, text);
+          }
+        }
+      } else if (image.sections[i] != null) {
+        dos.writeByte(SECTION_);
+        dos.writeInt(i);
+        writeText(dos, image.sections[i]);
+      }
+    }
+    dos.writeByte(COMMIT_);
+    dos.writeLong(++commitCount_);
+    dos.close();
+    byte[] batch = buf.toByteArray();
+    rewriteJournal(journal, batch);
+    checkpointBytes_ = batch.length;
+    journalBytes_ = batch.length;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write a snapshot as XML text, indented to the given level
+  */
+
+  private static byte[] toText(Database.XMLSnapshot snap, int level) throws IOException {
+    ByteArrayOutputStream textBuf = new ByteArrayOutputStream();
+    if (snap != null) {
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(textBuf, "UTF-8"));
+      Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
+      for (int i = 0; i < level; i++) {
+        ind.up();
+      }
+      snap.writeXML(out, ind);
+      out.close();
+    }
+    return (textBuf.toByteArray());
+  }
+
+  /***************************************************************************
+  **
+  ** Start a checkpoint
+  */
+
+  private static void writeHeader(DataOutputStream dos) throws IOException {
+    dos.writeInt(MAGIC_);
+    dos.writeInt(VERSION_);
+    dos.writeByte(CHECKPOINT_);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write length-prefixed text
+  */
+
+  private static void writeText(DataOutputStream dos, byte[] text) throws IOException {
+    dos.writeInt(text.length);
+    dos.write(text);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write the object IDs of a section, in order
+  */
+
+  private static void writeOrder(DataOutputStream dos, List<String> order) throws IOException {
+    dos.writeInt(order.size());
+    Iterator<String> oit = order.iterator();
+    while (oit.hasNext()) {
+      dos.writeUTF(oit.next());
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Replace the journal with a new checkpoint
+  */
+
+  private static void rewriteJournal(File journal, byte[] batch) throws IOException {
+    File tmp = new File(journal.getParentFile(), journal.getName() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmp);
+    try {
+      fos.write(batch);
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    replaceFile(tmp, journal);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Rename a file over another. Where a rename will not replace an existing
+  ** file (e.g. Windows), the target is deleted first.
+  */
+
+  private static void replaceFile(File from, File to) throws IOException {
+    if (!from.renameTo(to)) {
+      to.delete();
+      if (!from.renameTo(to)) {
+        throw new IOException("Could not rename " + from + " to " + to);
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Add a batch to the end of the journal
+  */
+
+  private static void appendToJournal(File journal, byte[] batch) throws IOException {
+    if (!journal.exists()) {
+      throw new IOException("Autosave journal is missing its checkpoint");
+    }
+    FileOutputStream fos = new FileOutputStream(journal, true);
+    try {
+      BufferedOutputStream bos = new BufferedOutputStream(fos);
+      bos.write(batch);
+      bos.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Read the journal, keeping the newest committed copy of each section and
+  ** object. A batch cut off by a crash is ignored. Answers false if the
+  ** journal does not start with a checkpoint.
+  */
+
+  private static boolean readJournal(File journal, JournalImage image) throws IOException {
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+    try {
+      if ((dis.readInt() != MAGIC_) || (dis.readInt() != VERSION_) || (dis.readByte() != CHECKPOINT_)) {
+        return (false);
+      }
+      JournalImage pending = new JournalImage();
+      boolean haveCommit = false;
+      while (true) {
+        byte type;
+        try {
+          type = dis.readByte();
+        } catch (EOFException eofex) {
+          break;
+        }
+        if (type == COMMIT_) {
+          try {
+            dis.readLong();
+          } catch (EOFException eofex) {
+            break;
+          }
+          image.apply(pending);
+          pending = new JournalImage();
+          haveCommit = true;
+          continue;
+        }
+        if ((type != SECTION_) && (type != ORDER_) && (type != OBJECT_)) {
+          break;
+        }
+        try {
+          int section = dis.readInt();
+          if ((section < 0) || (section >= Database.NUM_SECTIONS) || 
+              ((type == SECTION_) == Database.isObjectSection(section))) {
+            break;
+          }
+          if (type == SECTION_) {
+            byte[] text = readText(dis);
+            if (text == null) {
+              break;
+            }
+            pending.sections[section] = text;
+          } else if (type == ORDER_) {
+            int count = dis.readInt();
+            if (count < 0) {
+              break;
+            }
+            ArrayList<String> order = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+              order.add(dis.readUTF());
+            }
+            pending.orders.set(section, order);
+          } else {
+            String id = dis.readUTF();
+            byte[] text = readText(dis);
+            if (text == null) {
+              break;
+            }
+            pending.objects.get(section).put(id, text);
+          }
+        } catch (EOFException eofex) {
+          break;
+        }
+      }
+      return (haveCommit);
+    } catch (EOFException eofex) {
+      return (false);
+    } finally {
+      dis.close();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Read length-prefixed text; null if the length is bad
+  */
+
+  private static byte[] readText(DataInputStream dis) throws IOException {
+    int length = dis.readInt();
+    if (length < 0) {
+      return (null);
+    }
+    byte[] text = new byte[length];
+    dis.readFully(text);
+    return (text);
+  }
+
+  /***************************************************************************
+  **
+  ** Where discarded or recovered journals are kept
+  */
+
+  private File backupFile() {
+    return (new File(recover_.getParentFile(), JOURNAL_FILE_ + BACKUP_SUFFIX_));
+  }
+
+  /***************************************************************************
+  **
+  ** Give up the journal lock
+  */
+
+  private void releaseLock() {
+    try {
+      lock_.release();
+    } catch (IOException ioex) {
+      // Going away anyway
+    }
+    closeLockFile();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Close the lock file
+  */
+
+  private void closeLockFile() {
+    if (lockFile_ != null) {
+      try {
+        lockFile_.close();
+      } catch (IOException ioex) {
+        // Nothing to do
+      }
+      lockFile_ = null;
+    }
+    lock_ = null;
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** One thing to write in a batch: a whole section, the order of the objects
+  ** in an object section, or one object
+  */
+
+  private static class Entry {
+    byte type;
+    int section;
+    String id;
+    List<String> order;
+    Database.XMLSnapshot snap;
+
+    Entry(byte type, int section, String id, List<String> order, Database.XMLSnapshot snap) {
+      this.type = type;
+      this.section = section;
+      this.id = id;
+      this.order = order;
+      this.snap = snap;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** What a journal (or one batch of it) holds: the text of plain sections,
+  ** and the order and text of the objects in object sections
+  */
+
+  private static class JournalImage {
+    byte[][] sections;
+    ArrayList<List<String>> orders;
+    ArrayList<HashMap<String, byte[]>> objects;
+
+    JournalImage() {
+      sections = new byte[Database.NUM_SECTIONS][];
+      orders = new ArrayList<List<String>>();
+      objects = new ArrayList<HashMap<String, byte[]>>();
+      for (int i = 0; i < Database.NUM_SECTIONS; i++) {
+        orders.add(null);
+        objects.add(new HashMap<String, byte[]>());
+      }
+    }
+
+    //
+    // A new order drops objects no longer in the section; objects written in
+    // the same batch come after it, so they are kept.
+    //
+
+    void apply(JournalImage batch) {
+      for (int i = 0; i < Database.NUM_SECTIONS; i++) {
+        if (batch.sections[i] != null) {
+          sections[i] = batch.sections[i];
+        }
+        if (batch.orders.get(i) != null) {
+          orders.set(i, batch.orders.get(i));
+          objects.get(i).keySet().retainAll(new HashSet<String>(batch.orders.get(i)));
+        }
+        objects.get(i).putAll(batch.objects.get(i));
+      }
+      return;
+    }
+  }
+}
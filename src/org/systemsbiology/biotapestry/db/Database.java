@@ -24,6 +24,7 @@ import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -93,6 +94,37 @@ public class Database implements GenomeSource, LayoutSource,
                                  ExperimentalDataSource, InstructionSource
                                  {
 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////  
+  
+  //
+  // Top-level sections of the file, in the order they are written. Each can
+  // be written on its own (see writeSectionXML()):
+  //
+  
+  public static final int MODEL_DATA_SECTION         = 0;
+  public static final int TIME_AXIS_SECTION          = 1;
+  public static final int WORKSPACE_SECTION          = 2;
+  public static final int STARTUP_VIEW_SECTION       = 3;
+  public static final int FONTS_SECTION              = 4;
+  public static final int DISPLAY_OPTIONS_SECTION    = 5;
+  public static final int COLORS_SECTION             = 6;
+  public static final int IMAGES_SECTION             = 7;
+  public static final int PATHS_SECTION              = 8;
+  public static final int ROOT_GENOME_SECTION        = 9;
+  public static final int INSTANCES_SECTION          = 10;
+  public static final int LAYOUTS_SECTION            = 11;
+  public static final int PERT_DATA_SECTION          = 12;
+  public static final int TIME_COURSE_SECTION        = 13;
+  public static final int RANGE_DATA_SECTION         = 14;
+  public static final int COPIES_PER_EMB_SECTION     = 15;
+  public static final int PROXIES_SECTION            = 16;
+  public static final int BUILD_INSTRUCTIONS_SECTION = 17;
+  public static final int INSTRUCTION_SETS_SECTION   = 18;
+  public static final int NUM_SECTIONS               = 19;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -125,6 +157,7 @@ public class Database implements GenomeSource, LayoutSource,
   private TimeCourseData timeCourse_;
   private CopiesPerEmbryoData copiesPerEmb_;
   private TemporalInputRangeData rangeData_;  
+  private LazyDataSections lazyData_;
   private UniqueLabeller labels_;
   private UniqueLabeller instructionLabels_;  
   private int uniqueNameSuffix_;
@@ -211,6 +244,7 @@ public class Database implements GenomeSource, LayoutSource,
     layouts_.put(layoutID, new Layout(appState_, layoutID, "bioTapA"));
     navTree_.addNode(null, null, "bioTapA");
     modelData_ = null;
+    lazyData_ = null;
     pertData_ = new PerturbationData(appState_);
     timeCourse_ = new TimeCourseData(appState_);
     copiesPerEmb_ = new CopiesPerEmbryoData(appState_);
@@ -245,6 +279,7 @@ public class Database implements GenomeSource, LayoutSource,
     // the tree clears correctly:
     navTree_.clearOut();
     modelData_ = null;
+    lazyData_ = null;
     pertData_ = new PerturbationData(appState_);
     timeCourse_ = null;
     copiesPerEmb_ = null;
@@ -573,6 +608,33 @@ public class Database implements GenomeSource, LayoutSource,
   }
  
 
+  /***************************************************************************
+  ** 
+  ** Build any data sections skipped at load time. If the file can no longer
+  ** be read, the data stays empty and the failure is reported, once the
+  ** database is unlocked again.
+  */
+
+  private void ensureDataSections() {
+    IOException failure = null;
+    synchronized (this) {
+      if (lazyData_ == null) {
+        return;
+      }
+      LazyDataSections pending = lazyData_;
+      lazyData_ = null;
+      try {
+        pending.materialize(appState_);
+      } catch (IOException ioex) {
+        failure = ioex;
+      }
+    }
+    if (failure != null) {
+      appState_.getExceptionHandler().displayException(failure);
+    }
+    return;
+  }
+
   /***************************************************************************
   ** 
   ** We need to install hour bounds on parent models of child dynamic models
@@ -902,12 +964,24 @@ public class Database implements GenomeSource, LayoutSource,
     return;
   }    
 
+  /***************************************************************************
+  ** 
+  ** Hand over the data sections that were skipped at load time. They are
+  ** built the first time any of the data is needed.
+  */
+
+  public void setLazyDataSections(LazyDataSections lazyData) {
+    lazyData_ = lazyData;
+    return;
+  }
+
   /***************************************************************************
   ** 
   ** Get the perturbation data
   */
 
   public PerturbationData getPertData() {
+    ensureDataSections();
     return (pertData_);
   }  
   
@@ -917,6 +991,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public void setPertData(PerturbationData pd) {
+    ensureDataSections();
     pertData_ = pd;
     return;
   }
@@ -927,6 +1002,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public DatabaseChange startTimeCourseUndoTransaction() {
+    ensureDataSections();
     DatabaseChange dc = new DatabaseChange();
     dc.oldTcd = timeCourse_;
     return (dc);
@@ -938,6 +1014,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public DatabaseChange finishTimeCourseUndoTransaction(DatabaseChange change) {
+    ensureDataSections();
     change.newTcd = timeCourse_;
     return (change);
   }
@@ -948,6 +1025,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public DatabaseChange startCopiesPerEmbryoUndoTransaction() {
+    ensureDataSections();
     DatabaseChange dc = new DatabaseChange();
     dc.oldCpe = copiesPerEmb_;
     return (dc);
@@ -959,6 +1037,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public DatabaseChange finishCopiesPerEmbryoUndoTransaction(DatabaseChange change) {
+    ensureDataSections();
     change.newCpe = copiesPerEmb_;
     return (change);
   }  
@@ -969,6 +1048,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public DatabaseChange startTemporalInputUndoTransaction() {
+    ensureDataSections();
     DatabaseChange dc = new DatabaseChange();
     dc.oldTir = rangeData_;
     return (dc);
@@ -980,6 +1060,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public DatabaseChange finishTemporalInputUndoTransaction(DatabaseChange change) {
+    ensureDataSections();
     change.newTir = rangeData_;
     return (change);
   }
@@ -990,6 +1071,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public TimeCourseData getTimeCourseData() {
+    ensureDataSections();
     return (timeCourse_);
   }  
   
@@ -999,6 +1081,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public void setTimeCourseData(TimeCourseData timeCourse) {
+    ensureDataSections();
     timeCourse_ = timeCourse;
     return;
   }  
@@ -1009,6 +1092,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public CopiesPerEmbryoData getCopiesPerEmbryoData() {
+    ensureDataSections();
     return (copiesPerEmb_);
   }  
   
@@ -1018,6 +1102,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public void setCopiesPerEmbryoData(CopiesPerEmbryoData copies) {
+    ensureDataSections();
     copiesPerEmb_ = copies;
     return;
   }    
@@ -1028,6 +1113,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public TemporalInputRangeData getTemporalInputRangeData() {
+    ensureDataSections();
     return (rangeData_);
   }  
   
@@ -1037,6 +1123,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public void setTemporalInputRangeData(TemporalInputRangeData rangeData) {
+    ensureDataSections();
     rangeData_ = rangeData;
     return;
   }  
@@ -1828,156 +1915,303 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public void writeXML(PrintWriter out, Indenter ind) {    
+    writeXMLOpen(out, ind);
+    ind.up();
+    for (int i = 0; i < NUM_SECTIONS; i++) {
+      writeSectionXML(i, out, ind);
+    }
+    ind.down();
+    writeXMLClose(out, ind);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write the opening tag of the file
+  */
+  
+  public void writeXMLOpen(PrintWriter out, Indenter ind) {    
     ind.indent();
     out.print("<BioTapestry version=\"");
     out.print(CURRENT_IO_VERSION_);
     out.println("\" >");
-    if (modelData_ != null) {
-      modelData_.writeXML(out, ind.up());
-      ind.down();
-    }
-    if ((timeAxis_ != null) && timeAxis_.isInitialized()) {
-      timeAxis_.writeXML(out, ind.up());
-      ind.down();
-    }    
-    
-    if (workspace_ != null) {
-      workspace_.writeXML(out, ind.up());
-      ind.down();
-    }  
-    
-    if (startupView_ != null) {
-      startupView_.writeXML(out, ind.up());
-      ind.down();
-    }    
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the closing tag of the file
+  */
+  
+  public void writeXMLClose(PrintWriter out, Indenter ind) {    
+    ind.indent();
+    out.println("</BioTapestry>");
+    return;
+  }
 
-    appState_.getFontMgr().writeXML(out, ind.up());
-    ind.down();
-    appState_.getDisplayOptMgr().writeXML(out, ind.up());
-    ind.down();
-    
-    colGen_.writeXML(out, ind.up());
-    ind.down();
-    
-    appState_.getImageMgr().writeXML(out, ind.up());
-    ind.down();
-    
-    appState_.getPathMgr().writeXML(out, ind.up());
-    ind.down();
-    
-    // core genome
-    ((DBGenome)genome_).writeXML(out, ind.up());
+  /***************************************************************************
+  **
+  ** Answer if a section is a list of objects that can be written one at a
+  ** time: the layouts, and the (non-dynamic) genome instances
+  */
+  
+  public static boolean isObjectSection(int section) {
+    return ((section == LAYOUTS_SECTION) || (section == INSTANCES_SECTION));
+  }
+
+  /***************************************************************************
+  **
+  ** Write the opening tag of an object section
+  */
+  
+  public void writeObjectSectionOpen(int section, PrintWriter out, Indenter ind) {
     ind.indent();
-    //
-    // Dump the instances out in tree order to preserve it:
-    //
-    List<String> ordered = navTree_.getPreorderListing(true);
-    Iterator<String> oit = ordered.iterator();    
-    out.println("<genomeInstances>");
-    ind.up();
-    while (oit.hasNext()) {
-      String gkey = oit.next();
-      GenomeInstance gi = (GenomeInstance)getGenome(gkey);
-      // Note that dynamic instances override writeXML to output nothing. We lose
-      // the tree ordering of dynamic vs. static children on I/O!!!  FIX ME!!!! 
-      gi.writeXML(out, ind);
-    }
-    ind.down().indent();
-    out.println("</genomeInstances>");
-    // Layouts
+    out.println((section == LAYOUTS_SECTION) ? "<layouts>" : "<genomeInstances>");
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the closing tag of an object section
+  */
+  
+  public void writeObjectSectionClose(int section, PrintWriter out, Indenter ind) {
     ind.indent();
-    out.println("<layouts>");
-    Iterator<Layout> lit = getLayoutIterator();
-    ind.up();
-    while (lit.hasNext()) {
-      Layout lo = lit.next();
-      lo.writeXML(out, ind);
-    }
-    ind.down().indent();
-    out.println("</layouts>");
-    if ((pertData_ != null) && pertData_.haveData()) {
-      pertData_.writeXML(out, ind);
-    }
-    
-    if (timeCourse_ != null) {
-      timeCourse_.writeXML(out, ind);
-    }
-    if (rangeData_ != null) {
-      rangeData_.writeXML(out, ind);
-    }
-    if ((copiesPerEmb_ != null) && copiesPerEmb_.haveData()) {
-      copiesPerEmb_.writeXML(out, ind);
-    }    
-    
-    //
-    // Dump the single-shot proxies out in tree order to preserve it:
-    //
-    ArrayList<String> dumpList = new ArrayList<String>();
-    ordered = navTree_.getPreorderListing(true);
-    oit = ordered.iterator();    
-    while (oit.hasNext()) {
-      String gkey = oit.next();
-      GenomeInstance gi = (GenomeInstance)getGenome(gkey);
-      if (gi instanceof DynamicGenomeInstance) {
-        DynamicGenomeInstance dgi = (DynamicGenomeInstance)gi;
-        DynamicInstanceProxy dip = dynProxies_.get(dgi.getProxyID()); 
-        if (!dumpList.contains(dip.getID())) {
-          dip.writeXML(out, ind);
-          dumpList.add(dip.getID());
+    out.println((section == LAYOUTS_SECTION) ? "</layouts>" : "</genomeInstances>");
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** The IDs of the objects in an object section, in the order they are written
+  */
+  
+  public List<String> getSectionObjectIDs(int section) {
+    ArrayList<String> retval = new ArrayList<String>();
+    if (section == LAYOUTS_SECTION) {
+      Iterator<Layout> lit = getLayoutIterator();
+      while (lit.hasNext()) {
+        retval.add(lit.next().getID());
+      }
+    } else if (section == INSTANCES_SECTION) {
+      Iterator<String> oit = navTree_.getPreorderListing(true).iterator();
+      while (oit.hasNext()) {
+        String gkey = oit.next();
+        if (!(getGenome(gkey) instanceof DynamicGenomeInstance)) {
+          retval.add(gkey);
         }
       }
+    } else {
+      throw new IllegalArgumentException();
     }
-    //
-    // Dump the multi-hour proxies out in tree order to preserve it:
-    //
-    dumpList = new ArrayList<String>();
-    ordered = navTree_.getProxyPreorderListing();
-    oit = ordered.iterator();    
-    while (oit.hasNext()) {
-      String pkey = oit.next();
-      DynamicInstanceProxy dip = dynProxies_.get(pkey); 
-      if (!dumpList.contains(dip.getID())) {
-        dip.writeXML(out, ind);
-        dumpList.add(dip.getID());
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Copy one object of an object section, to be written out later (maybe on
+  ** another thread). Null if there is no such object.
+  */
+  
+  public XMLSnapshot snapshotObject(int section, String id) {
+    if (section == LAYOUTS_SECTION) {
+      Layout lo = layouts_.get(id);
+      if (lo == null) {
+        return (null);
       }
-    }
-    
-    //
-    // Dump the build instructions:
-    //
-    
-    Iterator<BuildInstruction> biit = getBuildInstructions();
-    if (biit.hasNext()) {
-      ind.indent();
-      out.println("<buildInstructions>");
-      ind.up();
-      while (biit.hasNext()) {
-        BuildInstruction bi = biit.next();
-        bi.writeXML(out, ind);
+      final Layout copy = new Layout(lo);
+      return (new XMLSnapshot() {
+        public void writeXML(PrintWriter out, Indenter ind) {
+          copy.writeXML(out, ind);
+        }
+      });
+    } else if (section == INSTANCES_SECTION) {
+      Genome genome = getGenome(id);
+      if (!(genome instanceof GenomeInstance) || (genome instanceof DynamicGenomeInstance)) {
+        return (null);
       }
-      ind.down().indent();
-      out.println("</buildInstructions>");
+      final GenomeInstance copy = ((GenomeInstance)genome).clone();
+      return (new XMLSnapshot() {
+        public void writeXML(PrintWriter out, Indenter ind) {
+          copy.writeXML(out, ind);
+        }
+      });
     }
-    
-    //
-    // Dump the instance instruction sets:
-    //
-    
-    Iterator<InstanceInstructionSet> isit = instanceInstructionSets_.values().iterator();
-    if (isit.hasNext()) {
-      ind.indent();
-      out.println("<instructionSets>");
-      ind.up();
-      while (isit.hasNext()) {
-        InstanceInstructionSet iis = isit.next();
-        iis.writeXML(out, ind);
-      }
-      ind.down().indent();
-      out.println("</instructionSets>");
-    } 
+    throw new IllegalArgumentException();
+  }
+  
+  /***************************************************************************
+  **
+  ** Copy a section that is not an object section, to be written out later
+  ** (maybe on another thread). The big ones (the root genome and the
+  ** experimental data) are cloned; the rest are small, and are written to
+  ** text right away.
+  */
+  
+  public XMLSnapshot snapshotSection(int section) {
+    if (isObjectSection(section)) {
+      throw new IllegalArgumentException();
+    }
+    ensureDataSections();
+    switch (section) {
+      case ROOT_GENOME_SECTION:
+        final DBGenome rootCopy = ((DBGenome)genome_).clone();
+        return (new XMLSnapshot() {
+          public void writeXML(PrintWriter out, Indenter ind) {
+            rootCopy.writeXML(out, ind);
+          }
+        });
+      case PERT_DATA_SECTION:
+        if ((pertData_ == null) || !pertData_.haveData()) {
+          return (null);
+        }
+        final PerturbationData pertCopy = pertData_.clone();
+        return (new XMLSnapshot() {
+          public void writeXML(PrintWriter out, Indenter ind) {
+            pertCopy.writeXML(out, ind);
+          }
+        });
+      case TIME_COURSE_SECTION:
+        if (timeCourse_ == null) {
+          return (null);
+        }
+        final TimeCourseData tcdCopy = timeCourse_.clone();
+        return (new XMLSnapshot() {
+          public void writeXML(PrintWriter out, Indenter ind) {
+            tcdCopy.writeXML(out, ind);
+          }
+        });
+      default:
+        StringWriter sw = new StringWriter();
+        PrintWriter swOut = new PrintWriter(sw);
+        Indenter swInd = new Indenter(swOut, Indenter.DEFAULT_INDENT);
+        swInd.up();
+        writeSectionXML(section, swOut, swInd);
+        swOut.flush();
+        final String text = sw.toString();
+        return (new XMLSnapshot() {
+          public void writeXML(PrintWriter out, Indenter ind) {
+            out.print(text);
+          }
+        });
+    }
+  }
 
-    ind.down().indent();
-    out.println("</BioTapestry>");
+  /***************************************************************************
+  **
+  ** Write one top-level section of the file. The indenter is at the level of
+  ** the section, and is left there. Sections with nothing to say write nothing.
+  */
+  
+  public void writeSectionXML(int section, PrintWriter out, Indenter ind) {
+    ensureDataSections();
+    switch (section) {
+      case MODEL_DATA_SECTION:
+        if (modelData_ != null) {
+          modelData_.writeXML(out, ind);
+        }
+        break;
+      case TIME_AXIS_SECTION:
+        if ((timeAxis_ != null) && timeAxis_.isInitialized()) {
+          timeAxis_.writeXML(out, ind);
+        }
+        break;
+      case WORKSPACE_SECTION:
+        if (workspace_ != null) {
+          workspace_.writeXML(out, ind);
+        }
+        break;
+      case STARTUP_VIEW_SECTION:
+        if (startupView_ != null) {
+          startupView_.writeXML(out, ind);
+        }
+        break;
+      case FONTS_SECTION:
+        appState_.getFontMgr().writeXML(out, ind);
+        break;
+      case DISPLAY_OPTIONS_SECTION:
+        appState_.getDisplayOptMgr().writeXML(out, ind);
+        break;
+      case COLORS_SECTION:
+        colGen_.writeXML(out, ind);
+        break;
+      case IMAGES_SECTION:
+        appState_.getImageMgr().writeXML(out, ind);
+        break;
+      case PATHS_SECTION:
+        appState_.getPathMgr().writeXML(out, ind);
+        break;
+      case ROOT_GENOME_SECTION:
+        ((DBGenome)genome_).writeXML(out, ind);
+        break;
+      case INSTANCES_SECTION:
+        writeInstancesXML(out, ind);
+        break;
+      case LAYOUTS_SECTION:
+        writeObjectSectionOpen(section, out, ind);
+        Iterator<Layout> lit = getLayoutIterator();
+        ind.up();
+        while (lit.hasNext()) {
+          Layout lo = lit.next();
+          lo.writeXML(out, ind);
+        }
+        ind.down();
+        writeObjectSectionClose(section, out, ind);
+        break;
+      case PERT_DATA_SECTION:
+        if ((pertData_ != null) && pertData_.haveData()) {
+          pertData_.writeXML(out, ind);
+        }
+        break;
+      case TIME_COURSE_SECTION:
+        if (timeCourse_ != null) {
+          timeCourse_.writeXML(out, ind);
+        }
+        break;
+      case RANGE_DATA_SECTION:
+        if (rangeData_ != null) {
+          rangeData_.writeXML(out, ind);
+        }
+        break;
+      case COPIES_PER_EMB_SECTION:
+        if ((copiesPerEmb_ != null) && copiesPerEmb_.haveData()) {
+          copiesPerEmb_.writeXML(out, ind);
+        }
+        break;
+      case PROXIES_SECTION:
+        writeProxiesXML(out, ind);
+        break;
+      case BUILD_INSTRUCTIONS_SECTION:
+        Iterator<BuildInstruction> biit = getBuildInstructions();
+        if (biit.hasNext()) {
+          ind.indent();
+          out.println("<buildInstructions>");
+          ind.up();
+          while (biit.hasNext()) {
+            BuildInstruction bi = biit.next();
+            bi.writeXML(out, ind);
+          }
+          ind.down().indent();
+          out.println("</buildInstructions>");
+        }
+        break;
+      case INSTRUCTION_SETS_SECTION:
+        Iterator<InstanceInstructionSet> isit = instanceInstructionSets_.values().iterator();
+        if (isit.hasNext()) {
+          ind.indent();
+          out.println("<instructionSets>");
+          ind.up();
+          while (isit.hasNext()) {
+            InstanceInstructionSet iis = isit.next();
+            iis.writeXML(out, ind);
+          }
+          ind.down().indent();
+          out.println("</instructionSets>");
+        }
+        break;
+      default:
+        throw new IllegalArgumentException();
+    }
     return;
   }
 
@@ -2433,6 +2667,16 @@ public class Database implements GenomeSource, LayoutSource,
     return (colGen_.getNumColors());
   }
   
+  /***************************************************************************
+  **
+  ** Answer if the file we loaded was written by the current version
+  **
+  */
+  
+  public boolean ioVersionIsCurrent() {
+    return (iOVersion_.equals(CURRENT_IO_VERSION_));
+  }
+  
   /***************************************************************************
   **
   ** Set the IO version
@@ -2482,7 +2726,23 @@ public class Database implements GenomeSource, LayoutSource,
     String version = AttributeExtractor.extractAttribute(elemName, attrs, "BioTapestry", "version", false);   
     return ((version == null) ? "1.0" : version);
   }
-      
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** A copy of part of the model, detached from it, that can be written as XML
+  ** later and from any thread
+  */
+
+  public interface XMLSnapshot {
+    public void writeXML(PrintWriter out, Indenter ind);
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE CONSTRUCTORS
@@ -2497,6 +2757,72 @@ public class Database implements GenomeSource, LayoutSource,
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  /***************************************************************************
+  **
+  ** Write the genome instances
+  */
+  
+  private void writeInstancesXML(PrintWriter out, Indenter ind) {
+    //
+    // Dump the instances out in tree order to preserve it:
+    //
+    List<String> ordered = navTree_.getPreorderListing(true);
+    Iterator<String> oit = ordered.iterator();
+    writeObjectSectionOpen(INSTANCES_SECTION, out, ind);
+    ind.up();
+    while (oit.hasNext()) {
+      String gkey = oit.next();
+      GenomeInstance gi = (GenomeInstance)getGenome(gkey);
+      // Note that dynamic instances override writeXML to output nothing. We lose
+      // the tree ordering of dynamic vs. static children on I/O!!!  FIX ME!!!! 
+      gi.writeXML(out, ind);
+    }
+    ind.down();
+    writeObjectSectionClose(INSTANCES_SECTION, out, ind);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the dynamic instance proxies
+  */
+  
+  private void writeProxiesXML(PrintWriter out, Indenter ind) {
+    //
+    // Dump the single-shot proxies out in tree order to preserve it:
+    //
+    ArrayList<String> dumpList = new ArrayList<String>();
+    List<String> ordered = navTree_.getPreorderListing(true);
+    Iterator<String> oit = ordered.iterator();    
+    while (oit.hasNext()) {
+      String gkey = oit.next();
+      GenomeInstance gi = (GenomeInstance)getGenome(gkey);
+      if (gi instanceof DynamicGenomeInstance) {
+        DynamicGenomeInstance dgi = (DynamicGenomeInstance)gi;
+        DynamicInstanceProxy dip = dynProxies_.get(dgi.getProxyID()); 
+        if (!dumpList.contains(dip.getID())) {
+          dip.writeXML(out, ind);
+          dumpList.add(dip.getID());
+        }
+      }
+    }
+    //
+    // Dump the multi-hour proxies out in tree order to preserve it:
+    //
+    dumpList = new ArrayList<String>();
+    ordered = navTree_.getProxyPreorderListing();
+    oit = ordered.iterator();    
+    while (oit.hasNext()) {
+      String pkey = oit.next();
+      DynamicInstanceProxy dip = dynProxies_.get(pkey); 
+      if (!dumpList.contains(dip.getID())) {
+        dip.writeXML(out, ind);
+        dumpList.add(dip.getID());
+      }
+    }
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Deep copy build inst
@@ -21,6 +21,7 @@ package org.systemsbiology.biotapestry.db;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -36,6 +37,8 @@ import org.systemsbiology.biotapestry.genome.DynamicInstanceProxyFactory;
 import org.systemsbiology.biotapestry.genome.GenomeInstanceFactory;
 import org.systemsbiology.biotapestry.nav.ImageFactory;
 import org.systemsbiology.biotapestry.nav.UserTreePathFactory;
+import org.systemsbiology.biotapestry.parser.DeferredWorkClient;
+import org.systemsbiology.biotapestry.parser.ParallelSectionBuilder;
 import org.systemsbiology.biotapestry.parser.ParserClient;
 import org.systemsbiology.biotapestry.perturb.PerturbationData;
 import org.systemsbiology.biotapestry.qpcr.QpcrLegacyPublicExposed;
@@ -47,10 +50,16 @@ import org.systemsbiology.biotapestry.ui.LayoutFactory;
 
 /****************************************************************************
 **
-** This handles database creation from XML files
+** This handles database creation from XML files. The experimental data
+** sections (perturbation, time course, input ranges, copies per embryo) are
+** self-contained, and each just installs its own object into the database,
+** so when there are spare processors they are built on other threads while
+** we carry on parsing the rest of the file. For viewers, they can instead be
+** skipped entirely and built from the file when first asked for (see
+** LazyDataSections).
 */
 
-public class DatabaseFactory implements ParserClient {
+public class DatabaseFactory implements DeferredWorkClient {
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -63,6 +72,14 @@ public class DatabaseFactory implements ParserClient {
   private ParserClient currClient_;
   private HashMap<String, ParserClient> clients_;
   private BTState appState_;
+  private ParallelSectionBuilder builder_;
+  private HashSet<ParserClient> deferrable_;
+  private ParserClient legacyQpcrClient_;
+  private ParallelSectionBuilder.Recording recording_;
+  private HashMap<String, Integer> sectionCounts_;
+  private Set<String> skipping_;
+  private LazyDataSections lazyOut_;
+  private LazyDataSections lazyIn_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -94,12 +111,23 @@ public class DatabaseFactory implements ParserClient {
     alist.add(new GlobalDataFactory(appState_));
     alist.add(new ImageFactory(appState_));
     alist.add(new UserTreePathFactory(appState_));    
-    alist.add(new QpcrLegacyPublicExposed(appState_).getParserClient(false, false)); 
-    alist.add(new TimeCourseFormatFactory(appState_, false, false));
-    alist.add(new CopiesPerEmbryoFormatFactory(appState_, false));
-    alist.add(new TemporalInputRangeFormatFactory(appState_, false));
+    legacyQpcrClient_ = new QpcrLegacyPublicExposed(appState_).getParserClient(false, false);
+    alist.add(legacyQpcrClient_); 
+    deferrable_ = new HashSet<ParserClient>();
+    ParserClient dataClient = new TimeCourseFormatFactory(appState_, false, false);
+    alist.add(dataClient);
+    deferrable_.add(dataClient);
+    dataClient = new CopiesPerEmbryoFormatFactory(appState_, false);
+    alist.add(dataClient);
+    deferrable_.add(dataClient);
+    dataClient = new TemporalInputRangeFormatFactory(appState_, false);
+    alist.add(dataClient);
+    deferrable_.add(dataClient);
     alist.add(new DynamicInstanceProxyFactory(appState_, dacx));
-    alist.add(new PerturbationData.PertDataWorker(appState_, false, false));
+    dataClient = new PerturbationData.PertDataWorker(appState_, false, false);
+    alist.add(dataClient);
+    deferrable_.add(dataClient);
+    builder_ = (ParallelSectionBuilder.isWorthwhile()) ? new ParallelSectionBuilder() : null;
     
     Iterator<ParserClient> cit = alist.iterator();
     clients_ = new HashMap<String, ParserClient>();
@@ -116,7 +144,31 @@ public class DatabaseFactory implements ParserClient {
       }
     }
     currClient_ = null;
-    
+    recording_ = null;
+    sectionCounts_ = new HashMap<String, Integer>();
+    skipping_ = null;
+    lazyOut_ = null;
+    lazyIn_ = null;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor for going back over a file to build just the data sections
+  ** that were skipped the first time. This runs while the database is locked,
+  ** and the sections install themselves through the (locked) database, so
+  ** they are built on this thread, never on the worker pool.
+  */
+
+  DatabaseFactory(BTState appState, LazyDataSections toBuild) {
+    this(appState, false);
+    builder_ = null;
+    lazyIn_ = toBuild;
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -125,6 +177,18 @@ public class DatabaseFactory implements ParserClient {
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  ** 
+  ** Skip the experimental data sections of the given file, leaving the
+  ** database to build them from it on first use. Must be the file we are
+  ** about to parse. Ignored for files that need legacy fixups.
+  */
+
+  public void setLazyDataSource(File source) {
+    lazyOut_ = new LazyDataSections(source);
+    return;
+  }
+
   /***************************************************************************
   ** 
   ** Set the container
@@ -144,6 +208,19 @@ public class DatabaseFactory implements ParserClient {
   */
   
   public boolean finishElement(String elemName) throws IOException {
+    if (skipping_ != null) {
+      if (skipping_.contains(elemName)) {
+        skipping_ = null;
+      }
+      return (allKeys_.contains(elemName));
+    }
+    if (recording_ != null) {
+      if (recording_.endElement(elemName)) {
+        builder_.submit(recording_);
+        recording_ = null;
+      }
+      return (allKeys_.contains(elemName));
+    }
     if (currClient_ == null) {
       return (false);
     }
@@ -159,7 +236,11 @@ public class DatabaseFactory implements ParserClient {
   */
 
   public void processCharacters(char[] chars, int start, int length) {
-    if (currClient_ != null) {
+    if (skipping_ != null) {
+      return;
+    } else if (recording_ != null) {
+      recording_.characters(chars, start, length);
+    } else if (currClient_ != null) {
       currClient_.processCharacters(chars, start, length);
     }    
     return;
@@ -184,8 +265,23 @@ public class DatabaseFactory implements ParserClient {
   public Object processElement(String elemName, Attributes attrs) throws IOException {
 
     if (bioTapHeaderKeys_.contains(elemName)) {
+      if (lazyIn_ != null) {
+        return (null);  // Already handled when the file was first loaded
+      }
       String version = Database.versionFromXML(elemName, attrs);
       appState_.getDB().setIOVersion(version);
+      if (!appState_.getDB().ioVersionIsCurrent()) {
+        lazyOut_ = null;  // Legacy fixups need the data
+      }
+      return (null);
+    }
+    
+    if (skipping_ != null) {
+      return (null);
+    }
+    
+    if (recording_ != null) {
+      recording_.startElement(elemName, attrs);
       return (null);
     }
     
@@ -195,10 +291,83 @@ public class DatabaseFactory implements ParserClient {
     
     ParserClient pc = (ParserClient)clients_.get(elemName);
     if (pc != null) {
+      int occurrence = countSection(elemName);
+      boolean skip;
+      if (lazyIn_ != null) {
+        skip = !lazyIn_.wants(elemName, occurrence);
+      } else {
+        skip = (lazyOut_ != null) && deferrable_.contains(pc);
+        if (skip) {
+          lazyOut_.noteSkipped(elemName, occurrence);
+        }
+      }
+      if (skip) {
+        skipping_ = pc.keywordsOfInterest();
+        return (null);
+      }
+      if (builder_ != null) {
+        if (deferrable_.contains(pc)) {
+          recording_ = new ParallelSectionBuilder.Recording(pc);
+          recording_.startElement(elemName, attrs);
+          return (null);
+        } else if (pc == legacyQpcrClient_) {
+          // Legacy QPCR data is attached to the perturbation data, so that must be built first:
+          builder_.awaitAll();
+        }
+      }
       currClient_ = pc; 
       return (currClient_.processElement(elemName, attrs));
     }
     return (null);
   }
-}
+  
+  /***************************************************************************
+  **
+  ** Wait for the data sections being built on other threads
+  **
+  */
+  
+  public void finishDeferredWork() throws IOException {
+    if (builder_ != null) {
+      builder_.awaitAll();
+    }
+    if ((lazyOut_ != null) && !lazyOut_.isEmpty()) {
+      appState_.getDB().setLazyDataSections(lazyOut_);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Drop the data sections being built on other threads
+  **
+  */
+  
+  public void abandonDeferredWork() {
+    recording_ = null;
+    lazyOut_ = null;
+    if (builder_ != null) {
+      builder_.abandon();
+    }
+    return;
+  }
 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Count off another top-level section with the given name; returns which
+  ** one this is (from zero)
+  */
+  
+  private int countSection(String elemName) {
+    Integer count = sectionCounts_.get(elemName);
+    int retval = (count == null) ? 0 : count.intValue();
+    sectionCounts_.put(elemName, Integer.valueOf(retval + 1));
+    return (retval);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.parser.ParserClient;
+import org.systemsbiology.biotapestry.parser.SUParser;
+
+/****************************************************************************
+**
+** The experimental data sections of a file that were skipped when it was
+** loaded. Each is known by its element name and which occurrence of that
+** name it was among the top-level sections. They are built from the same
+** file the first time the database is asked for any of the data.
+*/
+
+public class LazyDataSections {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private File source_;
+  private long length_;
+  private long modified_;
+  private HashSet<String> sections_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. The file is checked for changes before it is read again.
+  */
+
+  public LazyDataSections(File source) {
+    source_ = source;
+    length_ = source.length();
+    modified_ = source.lastModified();
+    sections_ = new HashSet<String>();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Note a section we skipped
+  */
+
+  public void noteSkipped(String elemName, int occurrence) {
+    sections_.add(sectionKey(elemName, occurrence));
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the section is one we need to build
+  */
+
+  public boolean wants(String elemName, int occurrence) {
+    return (sections_.contains(sectionKey(elemName, occurrence)));
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if nothing was skipped
+  */
+
+  public boolean isEmpty() {
+    return (sections_.isEmpty());
+  }
+
+  /***************************************************************************
+  **
+  ** Build the skipped sections into the database, by reading the file again
+  ** and passing over everything else.
+  */
+
+  public void materialize(BTState appState) throws IOException {
+    if ((source_.length() != length_) || (source_.lastModified() != modified_)) {
+      throw new IOException("File changed since it was loaded: " + source_);
+    }
+    ArrayList<ParserClient> alist = new ArrayList<ParserClient>();
+    alist.add(new DatabaseFactory(appState, this));
+    SUParser sup = new SUParser(appState, alist);
+    sup.parse(source_);
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Key for a section
+  */
+
+  private String sectionKey(String elemName, int occurrence) {
+    return (elemName + "#" + occurrence);
+  }
+}
@@ -0,0 +1,707 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import org.systemsbiology.biotapestry.nav.ImageManager;
+import org.systemsbiology.biotapestry.util.Base64Util;
+
+/****************************************************************************
+**
+** A compact binary form (.btpb) of a BioTapestry XML file. It holds the same
+** element stream as the XML, but every element name, attribute name,
+** attribute value and text run is stored once in a string table and then
+** referred to by a varint index. The base64 text of chosen elements (the
+** embedded images) is stored as the raw bytes instead. Reading loads the file
+** and feeds the element stream straight to a SAX content handler, so it
+** loads through the same parser clients as the XML does, and converting in
+** either direction is lossless.
+**
+** Layout: "BTPB", format version, string count, strings (varint byte
+** length + UTF-8), then the events (one op byte each, see below) up to DONE.
+*/
+
+public class BinarySnapshot {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public static final String SUFFIX = "btpb";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final byte[] MAGIC_ = new byte[] {'B', 'T', 'P', 'B'};
+  private static final int FORMAT_VERSION_ = 1;
+
+  private static final int DONE_ = 0;
+  private static final int START_ = 1;  // name, attribute count, (name, value) pairs
+  private static final int END_ = 2;
+  private static final int TEXT_ = 3;   // string
+  private static final int BYTES_ = 4;  // byte count, raw bytes; delivered as base64 text
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Not to be instantiated
+  */
+
+  private BinarySnapshot() {
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if the file is a binary snapshot (judged by its content, not name)
+  */
+
+  public static boolean isSnapshot(File file) {
+    if (!file.isFile() || (file.length() < MAGIC_.length)) {
+      return (false);
+    }
+    byte[] head = new byte[MAGIC_.length];
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      int got = 0;
+      while (got < head.length) {
+        int num = in.read(head, got, head.length - got);
+        if (num < 0) {
+          return (false);
+        }
+        got += num;
+      }
+    } catch (IOException ioex) {
+      return (false);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ioex) {
+          // Nothing to do
+        }
+      }
+    }
+    return (Arrays.equals(head, MAGIC_));
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the stream holds a binary snapshot. The stream must support
+  ** mark(), and is left where it was.
+  */
+
+  public static boolean isSnapshot(InputStream in) throws IOException {
+    byte[] head = new byte[MAGIC_.length];
+    in.mark(head.length);
+    try {
+      int got = 0;
+      while (got < head.length) {
+        int num = in.read(head, got, head.length - got);
+        if (num < 0) {
+          return (false);
+        }
+        got += num;
+      }
+    } finally {
+      in.reset();
+    }
+    return (Arrays.equals(head, MAGIC_));
+  }
+
+  /***************************************************************************
+  **
+  ** Convert BioTapestry XML to a snapshot. The text of elements in the
+  ** given set is stored as raw bytes when it is clean base64.
+  */
+
+  public static void fromXML(InputSource xml, OutputStream out, Set<String> base64Elements) throws IOException {
+    Encoder enc = new Encoder(base64Elements);
+    try {
+      SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory.setNamespaceAware(true);
+      XMLReader reader = factory.newSAXParser().getXMLReader();
+      reader.setContentHandler(enc);
+      reader.parse(xml);
+    } catch (SAXException saxex) {
+      throw new IOException(saxex.getMessage());
+    } catch (ParserConfigurationException pcex) {
+      throw new IOException(pcex.getMessage());
+    }
+    enc.write(out);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Convert a snapshot back to XML
+  */
+
+  public static void toXML(File snapshot, Writer out) throws IOException {
+    XMLEmitter emit = new XMLEmitter(out);
+    try {
+      read(snapshot, emit);
+    } catch (SAXException saxex) {
+      throw new IOException(saxex.getMessage());
+    }
+    out.flush();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Feed the snapshot's element stream to the handler. The file is read into
+  ** memory and closed first; a mapping would keep it locked on some platforms
+  ** (e.g. Windows) until collected, so it could not be saved over.
+  */
+
+  public static void read(File snapshot, ContentHandler handler) throws IOException, SAXException {
+    ByteBuffer buf;
+    RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+    try {
+      FileChannel chan = raf.getChannel();
+      long size = chan.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Snapshot file too large");
+      }
+      buf = ByteBuffer.allocate((int)size);
+      while (buf.hasRemaining()) {
+        if (chan.read(buf) < 0) {
+          throw new IOException("Truncated snapshot file");
+        }
+      }
+      buf.flip();
+    } finally {
+      raf.close();
+    }
+    readBuffer(buf, handler);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Feed the element stream of the snapshot held in the stream (e.g. from a
+  ** URL) to the handler. The stream is read to the end, but not closed.
+  */
+
+  public static void read(InputStream in, ContentHandler handler) throws IOException, SAXException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] chunk = new byte[8192];
+    int num;
+    while ((num = in.read(chunk)) != -1) {
+      bytes.write(chunk, 0, num);
+    }
+    readBuffer(ByteBuffer.wrap(bytes.toByteArray()), handler);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Command line conversion: a .btp file becomes a .btpb file, and vice versa
+  */
+
+  public static void main(String[] argv) throws IOException {
+    if (argv.length != 2) {
+      System.err.println("Usage: BinarySnapshot <in.btp|in.btpb> <out>");
+      System.exit(1);
+    }
+    File inFile = new File(argv[0]);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(argv[1]));
+    try {
+      if (isSnapshot(inFile)) {
+        toXML(inFile, new OutputStreamWriter(out, "UTF-8"));
+      } else {
+        HashSet<String> base64Elements = new HashSet<String>();
+        base64Elements.add(ImageManager.getImageKeyword());
+        fromXML(new InputSource(inFile.toURI().toString()), out, base64Elements);
+      }
+    } finally {
+      out.close();
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Feed the element stream in the buffer to the handler, reporting a short
+  ** or damaged buffer as such
+  */
+
+  private static void readBuffer(ByteBuffer buf, ContentHandler handler) throws IOException, SAXException {
+    try {
+      readGuts(buf, handler);
+    } catch (BufferUnderflowException buex) {
+      throw new IOException("Truncated snapshot file");
+    } catch (IndexOutOfBoundsException ioobex) {
+      throw new IOException("Corrupt snapshot file");
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Read the string table, then play the events
+  */
+
+  private static void readGuts(ByteBuffer buf, ContentHandler handler) throws IOException, SAXException {
+    byte[] head = new byte[MAGIC_.length];
+    buf.get(head);
+    if (!Arrays.equals(head, MAGIC_)) {
+      throw new IOException("Not a snapshot file");
+    }
+    int version = readVarint(buf);
+    if (version > FORMAT_VERSION_) {
+      throw new NewerVersionIOException(Integer.toString(version));
+    } else if (version != FORMAT_VERSION_) {
+      throw new IOException("Corrupt snapshot file");
+    }
+    int numStrings = readLength(buf);
+    String[] strings = new String[numStrings];
+    byte[] scratch = new byte[256];
+    for (int i = 0; i < numStrings; i++) {
+      int len = readLength(buf);
+      if (len > scratch.length) {
+        scratch = new byte[Math.max(len, scratch.length * 2)];
+      }
+      buf.get(scratch, 0, len);
+      strings[i] = new String(scratch, 0, len, "UTF-8");
+    }
+
+    Base64Util b64 = new Base64Util();
+    ArrayList<String> openElems = new ArrayList<String>();
+    AttributesImpl attrs = new AttributesImpl();
+    handler.startDocument();
+    while (true) {
+      int op = buf.get();
+      switch (op) {
+        case START_:
+          String name = strings[readVarint(buf)];
+          int numAttr = readLength(buf);
+          attrs.clear();
+          for (int i = 0; i < numAttr; i++) {
+            String attName = strings[readVarint(buf)];
+            String attVal = strings[readVarint(buf)];
+            attrs.addAttribute("", attName, attName, "CDATA", attVal);
+          }
+          openElems.add(name);
+          handler.startElement("", name, name, attrs);
+          break;
+        case END_:
+          if (openElems.isEmpty()) {
+            throw new IOException("Corrupt snapshot file");
+          }
+          String closing = openElems.remove(openElems.size() - 1);
+          handler.endElement("", closing, closing);
+          break;
+        case TEXT_:
+          char[] chars = strings[readVarint(buf)].toCharArray();
+          handler.characters(chars, 0, chars.length);
+          break;
+        case BYTES_:
+          byte[] raw = new byte[readLength(buf)];
+          buf.get(raw);
+          char[] encoded = b64.encode(raw).toCharArray();
+          handler.characters(encoded, 0, encoded.length);
+          break;
+        case DONE_:
+          if (!openElems.isEmpty()) {
+            throw new IOException("Truncated snapshot file");
+          }
+          handler.endDocument();
+          return;
+        default:
+          throw new IOException("Corrupt snapshot file");
+      }
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Read a count or byte length. Each thing counted takes at least a byte, so
+  ** anything negative or past the end of the file means a corrupt file.
+  */
+
+  private static int readLength(ByteBuffer buf) throws IOException {
+    int retval = readVarint(buf);
+    if ((retval < 0) || (retval > buf.remaining())) {
+      throw new IOException("Corrupt snapshot file");
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Read an unsigned varint
+  */
+
+  private static int readVarint(ByteBuffer buf) throws IOException {
+    int retval = 0;
+    int shift = 0;
+    while (true) {
+      int next = buf.get() & 0xFF;
+      retval |= (next & 0x7F) << shift;
+      if ((next & 0x80) == 0) {
+        return (retval);
+      }
+      shift += 7;
+      if (shift > 28) {
+        throw new IOException("Corrupt snapshot file");
+      }
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Write an unsigned varint
+  */
+
+  private static void writeVarint(OutputStream out, int val) throws IOException {
+    while ((val & ~0x7F) != 0) {
+      out.write((val & 0x7F) | 0x80);
+      val >>>= 7;
+    }
+    out.write(val);
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Turns the XML element stream into the string table and event bytes
+  */
+
+  private static class Encoder extends DefaultHandler {
+
+    private Set<String> base64Elements_;
+    private HashMap<String, Integer> stringIndex_;
+    private ArrayList<String> strings_;
+    private ByteArrayOutputStream events_;
+    private StringBuilder pendingText_;
+    private ArrayList<String> openElems_;
+    private Base64Util b64_;
+
+    Encoder(Set<String> base64Elements) {
+      base64Elements_ = base64Elements;
+      stringIndex_ = new HashMap<String, Integer>();
+      strings_ = new ArrayList<String>();
+      events_ = new ByteArrayOutputStream();
+      pendingText_ = new StringBuilder();
+      openElems_ = new ArrayList<String>();
+      b64_ = new Base64Util();
+    }
+
+    @Override
+    public void startElement(String uri, String local, String raw, Attributes attrs) throws SAXException {
+      flushText(false);
+      String name = (raw.equals("")) ? local : raw;
+      events_.write(START_);
+      writeString(name);
+      int numAttr = attrs.getLength();
+      writeInt(numAttr);
+      for (int i = 0; i < numAttr; i++) {
+        writeString(attrs.getQName(i));
+        writeString(attrs.getValue(i));
+      }
+      openElems_.add(name);
+      return;
+    }
+
+    @Override
+    public void endElement(String uri, String local, String raw) throws SAXException {
+      String name = openElems_.remove(openElems_.size() - 1);
+      flushText(base64Elements_.contains(name));
+      events_.write(END_);
+      return;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      pendingText_.append(ch, start, length);
+      return;
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+      pendingText_.append(ch, start, length);
+      return;
+    }
+
+    @Override
+    public void endDocument() {
+      flushText(false);
+      events_.write(DONE_);
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Write the finished snapshot
+    */
+
+    void write(OutputStream out) throws IOException {
+      out.write(MAGIC_);
+      writeVarint(out, FORMAT_VERSION_);
+      writeVarint(out, strings_.size());
+      int num = strings_.size();
+      for (int i = 0; i < num; i++) {
+        byte[] utf = strings_.get(i).getBytes("UTF-8");
+        writeVarint(out, utf.length);
+        out.write(utf);
+      }
+      events_.writeTo(out);
+      out.flush();
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Emit the text gathered since the last tag. Base64 payloads go out as
+    ** bytes (with any surrounding whitespace kept as text), but only if they
+    ** encode back to exactly the same characters.
+    */
+
+    private void flushText(boolean asBase64) {
+      if (pendingText_.length() == 0) {
+        return;
+      }
+      String text = pendingText_.toString();
+      pendingText_.setLength(0);
+      if (asBase64) {
+        int first = 0;
+        int last = text.length();
+        while ((first < last) && Character.isWhitespace(text.charAt(first))) {
+          first++;
+        }
+        while ((last > first) && Character.isWhitespace(text.charAt(last - 1))) {
+          last--;
+        }
+        String payload = text.substring(first, last);
+        byte[] raw = null;
+        try {
+          raw = b64_.decode(payload);
+        } catch (RuntimeException rex) {
+          raw = null;
+        }
+        if ((raw != null) && (raw.length > 0) && b64_.encode(raw).equals(payload)) {
+          if (first > 0) {
+            writeText(text.substring(0, first));
+          }
+          events_.write(BYTES_);
+          writeInt(raw.length);
+          events_.write(raw, 0, raw.length);
+          if (last < text.length()) {
+            writeText(text.substring(last));
+          }
+          return;
+        }
+      }
+      writeText(text);
+      return;
+    }
+
+    private void writeText(String text) {
+      events_.write(TEXT_);
+      writeString(text);
+      return;
+    }
+
+    private void writeString(String str) {
+      Integer index = stringIndex_.get(str);
+      if (index == null) {
+        index = Integer.valueOf(strings_.size());
+        strings_.add(str);
+        stringIndex_.put(str, index);
+      }
+      writeInt(index.intValue());
+      return;
+    }
+
+    private void writeInt(int val) {
+      try {
+        writeVarint(events_, val);
+      } catch (IOException ioex) {
+        throw new IllegalStateException();  // Never happens with a byte array
+      }
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Writes the element stream back out as XML
+  */
+
+  private static class XMLEmitter extends DefaultHandler {
+
+    private Writer out_;
+
+    XMLEmitter(Writer out) {
+      out_ = out;
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+      write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      return;
+    }
+
+    @Override
+    public void startElement(String uri, String local, String raw, Attributes attrs) throws SAXException {
+      StringBuilder buf = new StringBuilder();
+      buf.append('<');
+      buf.append(raw);
+      int numAttr = attrs.getLength();
+      for (int i = 0; i < numAttr; i++) {
+        buf.append(' ');
+        buf.append(attrs.getQName(i));
+        buf.append("=\"");
+        escape(attrs.getValue(i), buf, true);
+        buf.append('"');
+      }
+      buf.append('>');
+      write(buf.toString());
+      return;
+    }
+
+    @Override
+    public void endElement(String uri, String local, String raw) throws SAXException {
+      write("</" + raw + ">");
+      return;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      StringBuilder buf = new StringBuilder(length);
+      escape(new String(ch, start, length), buf, false);
+      write(buf.toString());
+      return;
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+      write("\n");
+      return;
+    }
+
+    //
+    // Attribute values need their whitespace escaped to survive normalization:
+    //
+
+    private void escape(String val, StringBuilder buf, boolean inAttribute) {
+      int num = val.length();
+      for (int i = 0; i < num; i++) {
+        char ch = val.charAt(i);
+        switch (ch) {
+          case '&':
+            buf.append("&amp;");
+            break;
+          case '<':
+            buf.append("&lt;");
+            break;
+          case '>':
+            buf.append("&gt;");
+            break;
+          case '"':
+            buf.append("&quot;");
+            break;
+          case '\r':
+            buf.append("&#13;");
+            break;
+          case '\n':
+            buf.append((inAttribute) ? "&#10;" : "\n");
+            break;
+          case '\t':
+            buf.append((inAttribute) ? "&#9;" : "\t");
+            break;
+          default:
+            buf.append(ch);
+            break;
+        }
+      }
+      return;
+    }
+
+    private void write(String str) throws SAXException {
+      try {
+        out_.write(str);
+      } catch (IOException ioex) {
+        throw new SAXException(ioex);
+      }
+      return;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.parser;
+
+import java.io.IOException;
+
+/****************************************************************************
+**
+** Implemented by parser clients that hand some of their work off to other
+** threads. The parser tells them when the document is done (or has failed)
+** so that work is finished (or stopped) before parsing returns.
+*/
+
+public interface DeferredWorkClient extends ParserClient {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The document parsed cleanly: wait for the deferred work, and report
+  ** the first thing that went wrong with it
+  */
+
+  public void finishDeferredWork() throws IOException;
+
+  /***************************************************************************
+  **
+  ** The parse failed: make sure no deferred work is still running
+  */
+
+  public void abandonDeferredWork();
+}
@@ -0,0 +1,322 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.parser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.AttributesImpl;
+
+/****************************************************************************
+**
+** Builds whole top-level sections of a file off the SAX thread. The SAX
+** thread just records the section's events; once the section closes, a
+** worker plays them back into the section's client, exactly as the parser
+** would have. Sections for the same client are played back in document order.
+** Only use this for clients that build objects nobody else reads or writes
+** while the rest of the document is being parsed.
+*/
+
+public class ParallelSectionBuilder {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final int MAX_THREADS_ = 4;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static ExecutorService pool_;
+
+  private ArrayList<Future<Object>> pending_;
+  private HashMap<ParserClient, Future<Object>> lastForClient_;
+  private volatile boolean abandoned_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public ParallelSectionBuilder() {
+    pending_ = new ArrayList<Future<Object>>();
+    lastForClient_ = new HashMap<ParserClient, Future<Object>>();
+    abandoned_ = false;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if there are spare processors to build on
+  */
+
+  public static boolean isWorthwhile() {
+    return (Runtime.getRuntime().availableProcessors() > 1);
+  }
+
+  /***************************************************************************
+  **
+  ** Hand a finished section recording off to be built
+  */
+
+  public synchronized void submit(final Recording rec) {
+    final Future<Object> previous = lastForClient_.get(rec.client_);
+    Future<Object> fut = getPool().submit(new Callable<Object>() {
+      public Object call() throws IOException, InterruptedException, ExecutionException {
+        if (previous != null) {
+          previous.get();
+        }
+        if (!abandoned_) {
+          rec.replay();
+        }
+        return (null);
+      }
+    });
+    lastForClient_.put(rec.client_, fut);
+    pending_.add(fut);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Wait until everything submitted so far is built. Throws the first
+  ** failure, in document order.
+  */
+
+  public void awaitAll() throws IOException {
+    List<Future<Object>> waitFor;
+    synchronized (this) {
+      waitFor = new ArrayList<Future<Object>>(pending_);
+      pending_.clear();
+      lastForClient_.clear();
+    }
+    IOException firstFail = null;
+    Iterator<Future<Object>> fit = waitFor.iterator();
+    while (fit.hasNext()) {
+      Future<Object> fut = fit.next();
+      try {
+        fut.get();
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        abandoned_ = true;
+        if (firstFail == null) {
+          firstFail = new IOException();
+        }
+      } catch (ExecutionException eex) {
+        if (firstFail == null) {
+          firstFail = unwrap(eex);
+        }
+      }
+    }
+    if (firstFail != null) {
+      throw firstFail;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Stop building. Sections not yet started are skipped; we wait for the
+  ** ones that are running so that nothing changes after we return.
+  */
+
+  public void abandon() {
+    abandoned_ = true;
+    try {
+      awaitAll();
+    } catch (IOException ioex) {
+      // Already failing; nothing more to report
+    } catch (RuntimeException rex) {
+      // Ditto
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The events of one top-level section, held for playback into its client.
+  ** The section is complete when an element the client advertises closes,
+  ** which is the same test the clients themselves use to say they are done.
+  */
+
+  public static class Recording {
+
+    private static final int START_ = 0;
+    private static final int CHARS_ = 1;
+    private static final int END_ = 2;
+
+    private ParserClient client_;
+    private Set<String> closingKeys_;
+    private ArrayList<Object> events_;
+    private boolean complete_;
+
+    public Recording(ParserClient client) {
+      client_ = client;
+      closingKeys_ = client.keywordsOfInterest();
+      events_ = new ArrayList<Object>();
+      complete_ = false;
+    }
+
+    public void startElement(String elemName, Attributes attrs) {
+      events_.add(Integer.valueOf(START_));
+      events_.add(elemName);
+      events_.add((attrs == null) ? null : new AttributesImpl(attrs));
+      return;
+    }
+
+    public void characters(char[] chars, int start, int length) {
+      char[] copy = new char[length];
+      System.arraycopy(chars, start, copy, 0, length);
+      events_.add(Integer.valueOf(CHARS_));
+      events_.add(copy);
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Record the end of an element. Answers true if the section is complete.
+    */
+
+    public boolean endElement(String elemName) {
+      events_.add(Integer.valueOf(END_));
+      events_.add(elemName);
+      complete_ = closingKeys_.contains(elemName);
+      return (complete_);
+    }
+
+    /***************************************************************************
+    **
+    ** Feed the section to the client
+    */
+
+    void replay() throws IOException {
+      if (!complete_) {
+        throw new IllegalStateException();
+      }
+      int num = events_.size();
+      int i = 0;
+      while (i < num) {
+        int type = ((Integer)events_.get(i++)).intValue();
+        switch (type) {
+          case START_:
+            String elemName = (String)events_.get(i++);
+            Attributes attrs = (Attributes)events_.get(i++);
+            Object target = client_.processElement(elemName, attrs);
+            if (target != null) {
+              client_.setContainer(target);
+            }
+            break;
+          case CHARS_:
+            char[] chars = (char[])events_.get(i++);
+            client_.processCharacters(chars, 0, chars.length);
+            break;
+          case END_:
+            client_.finishElement((String)events_.get(i++));
+            break;
+          default:
+            throw new IllegalStateException();
+        }
+      }
+      events_ = null;
+      return;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Threads are shared by all loads
+  */
+
+  private static synchronized ExecutorService getPool() {
+    if (pool_ == null) {
+      int threads = Math.max(1, Math.min(MAX_THREADS_, Runtime.getRuntime().availableProcessors() - 1));
+      final AtomicInteger count = new AtomicInteger(0);
+      pool_ = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread retval = new Thread(r, "BioTapLoad-" + count.incrementAndGet());
+          retval.setDaemon(true);
+          return (retval);
+        }
+      });
+    }
+    return (pool_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get back the exception the section build threw
+  */
+
+  private IOException unwrap(ExecutionException eex) {
+    Throwable cause = eex.getCause();
+    while (cause instanceof ExecutionException) {
+      cause = cause.getCause();
+    }
+    if (cause instanceof IOException) {
+      return ((IOException)cause);
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException)cause;
+    } else if (cause instanceof Error) {
+      throw (Error)cause;
+    }
+    return (new IOException());
+  }
+}
@@ -0,0 +1,121 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.parser;
+
+import org.xml.sax.Attributes;
+
+/****************************************************************************
+**
+** Wraps the parser's attributes so that every value a client pulls out comes
+** from the string pool. Like the SAX attributes themselves, only good for the
+** duration of the element callback.
+*/
+
+public class PooledAttributes implements Attributes {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private StringPool pool_;
+  private Attributes attrs_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public PooledAttributes(StringPool pool) {
+    pool_ = pool;
+    attrs_ = null;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Wrap the attributes for the next element
+  */
+
+  public PooledAttributes wrap(Attributes attrs) {
+    attrs_ = attrs;
+    return (this);
+  }
+
+  public int getLength() {
+    return (attrs_.getLength());
+  }
+
+  public String getURI(int index) {
+    return (attrs_.getURI(index));
+  }
+
+  public String getLocalName(int index) {
+    return (attrs_.getLocalName(index));
+  }
+
+  public String getQName(int index) {
+    return (attrs_.getQName(index));
+  }
+
+  public String getType(int index) {
+    return (attrs_.getType(index));
+  }
+
+  public String getValue(int index) {
+    return (pool_.share(attrs_.getValue(index)));
+  }
+
+  public int getIndex(String uri, String localName) {
+    return (attrs_.getIndex(uri, localName));
+  }
+
+  public int getIndex(String qName) {
+    return (attrs_.getIndex(qName));
+  }
+
+  public String getType(String uri, String localName) {
+    return (attrs_.getType(uri, localName));
+  }
+
+  public String getType(String qName) {
+    return (attrs_.getType(qName));
+  }
+
+  public String getValue(String uri, String localName) {
+    return (pool_.share(attrs_.getValue(uri, localName)));
+  }
+
+  public String getValue(String qName) {
+    return (pool_.share(attrs_.getValue(qName)));
+  }
+}
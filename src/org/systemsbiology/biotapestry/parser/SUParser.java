@@ -19,10 +19,13 @@
 
 package org.systemsbiology.biotapestry.parser;
 
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.List;
 import java.io.File;
@@ -59,6 +62,13 @@ public class SUParser extends DefaultHandler {
   
   private final String NEW_VER_PREFIX_ = "__BIOTAP_NEW_VERSION_PREFIX__";
   
+  //
+  // Run with -Dbiotapestry.parsePoolReport=true to log what the string pool
+  // saved on each load:
+  //
+  
+  private static final String POOL_REPORT_PROPERTY_ = "biotapestry.parsePoolReport";
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE INSTANCES
@@ -70,6 +80,8 @@ public class SUParser extends DefaultHandler {
   private ParserClient currClient_;
   private String lastElement_;
   private BTState appState_;
+  private StringPool pool_;
+  private PooledAttributes pooledAttrs_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -118,6 +130,15 @@ public class SUParser extends DefaultHandler {
   */
 
   public void parse(File toParse) throws IOException {
+    if (BinarySnapshot.isSnapshot(toParse)) {
+      InputStream stream = new FileInputStream(toParse);
+      try {
+        parseGuts(null, stream);
+      } finally {
+        stream.close();
+      }
+      return;
+    }
     parse(toParse.getPath());
     return;
   }
@@ -131,16 +152,8 @@ public class SUParser extends DefaultHandler {
     if (fileName.indexOf("file:///") != 0) {
       fileName = "file:///" + fileName;
     }
-    try {
-      parser_.parse(fileName);
-    } catch (SAXException e) {
-      String msg = formatSAXExceptionMessage(e);
-      System.err.println("Got a SAX exception: " + msg);
-      throw new IOException(msg);
-    } catch (IOException e) {
-      System.err.println("Got an IO exception: " + e);
-      throw rebundleIOException(e);
-    }
+    parseGuts(new InputSource(fileName), null);
+    return;
   }
 
   /***************************************************************************
@@ -149,34 +162,30 @@ public class SUParser extends DefaultHandler {
   */
 
   public void parse(URL source) throws IOException {
+    InputStream stream;
     try {
-      parser_.parse(new InputSource(source.openStream()));
-    } catch (SAXException e) {
-      String msg = formatSAXExceptionMessage(e);
-      System.err.println("Got a SAX exception: " + msg);
-      throw new IOException(msg);
+      stream = source.openStream();
     } catch (IOException e) {
       System.err.println("Got an IO exception: " + e);
       throw rebundleIOException(e);
     }
+    parse(stream);
+    return;
   } 
   
   /***************************************************************************
   ** 
-  ** Parse the given input stream
+  ** Parse the given input stream, which may hold XML or a binary snapshot
   */
 
   public void parse(InputStream stream) throws IOException {
-    try {
-      parser_.parse(new InputSource(stream));
-    } catch (SAXException e) {
-      String msg = formatSAXExceptionMessage(e);
-      System.err.println("Got a SAX exception: " + msg);
-      throw new IOException(msg);
-    } catch (IOException e) {
-      System.err.println("Got an IO exception: " + e);
-      throw rebundleIOException(e);
+    BufferedInputStream buffered = new BufferedInputStream(stream);
+    if (BinarySnapshot.isSnapshot(buffered)) {
+      parseGuts(null, buffered);
+    } else {
+      parseGuts(new InputSource(buffered), null);
     }
+    return;
   }  
 
   /***************************************************************************
@@ -204,6 +213,10 @@ public class SUParser extends DefaultHandler {
     // and send it to him:
     //
     
+    if (pooledAttrs_ != null) {
+      attrs = pooledAttrs_.wrap(attrs);
+    }
+    
     if (currClient_ != null) {
       try {
         lastElement_ = local;
@@ -359,6 +372,79 @@ public class SUParser extends DefaultHandler {
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  ** 
+  ** Parse the XML source, or the binary snapshot if one is given. Clients
+  ** that farm work out to other threads get to finish it (or drop it, if
+  ** things went wrong) before we return. Attribute values are handed out of
+  ** a string pool that lives as long as the parse does, so the objects the
+  ** clients build share one copy of each ID and name.
+  */
+
+  private void parseGuts(InputSource source, InputStream snapshot) throws IOException {
+    boolean finished = false;
+    pool_ = new StringPool();
+    pooledAttrs_ = new PooledAttributes(pool_);
+    try {
+      if (snapshot != null) {
+        BinarySnapshot.read(snapshot, this);
+      } else {
+        parser_.parse(source);
+      }
+      finishDeferredWork();
+      finished = true;
+    } catch (SAXException e) {
+      String msg = formatSAXExceptionMessage(e);
+      System.err.println("Got a SAX exception: " + msg);
+      throw new IOException(msg);
+    } catch (IOException e) {
+      System.err.println("Got an IO exception: " + e);
+      throw rebundleIOException(e);
+    } finally {
+      if (!finished) {
+        abandonDeferredWork();
+      }
+      if (Boolean.getBoolean(POOL_REPORT_PROPERTY_)) {
+        System.out.println("[STATUS] Parse string pool: " + pool_.getReport());
+      }
+      pool_ = null;
+      pooledAttrs_ = null;
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Wait for clients that are building on other threads
+  */
+
+  private void finishDeferredWork() throws IOException {
+    Iterator<ParserClient> ci = new HashSet<ParserClient>(clients_.values()).iterator();
+    while (ci.hasNext()) {
+      ParserClient cli = ci.next();
+      if (cli instanceof DeferredWorkClient) {
+        ((DeferredWorkClient)cli).finishDeferredWork();
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Stop clients that are building on other threads
+  */
+
+  private void abandonDeferredWork() {
+    Iterator<ParserClient> ci = new HashSet<ParserClient>(clients_.values()).iterator();
+    while (ci.hasNext()) {
+      ParserClient cli = ci.next();
+      if (cli instanceof DeferredWorkClient) {
+        ((DeferredWorkClient)cli).abandonDeferredWork();
+      }
+    }
+    return;
+  }
+
   /***************************************************************************
   ** 
   ** Handles error printouts
@@ -0,0 +1,105 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.parser;
+
+import java.util.HashMap;
+
+/****************************************************************************
+**
+** Hands back one shared instance for equal strings. Scoped to a single parse:
+** the IDs and names a model repeats thousands of times (node, link, group and
+** region IDs, investigators, targets, measures...) end up as one String each,
+** and the pool itself is dropped once the parse is done. Not thread safe.
+*/
+
+public class StringPool {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private HashMap<String, String> pool_;
+  private long lookups_;
+  private long hits_;
+  private long charsSaved_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public StringPool() {
+    pool_ = new HashMap<String, String>();
+    lookups_ = 0L;
+    hits_ = 0L;
+    charsSaved_ = 0L;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the shared instance of the string
+  */
+
+  public String share(String str) {
+    if (str == null) {
+      return (null);
+    }
+    lookups_++;
+    String retval = pool_.get(str);
+    if (retval == null) {
+      pool_.put(str, str);
+      return (str);
+    }
+    if (retval != str) {
+      hits_++;
+      charsSaved_ += str.length();
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Report what pooling saved. The byte estimate assumes a 24-byte String
+  ** plus a 16-byte char array header and two bytes a char, per duplicate.
+  ** That is an upper bound on allocation, not on heap: most duplicates are
+  ** only parsed and dropped, and only the ones the model keeps were costing
+  ** retained memory.
+  */
+
+  public String getReport() {
+    long bytesSaved = (hits_ * (24L + 16L)) + (charsSaved_ * 2L);
+    return ("lookups=" + lookups_ + " unique=" + pool_.size() + " duplicatesShared=" + hits_ +
+            " approxDuplicateBytes=" + bytesSaved);
+  }
+}
@@ -0,0 +1,283 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.ui;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/****************************************************************************
+**
+** An RGB image that is never held in memory as a whole: it is divided into
+** full-width horizontal bands, and each band is drawn on demand when an image
+** writer asks for its pixels. Writers that pull rows in order (e.g. PNG) see
+** each band drawn once, with only one band's buffer in memory at a time.
+*/
+
+public class BandedImage implements RenderedImage {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final ColorModel RGB_MODEL_ = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getColorModel();
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final int width_;
+  private final int height_;
+  private final int bandHeight_;
+  private final BandRenderer renderer_;
+  private final ImageBufferPool pool_;
+  private BufferedImage buffer_;
+  private int currBand_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Band buffers come from the pool; call dispose() when done.
+  */
+
+  public BandedImage(int width, int height, int bandHeight, BandRenderer renderer, ImageBufferPool pool) {
+    width_ = width;
+    height_ = height;
+    bandHeight_ = Math.max(1, Math.min(bandHeight, height));
+    renderer_ = renderer;
+    pool_ = pool;
+    buffer_ = null;
+    currBand_ = -1;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Give the band buffer back to the pool
+  */
+
+  public void dispose() {
+    if (buffer_ != null) {
+      pool_.release(buffer_);
+      buffer_ = null;
+      currBand_ = -1;
+    }
+    return;
+  }
+
+  public int getWidth() {
+    return (width_);
+  }
+
+  public int getHeight() {
+    return (height_);
+  }
+
+  public int getMinX() {
+    return (0);
+  }
+
+  public int getMinY() {
+    return (0);
+  }
+
+  public int getNumXTiles() {
+    return (1);
+  }
+
+  public int getNumYTiles() {
+    return ((height_ + bandHeight_ - 1) / bandHeight_);
+  }
+
+  public int getMinTileX() {
+    return (0);
+  }
+
+  public int getMinTileY() {
+    return (0);
+  }
+
+  public int getTileWidth() {
+    return (width_);
+  }
+
+  public int getTileHeight() {
+    return (bandHeight_);
+  }
+
+  public int getTileGridXOffset() {
+    return (0);
+  }
+
+  public int getTileGridYOffset() {
+    return (0);
+  }
+
+  public ColorModel getColorModel() {
+    return (RGB_MODEL_);
+  }
+
+  public SampleModel getSampleModel() {
+    return (RGB_MODEL_.createCompatibleSampleModel(width_, bandHeight_));
+  }
+
+  public Vector<RenderedImage> getSources() {
+    return (null);
+  }
+
+  public Object getProperty(String name) {
+    return (java.awt.Image.UndefinedProperty);
+  }
+
+  public String[] getPropertyNames() {
+    return (null);
+  }
+
+  /***************************************************************************
+  **
+  ** Get a band, as a copy
+  */
+
+  public Raster getTile(int tileX, int tileY) {
+    Rectangle band = bandRect(tileY);
+    return (getData(band));
+  }
+
+  /***************************************************************************
+  **
+  ** Get the whole image. Defeats the purpose, but must work.
+  */
+
+  public Raster getData() {
+    return (getData(new Rectangle(0, 0, width_, height_)));
+  }
+
+  /***************************************************************************
+  **
+  ** Get a copy of the pixels in the rectangle
+  */
+
+  public Raster getData(Rectangle rect) {
+    WritableRaster retval = getColorModel().createCompatibleWritableRaster(rect.width, rect.height);
+    retval = retval.createWritableTranslatedChild(rect.x, rect.y);
+    copyData(retval);
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Fill the raster with our pixels, drawing bands as needed
+  */
+
+  public WritableRaster copyData(WritableRaster raster) {
+    if (raster == null) {
+      raster = getColorModel().createCompatibleWritableRaster(width_, height_);
+    }
+    Rectangle want = raster.getBounds().intersection(new Rectangle(0, 0, width_, height_));
+    if (want.isEmpty()) {
+      return (raster);
+    }
+    int firstBand = want.y / bandHeight_;
+    int lastBand = (want.y + want.height - 1) / bandHeight_;
+    for (int i = firstBand; i <= lastBand; i++) {
+      Rectangle band = bandRect(i);
+      Rectangle piece = band.intersection(want);
+      Raster src = drawBand(i);
+      Raster part = src.createChild(piece.x, piece.y - band.y, piece.width, piece.height, piece.x, piece.y, null);
+      raster.setRect(part);
+    }
+    return (raster);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Draws one band. The graphics has its origin at the top-left of the band
+  ** and is clipped to it.
+  */
+
+  public interface BandRenderer {
+    public void renderBand(Graphics2D g2, Rectangle band);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The bounds of a band in the full image
+  */
+
+  private Rectangle bandRect(int band) {
+    int y = band * bandHeight_;
+    return (new Rectangle(0, y, width_, Math.min(bandHeight_, height_ - y)));
+  }
+
+  /***************************************************************************
+  **
+  ** Make sure the band is drawn, and get its pixels (origin at the band top)
+  */
+
+  private Raster drawBand(int band) {
+    if (buffer_ == null) {
+      buffer_ = pool_.acquire(width_, bandHeight_);
+    }
+    if (band != currBand_) {
+      Rectangle rect = bandRect(band);
+      Graphics2D g2 = buffer_.createGraphics();
+      try {
+        g2.setClip(0, 0, rect.width, rect.height);
+        renderer_.renderBand(g2, rect);
+      } finally {
+        g2.dispose();
+      }
+      currBand_ = band;
+    }
+    return (buffer_.getRaster());
+  }
+}
@@ -355,16 +355,44 @@ public class GenomePresentation implements ZoomPresentation {
 		rcx.popGhosted();
 		
 		if (floaterCache != null) {
-			floaterCache.setDrawLayer(DrawLayer.MODEL_NODEGROUPS);
-			DataAccessContext rcxF = new DataAccessContext(rcxI);
-			rcxF.setLayout(floaterLayout_);
-			rcxF.setGenome(floaterGenome_);
-			rcxF.setGenomeSource((floaterSrc_ != null) ? floaterSrc_ : new LocalGenomeSource((DBGenome)floaterGenome_, new ArrayList<Genome>()));
-			renderFloater(floaterCache, rcxF);
+			presentFloater(floaterCache, rcxI);
 		}
 		
 		return;
 	}
+	
+  /***************************************************************************
+  **
+  ** Present just the floater
+  */
+  
+  public void presentFloater(ModelObjectCache floaterCache, DataAccessContext rcxI) {
+    floaterCache.setDrawLayer(DrawLayer.MODEL_NODEGROUPS);
+    DataAccessContext rcxF = new DataAccessContext(rcxI);
+    rcxF.setLayout(floaterLayout_);
+    rcxF.setGenome(floaterGenome_);
+    rcxF.setGenomeSource((floaterSrc_ != null) ? floaterSrc_ : new LocalGenomeSource((DBGenome)floaterGenome_, new ArrayList<Genome>()));
+    renderFloater(floaterCache, rcxF);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** The presentation state (other than the floater) that changes what
+  ** presentGenomeWithOverlay() produces for a given genome and layout. Two
+  ** of these are equal only if nothing has changed in between. Intersections
+  ** are compared as objects, so a selection that is rebuilt counts as a change.
+  */
+  
+  public List<Object> getPresentationState() {
+    ArrayList<Object> retval = new ArrayList<Object>();
+    retval.add(new HashMap<String, Intersection>(selectionKeys_));
+    retval.add(new HashSet<String>(currentTargets_));
+    retval.add(new HashSet<String>(currentRootOverlays_));
+    retval.add(nullRender_);
+    retval.add(Boolean.valueOf(processSelections_));
+    return (retval);
+  }
 
   
   /***************************************************************************
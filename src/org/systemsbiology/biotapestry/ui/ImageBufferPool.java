@@ -0,0 +1,156 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.ui;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/****************************************************************************
+**
+** A pool of RGB image buffers for export rendering, so repeated exports
+** (web publishing, server renders, tiles) reuse buffers instead of allocating
+** a new one each time. Sizes are rounded up to buckets so that close sizes
+** share buffers; callers draw into the top-left corner of what they get (see
+** getSubimage()). Idle buffers are held up to a total byte budget.
+*/
+
+public class ImageBufferPool {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final int BUCKET_ = 128;
+  private static final long DEFAULT_MAX_BYTES_ = 64L * 1024L * 1024L;
+  private static final ImageBufferPool SHARED_ = new ImageBufferPool(DEFAULT_MAX_BYTES_);
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  // Most recently released last:
+  private final ArrayList<BufferedImage> idle_;
+  private final long maxBytes_;
+  private long idleBytes_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public ImageBufferPool(long maxBytes) {
+    idle_ = new ArrayList<BufferedImage>();
+    maxBytes_ = maxBytes;
+    idleBytes_ = 0L;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The pool shared by all exports
+  */
+
+  public static ImageBufferPool getSharedPool() {
+    return (SHARED_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get a TYPE_INT_RGB buffer at least the given size. Its contents are
+  ** whatever was last drawn into it.
+  */
+
+  public BufferedImage acquire(int width, int height) {
+    int bucketW = roundUp(width);
+    int bucketH = roundUp(height);
+    synchronized (this) {
+      for (int i = idle_.size() - 1; i >= 0; i--) {
+        BufferedImage bi = idle_.get(i);
+        if ((bi.getWidth() == bucketW) && (bi.getHeight() == bucketH)) {
+          idle_.remove(i);
+          idleBytes_ -= bytesFor(bi);
+          return (bi);
+        }
+      }
+    }
+    return (new BufferedImage(bucketW, bucketH, BufferedImage.TYPE_INT_RGB));
+  }
+
+  /***************************************************************************
+  **
+  ** Give back a buffer from acquire(). It is dropped if it will not fit in
+  ** the budget even after letting older idle buffers go.
+  */
+
+  public synchronized void release(BufferedImage bi) {
+    long bytes = bytesFor(bi);
+    if (bytes > maxBytes_) {
+      return;
+    }
+    Iterator<BufferedImage> iit = idle_.iterator();
+    while (iit.hasNext() && ((idleBytes_ + bytes) > maxBytes_)) {
+      idleBytes_ -= bytesFor(iit.next());
+      iit.remove();
+    }
+    idle_.add(bi);
+    idleBytes_ += bytes;
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Round a dimension up to its bucket
+  */
+
+  private int roundUp(int dim) {
+    return (Math.max(1, ((dim + BUCKET_ - 1) / BUCKET_)) * BUCKET_);
+  }
+
+  /***************************************************************************
+  **
+  ** Heap held by a buffer
+  */
+
+  private long bytesFor(BufferedImage bi) {
+    return ((long)bi.getWidth() * (long)bi.getHeight() * 4L);
+  }
+}
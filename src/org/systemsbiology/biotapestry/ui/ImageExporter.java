@@ -25,7 +25,7 @@ import java.util.HashSet;
 import java.util.Arrays;
 import java.util.ArrayList;
 
-import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.IOException;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriter;
@@ -95,7 +95,7 @@ public class ImageExporter {
   ** Support image export
   */  
   
-  public void export(Object outObj, BufferedImage bi, String format, ResolutionSettings res) throws IOException {
+  public void export(Object outObj, RenderedImage bi, String format, ResolutionSettings res) throws IOException {
   
     if (format.equalsIgnoreCase("TIFF")) {
       writeTIFFImage(bi, outObj, res);  
@@ -271,7 +271,7 @@ public class ImageExporter {
   ** Write out an image
   */
 
-  private void writeTIFFImage(BufferedImage bi, Object outObj, ResolutionSettings res) throws IOException {
+  private void writeTIFFImage(RenderedImage bi, Object outObj, ResolutionSettings res) throws IOException {
     if (res == null) {
       throw new IllegalArgumentException();
     }
@@ -298,7 +298,7 @@ public class ImageExporter {
   ** Write out an PNG image
   */
 
-  private void writePNGImage(BufferedImage bi, Object outObj, ResolutionSettings res) throws IOException {
+  private void writePNGImage(RenderedImage bi, Object outObj, ResolutionSettings res) throws IOException {
     Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
     ImageWriter writer = writers.next();
     ImageOutputStream ios = ImageIO.createImageOutputStream(outObj);
@@ -321,7 +321,7 @@ public class ImageExporter {
   ** Write out a JPG image
   */  
   
-  private void writeJPGImage(BufferedImage bi, Object outObj, ResolutionSettings res) throws IOException {
+  private void writeJPGImage(RenderedImage bi, Object outObj, ResolutionSettings res) throws IOException {
     Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
     ImageWriter writer = writers.next();
     ImageOutputStream ios = ImageIO.createImageOutputStream(outObj);
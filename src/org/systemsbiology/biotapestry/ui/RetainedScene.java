@@ -0,0 +1,294 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.ui;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.systemsbiology.biotapestry.event.EventManager;
+import org.systemsbiology.biotapestry.event.GeneralChangeEvent;
+import org.systemsbiology.biotapestry.event.GeneralChangeListener;
+import org.systemsbiology.biotapestry.event.LayoutChangeEvent;
+import org.systemsbiology.biotapestry.event.LayoutChangeListener;
+import org.systemsbiology.biotapestry.event.ModelChangeEvent;
+import org.systemsbiology.biotapestry.event.ModelChangeListener;
+import org.systemsbiology.biotapestry.event.OverlayDisplayChangeEvent;
+import org.systemsbiology.biotapestry.event.OverlayDisplayChangeListener;
+import org.systemsbiology.biotapestry.event.SelectionChangeEvent;
+import org.systemsbiology.biotapestry.event.SelectionChangeListener;
+import org.systemsbiology.biotapestry.genome.Genome;
+import org.systemsbiology.biotapestry.ui.freerender.NetModuleFree;
+import org.systemsbiology.biotapestry.ui.modelobjectcache.ConcreteGraphicsCache;
+import org.systemsbiology.biotapestry.util.TaggedSet;
+
+/****************************************************************************
+**
+** The presented model and overlay for the main drawing panel, kept between
+** paints. Repaints that change nothing but the view (scrolling, exposure,
+** tooltips) just draw the retained caches again. The scene is thrown out on
+** any model, layout, selection, overlay display or general change event, and
+** whenever what it was built from no longer matches the paint at hand.
+*/
+
+public class RetainedScene implements ModelChangeListener, LayoutChangeListener,
+                                      SelectionChangeListener, OverlayDisplayChangeListener,
+                                      GeneralChangeListener {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private SceneKey key_;
+  private ConcreteGraphicsCache modelCache_;
+  private ConcreteGraphicsCache overlayCache_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public RetainedScene(EventManager em) {
+    invalidate();
+    em.addModelChangeListener(this);
+    em.addLayoutChangeListener(this);
+    em.addSelectionChangeListener(this);
+    em.addOverlayDisplayChangeListener(this);
+    em.addGeneralChangeListener(this);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if the retained caches were built for the given key
+  */
+
+  public boolean isCurrent(SceneKey key) {
+    return ((key_ != null) && key_.equals(key));
+  }
+
+  /***************************************************************************
+  **
+  ** Keep freshly built caches
+  */
+
+  public void retain(SceneKey key, ConcreteGraphicsCache modelCache, ConcreteGraphicsCache overlayCache) {
+    key_ = key;
+    modelCache_ = modelCache;
+    overlayCache_ = overlayCache;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get the retained model cache
+  */
+
+  public ConcreteGraphicsCache getModelCache() {
+    return (modelCache_);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the retained overlay cache
+  */
+
+  public ConcreteGraphicsCache getOverlayCache() {
+    return (overlayCache_);
+  }
+
+  /***************************************************************************
+  **
+  ** Drop the scene
+  */
+
+  public void invalidate() {
+    key_ = null;
+    modelCache_ = null;
+    overlayCache_ = null;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Notify listener of model change
+  */
+
+  public void modelHasChanged(ModelChangeEvent mcev) {
+    invalidate();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Notify listener of model change
+  */
+
+  public void modelHasChanged(ModelChangeEvent mcev, int remaining) {
+    invalidate();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Notify listener of layout change
+  */
+
+  public void layoutHasChanged(LayoutChangeEvent lcev) {
+    invalidate();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Notify listener of selection change
+  */
+
+  public void selectionHasChanged(SelectionChangeEvent scev) {
+    invalidate();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Notify listener of overlay display change
+  */
+
+  public void overlayDisplayChangeOccurred(OverlayDisplayChangeEvent odcev) {
+    invalidate();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Notify listener of general change
+  */
+
+  public void generalChangeOccurred(GeneralChangeEvent gcev) {
+    invalidate();
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** What a scene was built from. Genomes and layouts are compared as objects,
+  ** since they are changed in place and we count on the events for that.
+  */
+
+  public static class SceneKey {
+
+    private Genome genome_;
+    private Layout layout_;
+    private double pixDiam_;
+    private boolean showBubbles_;
+    private boolean showRoot_;
+    private boolean opaque_;
+    private Set<String> showComponents_;
+    private String overlay_;
+    private TaggedSet netMods_;
+    private TaggedSet revealed_;
+    private double[] alphas_;
+    private int mask_;
+    private boolean fastDecay_;
+    private List<Object> presState_;
+
+    public SceneKey(Genome genome, Layout layout, double pixDiam, boolean showBubbles, boolean showRoot,
+                    boolean opaque, Set<String> showComponents, OverlayStateOracle oso, List<Object> presState) {
+      genome_ = genome;
+      layout_ = layout;
+      pixDiam_ = pixDiam;
+      showBubbles_ = showBubbles;
+      showRoot_ = showRoot;
+      opaque_ = opaque;
+      showComponents_ = (showComponents == null) ? null : new HashSet<String>(showComponents);
+      overlay_ = (oso == null) ? null : oso.getCurrentOverlay();
+      if (overlay_ != null) {
+        TaggedSet nm = oso.getCurrentNetModules();
+        netMods_ = (nm == null) ? null : new TaggedSet(nm);
+        TaggedSet rev = oso.getRevealedModules();
+        revealed_ = (rev == null) ? null : new TaggedSet(rev);
+        NetModuleFree.CurrentSettings cs = oso.getCurrentOverlaySettings();
+        if (cs != null) {
+          alphas_ = new double[] {cs.regionLabelAlpha, cs.regionFillAlpha,
+                                  cs.regionBoundaryAlpha, cs.backgroundOverlayAlpha};
+          mask_ = cs.intersectionMask;
+          fastDecay_ = cs.fastDecayLabelVisible;
+        }
+      }
+      presState_ = presState;
+    }
+
+    @Override
+    public int hashCode() {
+      return (System.identityHashCode(genome_) + System.identityHashCode(layout_));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == this) {
+        return (true);
+      }
+      if (!(other instanceof SceneKey)) {
+        return (false);
+      }
+      SceneKey otherKey = (SceneKey)other;
+      if ((genome_ != otherKey.genome_) || (layout_ != otherKey.layout_)) {
+        return (false);
+      }
+      if ((pixDiam_ != otherKey.pixDiam_) || (showBubbles_ != otherKey.showBubbles_) ||
+          (showRoot_ != otherKey.showRoot_) || (opaque_ != otherKey.opaque_) ||
+          (mask_ != otherKey.mask_) || (fastDecay_ != otherKey.fastDecay_)) {
+        return (false);
+      }
+      if (!same(showComponents_, otherKey.showComponents_) || !same(overlay_, otherKey.overlay_) ||
+          !same(netMods_, otherKey.netMods_) || !same(revealed_, otherKey.revealed_)) {
+        return (false);
+      }
+      if (!Arrays.equals(alphas_, otherKey.alphas_)) {
+        return (false);
+      }
+      return (same(presState_, otherKey.presState_));
+    }
+
+    private static boolean same(Object one, Object two) {
+      return ((one == null) ? (two == null) : one.equals(two));
+    }
+  }
+}
@@ -145,6 +145,10 @@ public class SUPanel implements LayoutChangeListener,
     ZoomTargetSupport zts = new ZoomTargetSupport(appState_, myGenomePre_, myPanel_, appState_.getRenderingContextForZTS());
     appState_.setZoomTarget(zts);
     vexp_ = new ViewExporter(myGenomePre_, zts);
+    if (myPanel_ != null) {
+      vexp_.retainScene(appState_.getEventMgr());
+      vexp_.tileScene(myPanel_);
+    }
     
     
     // Saw freezeups with tooltips on Windows, but have not been
@@ -203,6 +207,10 @@ public class SUPanel implements LayoutChangeListener,
    
   public void drawModel(boolean revalidate) {
     if (myPanel_ != null) {
+      //
+      // Asking for a redraw means something changed, events or not:
+      //
+      vexp_.invalidateRetainedScene();
       if (revalidate) {
         myPanel_.revalidate();
       }
@@ -640,6 +648,38 @@ public class SUPanel implements LayoutChangeListener,
     return (vexp_.exportToStream(stream, calcMap, format, res, zoom, size, sfd));
   }   
 
+  /***************************************************************************
+  **
+  ** Get the full image size for tiled image export
+  */  
+  
+  public Dimension getExportSize(double zoom, OverlayStateOracle oso) {
+    DataAccessContext rcx = new DataAccessContext(appState_, appState_.getGenome());
+    rcx.oso = oso;
+    ViewExporter.StateForDraw sfd = new ViewExporter.StateForDraw(appState_, rcx, rmov_, 
+                                                                  menuDrivenShowComponentModule_, 
+                                                                  dragLayout_, multiMoveLayout_, 
+                                                                  null, null, appState_.getFontMgr());
+    return (vexp_.getExportSize(zoom, sfd));
+  }   
+  
+  /***************************************************************************
+  **
+  ** Support tiled image export
+  */  
+  
+  public void exportTileToStream(OutputStream stream, String format, double zoom, 
+                                 Dimension fullSize, Rectangle tile, OverlayStateOracle oso) throws IOException {
+    DataAccessContext rcx = new DataAccessContext(appState_, appState_.getGenome());
+    rcx.oso = oso;
+    ViewExporter.StateForDraw sfd = new ViewExporter.StateForDraw(appState_, rcx, rmov_, 
+                                                                  menuDrivenShowComponentModule_, 
+                                                                  dragLayout_, multiMoveLayout_, 
+                                                                  null, null, appState_.getFontMgr());
+    vexp_.exportTileToStream(stream, format, zoom, fullSize, tile, sfd);
+    return;
+  }   
+
   /***************************************************************************
   **
   ** Support JSON export
@@ -0,0 +1,262 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.ui;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+import org.systemsbiology.biotapestry.ui.modelobjectcache.ConcreteGraphicsCache;
+
+/****************************************************************************
+**
+** Bitmap tiles of the retained scene for the main panel, in panel pixel
+** coordinates. Tiles are drawn on a background thread; the paint just copies
+** the ones that are ready, and leaves the area of the rest for the caller to
+** draw from the vectors, as before. Since that area is already correct on
+** screen, a tile arriving does not trigger a repaint; it is simply used the
+** next time. All the tiles belong to one retained model cache at one zoom
+** transform, and are dropped when either changes. Everything but the tile
+** drawing itself is done on the event thread.
+*/
+
+public class SceneTiles {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final int TILE_SIZE_ = 256;
+  private static final int MIN_TILES_ = 64;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private JComponent panel_;
+  private ExecutorService painter_;
+  private LinkedHashMap<Point, BufferedImage> tiles_;
+  private HashSet<Point> pending_;
+  private ConcreteGraphicsCache cgc_;
+  private AffineTransform zoomTrans_;
+  private int maxTiles_;
+  private volatile int generation_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public SceneTiles(JComponent panel) {
+    panel_ = panel;
+    maxTiles_ = MIN_TILES_;
+    tiles_ = new LinkedHashMap<Point, BufferedImage>(16, 0.75F, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Point, BufferedImage> eldest) {
+        return (size() > maxTiles_);
+      }
+    };
+    pending_ = new HashSet<Point>();
+    generation_ = 0;
+    painter_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread retval = new Thread(r, "BioTapTiles");
+        retval.setDaemon(true);
+        return (retval);
+      }
+    });
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Paint what we can of the scene from tiles. The panel transform is the one
+  ** in effect before zooming; the clip is in panel coordinates. Missing tiles
+  ** are queued up. Returns the area, in panel coordinates, that the caller
+  ** still has to draw itself, or null if the tiles covered everything.
+  */
+
+  public Shape paint(Graphics2D g2, AffineTransform panelTrans, Rectangle panelClip, AffineTransform zoomTrans,
+                     Rectangle2D workspace, ConcreteGraphicsCache cgc, ConcreteGraphicsCache overlayCache) {
+
+    //
+    // Screen paints only offset the panel; anything else (e.g. a scaled display)
+    // would not match pixel for pixel:
+    //
+
+    if ((panelTrans.getType() & ~AffineTransform.TYPE_TRANSLATION) != 0) {
+      return (panelClip);
+    }
+    if ((cgc != cgc_) || !zoomTrans.equals(zoomTrans_)) {
+      invalidate();
+      cgc_ = cgc;
+      zoomTrans_ = new AffineTransform(zoomTrans);
+    }
+
+    //
+    // Keep enough tiles for the panel as shown, with room to scroll around it:
+    //
+
+    Rectangle visible = panel_.getVisibleRect();
+    int visibleTiles = ((visible.width / TILE_SIZE_) + 2) * ((visible.height / TILE_SIZE_) + 2);
+    maxTiles_ = Math.max(MIN_TILES_, 2 * visibleTiles);
+
+    int minCol = Math.max(0, panelClip.x / TILE_SIZE_);
+    int minRow = Math.max(0, panelClip.y / TILE_SIZE_);
+    int maxCol = (panelClip.x + panelClip.width - 1) / TILE_SIZE_;
+    int maxRow = (panelClip.y + panelClip.height - 1) / TILE_SIZE_;
+
+    Area missing = null;
+    AffineTransform saveTrans = g2.getTransform();
+    g2.setTransform(panelTrans);
+    for (int col = minCol; col <= maxCol; col++) {
+      for (int row = minRow; row <= maxRow; row++) {
+        Point key = new Point(col, row);
+        BufferedImage tile = tiles_.get(key);
+        if (tile != null) {
+          g2.drawImage(tile, col * TILE_SIZE_, row * TILE_SIZE_, null);
+        } else {
+          queueTile(key, workspace, overlayCache);
+          if (missing == null) {
+            missing = new Area();
+          }
+          missing.add(new Area(new Rectangle(col * TILE_SIZE_, row * TILE_SIZE_, TILE_SIZE_, TILE_SIZE_)));
+        }
+      }
+    }
+    g2.setTransform(saveTrans);
+    return (missing);
+  }
+
+  /***************************************************************************
+  **
+  ** Drop all the tiles. Tiles still being drawn are thrown away when done.
+  */
+
+  public void invalidate() {
+    generation_++;
+    tiles_.clear();
+    pending_.clear();
+    cgc_ = null;
+    zoomTrans_ = null;
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get a tile drawn in the background
+  */
+
+  private void queueTile(final Point key, final Rectangle2D workspace, final ConcreteGraphicsCache overlayCache) {
+    if (pending_.contains(key)) {
+      return;
+    }
+    pending_.add(key);
+    final int generation = generation_;
+    final ConcreteGraphicsCache cgc = cgc_;
+    final AffineTransform zoomTrans = new AffineTransform(zoomTrans_);
+    final Color background = panel_.getBackground();
+
+    painter_.execute(new Runnable() {
+      public void run() {
+        if (generation != generation_) {
+          return;
+        }
+        final BufferedImage tile = drawTile(key, zoomTrans, background, workspace, cgc, overlayCache);
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            if (generation != generation_) {
+              return;
+            }
+            pending_.remove(key);
+            tiles_.put(key, tile);
+          }
+        });
+      }
+    });
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Draw one tile. Runs on the painter thread; the caches are finished and
+  ** are only read.
+  */
+
+  private static BufferedImage drawTile(Point key, AffineTransform zoomTrans, Color background, Rectangle2D workspace,
+                                        ConcreteGraphicsCache cgc, ConcreteGraphicsCache overlayCache) {
+    BufferedImage tile = new BufferedImage(TILE_SIZE_, TILE_SIZE_, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = tile.createGraphics();
+    g2.setColor(background);
+    g2.fillRect(0, 0, TILE_SIZE_, TILE_SIZE_);
+    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+    g2.setClip(0, 0, TILE_SIZE_, TILE_SIZE_);
+    g2.translate(-key.x * TILE_SIZE_, -key.y * TILE_SIZE_);
+    g2.transform(zoomTrans);
+    if (workspace != null) {
+      g2.setPaint(Color.white);
+      g2.fill(workspace);
+      g2.setPaint(Color.black);
+      g2.draw(workspace);
+    }
+    ViewExporter.renderScene(g2, cgc, overlayCache, null);
+    g2.dispose();
+    return (tile);
+  }
+}
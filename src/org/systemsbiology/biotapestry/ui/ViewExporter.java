@@ -26,6 +26,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
@@ -43,12 +44,15 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import javax.swing.JComponent;
+
 import org.systemsbiology.biotapestry.app.BTState;
 import org.systemsbiology.biotapestry.cmd.PanelCommands;
 import org.systemsbiology.biotapestry.cmd.flow.move.RunningMove;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
 import org.systemsbiology.biotapestry.db.LocalLayoutSource;
 import org.systemsbiology.biotapestry.db.Workspace;
+import org.systemsbiology.biotapestry.event.EventManager;
 import org.systemsbiology.biotapestry.genome.Genome;
 import org.systemsbiology.biotapestry.genome.GenomeInstance;
 import org.systemsbiology.biotapestry.genome.Group;
@@ -78,6 +82,19 @@ import org.systemsbiology.biotapestry.util.Vector2D;
 
 public class ViewExporter {
 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  //
+  // PNG images bigger than this are drawn and written a band at a time:
+  //
+  
+  private static final long BANDED_PNG_MIN_PIXELS_ = 8L * 1024L * 1024L;
+  private static final long BAND_PIXELS_ = 4L * 1024L * 1024L;
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE MEMBERS
@@ -87,6 +104,8 @@ public class ViewExporter {
   private GenomePresentation myGenomePre_;
   private ZoomTargetSupport zts_;
   private BufferedImage bim_;
+  private RetainedScene retained_;
+  private SceneTiles tiles_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -102,6 +121,8 @@ public class ViewExporter {
   public ViewExporter(GenomePresentation pre, ZoomTargetSupport zts) {
     myGenomePre_ = pre;
     zts_ = zts;
+    retained_ = null;
+    tiles_ = null;
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -110,6 +131,40 @@ public class ViewExporter {
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  /***************************************************************************
+  **
+  ** Keep the presented scene between screen paints. Only for the exporter
+  ** that draws the main panel.
+  */  
+  
+  public void retainScene(EventManager em) {
+    retained_ = new RetainedScene(em);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Paint the retained scene to the given panel through cached bitmap tiles.
+  ** Needs retainScene() too.
+  */  
+  
+  public void tileScene(JComponent panel) {
+    tiles_ = new SceneTiles(panel);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Drop the retained scene, if any
+  */  
+  
+  public void invalidateRetainedScene() {
+    if (retained_ != null) {
+      retained_.invalidate();
+    }
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Support printing
@@ -188,6 +243,72 @@ public class ViewExporter {
     return (exportGuts(stream, calcMap, format, res, zoom, size, sfd));
   }   
 
+  /***************************************************************************
+  **
+  ** Get the size of the full image exportToStream() would produce at the given zoom
+  */  
+  
+  public Dimension getExportSize(double zoom, StateForDraw sfd) {
+    if (sfd.rcx.oso == null) {
+      sfd.rcx.oso = new FreezeDriedOverlayOracle(null, null, NetModuleFree.CurrentSettings.NOTHING_MASKED, null);
+    }
+    return (requiredExportSize(zoom, sfd));
+  }
+  
+  /***************************************************************************
+  **
+  ** Support tiled image export. The tile is given in the pixel coordinates of the
+  ** full image of the given size at the given zoom (see getExportSize()), and only
+  ** that piece of the full image is drawn. 
+  */  
+  
+  public void exportTileToStream(OutputStream stream, String format, double zoom, 
+                                 Dimension fullSize, Rectangle tile, StateForDraw sfd) throws IOException {
+    
+    if (sfd.rcx.oso == null) {
+      sfd.rcx.oso = new FreezeDriedOverlayOracle(null, null, NetModuleFree.CurrentSettings.NOTHING_MASKED, null);
+    }
+    
+    Point2D oldCenter = zts_.getRawCenterPoint();
+    zts_.fixCenterPoint(true, null, false);
+    
+    //
+    // Draw straight into a pooled RGB buffer; the page is opaque white, so there
+    // is no alpha to carry over to the writer:
+    //
+    
+    ImageBufferPool pool = ImageBufferPool.getSharedPool();
+    BufferedImage pooled = pool.acquire(tile.width, tile.height);
+    BufferedImage bi = pooled.getSubimage(0, 0, tile.width, tile.height);
+    Graphics2D g2 = bi.createGraphics();
+    g2.setColor(Color.white);
+    g2.fillRect(0, 0, tile.width, tile.height);
+    g2.setClip(0, 0, tile.width, tile.height);
+    //
+    // Same transform as the full image export, just shifted so the tile origin lands at (0, 0):
+    //
+    Vector2D preTrans = new Vector2D((fullSize.width / 2.0) - tile.x, (fullSize.height / 2.0) - tile.y);
+    Point2D center = zts_.getRawCenterPoint();
+    Vector2D postTrans = new Vector2D(-center.getX(), -center.getY());
+    OverrideTransform otr = new OverrideTransform(preTrans, zoom, postTrans, false, true);
+    
+    //
+    // Opaque overlay only needs to cover the tile, and shares its origin:
+    //
+    
+    sfd.imgView = new Rectangle(0, 0, tile.width, tile.height);  
+    try {
+      drawingGuts(g2, false, false, otr, false, false, sfd);
+      g2.dispose();
+      ImageExporter iex = new ImageExporter();
+      iex.export(stream, bi, format, null);
+    } finally {
+      pool.release(pooled);
+      zts_.setRawCenterPoint(oldCenter, null, false);
+    }
+    return;
+  }
+
   /***************************************************************************
   **
   ** Support JSON export
@@ -215,15 +336,10 @@ public class ViewExporter {
     }
     
     
-    String currentOverlay = sfd.rcx.oso.getCurrentOverlay();
-    TaggedSet currentNetMods = sfd.rcx.oso.getCurrentNetModules();
     if (size == null) {
-      boolean doModules = (currentOverlay != null) && !currentNetMods.set.isEmpty();
-      Map<String, Layout.OverlayKeySet> allKeys = (doModules) ? sfd.rcx.fgho.fullModuleKeysPerLayout() : null;
-      Rectangle rect = myGenomePre_.getRequiredSize(sfd.rcx, true, true, doModules, doModules,
-                                                    currentOverlay, currentNetMods, allKeys);                  
-      width = (int)(rect.width * zoom); 
-      height = (int)(rect.height * zoom);
+      Dimension reqSize = requiredExportSize(zoom, sfd);
+      width = reqSize.width; 
+      height = reqSize.height;
     } else {
       width = size.width; 
       height = size.height;            
@@ -231,44 +347,133 @@ public class ViewExporter {
     Point2D oldCenter = zts_.getRawCenterPoint();
     zts_.fixCenterPoint(true, null, false);
     
-    BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-    Graphics2D g2 = bi.createGraphics();
-    g2.setColor(Color.white);
-    g2.fillRect(0, 0, width, height);
-    Vector2D preTrans = new Vector2D(width / 2.0, height / 2.0);
     Point2D center = zts_.getRawCenterPoint();
     Vector2D postTrans = new Vector2D(-center.getX(), -center.getY());
-    OverrideTransform otr = new OverrideTransform(preTrans, zoom, postTrans, false);
-    
-    //
-    // Here's the opaque overlay rectangle:
-    // NOTE WE ARE ADDING TO THE StateForDraw object!
-    
-    sfd.imgView = new Rectangle(0, 0, width, height);  
-    BoundsMaps retval = null;
-    if (calcMap) {
-      retval = drawingGuts(g2, true, true, otr, false, false, sfd);
-      retval.convert(otr.buildTransform());
-    } else {
-      drawingGuts(g2, false, false, otr, false, false, sfd);
+    BoundsMaps retval;
+    try {
+      if (format.equalsIgnoreCase("PNG") && (((long)width * (long)height) > BANDED_PNG_MIN_PIXELS_)) {
+        retval = exportBandedPNG(outObj, calcMap, res, zoom, width, height, postTrans, sfd);
+      } else {
+        retval = exportWholeImage(outObj, calcMap, format, res, zoom, width, height, postTrans, sfd);
+      }
+    } finally {
+      zts_.setRawCenterPoint(oldCenter, null, false);
     }
-
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Draw the whole image into one pooled buffer and write it out.
+  */  
+  
+  private BoundsMaps exportWholeImage(Object outObj, boolean calcMap, 
+                                      String format, ImageExporter.ResolutionSettings res,
+                                      double zoom, int width, int height, 
+                                      Vector2D postTrans, StateForDraw sfd) throws IOException {
     //
     // Fix for BT-10-27-09:1.  JPEG does not support RGBA.  Don't need to
-    // export the A channel info anyway, so do a conversion first:
+    // export the A channel info anyway, so draw straight into an RGB buffer
+    // over the white page:
     //
     
-    BufferedImage birgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-    Graphics2D g2rgb = birgb.createGraphics();
-    g2rgb.drawImage(bi, 0, 0, null);
+    ImageBufferPool pool = ImageBufferPool.getSharedPool();
+    BufferedImage pooled = pool.acquire(width, height);
+    try {
+      BufferedImage bi = pooled.getSubimage(0, 0, width, height);
+      Graphics2D g2 = bi.createGraphics();
+      g2.setColor(Color.white);
+      g2.fillRect(0, 0, width, height);
+      g2.setClip(0, 0, width, height);
+      Vector2D preTrans = new Vector2D(width / 2.0, height / 2.0);
+      OverrideTransform otr = new OverrideTransform(preTrans, zoom, postTrans, false);
+    
+      //
+      // Here's the opaque overlay rectangle:
+      // NOTE WE ARE ADDING TO THE StateForDraw object!
+    
+      sfd.imgView = new Rectangle(0, 0, width, height);  
+      BoundsMaps retval = null;
+      if (calcMap) {
+        retval = drawingGuts(g2, true, true, otr, false, false, sfd);
+        retval.convert(otr.buildTransform());
+      } else {
+        drawingGuts(g2, false, false, otr, false, false, sfd);
+      }
+      g2.dispose();
         
-    ImageExporter iex = new ImageExporter();
-    iex.export(outObj, birgb, format, res);
-    zts_.setRawCenterPoint(oldCenter, null, false);
+      ImageExporter iex = new ImageExporter();
+      iex.export(outObj, bi, format, res);
+      return (retval);
+    } finally {
+      pool.release(pooled);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Big PNGs: the writer pulls rows from the top down, so draw the image a
+  ** band at a time as it asks for them, and never hold the whole thing.
+  ** Each band is drawn with the full image transform, shifted up to the band.
+  */  
+  
+  private BoundsMaps exportBandedPNG(Object outObj, final boolean calcMap, 
+                                     ImageExporter.ResolutionSettings res,
+                                     final double zoom, final int width, final int height, 
+                                     final Vector2D postTrans, final StateForDraw sfd) throws IOException {
+    
+    final BoundsMaps[] boundsHolder = new BoundsMaps[1];
+    int bandHeight = (int)Math.max(1L, BAND_PIXELS_ / width);
+    BandedImage.BandRenderer renderer = new BandedImage.BandRenderer() {
+      public void renderBand(Graphics2D g2, Rectangle band) {
+        g2.setColor(Color.white);
+        g2.fillRect(0, 0, band.width, band.height);
+        Vector2D preTrans = new Vector2D(width / 2.0, (height / 2.0) - band.y);
+        OverrideTransform otr = new OverrideTransform(preTrans, zoom, postTrans, false);
+        sfd.imgView = new Rectangle(0, 0, band.width, band.height);
+        //
+        // Bounds do not depend on the band; get them on the first one:
+        //
+        boolean needMap = calcMap && (boundsHolder[0] == null);
+        BoundsMaps bm = drawingGuts(g2, needMap, needMap, otr, false, false, sfd);
+        if (needMap) {
+          boundsHolder[0] = bm;
+        }
+        return;
+      }
+    };
     
+    BandedImage banded = new BandedImage(width, height, bandHeight, renderer, ImageBufferPool.getSharedPool());
+    try {
+      ImageExporter iex = new ImageExporter();
+      iex.export(outObj, banded, "PNG", res);
+    } finally {
+      banded.dispose();
+    }
+    
+    BoundsMaps retval = boundsHolder[0];
+    if (retval != null) {
+      Vector2D preTrans = new Vector2D(width / 2.0, height / 2.0);
+      retval.convert(new OverrideTransform(preTrans, zoom, postTrans, false).buildTransform());
+    }
     return (retval);
   }
 
+  /***************************************************************************
+  **
+  ** Image size needed to show the whole model at the given zoom
+  */  
+  
+  private Dimension requiredExportSize(double zoom, StateForDraw sfd) {
+    String currentOverlay = sfd.rcx.oso.getCurrentOverlay();
+    TaggedSet currentNetMods = sfd.rcx.oso.getCurrentNetModules();
+    boolean doModules = (currentOverlay != null) && !currentNetMods.set.isEmpty();
+    Map<String, Layout.OverlayKeySet> allKeys = (doModules) ? sfd.rcx.fgho.fullModuleKeysPerLayout() : null;
+    Rectangle rect = myGenomePre_.getRequiredSize(sfd.rcx, true, true, doModules, doModules,
+                                                  currentOverlay, currentNetMods, allKeys);                  
+    return (new Dimension((int)(rect.width * zoom), (int)(rect.height * zoom)));
+  }
+
   /***************************************************************************
    * Export the drawing guts as a Map of Objects keyed to strings.
    *
@@ -436,14 +641,15 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
       // The zoomer sticks the zoom scaling on. 
       //
       AffineTransform saveTrans = g2.getTransform();
+      Rectangle panelClip = g2.getClipBounds();
       AffineTransform useTrans = (ovrTra == null) ? null : ovrTra.buildTransform();     
       zts_.installTransform(g2, useTrans);
             
+      Rectangle2D rect = null;
       if (doRect) {
         Workspace ws = sfd.rcx.wSrc.getWorkspace();
         Point2D origin = ws.getOrigin();
-        Rectangle2D rect = new Rectangle2D.Double(origin.getX(), origin.getY(),
-                                                  ws.getWidth(), ws.getHeight());
+        rect = new Rectangle2D.Double(origin.getX(), origin.getY(), ws.getWidth(), ws.getHeight());
         g2.setPaint(Color.white);
         g2.fill(rect);      
         g2.setPaint(Color.black);
@@ -552,48 +758,76 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
         }
       }
           
-      ConcreteGraphicsCache cgc = new ConcreteGraphicsCache();
-      ConcreteGraphicsCache overlayCache = new ConcreteGraphicsCache();
-      ConcreteGraphicsCache floaterCache = new ConcreteGraphicsCache();
-      
       DataAccessContext rcxP = new DataAccessContext(sfd.rcx);
       rcxP.setLayout(useLayout);
       rcxP.lSrc = new LocalLayoutSource(useLayout, rcxP.getGenomeSource());
       rcxP.pixDiam = zts_.currentPixelDiameter();
       rcxP.showBubbles = showBubbles;
-      myGenomePre_.presentGenomeWithOverlay(cgc, overlayCache, floaterCache, g2, ooi, rcxP,
-          																	sfd.showRoot, showModuleComponents);
       
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.BACKGROUND_REGIONS);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.UNDERLAY);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.VFN_GHOSTED);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.VFN_UNUSED_REGIONS);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.MODEL_NODEGROUPS);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.FOREGROUND_REGIONS);
-      			
-			if (ooi == null) {
-				// TODO fix this branch
-	      overlayCache.renderAllGroupsInDrawLayer(g2, DrawLayer.OVERLAY);
-				//cgc.renderAllGroupsInMajorLayer(g2, DrawLayer.MODEL_NODEGROUPS, DrawTree.MAJOR_SELECTED_LAYER_);
-				g2.setComposite(AlphaComposite.SrcOver);
-			}
-			else {
-	      overlayCache.renderAllGroupsInDrawLayer(ooi.overlayLayerG2, DrawLayer.OVERLAY);
-
-	      // This is the 'burn through' part for the alpha compositing.
-	      // overlayRender puts the relevant stuff to the MODEL_NODEGROUPS drawLayer.
-	      ooi.overlayLayerG2.setComposite(AlphaComposite.Clear);
-	      overlayCache.renderAllGroupsInDrawLayer(ooi.overlayLayerG2, DrawLayer.MODEL_NODEGROUPS);
-	      // Render linkage
-				cgc.renderAllGroupsInMajorLayer(ooi.overlayLayerG2, DrawLayer.MODEL_NODEGROUPS, DrawTree.MAJOR_SELECTED_LAYER_);
-				
-				ooi.overlayLayerG2.setComposite(AlphaComposite.SrcOver);
-				// end burn through
-				
-	      ooi.renderImage(g2);
-			}
-			
-			cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.MODELDATA);
+      //
+      // Screen paints reuse the retained scene if nothing it was built from has
+      // changed. Drags and running moves change the layout every frame, so those
+      // are always presented from scratch. The floater tracks the mouse, so it
+      // is always presented fresh too:
+      //
+      
+      RetainedScene.SceneKey sceneKey = null;
+      if ((retained_ != null) && (ovrTra == null) && (sfd.dragLayout == null) && 
+          (sfd.multiMoveLayout == null) && (sfd.rmov == null)) {
+        sceneKey = new RetainedScene.SceneKey(rcxP.getGenome(), useLayout, rcxP.pixDiam, showBubbles, 
+                                              sfd.showRoot, (ooi != null), showModuleComponents, 
+                                              rcxP.oso, myGenomePre_.getPresentationState());
+      }
+      
+      ConcreteGraphicsCache cgc;
+      ConcreteGraphicsCache overlayCache;
+      ConcreteGraphicsCache floaterCache = new ConcreteGraphicsCache();
+      if ((sceneKey != null) && retained_.isCurrent(sceneKey)) {
+        cgc = retained_.getModelCache();
+        overlayCache = retained_.getOverlayCache();
+        myGenomePre_.presentFloater(floaterCache, rcxP);
+      } else {
+        cgc = new ConcreteGraphicsCache();
+        overlayCache = new ConcreteGraphicsCache();
+        //
+        // Screen paints of the main panel drop detail for the on-screen zoom. That
+        // says nothing about the scale of an export, print or publish image, which
+        // get full detail unless the override transform asks for the detail of its
+        // own zoom (web tiles, which are shown at exactly that zoom):
+        //
+        if ((ovrTra == null) && (retained_ != null)) {
+          cgc.setPixelDiameter(rcxP.pixDiam);
+          overlayCache.setPixelDiameter(rcxP.pixDiam);
+        } else if ((ovrTra != null) && ovrTra.reduceDetail) {
+          cgc.setZoom(ovrTra.zoom);
+          overlayCache.setZoom(ovrTra.zoom);
+        }
+        myGenomePre_.presentGenomeWithOverlay(cgc, overlayCache, floaterCache, g2, ooi, rcxP,
+            																	sfd.showRoot, showModuleComponents);
+        if (sceneKey != null) {
+          retained_.retain(sceneKey, cgc, overlayCache);
+        }
+      }
+      
+      //
+      // A retained scene without an opaque overlay can come from the tiles. What
+      // they do not cover yet is drawn from the vectors, clipped to that area:
+      //
+      
+      if ((tiles_ != null) && (sceneKey != null) && (ooi == null) && (panelClip != null)) {
+        Shape missing = tiles_.paint(g2, saveTrans, panelClip, zts_.getTransform(), rect, cgc, overlayCache);
+        if (missing != null) {
+          Shape saveClip = g2.getClip();
+          AffineTransform zoomTrans = g2.getTransform();
+          g2.setTransform(saveTrans);
+          g2.clip(missing);
+          g2.setTransform(zoomTrans);
+          renderScene(g2, cgc, overlayCache, ooi);
+          g2.setClip(saveClip);
+        }
+      } else {
+        renderScene(g2, cgc, overlayCache, ooi);
+      }
       
       floaterCache.renderAllGroupsByLayers(g2);
       
@@ -674,6 +908,46 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
   // PRIVATE METHODS
   //
   ////////////////////////////////////////////////////////////////////////////   
+
+  /***************************************************************************
+  **
+  ** Draw a presented scene, less the floater. Package visible so SceneTiles can
+  ** draw the same thing into its tiles.
+  */
+  
+  static void renderScene(Graphics2D g2, ConcreteGraphicsCache cgc, ConcreteGraphicsCache overlayCache,
+                          GenomePresentation.OpaqueOverlayInfo ooi) {
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.BACKGROUND_REGIONS);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.UNDERLAY);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.VFN_GHOSTED);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.VFN_UNUSED_REGIONS);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.MODEL_NODEGROUPS);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.FOREGROUND_REGIONS);
+
+    if (ooi == null) {
+      // TODO fix this branch
+      overlayCache.renderAllGroupsInDrawLayer(g2, DrawLayer.OVERLAY);
+      //cgc.renderAllGroupsInMajorLayer(g2, DrawLayer.MODEL_NODEGROUPS, DrawTree.MAJOR_SELECTED_LAYER_);
+      g2.setComposite(AlphaComposite.SrcOver);
+    } else {
+      overlayCache.renderAllGroupsInDrawLayer(ooi.overlayLayerG2, DrawLayer.OVERLAY);
+
+      // This is the 'burn through' part for the alpha compositing.
+      // overlayRender puts the relevant stuff to the MODEL_NODEGROUPS drawLayer.
+      ooi.overlayLayerG2.setComposite(AlphaComposite.Clear);
+      overlayCache.renderAllGroupsInDrawLayer(ooi.overlayLayerG2, DrawLayer.MODEL_NODEGROUPS);
+      // Render linkage
+      cgc.renderAllGroupsInMajorLayer(ooi.overlayLayerG2, DrawLayer.MODEL_NODEGROUPS, DrawTree.MAJOR_SELECTED_LAYER_);
+
+      ooi.overlayLayerG2.setComposite(AlphaComposite.SrcOver);
+      // end burn through
+
+      ooi.renderImage(g2);
+    }
+
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.MODELDATA);
+    return;
+  }
   
   /**
    * 
@@ -822,12 +1096,18 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
     double zoom;
     Vector2D postTrans;
     boolean forPrinter;
+    boolean reduceDetail;
        
     public OverrideTransform(Vector2D preTrans, double zoom, Vector2D postTrans, boolean forPrinter) {
+      this(preTrans, zoom, postTrans, forPrinter, false);
+    }
+    
+    public OverrideTransform(Vector2D preTrans, double zoom, Vector2D postTrans, boolean forPrinter, boolean reduceDetail) {
       this.preTrans = preTrans;
       this.zoom = zoom;
       this.postTrans = postTrans;
       this.forPrinter = forPrinter;
+      this.reduceDetail = reduceDetail;
     }
  
     public AffineTransform buildTransform() {
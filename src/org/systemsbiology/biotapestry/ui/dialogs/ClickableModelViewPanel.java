@@ -160,6 +160,7 @@ public class ClickableModelViewPanel extends ModelViewPanel implements MouseClic
         g2.fill(backRect_);      
       }
       ConcreteGraphicsCache cgc = new ConcreteGraphicsCache();
+      cgc.setPixelDiameter(zoomer_.currentPixelDiameter());
       if (!allGhosted_) {
         if (linkTargetKey_ != null) {
         	
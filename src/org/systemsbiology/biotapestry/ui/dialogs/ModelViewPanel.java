@@ -448,6 +448,7 @@ public class ModelViewPanel extends JPanel implements ZoomTarget, ZoomChangeTrac
       }
       
       ConcreteGraphicsCache cgc = new ConcreteGraphicsCache();
+      cgc.setPixelDiameter(rcxC.pixDiam);
       myGenomePre_.presentGenome(cgc, rcxC, false);
 
       cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.BACKGROUND_REGIONS);
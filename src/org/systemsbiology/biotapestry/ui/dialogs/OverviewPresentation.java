@@ -107,6 +107,7 @@ public class OverviewPresentation {
     g2.drawImage(bi_, 0, 0, null);
     
     ConcreteGraphicsCache cgc = new ConcreteGraphicsCache();
+    cgc.setZoom(g2.getTransform().getScaleX());
     
     cgc.setDrawLayer(DrawLayer.FOREGROUND_REGIONS);
     renderGroups(cgc, rcx);
@@ -19,30 +19,94 @@
 
 package org.systemsbiology.biotapestry.ui.modelobjectcache;
 
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Arc2D;
 import java.awt.geom.Ellipse2D;
+import java.awt.geom.GeneralPath;
 import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+
+import org.systemsbiology.biotapestry.ui.AnnotatedFont;
+
+/****************************************************************************
+**
+** Desktop drawing cache. Groups are translated into compact command buffers,
+** one per draw layer, major and minor layer: opcodes and coordinates are kept
+** in primitive arrays, and colors and strokes are shared through tables, so
+** a big model does not cost a Java object (or three) per drawing command.
+*/
 
 public class ConcreteGraphicsCache extends ModelObjectCache {
 	private static final int NUM_MAJOR_LAYERS = 9;
 	private static final int NUM_MINOR_LAYERS = 9;
 	
-	private Map<Integer, Map<Integer, List<ConcreteRenderCommand>>> layerCache_;
-	private LinkedList<AffineTransform> transformStack_;
+	//
+	// Text bounds are figured without the actual graphics context, so
+	// we pad them (and stroked outlines) a bit for antialiasing:
+	//
+	
+	private static final double BOUNDS_PAD_ = 2.0;
+	private static final double CULL_PAD_PIXELS_ = 2.0;
+	private static final FontRenderContext BOUNDS_FRC_ = new FontRenderContext(null, true, true);
+	
+	//
+	// Group types drawn by the node renderers; these become boxes at the coarsest detail level:
+	//
+	
+	private static final HashSet<String> NODE_GROUP_TYPES_ = new HashSet<String>(Arrays.asList("gene", "intercell", "box", "bare", "tablet"));
+	
+	//
+	// Buffer opcodes. Each op takes OP_WIDTH_ ints: the opcode and two operands.
+	// Modes are DrawMode ordinals; coordinates are offsets into the buffer's
+	// coordinate array; objects are indices into its object list:
+	//
+	
+	private static final int OP_WIDTH_ = 3;
 	
-	private ArrayList<ArrayList<ArrayList<ConcreteRenderCommand>>> groupCacheArr_;
-	private Map<DrawLayer, ArrayList<ArrayList<ArrayList<ConcreteRenderCommand>>>> layeredGroupCacheArrMap_;
+	private static final int SET_STROKE_ = 0;  // stroke table index
+	private static final int SET_COLOR_ = 1;   // color table index
+	private static final int LINE_ = 2;        // mode, coordinates x1, y1, x2, y2
+	private static final int RECT_ = 3;        // mode, coordinates x, y, w, h
+	private static final int ELLIPSE_ = 4;     // mode, coordinates x, y, w, h
+	private static final int ARC_ = 5;         // mode plus arc type << 1, coordinates x, y, w, h, start, extent
+	private static final int PATH_ = 6;        // mode, path object
+	private static final int TEXT_ = 7;        // text shape object
+	private static final int MULTI_TEXT_ = 8;  // multi-line text shape object
+	private static final int PUSH_ = 9;        // transform object
+	private static final int POP_ = 10;
+	private static final int COMPOSITE_ = 11;  // composite object
+	
+	private EnumMap<DrawLayer, CommandBuffer[][]> buffers_;
+	
+	//
+	// The runs of each group, across all draw layers in the order they were added,
+	// for each major and minor layer:
+	//
+	
+	private ArrayList<ArrayList<ArrayList<GroupSpan>>> byLayerSpans_;
+	
+	private ArrayList<Color> colors_;
+	private HashMap<Color, Integer> colorIndex_;
+	private ArrayList<BasicStroke> strokes_;
+	private HashMap<BasicStroke, Integer> strokeIndex_;
 	
 	private DrawLayer currentDrawLayer_;
+	private DetailLevel level_;
+	private double pixDiam_;
 	
 	////////////////////////////////////////////////////////////////////////////
 	//
@@ -51,35 +115,26 @@ public class ConcreteGraphicsCache extends ModelObjectCache {
 	////////////////////////////////////////////////////////////////////////////
 
 	public ConcreteGraphicsCache() {
-		layerCache_ = new TreeMap<Integer, Map<Integer, List<ConcreteRenderCommand>>>();	
-		transformStack_ = new LinkedList<AffineTransform>();
-		
-		groupCacheArr_ = new ArrayList<ArrayList<ArrayList<ConcreteRenderCommand>>>();
-		layeredGroupCacheArrMap_ = new TreeMap<DrawLayer, ArrayList<ArrayList<ArrayList<ConcreteRenderCommand>>>>();
+		buffers_ = new EnumMap<DrawLayer, CommandBuffer[][]>(DrawLayer.class);
+		for (DrawLayer layer : DrawLayer.values()) {
+			buffers_.put(layer, new CommandBuffer[NUM_MAJOR_LAYERS][NUM_MINOR_LAYERS]);
+		}
 		
+		byLayerSpans_ = new ArrayList<ArrayList<ArrayList<GroupSpan>>>();
 		for (int major = 0; major < NUM_MAJOR_LAYERS; major++) {
-			ArrayList<ArrayList<ConcreteRenderCommand>> majorArr = new ArrayList<ArrayList<ConcreteRenderCommand>>();
-			
+			ArrayList<ArrayList<GroupSpan>> majorArr = new ArrayList<ArrayList<GroupSpan>>();
 			for (int minor = 0; minor < NUM_MINOR_LAYERS; minor++) {
-				majorArr.add(new ArrayList<ConcreteRenderCommand>());
+				majorArr.add(new ArrayList<GroupSpan>());
 			}
-			
-			groupCacheArr_.add(majorArr);
+			byLayerSpans_.add(majorArr);
 		}
 		
-		for (DrawLayer layer : DrawLayer.values()) {
-			layeredGroupCacheArrMap_.put(layer, new ArrayList<ArrayList<ArrayList<ConcreteRenderCommand>>>());
-			
-			for (int major = 0; major < NUM_MAJOR_LAYERS; major++) {
-				ArrayList<ArrayList<ConcreteRenderCommand>> majorArr = new ArrayList<ArrayList<ConcreteRenderCommand>>();
-				
-				for (int minor = 0; minor < NUM_MINOR_LAYERS; minor++) {
-					majorArr.add(new ArrayList<ConcreteRenderCommand>());
-				}
-				
-				layeredGroupCacheArrMap_.get(layer).add(majorArr);
-			}
-		}
+		colors_ = new ArrayList<Color>();
+		colorIndex_ = new HashMap<Color, Integer>();
+		strokes_ = new ArrayList<BasicStroke>();
+		strokeIndex_ = new HashMap<BasicStroke, Integer>();
+		level_ = DetailLevel.FULL;
+		pixDiam_ = 0.0;
 	}
 
 	////////////////////////////////////////////////////////////////////////////
@@ -92,166 +147,603 @@ public class ConcreteGraphicsCache extends ModelObjectCache {
 		currentDrawLayer_ = layer;
 	}
 	
+	/***************************************************************************
+	**
+	** Set the pixel diameter the cache will be drawn at, which picks the detail
+	** level for groups added from now on. Zero (the default) draws everything.
+	*/
+	
+	public void setPixelDiameter(double pixDiam) {
+		pixDiam_ = pixDiam;
+		level_ = DetailLevel.forPixelDiameter(pixDiam);
+	}
+	
+	/***************************************************************************
+	**
+	** Same as setPixelDiameter(), for callers that know the zoom (screen pixels
+	** per model unit) they will draw at. Zero draws everything.
+	*/
+	
+	public void setZoom(double zoom) {
+		pixDiam_ = (zoom > 0.0) ? (1.0 / zoom) : 0.0;
+		level_ = DetailLevel.forZoom(zoom);
+	}
+	
+	public DetailLevel getDetailLevel() {
+		return level_;
+	}
+	
 	public void addGroup(CacheGroup group) {
-		Integer currentMajorLayer = -1;
-		Integer currentMinorLayer = -1;
+		if (level_.boxNodes() && NODE_GROUP_TYPES_.contains(group.getType()) && addBlock(group)) {
+			return;
+		}
+		
+		GroupBounds bounds = new GroupBounds(true);
+		IdentityHashMap<CommandBuffer, Integer> starts = new IdentityHashMap<CommandBuffer, Integer>();
 		Iterator<CacheGroupItem> iter = group.iterator();
 		
 		while (iter.hasNext()) {
-			CacheGroupTranslator cgt = new CacheGroupTranslator();
 			CacheGroupItem item = iter.next();
-			item.shape_.accept(cgt);
 			
-			Iterator<ConcreteRenderCommand> command_iter = cgt.iterator();
+			// TODO / ERROR fix transforms when rendering by layers, for example when calling ConcreteGraphicsCache.renderAllLayers()
 			
-			while (command_iter.hasNext()) {
-				ConcreteRenderCommand cmd = command_iter.next();
-				Integer itemMajorLayer = item.majorLayer_;
-				Integer itemMinorLayer = item.minorLayer_;
-				
-				if (itemMajorLayer != currentMajorLayer || itemMinorLayer != currentMinorLayer) {
-					currentMajorLayer = itemMajorLayer;
-					currentMinorLayer = itemMinorLayer;
-					
-					// TODO / ERROR fix transforms when rendering by layers, for example when calling ConcreteGraphicsCache.renderAllLayers()
-					// Java2DPushTransformCommand transCmd = new Java2DPushTransformCommand(group.getTransform());
-					
-					// addCommandToLayerCache(transCmd, item.majorLayer_, item.minorLayer_);
-					addCommandToLayerCache(cmd, item.majorLayer_, item.minorLayer_);
-					
-					// addCommandToGroupCacheArray(transCmd, itemMajorLayer, itemMinorLayer);
-					addCommandToGroupCacheArray(cmd, itemMajorLayer, itemMinorLayer);
-					addCommandToLayeredGroupCacheArray(cmd, currentDrawLayer_, itemMajorLayer, itemMinorLayer);
-				}
-				else {
-					addCommandToLayerCache(cmd, itemMajorLayer, itemMinorLayer);
-					addCommandToGroupCacheArray(cmd, itemMajorLayer, itemMinorLayer);
-					addCommandToLayeredGroupCacheArray(cmd, currentDrawLayer_, itemMajorLayer, itemMinorLayer);
-				}
-			}
+			CommandBuffer buffer = bufferFor(item.majorLayer_, item.minorLayer_);
+			noteStart(starts, buffer);
+			CacheGroupTranslator cgt = new CacheGroupTranslator(buffer, bounds, item.majorLayer_, item.minorLayer_, false);
+			item.shape_.accept(cgt);
 		}
+		
+		finishGroup(starts, bounds.getBounds());
 	}
-
+	
+	//
+	// Each render call keeps its own playback state, so a finished cache can be
+	// drawn from more than one thread at once:
+	//
+	
 	public void renderAllLayers(Graphics2D g2) {
-		// Every major layer
-		for (Integer majorKey : layerCache_.keySet()) {
-			Map<Integer, List<ConcreteRenderCommand>> perMajor = layerCache_.get(majorKey);
-
-		  for (Integer minorKey : perMajor.keySet()) {		  	
-		  	List<ConcreteRenderCommand> commandArray = perMajor.get(minorKey);		  	
-		  	
-		  	for (ConcreteRenderCommand cmd : commandArray) {
-		  		cmd.execute(g2, transformStack_);
-		  	}
-			}
-		}
+		renderAllGroupsByLayers(g2);
 	}
 	
 	public void renderMajorLayer(Graphics2D g2, DrawLayer drawLayer, int majorLayer) {
-		for (Integer majorKey : layerCache_.keySet()) {
-			if (majorKey != majorLayer) {
-				continue;
-			}
-			
-			Map<Integer, List<ConcreteRenderCommand>> perMajor = layerCache_.get(majorKey);
-
-		  for (Integer minorKey : perMajor.keySet()) {		  	
-		  	List<ConcreteRenderCommand> commandArray = perMajor.get(minorKey);		  	
-		  	
-		  	for (ConcreteRenderCommand cmd : commandArray) {
-		  		cmd.execute(g2, transformStack_);
-		  	}
-			}
+		Playback pb = new Playback(cullClip(g2));
+		
+		for (int minor = 0; minor < NUM_MINOR_LAYERS; minor++) {
+			renderSpans(g2, pb, byLayerSpans_.get(majorLayer).get(minor));
 		}
 	}
 
 	public void renderAllGroupsByLayers(Graphics2D g2) {
+		Playback pb = new Playback(cullClip(g2));
+		
 		for (int major = 0; major < NUM_MAJOR_LAYERS; major++) {
 			for (int minor = 0; minor < NUM_MINOR_LAYERS; minor++) {
-				ArrayList<ConcreteRenderCommand> commandArray = groupCacheArr_.get(major).get(minor);
-				
-				for (ConcreteRenderCommand cmd : commandArray) {
-					cmd.execute(g2, transformStack_);
-				}
+				renderSpans(g2, pb, byLayerSpans_.get(major).get(minor));
 			}
 		}
 	}
 	
 	public void renderAllGroupsInMajorLayer(Graphics2D g2, DrawLayer drawLayer, int majorLayer) {
-		ArrayList<ArrayList<ArrayList<ConcreteRenderCommand>>> drawLayerArrays = layeredGroupCacheArrMap_.get(drawLayer);
-		
-		ArrayList<ArrayList<ConcreteRenderCommand>> majorArr = drawLayerArrays.get(majorLayer);
+		CommandBuffer[] majorArr = buffers_.get(drawLayer)[majorLayer];
+		Playback pb = new Playback(cullClip(g2));
 		
 		for (int minor = 0; minor < NUM_MINOR_LAYERS; minor++) {
-			ArrayList<ConcreteRenderCommand> commandArray = majorArr.get(minor);
-			
-			for (ConcreteRenderCommand cmd : commandArray) {
-				cmd.execute(g2, transformStack_);
+			if (majorArr[minor] != null) {
+				renderSpans(g2, pb, majorArr[minor].spans_);
 			}
 		}
 	}
 	
 	public void renderAllGroupsInDrawLayer(Graphics2D g2, DrawLayer layer) {
-		ArrayList<ArrayList<ArrayList<ConcreteRenderCommand>>> drawLayerArrays = layeredGroupCacheArrMap_.get(layer);
+		CommandBuffer[][] layerBuffers = buffers_.get(layer);
+		Playback pb = new Playback(cullClip(g2));
 		
 		for (int major = 0; major < NUM_MAJOR_LAYERS; major++) {
-			ArrayList<ArrayList<ConcreteRenderCommand>> majorArr = drawLayerArrays.get(major);			
-			
 			for (int minor = 0; minor < NUM_MINOR_LAYERS; minor++) {
-				ArrayList<ConcreteRenderCommand> commandArray = majorArr.get(minor);
-				
-				for (ConcreteRenderCommand cmd : commandArray) {
-					cmd.execute(g2, transformStack_);
+				CommandBuffer buffer = layerBuffers[major][minor];
+				if (buffer != null) {
+					renderSpans(g2, pb, buffer.spans_);
 				}
 			}
 		}
 	}
-		
-	public void addCommandToGroupCacheArray(ConcreteRenderCommand cmd, Integer majorLayer, Integer minorLayer) {
-    groupCacheArr_.get(majorLayer).get(minorLayer).add(cmd);
-  }
-	
-	public void addCommandToLayeredGroupCacheArray(ConcreteRenderCommand cmd, DrawLayer layer, Integer majorLayer, Integer minorLayer) {
-		ArrayList<ArrayList<ArrayList<ConcreteRenderCommand>>> arr = layeredGroupCacheArrMap_.get(layer);
-    
-    arr.get(majorLayer).get(minorLayer).add(cmd);
-  }
-	
-	public void addCommandToGroupCache(Map<Integer, Map<Integer, List<ConcreteRenderCommand>>> cache,
-			ConcreteRenderCommand cmd, Integer majorLayer, Integer minorLayer) {
-		
-    Map<Integer, List<ConcreteRenderCommand>> perMajor = cache.get(majorLayer);
-    if (perMajor == null) {
-      perMajor = new TreeMap<Integer, List<ConcreteRenderCommand>>();
-      cache.put(majorLayer, perMajor);
-    }
-    List<ConcreteRenderCommand> perMinor = perMajor.get(minorLayer);
-    if (perMinor == null) {
-      perMinor = new ArrayList<ConcreteRenderCommand>();
-      perMajor.put(minorLayer, perMinor);
-    }
-    perMinor.add(cmd);   
-  }
-	
-  public void addCommandToLayerCache(ConcreteRenderCommand cmd, Integer majorLayer, Integer minorLayer) {   
-    Map<Integer, List<ConcreteRenderCommand>> perMajor = layerCache_.get(majorLayer);
-    if (perMajor == null) {
-      perMajor = new TreeMap<Integer, List<ConcreteRenderCommand>>();
-      layerCache_.put(majorLayer, perMajor);
-    }
-    List<ConcreteRenderCommand> perMinor = perMajor.get(minorLayer);
-    if (perMinor == null) {
-      perMinor = new ArrayList<ConcreteRenderCommand>();
-      perMajor.put(minorLayer, perMinor);
-    }
-    perMinor.add(cmd);   
-  }
   
-	private static class CacheGroupTranslator implements ModalShapeVisitor {
-		private ArrayList<ConcreteRenderCommand> commands_;
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+	
+	/***************************************************************************
+	**
+	** Get the clip to cull against, in user space. Antialiasing can touch the
+	** pixel next to a shape's geometric bounds, so the clip is grown by a
+	** couple of device pixels. Null (nothing culled) if there is no clip.
+	*/
+	
+	private static Rectangle2D cullClip(Graphics2D g2) {
+		Rectangle2D clip = g2.getClipBounds();
+		if (clip == null) {
+			return (null);
+		}
+		AffineTransform trans = g2.getTransform();
+		double scale = Math.min(Math.hypot(trans.getScaleX(), trans.getShearY()), Math.hypot(trans.getShearX(), trans.getScaleY()));
+		if (scale <= 0.0) {
+			return (null);
+		}
+		double pad = CULL_PAD_PIXELS_ / scale;
+		return (new Rectangle2D.Double(clip.getX() - pad, clip.getY() - pad, clip.getWidth() + (2.0 * pad), clip.getHeight() + (2.0 * pad)));
+	}
+	
+	/***************************************************************************
+	**
+	** Play the given group runs, skipping those that fall outside the clip.
+	** With no clip, everything is drawn.
+	*/
+	
+	private void renderSpans(Graphics2D g2, Playback pb, ArrayList<GroupSpan> spans) {
+		for (GroupSpan span : spans) {
+			if ((pb.clip_ != null) && (span.bounds_ != null) && !span.bounds_.intersects(pb.clip_)) {
+				continue;
+			}
+			play(g2, pb, span.buffer_, span.start_, span.end_);
+		}
+	}
+	
+	/***************************************************************************
+	**
+	** Run the ops of a buffer. Color and stroke changes that would not change
+	** anything are skipped.
+	*/
+	
+	private void play(Graphics2D g2, Playback pb, CommandBuffer buffer, int start, int end) {
+		int[] ops = buffer.ops_;
+		double[] coords = buffer.coords_;
 		
-		public CacheGroupTranslator() {
-			commands_ = new ArrayList<ConcreteRenderCommand>();			
+		for (int i = start; i < end; i++) {
+			int at = i * OP_WIDTH_;
+			int arg0 = ops[at + 1];
+			int arg1 = ops[at + 2];
+			
+			switch (ops[at]) {
+				case SET_STROKE_:
+					if ((arg0 >= 0) && (arg0 != pb.stroke_)) {
+						g2.setStroke(strokes_.get(arg0));
+						pb.stroke_ = arg0;
+					}
+					break;
+				case SET_COLOR_:
+					if ((arg0 >= 0) && (arg0 != pb.color_)) {
+						g2.setColor(colors_.get(arg0));
+						pb.color_ = arg0;
+					}
+					break;
+				case LINE_:
+					pb.line_.setLine(coords[arg1], coords[arg1 + 1], coords[arg1 + 2], coords[arg1 + 3]);
+					drawShape(g2, pb.line_, arg0);
+					break;
+				case RECT_:
+					pb.rect_.setRect(coords[arg1], coords[arg1 + 1], coords[arg1 + 2], coords[arg1 + 3]);
+					drawShape(g2, pb.rect_, arg0);
+					break;
+				case ELLIPSE_:
+					pb.ellipse_.setFrame(coords[arg1], coords[arg1 + 1], coords[arg1 + 2], coords[arg1 + 3]);
+					drawShape(g2, pb.ellipse_, arg0);
+					break;
+				case ARC_:
+					pb.arc_.setArc(coords[arg1], coords[arg1 + 1], coords[arg1 + 2], coords[arg1 + 3],
+					               coords[arg1 + 4], coords[arg1 + 5], arg0 >> 1);
+					drawShape(g2, pb.arc_, arg0 & 1);
+					break;
+				case PATH_:
+					drawShape(g2, (GeneralPath)buffer.objects_.get(arg1), arg0);
+					break;
+				case TEXT_:
+					drawText(g2, (TextShape)buffer.objects_.get(arg0));
+					pb.color_ = -1;
+					break;
+				case MULTI_TEXT_:
+					MultiLineTextShape mlt = (MultiLineTextShape)buffer.objects_.get(arg0);
+					for (MultiLineTextShape.Fragment frag : mlt.fragments_) {
+						frag.tl_.draw(g2, frag.x_, frag.y_);
+					}
+					break;
+				case PUSH_:
+					pb.transformStack_.addFirst(g2.getTransform());
+					g2.transform((AffineTransform)buffer.objects_.get(arg0));
+					break;
+				case POP_:
+					g2.setTransform(pb.transformStack_.removeFirst());
+					break;
+				case COMPOSITE_:
+					g2.setComposite((AlphaComposite)buffer.objects_.get(arg0));
+					break;
+				default:
+					throw new IllegalStateException();
+			}
+		}
+	}
+	
+	private static void drawShape(Graphics2D g2, Shape shape, int mode) {
+		if (mode == DrawMode.FILL.ordinal()) {
+			g2.fill(shape);
+		} else {
+			g2.draw(shape);
+		}
+	}
+	
+	private static void drawText(Graphics2D g2, TextShape text) {
+		AffineTransform saveTrans = g2.getTransform();
+		g2.setFont(text.font_.getFont());
+		g2.setColor(text.color_);
+		g2.transform(text.trans_);
+		g2.drawString(text.text_, text.txtX_, text.txtY_);
+		g2.setTransform(saveTrans);
+	}
+	
+	/***************************************************************************
+	**
+	** Get the buffer for the current draw layer
+	*/
+	
+	private CommandBuffer bufferFor(int majorLayer, int minorLayer) {
+		CommandBuffer[][] layerBuffers = buffers_.get(currentDrawLayer_);
+		CommandBuffer retval = layerBuffers[majorLayer][minorLayer];
+		if (retval == null) {
+			retval = new CommandBuffer(majorLayer, minorLayer);
+			layerBuffers[majorLayer][minorLayer] = retval;
+		}
+		return retval;
+	}
+	
+	/***************************************************************************
+	**
+	** Table indices for colors and strokes. Null gets -1, which plays as a no-op.
+	*/
+	
+	private int colorIndex(Color color) {
+		if (color == null) {
+			return -1;
+		}
+		Integer retval = colorIndex_.get(color);
+		if (retval == null) {
+			retval = Integer.valueOf(colors_.size());
+			colors_.add(color);
+			colorIndex_.put(color, retval);
+		}
+		return retval.intValue();
+	}
+	
+	private int strokeIndex(BasicStroke stroke) {
+		if (stroke == null) {
+			return -1;
+		}
+		Integer retval = strokeIndex_.get(stroke);
+		if (retval == null) {
+			retval = Integer.valueOf(strokes_.size());
+			strokes_.add(stroke);
+			strokeIndex_.put(stroke, retval);
+		}
+		return retval.intValue();
+	}
+	
+	/***************************************************************************
+	**
+	** Draw a node group as one filled box over its glyph, in the first color
+	** the glyph uses that is not white. Labels are dropped. Groups carrying
+	** a selection, or whose extent cannot be figured, are left alone, and we
+	** return false so the caller draws them normally.
+	*/
+	
+	private boolean addBlock(CacheGroup group) {
+		GroupBounds bounds = new GroupBounds(false);
+		CacheGroupItem first = null;
+		Color color = null;
+		Iterator<CacheGroupItem> iter = group.iterator();
+		
+		while (iter.hasNext()) {
+			CacheGroupItem item = iter.next();
+			if (item.selected_) {
+				return false;
+			}
+			if (first == null) {
+				first = item;
+			}
+			CacheGroupTranslator cgt = new CacheGroupTranslator(null, bounds, item.majorLayer_, item.minorLayer_, true);
+			item.shape_.accept(cgt);
+			if (color == null) {
+				color = cgt.getBlockColor();
+			}
+		}
+		
+		Rectangle2D block = bounds.getBounds();
+		if ((first == null) || (block == null)) {
+			return false;
+		}
+		
+		IdentityHashMap<CommandBuffer, Integer> starts = new IdentityHashMap<CommandBuffer, Integer>();
+		CommandBuffer buffer = bufferFor(first.majorLayer_, first.minorLayer_);
+		noteStart(starts, buffer);
+		buffer.addOp(SET_COLOR_, colorIndex((color == null) ? Color.black : color), 0);
+		int at = buffer.reserveCoords(4);
+		buffer.coords_[at] = block.getX();
+		buffer.coords_[at + 1] = block.getY();
+		buffer.coords_[at + 2] = block.getWidth();
+		buffer.coords_[at + 3] = block.getHeight();
+		buffer.addOp(RECT_, DrawMode.FILL.ordinal(), at);
+		finishGroup(starts, GroupBounds.pad(block, BOUNDS_PAD_));
+		return true;
+	}
+	
+	/***************************************************************************
+	**
+	** Each buffer the group touched got one unbroken run of its ops
+	*/
+	
+	private void finishGroup(IdentityHashMap<CommandBuffer, Integer> starts, Rectangle2D groupBounds) {
+		for (CommandBuffer buffer : starts.keySet()) {
+			int start = starts.get(buffer).intValue();
+			if (start == buffer.opCount_) {
+				continue;
+			}
+			GroupSpan span = new GroupSpan(buffer, start, buffer.opCount_, groupBounds);
+			buffer.spans_.add(span);
+			byLayerSpans_.get(buffer.major_).get(buffer.minor_).add(span);
+		}
+	}
+	
+	/***************************************************************************
+	**
+	** Remember where the current group starts in the given buffer
+	*/
+	
+	private void noteStart(IdentityHashMap<CommandBuffer, Integer> starts, CommandBuffer buffer) {
+		if (!starts.containsKey(buffer)) {
+			starts.put(buffer, Integer.valueOf(buffer.opCount_));
+		}
+	}
+	
+	/***************************************************************************
+	**
+	** The ops and coordinates for one draw layer, major and minor layer. Text,
+	** paths, transforms and composites are kept as objects.
+	*/
+	
+	private static class CommandBuffer {
+		int major_;
+		int minor_;
+		int[] ops_;
+		int opCount_;
+		double[] coords_;
+		int coordCount_;
+		ArrayList<Object> objects_;
+		ArrayList<GroupSpan> spans_;
+		
+		CommandBuffer(int major, int minor) {
+			major_ = major;
+			minor_ = minor;
+			ops_ = new int[16 * OP_WIDTH_];
+			opCount_ = 0;
+			coords_ = new double[32];
+			coordCount_ = 0;
+			objects_ = new ArrayList<Object>();
+			spans_ = new ArrayList<GroupSpan>();
+		}
+		
+		void addOp(int opcode, int arg0, int arg1) {
+			int at = opCount_ * OP_WIDTH_;
+			if (at + OP_WIDTH_ > ops_.length) {
+				ops_ = Arrays.copyOf(ops_, ops_.length + (ops_.length >> 1) + OP_WIDTH_);
+			}
+			ops_[at] = opcode;
+			ops_[at + 1] = arg0;
+			ops_[at + 2] = arg1;
+			opCount_++;
+		}
+		
+		int reserveCoords(int count) {
+			if (coordCount_ + count > coords_.length) {
+				coords_ = Arrays.copyOf(coords_, coords_.length + (coords_.length >> 1) + count);
+			}
+			int retval = coordCount_;
+			coordCount_ += count;
+			return retval;
+		}
+		
+		int addObject(Object obj) {
+			objects_.add(obj);
+			return objects_.size() - 1;
+		}
+	}
+	
+	/***************************************************************************
+	**
+	** The ops of one group in one buffer. Null bounds means always draw.
+	*/
+	
+	private static class GroupSpan {
+		CommandBuffer buffer_;
+		int start_;
+		int end_;
+		Rectangle2D bounds_;
+		
+		GroupSpan(CommandBuffer buffer, int start, int end, Rectangle2D bounds) {
+			buffer_ = buffer;
+			start_ = start;
+			end_ = end;
+			bounds_ = bounds;
+		}
+	}
+	
+	/***************************************************************************
+	**
+	** State for one render call: the clip, the transform stack, what color and
+	** stroke are set, and shapes to load coordinates into.
+	*/
+	
+	private static class Playback {
+		Rectangle2D clip_;
+		LinkedList<AffineTransform> transformStack_;
+		int color_;
+		int stroke_;
+		Line2D.Double line_;
+		Rectangle2D.Double rect_;
+		Ellipse2D.Double ellipse_;
+		Arc2D.Double arc_;
+		
+		Playback(Rectangle2D clip) {
+			clip_ = clip;
+			transformStack_ = new LinkedList<AffineTransform>();
+			color_ = -1;
+			stroke_ = -1;
+			line_ = new Line2D.Double();
+			rect_ = new Rectangle2D.Double();
+			ellipse_ = new Ellipse2D.Double();
+			arc_ = new Arc2D.Double();
+		}
+	}
+	
+	/***************************************************************************
+	**
+	** Accumulates the bounds of a group as its items are translated, following
+	** the transforms the group pushes. Groups that change the composite, or
+	** that leave transforms in effect for other layers, leak state onto what is
+	** drawn after them, so they cannot be skipped and have no bounds. That
+	** last check is off when we only want the extent of a group to box it.
+	*/
+	
+	private static class GroupBounds {
+		private Rectangle2D bounds_;
+		private boolean unbounded_;
+		private AffineTransform current_;
+		private LinkedList<AffineTransform> stack_;
+		private LinkedList<Integer> pushLayers_;
+		private boolean strictLayers_;
+		
+		GroupBounds(boolean strictLayers) {
+			strictLayers_ = strictLayers;
+			current_ = new AffineTransform();
+			stack_ = new LinkedList<AffineTransform>();
+			pushLayers_ = new LinkedList<Integer>();
+		}
+		
+		void push(AffineTransform trans, int majorLayer, int minorLayer) {
+			stack_.addFirst(current_);
+			pushLayers_.addFirst(Integer.valueOf(layerKey(majorLayer, minorLayer)));
+			current_ = new AffineTransform(current_);
+			current_.concatenate(trans);
+		}
+		
+		void pop(int majorLayer, int minorLayer) {
+			if (stack_.isEmpty()) {
+				unbounded_ = true;
+				return;
+			}
+			current_ = stack_.removeFirst();
+			if (strictLayers_ && (pushLayers_.removeFirst().intValue() != layerKey(majorLayer, minorLayer))) {
+				unbounded_ = true;
+			}
+		}
+		
+		void setUnbounded() {
+			unbounded_ = true;
+		}
+		
+		void add(Rectangle2D rect, int majorLayer, int minorLayer) {
+			if (unbounded_) {
+				return;
+			}
+			if (strictLayers_ && !pushLayers_.isEmpty() && (pushLayers_.getFirst().intValue() != layerKey(majorLayer, minorLayer))) {
+				unbounded_ = true;
+				return;
+			}
+			Rectangle2D placed = current_.createTransformedShape(rect).getBounds2D();
+			if (bounds_ == null) {
+				bounds_ = placed;
+			} else {
+				bounds_.add(placed);
+			}
+		}
+		
+		void addStroked(Rectangle2D rect, BasicStroke stroke, int majorLayer, int minorLayer) {
+			double pad = BOUNDS_PAD_;
+			if (stroke != null) {
+				double half = stroke.getLineWidth() / 2.0;
+				pad += (stroke.getLineJoin() == BasicStroke.JOIN_MITER) ? half * Math.max(1.0, stroke.getMiterLimit()) : half;
+			}
+			add(pad(rect, pad), majorLayer, minorLayer);
+		}
+		
+		Rectangle2D getBounds() {
+			if (unbounded_ || !stack_.isEmpty()) {
+				return (null);
+			}
+			return (bounds_);
+		}
+		
+		static Rectangle2D pad(Rectangle2D rect, double pad) {
+			return (new Rectangle2D.Double(rect.getX() - pad, rect.getY() - pad,
+			                               rect.getWidth() + (2.0 * pad), rect.getHeight() + (2.0 * pad)));
+		}
+		
+		private static int layerKey(int majorLayer, int minorLayer) {
+			return ((majorLayer * NUM_MINOR_LAYERS) + minorLayer);
+		}
+	}
+	
+	/***************************************************************************
+	**
+	** Turns the shapes of one group item into ops in the item's buffer. With
+	** no buffer (block mode), just gathers bounds and the block color.
+	*/
+	
+	private class CacheGroupTranslator implements ModalShapeVisitor {
+		private CommandBuffer buffer_;
+		private GroupBounds bounds_;
+		private int major_;
+		private int minor_;
+		private boolean blockMode_;
+		private Color blockColor_;
+		
+		public CacheGroupTranslator(CommandBuffer buffer, GroupBounds bounds, int majorLayer, int minorLayer, boolean blockMode) {
+			buffer_ = buffer;
+			bounds_ = bounds;
+			major_ = majorLayer;
+			minor_ = minorLayer;
+			blockMode_ = blockMode;
+		}
+		
+		public Color getBlockColor() {
+			return blockColor_;
+		}
+		
+		private boolean keepShape(Rectangle2D shapeBounds, Color color) {
+			if (blockMode_) {
+				if ((blockColor_ == null) && (color != null) && !Color.white.equals(color)) {
+					blockColor_ = color;
+				}
+				return true;
+			}
+			return level_.showFeature(shapeBounds.getWidth(), shapeBounds.getHeight(), pixDiam_);
+		}
+		
+		private boolean keepText(AnnotatedFont font) {
+			return !blockMode_ && level_.showText(font.getFont().getSize2D(), pixDiam_);
+		}
+		
+		private void addStyle(BasicStroke stroke, Color color) {
+			buffer_.addOp(SET_STROKE_, strokeIndex(stroke), 0);
+			buffer_.addOp(SET_COLOR_, colorIndex(color), 0);
+		}
+		
+		private void addFrame(int opcode, int arg0, double x, double y, double w, double h) {
+			int at = buffer_.reserveCoords(4);
+			double[] coords = buffer_.coords_;
+			coords[at] = x;
+			coords[at + 1] = y;
+			coords[at + 2] = w;
+			coords[at + 3] = h;
+			buffer_.addOp(opcode, arg0, at);
 		}
 		
 		public void visit(ModelObjectCache.Arc modalShape) {
@@ -281,10 +773,25 @@ public class ConcreteGraphicsCache extends ModelObjectCache {
 			
 			Arc2D.Double arc = new Arc2D.Double(cx - radius, cy - radius, 2.0 * radius, 2.0 * radius,
 					modalShape.getStart(), modalShape.getExtent(), type);
+			Rectangle2D arcBounds = arc.getBounds2D();
+			if (!keepShape(arcBounds, modalShape.color_)) {
+				return;
+			}
+			bounds_.addStroked(arcBounds, modalShape.stroke_, major_, minor_);
+			if (blockMode_) {
+				return;
+			}
 			
-			commands_.add(new Java2DSetStrokeCommand(modalShape.stroke_));
-			commands_.add(new Java2DSetColorCommand(modalShape.color_));
-			commands_.add(new Java2DDrawShapeCommand(arc, modalShape.mode_));
+			addStyle(modalShape.stroke_, modalShape.color_);
+			int at = buffer_.reserveCoords(6);
+			double[] coords = buffer_.coords_;
+			coords[at] = arc.x;
+			coords[at + 1] = arc.y;
+			coords[at + 2] = arc.width;
+			coords[at + 3] = arc.height;
+			coords[at + 4] = arc.start;
+			coords[at + 5] = arc.extent;
+			buffer_.addOp(ARC_, modalShape.mode_.ordinal() | (type << 1), at);
 		}
 		
 		public void visit(ModelObjectCache.Ellipse modalShape) {
@@ -293,30 +800,55 @@ public class ConcreteGraphicsCache extends ModelObjectCache {
 			double radius = modalShape.getRadius();
 			
 			Ellipse2D.Double circ = new Ellipse2D.Double(cx - radius, cy - radius, 2.0 * radius, 2.0 * radius);
+			if (!keepShape(circ.getBounds2D(), modalShape.color_)) {
+				return;
+			}
+			bounds_.addStroked(circ.getBounds2D(), modalShape.stroke_, major_, minor_);
+			if (blockMode_) {
+				return;
+			}
 
-			commands_.add(new Java2DSetStrokeCommand(modalShape.stroke_));
-			commands_.add(new Java2DSetColorCommand(modalShape.color_));
-			commands_.add(new Java2DDrawShapeCommand(circ, modalShape.mode_));
+			addStyle(modalShape.stroke_, modalShape.color_);
+			addFrame(ELLIPSE_, modalShape.mode_.ordinal(), circ.x, circ.y, circ.width, circ.height);
 		}
 
 		public void visit(ModelObjectCache.Line modalShape) {
 			Line2D.Double line = new Line2D.Double(modalShape.getX1(), modalShape.getY1(), modalShape.getX2(), modalShape.getY2());
+			if (!keepShape(line.getBounds2D(), modalShape.color_)) {
+				return;
+			}
+			bounds_.addStroked(line.getBounds2D(), modalShape.stroke_, major_, minor_);
+			if (blockMode_) {
+				return;
+			}
 			
-			commands_.add(new Java2DSetStrokeCommand(modalShape.stroke_));
-			commands_.add(new Java2DSetColorCommand(modalShape.color_));
-			commands_.add(new Java2DDrawShapeCommand(line, modalShape.mode_));
+			addStyle(modalShape.stroke_, modalShape.color_);
+			addFrame(LINE_, modalShape.mode_.ordinal(), line.x1, line.y1, line.x2, line.y2);
 		}
 
 		public void visit(ModelObjectCache.Rectangle modalShape) {
 			Rectangle2D.Double rect = new Rectangle2D.Double(modalShape.getX(), modalShape.getY(), modalShape.getWidth(), modalShape.getHeight());
+			if (!keepShape(rect, modalShape.color_)) {
+				return;
+			}
+			bounds_.addStroked(rect, modalShape.stroke_, major_, minor_);
+			if (blockMode_) {
+				return;
+			}
 		
-			commands_.add(new Java2DSetStrokeCommand(modalShape.stroke_));
-			commands_.add(new Java2DSetColorCommand(modalShape.color_));
-			commands_.add(new Java2DDrawShapeCommand(rect, modalShape.mode_));
+			addStyle(modalShape.stroke_, modalShape.color_);
+			addFrame(RECT_, modalShape.mode_.ordinal(), rect.x, rect.y, rect.width, rect.height);
 		}
 
 		public void visit(TextShape text) {
-			commands_.add(new Java2DDrawTextCommand(text));
+			if (!keepText(text.font_)) {
+				return;
+			}
+			buffer_.addOp(TEXT_, buffer_.addObject(text), 0);
+			Rectangle2D strBounds = text.font_.getFont().getStringBounds(text.text_, BOUNDS_FRC_);
+			strBounds.setRect(strBounds.getX() + text.txtX_, strBounds.getY() + text.txtY_, strBounds.getWidth(), strBounds.getHeight());
+			Rectangle2D placed = text.trans_.createTransformedShape(GroupBounds.pad(strBounds, BOUNDS_PAD_)).getBounds2D();
+			bounds_.add(placed, major_, minor_);
 		}
 
 		public void visit(TextShapeForWeb text) {
@@ -324,8 +856,16 @@ public class ConcreteGraphicsCache extends ModelObjectCache {
 		}
 		
 		public void visit(MultiLineTextShape mlt) {
-			commands_.add(new Java2DSetColorCommand(mlt.color_));			
-			commands_.add(new Java2DDrawMultiLineTextCommand(mlt));
+			if (!keepText(mlt.font_)) {
+				return;
+			}
+			buffer_.addOp(SET_COLOR_, colorIndex(mlt.color_), 0);
+			buffer_.addOp(MULTI_TEXT_, buffer_.addObject(mlt), 0);
+			for (MultiLineTextShape.Fragment frag : mlt.fragments_) {
+				Rectangle2D fragBounds = frag.tl_.getBounds();
+				fragBounds.setRect(fragBounds.getX() + frag.x_, fragBounds.getY() + frag.y_, fragBounds.getWidth(), fragBounds.getHeight());
+				bounds_.add(GroupBounds.pad(fragBounds, BOUNDS_PAD_), major_, minor_);
+			}
 		}
 		
 		public void visit(MultiLineTextShapeForWeb mlt) {
@@ -333,17 +873,30 @@ public class ConcreteGraphicsCache extends ModelObjectCache {
 		}		
 
 		public void visit(SegmentedPathShape modalShape) {
-			commands_.add(new Java2DSetStrokeCommand(modalShape.stroke_));
-			commands_.add(new Java2DSetColorCommand(modalShape.color_));
-			commands_.add(new Java2DDrawPathCommand(modalShape.path_, modalShape.mode_));
+			Rectangle2D pathBounds = modalShape.path_.getBounds2D();
+			if (!keepShape(pathBounds, modalShape.color_)) {
+				return;
+			}
+			bounds_.addStroked(pathBounds, modalShape.stroke_, major_, minor_);
+			if (blockMode_) {
+				return;
+			}
+			addStyle(modalShape.stroke_, modalShape.color_);
+			buffer_.addOp(PATH_, modalShape.mode_.ordinal(), buffer_.addObject(modalShape.path_));
 		}
 		
 		public void visit(PushTransformOperation op) {
-			commands_.add(new Java2DPushTransformCommand(op.getTransform()));
+			bounds_.push(op.getTransform(), major_, minor_);
+			if (!blockMode_) {
+				buffer_.addOp(PUSH_, buffer_.addObject(op.getTransform()), 0);
+			}
 		}
 		
 		public void visit(PopTransformOperation op) {
-			commands_.add(new Java2DPopTransformCommand());
+			bounds_.pop(major_, minor_);
+			if (!blockMode_) {
+				buffer_.addOp(POP_, 0, 0);
+			}
 		}
 		
 		public void visit(PushRotationWithOrigin op) {
@@ -354,15 +907,17 @@ public class ConcreteGraphicsCache extends ModelObjectCache {
 			
 			AffineTransform trans = new AffineTransform();			
 			trans.rotate(thetaRadias, x, y);
-			commands_.add(new Java2DPushTransformCommand(trans));
+			bounds_.push(trans, major_, minor_);
+			if (!blockMode_) {
+				buffer_.addOp(PUSH_, buffer_.addObject(trans), 0);
+			}
 		}
 		
 		public void visit(ModelObjectCache.SetComposite op) {
-			commands_.add(new Java2DSetCompositeCommand(op.alpha_));
-		}
-		
-		public Iterator<ConcreteRenderCommand> iterator() {
-			return commands_.iterator();
+			bounds_.setUnbounded();
+			if (!blockMode_) {
+				buffer_.addOp(COMPOSITE_, buffer_.addObject(op.alpha_), 0);
+			}
 		}
 	}
 }
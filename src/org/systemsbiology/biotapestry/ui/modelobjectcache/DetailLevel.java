@@ -0,0 +1,116 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.ui.modelobjectcache;
+
+/****************************************************************************
+**
+** How much detail is worth drawing at a given zoom. The tier is chosen from
+** the pixel diameter (model units per screen pixel) in the rendering context:
+**
+** FULL: everything.
+** REDUCED: text too small to read is left out.
+** BLOCKS: node glyphs are drawn as filled boxes, and link pads, arrowheads
+** and other features smaller than a couple of pixels are left out, so link
+** trees are drawn as their bare segment runs.
+*/
+
+public enum DetailLevel {
+  FULL,
+  REDUCED,
+  BLOCKS;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final double REDUCED_PIX_DIAM_ = 2.0;
+  private static final double BLOCKS_PIX_DIAM_ = 5.0;
+  private static final double MIN_TEXT_PIXELS_ = 4.0;
+  private static final double MIN_FEATURE_PIXELS_ = 2.0;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the tier for the given pixel diameter. Zero (unknown) gives full detail.
+  */
+
+  public static DetailLevel forPixelDiameter(double pixDiam) {
+    if (pixDiam >= BLOCKS_PIX_DIAM_) {
+      return (BLOCKS);
+    } else if (pixDiam >= REDUCED_PIX_DIAM_) {
+      return (REDUCED);
+    }
+    return (FULL);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the tier for the given zoom factor (screen pixels per model unit), for
+  ** callers that know the scale they draw at but not a pixel diameter. Zero
+  ** (unknown) gives full detail.
+  */
+
+  public static DetailLevel forZoom(double zoom) {
+    if (zoom <= 0.0) {
+      return (FULL);
+    }
+    return (forPixelDiameter(1.0 / zoom));
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if text of the given point size is worth drawing
+  */
+
+  public boolean showText(double fontSize, double pixDiam) {
+    if (this == FULL) {
+      return (true);
+    }
+    return ((fontSize / pixDiam) >= MIN_TEXT_PIXELS_);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if a feature of the given model size is worth drawing
+  */
+
+  public boolean showFeature(double width, double height, double pixDiam) {
+    if (this != BLOCKS) {
+      return (true);
+    }
+    return (Math.max(width, height) >= (MIN_FEATURE_PIXELS_ * pixDiam));
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if nodes are drawn as boxes
+  */
+
+  public boolean boxNodes() {
+    return (this == BLOCKS);
+  }
+}
@@ -61,6 +61,7 @@ public class BackgroundWorkerClient {
   private FixedJButton cancelButton_;
   private boolean isHeadless_;
   private BTState appState_;
+  private boolean holdingJournal_;
 
   //
   // For alternate top Frames
@@ -152,6 +153,11 @@ public class BackgroundWorkerClient {
       progressBar_ = null;       
       worker_.setTotal(100);
       if (!isHeadless_) {
+        //
+        // No autosaves while the model is being changed off the UI thread:
+        //
+        appState_.getChangeJournal().hold();
+        holdingJournal_ = true;
         Thread runThread = new Thread(worker_);
         prepProgressDialog();
         runThread.start();
@@ -160,6 +166,7 @@ public class BackgroundWorkerClient {
         worker_.run();
       }
     } catch (Exception ex) {
+      releaseJournal();
       appState_.getExceptionHandler().displayException(ex);
     }      
     return;
@@ -170,6 +177,14 @@ public class BackgroundWorkerClient {
     return;
   }
 
+  private void releaseJournal() {
+    if (holdingJournal_) {
+      appState_.getChangeJournal().release();
+      holdingJournal_ = false;
+    }
+    return;
+  }
+
   private void prepProgressDialog() {
     if (done_) {
       return;
@@ -286,6 +301,7 @@ public class BackgroundWorkerClient {
   
   public void finishedWork(Object result, Exception remoteEx, OutOfMemoryError memErr) {
     done_ = true;
+    releaseJournal();
     if (memErr != null) {
       appState_.getExceptionHandler().displayOutOfMemory(memErr);
     }
@@ -316,6 +332,7 @@ public class BackgroundWorkerClient {
   
   public void workCancelled() {
     done_ = true;
+    releaseJournal();
     try {
       if (!allowCancels_) {
         throw new IllegalStateException();
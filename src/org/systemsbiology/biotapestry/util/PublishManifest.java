@@ -0,0 +1,438 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.util;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.db.Database;
+import org.systemsbiology.biotapestry.genome.DynamicInstanceProxy;
+import org.systemsbiology.biotapestry.genome.Genome;
+import org.systemsbiology.biotapestry.genome.GenomeInstance;
+import org.systemsbiology.biotapestry.ui.Layout;
+import org.systemsbiology.biotapestry.ui.NamedColor;
+
+/****************************************************************************
+**
+** Remembers what was last published into a web directory: for each model and
+** image scale, a hash of everything that affects how the model is drawn, and
+** the note bounds the HTML needs. A later publish into the same directory can
+** then leave alone the images whose hash has not changed.
+*/
+
+public class PublishManifest {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public static final String MANIFEST_FILE = "publishManifest.txt";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  //
+  // Bump this whenever drawing changes in a way the model contents do not show:
+  //
+
+  private static final String FORMAT_VERSION_ = "1";
+  private static final String HASH_PREFIX_ = "hash.";
+  private static final String NOTES_PREFIX_ = "notes.";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE VARIABLES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private Properties entries_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor for an empty manifest
+  */
+
+  public PublishManifest() {
+    entries_ = new Properties();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Read the manifest in the directory. If there is none, or it cannot be
+  ** read, the manifest is empty and everything gets published.
+  */
+
+  public static PublishManifest load(File targetDir) {
+    PublishManifest retval = new PublishManifest();
+    File file = new File(targetDir, MANIFEST_FILE);
+    if (!file.isFile()) {
+      return (retval);
+    }
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(file));
+      retval.entries_.load(in);
+      if (!FORMAT_VERSION_.equals(retval.entries_.getProperty("format"))) {
+        retval.entries_.clear();
+      }
+    } catch (IOException ioex) {
+      retval.entries_.clear();
+    } finally {
+      if (in != null) {
+        try { in.close(); } catch (IOException ioex) { }
+      }
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if the published image for the key is still good: its hash is
+  ** unchanged and it is still in the directory.
+  */
+
+  public boolean isCurrent(WebPublisher.ModelScale key, String hash, File targetDir) {
+    if (hash == null) {
+      return (false);
+    }
+    String keyStr = keyString(key);
+    if (!hash.equals(entries_.getProperty(HASH_PREFIX_ + keyStr)) || (entries_.getProperty(NOTES_PREFIX_ + keyStr) == null)) {
+      return (false);
+    }
+    return (new File(targetDir, key.getFileName()).isFile());
+  }
+
+  /***************************************************************************
+  **
+  ** Get the note bounds recorded for the key
+  */
+
+  public Map<String, Rectangle> getNoteBounds(WebPublisher.ModelScale key) {
+    HashMap<String, Rectangle> retval = new HashMap<String, Rectangle>();
+    String notes = entries_.getProperty(NOTES_PREFIX_ + keyString(key));
+    if ((notes == null) || notes.equals("")) {
+      return (retval);
+    }
+    String[] lines = notes.split("\n");
+    for (int i = 0; i < lines.length; i++) {
+      String[] fields = lines[i].split("\t");
+      if (fields.length != 5) {
+        continue;
+      }
+      Rectangle rect = new Rectangle(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                                     Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+      retval.put(fields[0], rect);
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Record what was published for the key. A null hash means the image must
+  ** be redone every time.
+  */
+
+  public void record(WebPublisher.ModelScale key, String hash, Map<String, Rectangle> noteBounds) {
+    String keyStr = keyString(key);
+    if (hash == null) {
+      entries_.remove(HASH_PREFIX_ + keyStr);
+      entries_.remove(NOTES_PREFIX_ + keyStr);
+      return;
+    }
+    StringBuffer buf = new StringBuffer();
+    if (noteBounds != null) {
+      Iterator<String> nit = new TreeSet<String>(noteBounds.keySet()).iterator();
+      while (nit.hasNext()) {
+        String noteID = nit.next();
+        Rectangle rect = noteBounds.get(noteID);
+        buf.append(noteID).append('\t').append(rect.x).append('\t').append(rect.y).append('\t');
+        buf.append(rect.width).append('\t').append(rect.height).append('\n');
+      }
+    }
+    entries_.setProperty(HASH_PREFIX_ + keyStr, hash);
+    entries_.setProperty(NOTES_PREFIX_ + keyStr, buf.toString());
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write the manifest into the directory
+  */
+
+  public void save(File targetDir) throws IOException {
+    entries_.setProperty("format", FORMAT_VERSION_);
+    File file = new File(targetDir, MANIFEST_FILE);
+    File temp = new File(targetDir, MANIFEST_FILE + ".tmp");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+    try {
+      entries_.store(out, "BioTapestry web publish manifest");
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      file.delete();
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not write " + file);
+      }
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Works out model hashes. The model settings, each genome and each layout
+  ** are only hashed once per Hasher, so build one per publish.
+  */
+
+  public static class Hasher {
+
+    private BTState appState_;
+    private String sharedHash_;
+    private HashMap<String, String> genomeHashes_;
+    private HashMap<String, String> layoutHashes_;
+
+    public Hasher(BTState appState) {
+      appState_ = appState;
+      sharedHash_ = null;
+      genomeHashes_ = new HashMap<String, String>();
+      layoutHashes_ = new HashMap<String, String>();
+    }
+
+    /***************************************************************************
+    **
+    ** Hash everything that goes into drawing the model: the workspace, fonts,
+    ** display options, colors and images, the model and the models it is drawn
+    ** from, and its layout (which holds overlay and module properties too).
+    ** Null for models built from data on the fly, which are always redrawn.
+    */
+
+    public String hashForModel(String modelID) {
+      if (DynamicInstanceProxy.isDynamicInstance(modelID)) {
+        return (null);
+      }
+      Database db = appState_.getDB();
+      Genome genome = db.getGenome(modelID);
+      String layoutID = appState_.getLayoutMgr().getLayout(modelID);
+      Layout layout = (layoutID == null) ? null : db.getLayout(layoutID);
+      if ((genome == null) || (layout == null)) {
+        return (null);
+      }
+      MessageDigest md = newDigest();
+      update(md, FORMAT_VERSION_);
+      update(md, sharedHash());
+      update(md, modelID);
+      while (genome != null) {
+        update(md, genomeHash(genome));
+        genome = (genome instanceof GenomeInstance) ? ((GenomeInstance)genome).getVfgParent() : null;
+      }
+      update(md, genomeHash(db.getGenome()));
+      update(md, layoutHash(layout));
+      return (toHex(md.digest()));
+    }
+
+    private String sharedHash() {
+      if (sharedHash_ == null) {
+        final Database db = appState_.getDB();
+        sharedHash_ = hashXML(new XMLSource() {
+          public void write(PrintWriter out, Indenter ind) {
+            db.getWorkspace().writeXML(out, ind);
+            appState_.getFontMgr().writeXML(out, ind);
+            appState_.getDisplayOptMgr().writeXML(out, ind);
+            appState_.getImageMgr().writeXML(out, ind);
+            Iterator<String> cit = new TreeSet<String>(DataUtil.setFromIterator(db.getColorKeys())).iterator();
+            while (cit.hasNext()) {
+              String colorKey = cit.next();
+              NamedColor nc = db.getNamedColor(colorKey);
+              out.print(colorKey);
+              out.print('=');
+              out.print(nc.name);
+              out.print(',');
+              out.println(nc.color.getRGB());
+            }
+          }
+        });
+      }
+      return (sharedHash_);
+    }
+
+    private String genomeHash(final Genome genome) {
+      String retval = genomeHashes_.get(genome.getID());
+      if (retval == null) {
+        retval = hashXML(new XMLSource() {
+          public void write(PrintWriter out, Indenter ind) {
+            genome.writeXML(out, ind);
+          }
+        });
+        genomeHashes_.put(genome.getID(), retval);
+      }
+      return (retval);
+    }
+
+    private String layoutHash(final Layout layout) {
+      String retval = layoutHashes_.get(layout.getID());
+      if (retval == null) {
+        retval = hashXML(new XMLSource() {
+          public void write(PrintWriter out, Indenter ind) {
+            layout.writeXML(out, ind);
+          }
+        });
+        layoutHashes_.put(layout.getID(), retval);
+      }
+      return (retval);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Something that writes XML
+  */
+
+  private interface XMLSource {
+    public void write(PrintWriter out, Indenter ind);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Key string for a model and scale
+  */
+
+  private static String keyString(WebPublisher.ModelScale key) {
+    return (key.getModelID() + "|" + key.getSize());
+  }
+
+  /***************************************************************************
+  **
+  ** Hash whatever the source writes
+  */
+
+  private static String hashXML(XMLSource source) {
+    MessageDigest md = newDigest();
+    OutputStream sink = new OutputStream() {
+      public void write(int b) { }
+      public void write(byte[] b, int off, int len) { }
+    };
+    try {
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new DigestOutputStream(sink, md), "UTF-8"));
+      source.write(out, new Indenter(out, Indenter.DEFAULT_INDENT));
+      out.close();
+    } catch (IOException ioex) {
+      throw new IllegalStateException(ioex);
+    }
+    return (toHex(md.digest()));
+  }
+
+  /***************************************************************************
+  **
+  ** Get a digest
+  */
+
+  private static MessageDigest newDigest() {
+    try {
+      return (MessageDigest.getInstance("MD5"));
+    } catch (NoSuchAlgorithmException nsaex) {
+      throw new IllegalStateException(nsaex);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Add a string to the digest
+  */
+
+  private static void update(MessageDigest md, String str) {
+    try {
+      md.update(str.getBytes("UTF-8"));
+      md.update((byte)0);
+    } catch (IOException ioex) {
+      throw new IllegalStateException(ioex);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Hex string for a digest
+  */
+
+  private static String toHex(byte[] digest) {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < digest.length; i++) {
+      String hex = Integer.toHexString(digest[i] & 0xff);
+      if (hex.length() == 1) {
+        buf.append('0');
+      }
+      buf.append(hex);
+    }
+    return (buf.toString());
+  }
+}
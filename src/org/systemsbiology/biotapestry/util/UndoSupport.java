@@ -26,6 +26,7 @@ import org.systemsbiology.biotapestry.app.BTState;
 import org.systemsbiology.biotapestry.cmd.undo.BTUndoCmd;
 import org.systemsbiology.biotapestry.cmd.undo.CompoundPostEventCmd2;
 import org.systemsbiology.biotapestry.cmd.undo.CompoundPreEventCmd;
+import org.systemsbiology.biotapestry.db.ChangeJournal;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
 import org.systemsbiology.biotapestry.event.ChangeEvent;
 
@@ -42,7 +43,7 @@ public class UndoSupport {
   //
   ////////////////////////////////////////////////////////////////////////////
   
-  private CompoundEdit edit_;   
+  private JournaledEdit edit_;   
   private CompoundPreEventCmd pre_;
   private CompoundPostEventCmd2 post_;
   private ArrayList<ChangeEvent> preList_;
@@ -76,7 +77,7 @@ public class UndoSupport {
 
   public UndoSupport(BTState appState, String presentation, DataAccessContext dacx) {
     appState_ = appState;
-    edit_ = new CompoundEdit();
+    edit_ = new JournaledEdit();
     pre_ = new CompoundPreEventCmd(appState, dacx);
     post_ = new CompoundPostEventCmd2(appState, dacx, appState.getRMan().getString(presentation));
     preList_ = new ArrayList<ChangeEvent>();
@@ -111,6 +112,7 @@ public class UndoSupport {
   public void addEdit(BTUndoCmd edit) {
     if (edit.changesModel()) {
       appState_.bumpUndoCount();
+      edit.journalChanges(edit_.changes);
     }
     edit_.addEdit(edit);
     return;
@@ -178,6 +180,7 @@ public class UndoSupport {
     post_.addChangeEvents(postList_);
     post_.execute();        
     edit_.end();
+    edit_.noteInJournal();
     appState_.getUndoManager().addEdit(edit_);
     return;
   }
@@ -205,4 +208,38 @@ public class UndoSupport {
   // PRIVATE INNER CLASSES
   //
   ////////////////////////////////////////////////////////////////////////////  
+  
+  /***************************************************************************
+  **
+  ** Remembers what parts of the file the edits touch, so the autosave
+  ** journal hears about them again on undo and redo.
+  */
+  
+  private class JournaledEdit extends CompoundEdit {
+    
+    private static final long serialVersionUID = 1L;
+    ChangeJournal.Changes changes = new ChangeJournal.Changes();
+    
+    void noteInJournal() {
+      ChangeJournal journal = appState_.getChangeJournal();
+      if (!changes.isEmpty() && (journal != null)) {
+        journal.noteChanges(changes);
+      }
+      return;
+    }
+  
+    @Override
+    public void undo() {
+      super.undo();
+      noteInJournal();
+      return;
+    }
+  
+    @Override
+    public void redo() {
+      super.redo();
+      noteInJournal();
+      return;
+    }
+  }
 }
@@ -19,18 +19,30 @@
 
 package org.systemsbiology.biotapestry.web;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -39,6 +51,10 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.app.ModelSnapshot;
+import org.systemsbiology.biotapestry.app.PassivatedState;
+import org.systemsbiology.biotapestry.app.RenderCache;
+import org.systemsbiology.biotapestry.app.TileCache;
 import org.systemsbiology.biotapestry.app.WebServerApplication;
 import org.systemsbiology.biotapestry.app.WebServerApplication.WebClientState;
 import org.systemsbiology.biotapestry.app.WebServerApplication.CommandResult;
@@ -51,9 +67,9 @@ import org.systemsbiology.biotapestry.ui.freerender.MultiSubID;
 import org.systemsbiology.biotapestry.ui.freerender.NetModuleFree;
 import org.systemsbiology.biotapestry.ui.menu.XPlatGenericMenu;
 
-import org.systemsbiology.biotapestry.web.serialization.BioTapSerializerFactory;
 import org.systemsbiology.biotapestry.web.serialization.ExcludeTransformer;
 import org.systemsbiology.biotapestry.web.serialization.LinkSegmentIDTransformer;
+import org.systemsbiology.biotapestry.web.serialization.ModelJsonSerializer;
 
 import flexjson.JSONDeserializer;
 import flexjson.JSONSerializer;
@@ -85,6 +101,30 @@ public class BioTapServlet extends HttpServlet {
 	private final String CONFIG_FILE_ = "/WEB-INF/configuration.txt";
 	private final String MODEL_LIST_KEY_ = "modellistfile";
 	private final String MODEL_FILE_KEY_ = "modelfile";
+	private final String SHARED_MODEL_KEY_ = "sharedmodel";
+	private final String SHARED_MODEL_REPLICAS_KEY_ = "sharedmodelreplicas";
+	private final String RENDER_CACHE_BYTES_KEY_ = "rendercachebytes";
+	private final long DEFAULT_RENDER_CACHE_BYTES_ = 64L * 1024L * 1024L;
+	private final String TILE_CACHE_DIR_KEY_ = "tilecachedir";
+	private final String TILE_CACHE_KEYS_KEY_ = "tilecachekeys";
+	private final int DEFAULT_TILE_CACHE_KEYS_ = 64;
+	private final String WARM_UP_KEY_ = "warmup";
+	private final String WARM_UP_THREADS_KEY_ = "warmupthreads";
+	private final String WHOLE_TREE_ID_ = "*";
+	private final String BT_STATE_ATTR_ = "btState";
+	private final String BT_STATE_LOCK_ATTR_ = "btStateLock";
+	private final String BT_SLOT_REQUEST_ATTR_ = "org.systemsbiology.biotapestry.btSlot";
+	private final String PASSIVATE_IDLE_SECS_KEY_ = "passivateidleseconds";
+	private final String MAX_RESIDENT_SESSIONS_KEY_ = "maxresidentsessions";
+	private final String PASSIVATE_HEAP_FRACTION_KEY_ = "passivateheapfraction";
+	private final String PASSIVATION_DIR_KEY_ = "passivationdir";
+	private final String RENDER_THREADS_KEY_ = "renderthreads";
+	private final String RENDER_QUEUE_DEPTH_KEY_ = "renderqueuedepth";
+	private final String RETRY_AFTER_SECS_KEY_ = "retryafterseconds";
+	private final int DEFAULT_RENDER_QUEUE_DEPTH_ = 32;
+	private final int DEFAULT_RETRY_AFTER_SECS_ = 2;
+	private final long RENDER_DRAIN_MILLIS_ = 10000L;
+	private final String METRICS_LOCK_TIMING_KEY_ = "metricslocktiming";
 	
 	private WebServerApplication wsa_;
 	
@@ -96,6 +136,41 @@ public class BioTapServlet extends HttpServlet {
 	private String modelFilename_ = null;
 	private String servicesDir_ = null;
 	
+	// When set, viewer sessions share parsed model snapshots instead of each parsing their own copy
+	private boolean shareModels_ = false;
+	//
+	// Viewer sessions on the same replica take turns on its model lock, while each
+	// replica costs a parsed copy of the model. Replicas are only built as sessions
+	// arrive, so a default of one per core (up to four) only costs memory under load:
+	//
+	private int sharedModelReplicas_ = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private final Map<String, ModelSnapshot> snapshots_ = new HashMap<String, ModelSnapshot>();
+	
+	// Rendered images and model JSON shared across sessions; null if disabled
+	private RenderCache renderCache_ = null;
+	
+	// Rendered image tiles, kept on disk per model version; null if unavailable
+	private TileCache tileCache_ = null;
+	
+	// Background pre-rendering of every model into the render cache at init
+	private ExecutorService warmUpPool_ = null;
+	private volatile int warmUpTotal_ = 0;
+	private final AtomicInteger warmUpDone_ = new AtomicInteger(0);
+	private final AtomicInteger warmUpFailed_ = new AtomicInteger(0);
+	private volatile long warmUpStart_ = 0L;
+	private volatile long warmUpEnd_ = 0L;
+	
+	// Request metrics, also registered with JMX
+	private final ServletMetrics metrics_ = new ServletMetrics();
+	private ObjectName metricsName_ = null;
+	
+	// Holds every session's state, passivating idle ones if so configured
+	private SessionPassivator passivator_ = null;
+	
+	// Expensive GETs are handed off to this pool when the container allows async
+	// processing; null to handle everything on the container's threads
+	private RenderWorkPool renderPool_ = null;
+	
 	////////////////////////////////////////////////////////////////////////////
 	//
 	// PUBLIC CONSTRUCTORS
@@ -140,12 +215,64 @@ public class BioTapServlet extends HttpServlet {
 			}
 			System.out.println(fileMsg);
 			
+			if(Boolean.parseBoolean(configProps.getProperty(this.SHARED_MODEL_KEY_))) {
+				this.shareModels_ = true;
+				if(configProps.getProperty(this.SHARED_MODEL_REPLICAS_KEY_) != null) {
+					this.sharedModelReplicas_ = Math.max(1, Integer.parseInt(configProps.getProperty(this.SHARED_MODEL_REPLICAS_KEY_).trim()));
+				}
+				System.out.println("[STATUS] Viewer sessions will share " + this.sharedModelReplicas_ + " parsed copies of each model");
+			}
+			
+			long cacheBytes = DEFAULT_RENDER_CACHE_BYTES_;
+			if(configProps.getProperty(this.RENDER_CACHE_BYTES_KEY_) != null) {
+				cacheBytes = Long.parseLong(configProps.getProperty(this.RENDER_CACHE_BYTES_KEY_).trim());
+			}
+			if(cacheBytes > 0) {
+				this.renderCache_ = new RenderCache(cacheBytes);
+				System.out.println("[STATUS] Render cache budget is " + cacheBytes + " bytes");
+			}
+			
+			File tileDir = null;
+			if(configProps.getProperty(this.TILE_CACHE_DIR_KEY_) != null) {
+				tileDir = new File(configProps.getProperty(this.TILE_CACHE_DIR_KEY_).trim());
+			} else if(myContext.getAttribute("javax.servlet.context.tempdir") instanceof File) {
+				tileDir = new File((File)myContext.getAttribute("javax.servlet.context.tempdir"), "tiles");
+			}
+			if(tileDir != null) {
+				int tileKeys = DEFAULT_TILE_CACHE_KEYS_;
+				if(configProps.getProperty(this.TILE_CACHE_KEYS_KEY_) != null) {
+					tileKeys = Math.max(1, Integer.parseInt(configProps.getProperty(this.TILE_CACHE_KEYS_KEY_).trim()));
+				}
+				try {
+					this.tileCache_ = new TileCache(tileDir, tileKeys);
+					System.out.println("[STATUS] Image tiles for up to " + tileKeys + " renderings will be cached in " + tileDir.getAbsolutePath());
+				} catch(IOException e) {
+					System.out.println("[WARNING] Image tiles will not be cached: " + e.getMessage());
+				}
+			}
+			
 			wsa_ = new WebServerApplication(
 				"/"+this.getServletConfig().getServletName(),
 				null,
 				myContext.getRealPath("/"),
 				this.servicesDir_
 			);    
+			
+			buildPassivator(configProps);
+			buildRenderPool(configProps);
+			registerMetrics();
+			if(Boolean.parseBoolean(configProps.getProperty(this.METRICS_LOCK_TIMING_KEY_))) {
+				metrics_.setLockTiming(true);
+				System.out.println("[STATUS] Request metrics will time lock waits (JVM thread contention monitoring is on)");
+			}
+			
+			if(Boolean.parseBoolean(configProps.getProperty(this.WARM_UP_KEY_))) {
+				int threads = 2;
+				if(configProps.getProperty(this.WARM_UP_THREADS_KEY_) != null) {
+					threads = Math.max(1, Integer.parseInt(configProps.getProperty(this.WARM_UP_THREADS_KEY_).trim()));
+				}
+				startWarmUp(threads);
+			}
 
 		} catch(IOException e) {
 			System.err.println("IOException during Servlet init():");
@@ -156,6 +283,66 @@ public class BioTapServlet extends HttpServlet {
 		}
 	}
 	
+	@Override
+	public void destroy() {
+		if(warmUpPool_ != null) {
+			warmUpPool_.shutdownNow();
+		}
+		// Queued renders need their sessions, so finish them first:
+		if(renderPool_ != null) {
+			renderPool_.shutdown(RENDER_DRAIN_MILLIS_);
+		}
+		if(passivator_ != null) {
+			passivator_.stop();
+		}
+		if(metricsName_ != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName_);
+			} catch(Exception e) {
+				System.out.println("[WARNING] Could not unregister metrics MBean: " + e.getMessage());
+			}
+		}
+		super.destroy();
+	}
+	
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// SERVICE
+	//
+	////////////////////////////////////////////////////////////////////////////    
+
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String targetParam = request.getParameter("target");
+		RequestTargetType target = (targetParam == null) ? null : RequestTargetType.getRequestTargetType(targetParam);
+		if((renderPool_ != null) && isHeavy(request, target) && request.isAsyncSupported() && !isCacheHit(request, target)) {
+			dispatchToRenderPool(request, response, target);
+			return;
+		}
+		serviceGuts(request, response, target);
+		return;
+	}
+	
+	/****************************************************************************
+	**
+	** Handle the request on the current thread, measured
+	*/
+	
+	private void serviceGuts(HttpServletRequest request, HttpServletResponse response, RequestTargetType target) throws ServletException, IOException {
+		ServletMetrics.Sample sample = metrics_.begin(request.getMethod() + " " + ((target == null) ? RequestTargetType.UNKNOWN : target));
+		try {
+			super.service(request, response);
+		} finally {
+			SessionPassivator.Slot slot = (SessionPassivator.Slot)request.getAttribute(BT_SLOT_REQUEST_ATTR_);
+			if(slot != null) {
+				request.removeAttribute(BT_SLOT_REQUEST_ATTR_);
+				passivator_.release(slot);
+			}
+			metrics_.end(sample);
+		}
+		return;
+	}
+	
 	////////////////////////////////////////////////////////////////////////////
 	//
 	// GET
@@ -181,13 +368,18 @@ public class BioTapServlet extends HttpServlet {
 				target = RequestTargetType.UNKNOWN;
 			}
 			
-			BTState appState = getBTStateForSession(target,request,response);
+			if(target == RequestTargetType.METRICS) {
+				sendMetrics(request, response);
+				return;
+			}
+			
+			final BTState appState = getBTStateForSession(target,request,response);
 			
 			if(appState == null) {
 				System.out.println("[WARNING] Session isn't valid in GET for " + target + "! Sending session restart.");
 				response.setContentType("application/json");
 				response.setCharacterEncoding(charEncoding_);
-				os = response.getOutputStream();
+				os = metrics_.countBytes(response.getOutputStream());
 				os.write("{\"result\": \"NEW_SESSION\"}".getBytes());
 				return;
 			}
@@ -199,7 +391,7 @@ public class BioTapServlet extends HttpServlet {
 					.transform(new LinkSegmentIDTransformer(),LinkSegmentID.class);
 				response.setContentType("application/json");
 				response.setCharacterEncoding(charEncoding_);
-				os = response.getOutputStream();
+				os = metrics_.countBytes(response.getOutputStream());
 				Set<Object> emptySelex = new HashSet<Object>();
 				Set<NetModuleObject> emptyMods = new HashSet<NetModuleObject>();
 				os.write((
@@ -208,13 +400,11 @@ public class BioTapServlet extends HttpServlet {
 					"\"supportedMenus\":" + serializer.deepSerialize(wsa_.getSupportedMenuRequests(appState)) + "}").getBytes());
 				return;				
 			} else {
-				serializer = new JSONSerializer().exclude("*.class").include("*")
-					.transform(new ExcludeTransformer(), void.class)
-					.transform(new LinkSegmentIDTransformer(),LinkSegmentID.class);
+				serializer = buildGetSerializer();
 			}
 
 			String modelID = null;
-			os = response.getOutputStream();
+			os = metrics_.countBytes(response.getOutputStream());
 			
 			switch(target) {
 				case LINKS_TO_INTERSECTIONS:
@@ -222,12 +412,34 @@ public class BioTapServlet extends HttpServlet {
 					WebServerApplication.HSRWrapper hsrw = new WebServerApplication.HSRWrapper(request);
 					CommandResult results = new CommandResult(ResultType.SUCCESS);
 					results.addResult("LINKS", wsa_.mapLinksToIntersections(appState, hsrw));
-					os.write(serializer.deepSerialize(results).getBytes());
+					writeSerialized(serializer, results, os);
 					break;
 				case MODEL_IMAGE:
 					modelID = request.getParameter("model");
 					response.setContentType("image/png");
-					wsa_.getImage(appState, modelID, os); 				
+					sendWithRenderCache(appState, "png", modelID, "image/png", false, request, response, os, imageSource(appState, modelID));
+					break;
+				case MODEL_TILE:
+					modelID = request.getParameter("model");
+					if(request.getParameter("level") == null) {
+						// No tile asked for; describe the pyramid instead
+						response.setContentType("application/json");
+						response.setCharacterEncoding(charEncoding_);
+						writeSerialized(serializer, wsa_.getTileInfo(appState, modelID), os);
+					} else {
+						int level = tileParameter(request, "level");
+						int column = tileParameter(request, "x");
+						int row = tileParameter(request, "y");
+						if((level >= WebServerApplication.TILE_ZOOMS.length) || (level < 0) || (column < 0) || (row < 0)) {
+							response.setContentType("application/json");
+							response.setCharacterEncoding(charEncoding_);
+							response.setStatus(400);
+							os.write("{\"errormsg\": \"badTileRequest\"}".getBytes());
+							break;
+						}
+						response.setContentType("image/png");
+						sendTile(appState, modelID, level, column, row, request, response, os);
+					}
 					break;
 		        case MODEL_ANNOT_IMAGE:
 					 modelID = request.getParameter("model");
@@ -241,18 +453,19 @@ public class BioTapServlet extends HttpServlet {
 					modelID = request.getParameter("model");
 					response.setContentType("application/json");
 					response.setCharacterEncoding(charEncoding_);
-								        			        					
-					Map<String,Object> modelMap = wsa_.getModelMap(appState, modelID);
-
-					JSONSerializer modelMapSerializer = BioTapSerializerFactory.getModelMapTransformer();
-					os.write(modelMapSerializer.deepSerialize(modelMap).getBytes(charEncoding_));
+					String since = request.getParameter("since");
+					if(since != null) {
+						// Versioned maps are per-session, so they skip the shared render cache:
+						sendModelMapDelta(appState, modelID, since, request, response, os);
+					} else {
+						sendWithRenderCache(appState, "json", modelID, "application/json", true, request, response, os, jsonSource(appState, modelID));
+					}
 					break;
 				
 				case MODEL_TREE:
-					XPlatModelTree xpmt = wsa_.getModelTree(appState);  
 					response.setContentType("application/json");
 					response.setCharacterEncoding(charEncoding_);
-					os.write(serializer.deepSerialize(xpmt).getBytes(charEncoding_));
+					sendWithRenderCache(appState, "tree", WHOLE_TREE_ID_, "application/json", true, request, response, os, treeSource(appState));
 					break;
 					
 				case ICON:
@@ -266,10 +479,11 @@ public class BioTapServlet extends HttpServlet {
 					XPlatGenericMenu xpgm = wsa_.getMenuDefinition(appState, hsrw);
 					response.setContentType("application/json");
 					response.setCharacterEncoding(charEncoding_);
-					os.write(serializer.deepSerialize(xpgm).getBytes(charEncoding_));
+					writeSerialized(serializer, xpgm, os);
 					break;
 					
 				case COMMAND:
+				case COMMAND_BATCH:
 				case SET_MODEL:
 				case SESSION_NEVER_EXPIRES:
 				case SESSION_EXPIRES_IN:				
@@ -340,7 +554,7 @@ public class BioTapServlet extends HttpServlet {
 				System.out.println("[WARNING] Session isn't valid in POST for " + target + "!");
 				response.setContentType("application/json");
 				response.setCharacterEncoding(charEncoding_);
-				os = response.getOutputStream();
+				os = metrics_.countBytes(response.getOutputStream());
 				os.write("{\"result\": \"NEW_SESSION\"}".getBytes());
 				return;
 			}
@@ -348,7 +562,7 @@ public class BioTapServlet extends HttpServlet {
 			if(target == RequestTargetType.INIT) {
 				response.setContentType("application/json");
 				response.setCharacterEncoding(charEncoding_);
-				os = response.getOutputStream();
+				os = metrics_.countBytes(response.getOutputStream());
 				os.write(("{\"result\": \"SESSION_READY\", \"clientMode\": \"" + (appState.getIsEditor() ? "Editor" : "Viewer") + "\"}").getBytes());
 				return;				
 			}
@@ -357,7 +571,7 @@ public class BioTapServlet extends HttpServlet {
 				.transform(new ExcludeTransformer(), void.class)
 				.transform(new LinkSegmentIDTransformer(),LinkSegmentID.class);
 			WebServerApplication.HSRWrapper hsrw = null;
-			os = response.getOutputStream();
+			os = metrics_.countBytes(response.getOutputStream());
 			
 			String reply = null;
 						
@@ -378,6 +592,7 @@ public class BioTapServlet extends HttpServlet {
 					// Commands may need to send over classes which will be deserialized; we need to include
 					// class information in these cases.
 					hsrw = new WebServerApplication.HSRWrapper(request);
+					metrics_.setCommand(request.getParameter("cmdClass") + "." + request.getParameter("cmdKey"));
 					CommandResult result = wsa_.processCommand(appState, hsrw); 
 					if (result == null) {
 						response.setContentType("text/html"); 			  
@@ -402,7 +617,7 @@ public class BioTapServlet extends HttpServlet {
 							case CANCEL:
 							case XPLAT_DIALOG:
 							case XPLAT_FRAME:
-								os.write(serializer.deepSerialize(result).getBytes(charEncoding_));
+								writeSerialized(serializer, result, os);
 								break;			
 								
 						  default:
@@ -412,6 +627,24 @@ public class BioTapServlet extends HttpServlet {
 					  }
 					} 					
 					break;
+				case COMMAND_BATCH:
+					List<WebServerApplication.ParamSource> batch = parseCommandBatch(request);
+					metrics_.setCommand("batch");
+					CommandResult batchResult = wsa_.processCommandBatch(appState, batch);
+					if (batchResult == null) {
+						response.setContentType("text/html"); 			  
+						basicPage(os); 
+						break;
+					}
+					if(batchResult.resultNeedsClassAttr()) {
+						serializer = new JSONSerializer().include("*")
+							.transform(new ExcludeTransformer(), void.class)
+							.transform(new LinkSegmentIDTransformer(),LinkSegmentID.class);
+					}
+					response.setContentType("application/json");
+					response.setCharacterEncoding(charEncoding_);
+					writeSerialized(serializer, batchResult, os);
+					break;
 				case SET_MODEL:					
 					System.err.println("[ERROR] Use target=command to set models!");
 					throw new Exception(" Use target=command to set models!");
@@ -420,7 +653,7 @@ public class BioTapServlet extends HttpServlet {
 					XPlatGenericMenu xpgm = wsa_.getMenuDefinition(appState, hsrw);
 					response.setContentType("application/json");
 					response.setCharacterEncoding(charEncoding_);
-					os.write(serializer.deepSerialize(xpgm).getBytes(charEncoding_));
+					writeSerialized(serializer, xpgm, os);
 					break;					
 				default:
 					errMsg = "[ERROR] The POST request target " + request.getParameter("target") + " is not recognized.";
@@ -470,43 +703,822 @@ public class BioTapServlet extends HttpServlet {
   */
   
   private BTState initNewBTState(String sessionID) throws WebServerApplication.GeneratorException, IOException {
+	  Runtime rt = Runtime.getRuntime();
+	  long startHeap = rt.totalMemory() - rt.freeMemory();
+	  long startTime = System.nanoTime();
 	  HashMap<String, Object> args = new HashMap<String, Object>();
 	  BTState appState = new BTState(sessionID, args, true, true);
-	  wsa_.initNewState(appState, getServletContext().getResourceAsStream(modelFilename_));
+	  long version;
+	  if(shareModels_) {
+		  ModelSnapshot snap = getModelSnapshot(modelFilename_);
+		  version = snap.getVersion();
+		  wsa_.initNewState(appState, snap);
+	  } else {
+		  version = getModelVersion(modelFilename_);
+		  wsa_.initNewState(appState, getServletContext().getResourceAsStream(modelFilename_));
+	  }
+	  if(!wsa_.isEditor()) {
+		  appState.setModelVersionTag(modelFilename_ + "@" + version);
+	  }
+	  // Heap delta is rough (other threads allocate too), but good enough to size a server:
+	  metrics_.stateBuilt(System.nanoTime() - startTime, (rt.totalMemory() - rt.freeMemory()) - startHeap);
 	  return (appState);
   }
   
+ /****************************************************************************
+  **
+  ** Get the version stamp of a model file
+  */
+  
+  private long getModelVersion(String modelFile) {
+	  String realPath = getServletContext().getRealPath(modelFile);
+	  return ((realPath == null) ? 0L : new File(realPath).lastModified());
+  }
+  
+ /****************************************************************************
+  **
+  ** Send output through the render cache, answering 304 if the client already
+  ** holds the same content. Output that cannot be shared is written directly.
+  ** Compressible output is gzipped for clients that accept it.
+  */
+  
+  private void sendWithRenderCache(
+	  BTState appState, String kind, String modelID, String contentType, boolean compressible,
+	  HttpServletRequest request, HttpServletResponse response, OutputStream os, OutputSource source
+  ) throws Exception {
+	  boolean useGzip = compressible && acceptsGzip(request);
+	  if(compressible) {
+		  response.setHeader("Vary", "Accept-Encoding");
+	  }
+	  RenderCache.Entry entry = fillRenderCache(appState, kind, modelID, contentType, compressible, source);
+	  if(useGzip) {
+		  response.setHeader("Content-Encoding", "gzip");
+	  }
+	  if(entry == null) {
+		  source.write(os, useGzip);
+		  return;
+	  }
+	  String etag = (useGzip) ? entry.gzipEtag : entry.etag;
+	  byte[] body = (useGzip) ? entry.gzipped : entry.bytes;
+	  response.setHeader("ETag", etag);
+	  if(entry.matches(request.getHeader("If-None-Match"), etag)) {
+		  response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		  return;
+	  }
+	  response.setContentLength(body.length);
+	  os.write(body);
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Read a command batch from the request body. The body is JSON:
+  **   {"commands": [{"params": {"cmdClass": ..., "cmdKey": ..., ...}, "clientstate": {...}}, ...]}
+  ** where each params object holds what would be the request parameters of a
+  ** single COMMAND, and the optional clientstate is what would be its body.
+  */
+  
+  @SuppressWarnings("unchecked")
+  private List<WebServerApplication.ParamSource> parseCommandBatch(HttpServletRequest request) throws Exception {
+	  String encoding = (request.getCharacterEncoding() == null) ? charEncoding_ : request.getCharacterEncoding();
+	  Scanner scanner = new Scanner(request.getInputStream(), encoding).useDelimiter("\\A");
+	  String body = scanner.hasNext() ? scanner.next() : "";
+	  scanner.close();
+	  if(body.trim().length() == 0) {
+		  throw new IllegalArgumentException("Command batch has no body");
+	  }
+	  Map<String, Object> parsed = (Map<String, Object>)new JSONDeserializer<Object>().deserialize(body);
+	  List<Object> commands = (List<Object>)parsed.get("commands");
+	  if(commands == null) {
+		  throw new IllegalArgumentException("Command batch has no commands list");
+	  }
+	  ArrayList<WebServerApplication.ParamSource> retval = new ArrayList<WebServerApplication.ParamSource>();
+	  for(Object command : commands) {
+		  Map<String, Object> cmdMap = (Map<String, Object>)command;
+		  Map<String, Object> params = (Map<String, Object>)cmdMap.get("params");
+		  HashMap<String, String> strParams = new HashMap<String, String>();
+		  if(params != null) {
+			  for(Map.Entry<String, Object> param : params.entrySet()) {
+				  strParams.put(param.getKey(), (param.getValue() == null) ? null : param.getValue().toString());
+			  }
+		  }
+		  String clientState = null;
+		  Object csObj = cmdMap.get("clientstate");
+		  if(csObj != null) {
+			  clientState = (csObj instanceof String) ? (String)csObj : new JSONSerializer().deepSerialize(csObj);
+			  strParams.put("clientstate", "true");
+		  }
+		  retval.add(new WebServerApplication.MapWrapper(strParams, clientState));
+	  }
+	  return (retval);
+  }
+  
+ /****************************************************************************
+  **
+  ** Serialize to the response, timing it
+  */
+  
+  private void writeSerialized(JSONSerializer serializer, Object toSerialize, OutputStream os) throws IOException {
+	  long startSer = System.nanoTime();
+	  byte[] bytes = serializer.deepSerialize(toSerialize).getBytes(charEncoding_);
+	  metrics_.addSerializeTime(System.nanoTime() - startSer);
+	  os.write(bytes);
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Reply with the metrics. Only answered for requests from this host.
+  */
+  
+  private void sendMetrics(HttpServletRequest request, HttpServletResponse response) throws IOException {
+	  String remote = request.getRemoteAddr();
+	  if(!"127.0.0.1".equals(remote) && !"0:0:0:0:0:0:0:1".equals(remote) && !"::1".equals(remote)) {
+		  response.sendError(HttpServletResponse.SC_FORBIDDEN);
+		  return;
+	  }
+	  response.setContentType("application/json");
+	  response.setCharacterEncoding(charEncoding_);
+	  OutputStream os = metrics_.countBytes(response.getOutputStream());
+	  os.write(metrics_.getMetricsJson().getBytes(charEncoding_));
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Hook up cache and warm-up stats, and register the metrics with JMX
+  */
+  
+  private void registerMetrics() {
+	  metrics_.setExtraSource(new ServletMetrics.ExtraSource() {
+		  public void addMetrics(Map<String, Object> metrics) {
+			  if(renderCache_ != null) {
+				  HashMap<String, Object> rc = new HashMap<String, Object>();
+				  rc.put("bytes", Long.valueOf(renderCache_.getCurrentBytes()));
+				  rc.put("entries", Integer.valueOf(renderCache_.getEntryCount()));
+				  rc.put("hits", Long.valueOf(renderCache_.getHits()));
+				  rc.put("misses", Long.valueOf(renderCache_.getMisses()));
+				  metrics.put("renderCache", rc);
+			  }
+			  if(tileCache_ != null) {
+				  HashMap<String, Object> tc = new HashMap<String, Object>();
+				  tc.put("written", Long.valueOf(tileCache_.getTilesWritten()));
+				  tc.put("served", Long.valueOf(tileCache_.getTilesServed()));
+				  tc.put("pruned", Long.valueOf(tileCache_.getKeysPruned()));
+				  metrics.put("tileCache", tc);
+			  }
+			  metrics.put("warmUp", getWarmUpStatus());
+			  metrics.put("sessions", passivator_.getStatus());
+			  metrics.put("linkIndex", wsa_.getLinkIndexStatus());
+			  if(renderPool_ != null) {
+				  metrics.put("renderPool", renderPool_.getStatus());
+			  }
+		  }
+	  });
+	  try {
+		  metricsName_ = new ObjectName("org.systemsbiology.biotapestry:type=ServletMetrics,name=" + 
+			  ObjectName.quote(this.getServletConfig().getServletName()));
+		  ManagementFactory.getPlatformMBeanServer().registerMBean(metrics_, metricsName_);
+	  } catch(Exception e) {
+		  metricsName_ = null;
+		  System.out.println("[WARNING] Metrics are not available through JMX: " + e.getMessage());
+	  }
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Get the render cache entry for the output, rendering it if it is not there.
+  ** Returns null if there is no cache, or the output cannot be shared.
+  */
+  
+  private RenderCache.Entry fillRenderCache(
+	  BTState appState, String kind, String modelID, String contentType, boolean compressible, OutputSource source
+  ) throws Exception {
+	  if(renderCache_ == null) {
+		  return (null);
+	  }
+	  // Key and output must reflect the same state, so hold the state lock across both:
+	  synchronized (appState.getServerLock()) {
+		  synchronized (appState.getModelLock()) {
+			  String key = wsa_.getRenderCacheKey(appState, kind, modelID);
+			  if(key == null) {
+				  return (null);
+			  }
+			  RenderCache.Entry entry = renderCache_.get(key);
+			  if(entry == null) {
+				  ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				  source.write(baos, false);
+				  entry = renderCache_.put(key, baos.toByteArray(), contentType, compressible);
+			  }
+			  return (entry);
+		  }
+	  }
+  }
+  
+ /****************************************************************************
+  **
+  ** Output source for a model image
+  */
+  
+  private OutputSource imageSource(final BTState appState, final String modelID) {
+	  return (new OutputSource() {
+		  public void write(OutputStream out, boolean gzip) throws Exception {
+			  wsa_.getImage(appState, modelID, out);
+		  }
+	  });
+  }
+  
+ /****************************************************************************
+  **
+  ** Output source for a model map
+  */
+  
+  private OutputSource jsonSource(final BTState appState, final String modelID) {
+	  return (new OutputSource() {
+		  public void write(OutputStream out, boolean gzip) throws Exception {
+			  Map<String,Object> modelMap = wsa_.getModelMap(appState, modelID);
+			  long startSer = System.nanoTime();
+			  new ModelJsonSerializer(charEncoding_).serialize(modelMap, out, gzip);
+			  metrics_.addSerializeTime(System.nanoTime() - startSer);
+		  }
+	  });
+  }
+  
+ /****************************************************************************
+  **
+  ** Send the model map as a delta against the version the client holds. A
+  ** version that is not a number (or is not the last one sent) gets the
+  ** full map, with its version.
+  */
+  
+  private void sendModelMapDelta(BTState appState, String modelID, String since, HttpServletRequest request,
+		  						 HttpServletResponse response, OutputStream os) throws Exception {
+	  long sinceVersion;
+	  try {
+		  sinceVersion = Long.parseLong(since);
+	  } catch (NumberFormatException nfex) {
+		  sinceVersion = -1L;
+	  }
+	  Map<String,Object> modelMap = wsa_.getModelMapDelta(appState, modelID, sinceVersion);
+	  boolean gzip = acceptsGzip(request);
+	  response.setHeader("Vary", "Accept-Encoding");
+	  response.setHeader("Cache-Control", "no-cache");
+	  if(gzip) {
+		  response.setHeader("Content-Encoding", "gzip");
+	  }
+	  long startSer = System.nanoTime();
+	  new ModelJsonSerializer(charEncoding_).serialize(modelMap, os, gzip);
+	  metrics_.addSerializeTime(System.nanoTime() - startSer);
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Output source for the model tree
+  */
+  
+  private OutputSource treeSource(final BTState appState) {
+	  return (new OutputSource() {
+		  public void write(OutputStream out, boolean gzip) throws Exception {
+			  XPlatModelTree xpmt = wsa_.getModelTree(appState);
+			  long startSer = System.nanoTime();
+			  new ModelJsonSerializer(charEncoding_).serialize(xpmt, out, gzip, buildGetSerializer());
+			  metrics_.addSerializeTime(System.nanoTime() - startSer);
+		  }
+	  });
+  }
+  
+ /****************************************************************************
+  **
+  ** The serializer for general GET replies
+  */
+  
+  private JSONSerializer buildGetSerializer() {
+	  return (new JSONSerializer().exclude("*.class").include("*")
+		  .transform(new ExcludeTransformer(), void.class)
+		  .transform(new LinkSegmentIDTransformer(),LinkSegmentID.class));
+  }
+  
+ /****************************************************************************
+  **
+  ** Start pre-rendering the model tree, and the image and map of every model,
+  ** into the render cache on a background pool. Each worker gets its own
+  ** session-like state, set up just as a new session's would be, so the cache
+  ** keys match what new sessions will ask for.
+  */
+  
+  private void startWarmUp(final int threads) {
+	  if((renderCache_ == null) || wsa_.isEditor()) {
+		  System.out.println("[STATUS] Warm-up skipped: needs a render cache and viewer mode");
+		  return;
+	  }
+	  warmUpPool_ = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+		  private int count_ = 0;
+		  public synchronized Thread newThread(Runnable r) {
+			  Thread retval = new Thread(r, "BioTapWarmUp-" + count_++);
+			  retval.setDaemon(true);
+			  retval.setPriority(Thread.MIN_PRIORITY);
+			  return (retval);
+		  }
+	  });
+	  warmUpStart_ = System.currentTimeMillis();
+	  // The first worker loads the model and lists it, then hands out the work:
+	  warmUpPool_.execute(new Runnable() {
+		  public void run() {
+			  ConcurrentLinkedQueue<String> todo = new ConcurrentLinkedQueue<String>();
+			  AtomicInteger running = new AtomicInteger(threads);
+			  BTState firstState;
+			  try {
+				  firstState = initNewBTState("warmup-0");
+				  List<String> modelIDs = wsa_.getModelIDs(firstState);
+				  todo.addAll(modelIDs);
+				  warmUpTotal_ = 1 + (2 * modelIDs.size());
+			  } catch(Exception e) {
+				  warmUpEnd_ = System.currentTimeMillis();
+				  System.err.println("[ERROR] Warm-up could not load " + modelFilename_ + ": " + e.getMessage());
+				  e.printStackTrace();
+				  warmUpPool_.shutdown();
+				  return;
+			  }
+			  System.out.println("[STATUS] Warm-up of " + modelFilename_ + " started: " + warmUpTotal_ + " items on " + threads + " threads");
+			  for(int i = 1; i < threads; i++) {
+				  warmUpPool_.execute(new WarmUpWorker(i, null, todo, running));
+			  }
+			  warmUpPool_.shutdown();
+			  new WarmUpWorker(0, firstState, todo, running).run();
+		  }
+	  });
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Renders models from the warm-up queue until it is empty
+  */
+  
+  private class WarmUpWorker implements Runnable {
+	  
+	  private final int worker_;
+	  private BTState appState_;
+	  private final ConcurrentLinkedQueue<String> todo_;
+	  private final AtomicInteger running_;
+	  
+	  WarmUpWorker(int worker, BTState appState, ConcurrentLinkedQueue<String> todo, AtomicInteger running) {
+		  worker_ = worker;
+		  appState_ = appState;
+		  todo_ = todo;
+		  running_ = running;
+	  }
+	  
+	  public void run() {
+		  try {
+			  if(appState_ == null) {
+				  appState_ = initNewBTState("warmup-" + worker_);
+			  } else {
+				  warmUpItem(fillRenderCache(appState_, "tree", WHOLE_TREE_ID_, "application/json", true, treeSource(appState_)), "model tree");
+			  }
+			  String modelID;
+			  while(!Thread.currentThread().isInterrupted() && ((modelID = todo_.poll()) != null)) {
+				  warmUpItem(fillRenderCache(appState_, "png", modelID, "image/png", false, imageSource(appState_, modelID)), modelID + " image");
+				  warmUpItem(fillRenderCache(appState_, "json", modelID, "application/json", true, jsonSource(appState_, modelID)), modelID + " map");
+			  }
+		  } catch(Exception e) {
+			  warmUpFailed_.incrementAndGet();
+			  System.err.println("[ERROR] Warm-up worker " + worker_ + " failed: " + e.getMessage());
+			  e.printStackTrace();
+		  } finally {
+			  if(running_.decrementAndGet() == 0) {
+				  warmUpEnd_ = System.currentTimeMillis();
+				  System.out.println("[STATUS] Warm-up finished in " + (warmUpEnd_ - warmUpStart_) + " ms: " + 
+					  warmUpDone_.get() + " of " + warmUpTotal_ + " items cached, " + warmUpFailed_.get() + " failures, " + 
+					  renderCache_.getCurrentBytes() + " bytes in render cache");
+			  }
+		  }
+		  return;
+	  }
+  }
+  
+ /****************************************************************************
+  **
+  ** Tally one warm-up item
+  */
+  
+  private void warmUpItem(RenderCache.Entry entry, String what) {
+	  if(entry == null) {
+		  warmUpFailed_.incrementAndGet();
+		  System.out.println("[WARNING] Warm-up could not cache " + what);
+		  return;
+	  }
+	  int done = warmUpDone_.incrementAndGet();
+	  if((done % 10 == 0) || (done == warmUpTotal_)) {
+		  System.out.println("[STATUS] Warm-up progress: " + done + " of " + warmUpTotal_);
+	  }
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Get the warm-up progress and timing
+  */
+  
+  private Map<String, Object> getWarmUpStatus() {
+	  HashMap<String, Object> retval = new HashMap<String, Object>();
+	  retval.put("enabled", Boolean.valueOf(warmUpPool_ != null));
+	  retval.put("total", Integer.valueOf(warmUpTotal_));
+	  retval.put("done", Integer.valueOf(warmUpDone_.get()));
+	  retval.put("failed", Integer.valueOf(warmUpFailed_.get()));
+	  long start = warmUpStart_;
+	  long end = warmUpEnd_;
+	  retval.put("finished", Boolean.valueOf(end != 0L));
+	  retval.put("elapsedMs", Long.valueOf((start == 0L) ? 0L : (((end == 0L) ? System.currentTimeMillis() : end) - start)));
+	  return (retval);
+  }
+  
+ /****************************************************************************
+  **
+  ** Send an image tile, from the disk cache if it has already been rendered for
+  ** this model version and overlay state. Tiles that cannot be shared are just
+  ** rendered.
+  */
+  
+  private void sendTile(
+	  BTState appState, String modelID, int level, int column, int row,
+	  HttpServletRequest request, HttpServletResponse response, OutputStream os
+  ) throws Exception {
+	  // Key and tile must reflect the same state, so hold the state lock across both:
+	  synchronized (appState.getServerLock()) {
+		  synchronized (appState.getModelLock()) {
+			  String key = (tileCache_ == null) ? null : wsa_.getRenderCacheKey(appState, "tile", modelID);
+			  if(key == null) {
+				  wsa_.getTile(appState, modelID, level, column, row, os);
+				  return;
+			  }
+			  String etag = "\"" + tileCache_.keyHash(key) + "-" + level + "-" + column + "-" + row + "\"";
+			  response.setHeader("ETag", etag);
+			  if(RenderCache.tagMatches(request.getHeader("If-None-Match"), etag)) {
+				  response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				  return;
+			  }
+			  if(tileCache_.sendTile(key, level, column, row, os)) {
+				  return;
+			  }
+			  ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			  wsa_.getTile(appState, modelID, level, column, row, baos);
+			  byte[] bytes = baos.toByteArray();
+			  tileCache_.storeTile(key, level, column, row, bytes);
+			  response.setContentLength(bytes.length);
+			  os.write(bytes);
+		  }
+	  }
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Get a tile level or grid position; -1 if it is missing or not a number
+  */
+  
+  private int tileParameter(HttpServletRequest request, String name) {
+	  String value = request.getParameter(name);
+	  if(value == null) {
+		  return (-1);
+	  }
+	  try {
+		  return (Integer.parseInt(value.trim()));
+	  } catch(NumberFormatException nfex) {
+		  return (-1);
+	  }
+  }
+  
+ /****************************************************************************
+  **
+  ** Answer if the client takes gzipped responses
+  */
+  
+  private boolean acceptsGzip(HttpServletRequest request) {
+	  String accepts = request.getHeader("Accept-Encoding");
+	  return ((accepts != null) && (accepts.toLowerCase().indexOf("gzip") != -1));
+  }
+  
+ /****************************************************************************
+  **
+  ** Produces output for the render cache. Only asked to gzip if the output
+  ** was declared compressible.
+  */
+  
+  private interface OutputSource {
+	  public void write(OutputStream out, boolean gzip) throws Exception;
+  }
+  
+ /****************************************************************************
+  **
+  ** Get the shared snapshot of a model file, reading it if it is new or has
+  ** changed on disk since it was last read
+  */
+  
+  private ModelSnapshot getModelSnapshot(String modelFile) throws IOException {
+	  long version = getModelVersion(modelFile);
+	  synchronized (snapshots_) {
+		  ModelSnapshot snap = snapshots_.get(modelFile);
+		  if((snap == null) || (snap.getVersion() != version)) {
+			  InputStream is = getServletContext().getResourceAsStream(modelFile);
+			  if(is == null) {
+				  throw new IOException("Model file " + modelFile + " was not found");
+			  }
+			  snap = new ModelSnapshot(modelFile, is, version, sharedModelReplicas_);
+			  snapshots_.put(modelFile, snap);
+		  }
+		  return (snap);
+	  }
+  }
+  
   /****************************************************************************
   **
-  ** Handle getting per-session appState. Newly synchronized: had a race condition
+  ** Handle getting per-session appState. Only session creation is synchronized
+  ** on the servlet; the (expensive) state init is done under a per-session lock
+  ** so that new sessions do not serialize behind each other's model loads. The
+  ** state is held for the rest of the request, so it cannot be passivated
+  ** while in use; service() lets it go.
   */
   
-  private synchronized BTState getBTStateForSession(
+  private BTState getBTStateForSession(
 	  RequestTargetType target,HttpServletRequest request,HttpServletResponse response
-  ) throws WebServerApplication.GeneratorException, IOException {
+  ) throws Exception {
 
 		HttpSession session = request.getSession(false);
 					
-		BTState appState = ((session != null) ? (BTState)session.getAttribute("btState") : null);
+		SessionPassivator.Slot slot = ((session != null) ? (SessionPassivator.Slot)session.getAttribute(BT_STATE_ATTR_) : null);
+		
+		if (slot != null) {
+			return (acquireForRequest(slot, request));
+		}
 		
-		if(target != RequestTargetType.INIT && (appState==null)){
+		if(target != RequestTargetType.INIT){
 			return null;
 		}
-					
-		if (session == null) {
-			session = request.getSession(true);
+		
+		Object initLock;
+		synchronized (this) {
+			if (session == null) {
+				session = request.getSession(true);
+			}
+			initLock = session.getAttribute(BT_STATE_LOCK_ATTR_);
+			if (initLock == null) {
+				// Doubles as the live session counter:
+				initLock = metrics_.newSessionTracker();
+				session.setAttribute(BT_STATE_LOCK_ATTR_, initLock);
+			}
 		}
 		
-		if(appState == null) {
-			appState = initNewBTState(session.getId());
-			session.setAttribute("btState", appState);
-			if(this.modelListFile_ != null) {
-				appState.setServerBtpFileList(this.modelListFile_);
+		synchronized (initLock) {
+			slot = (SessionPassivator.Slot)session.getAttribute(BT_STATE_ATTR_);
+			if(slot == null) {
+				BTState appState = initNewBTState(session.getId());
+				if(this.modelListFile_ != null) {
+					appState.setServerBtpFileList(this.modelListFile_);
+				}
+				slot = passivator_.newSlot(session.getId(), appState);
+				session.setAttribute(BT_STATE_ATTR_, slot);
 			}
 		}
-		return (appState);
+		return (acquireForRequest(slot, request));
+  }
+  
+ /****************************************************************************
+  **
+  ** Hold the session state for this request. A GET handed to POST asks twice.
+  */
+  
+  private BTState acquireForRequest(SessionPassivator.Slot slot, HttpServletRequest request) throws Exception {
+	  if(request.getAttribute(BT_SLOT_REQUEST_ATTR_) == slot) {
+		  return (passivator_.peek(slot));
+	  }
+	  BTState retval = passivator_.acquire(slot);
+	  request.setAttribute(BT_SLOT_REQUEST_ATTR_, slot);
+	  return (retval);
+  }
+  
+ /****************************************************************************
+  **
+  ** Build the pool for expensive requests. It has one thread per processor
+  ** unless configured otherwise; zero threads turns it off.
+  */
+  
+  private void buildRenderPool(Properties configProps) {
+	  int threads = Runtime.getRuntime().availableProcessors();
+	  int queueDepth = DEFAULT_RENDER_QUEUE_DEPTH_;
+	  int retryAfter = DEFAULT_RETRY_AFTER_SECS_;
+	  if(configProps.getProperty(this.RENDER_THREADS_KEY_) != null) {
+		  threads = Integer.parseInt(configProps.getProperty(this.RENDER_THREADS_KEY_).trim());
+	  }
+	  if(configProps.getProperty(this.RENDER_QUEUE_DEPTH_KEY_) != null) {
+		  queueDepth = Math.max(1, Integer.parseInt(configProps.getProperty(this.RENDER_QUEUE_DEPTH_KEY_).trim()));
+	  }
+	  if(configProps.getProperty(this.RETRY_AFTER_SECS_KEY_) != null) {
+		  retryAfter = Math.max(1, Integer.parseInt(configProps.getProperty(this.RETRY_AFTER_SECS_KEY_).trim()));
+	  }
+	  if(threads > 0) {
+		  this.renderPool_ = new RenderWorkPool(threads, queueDepth, retryAfter);
+		  System.out.println("[STATUS] Renders will run on " + threads + " threads with " + queueDepth + " queued at most");
+	  }
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Answer if the request is one that is expensive to produce. These are GETs
+  ** that may render the model; state changes stay on the container's thread.
+  */
+  
+  private boolean isHeavy(HttpServletRequest request, RequestTargetType target) {
+	  if((target == null) || !"GET".equals(request.getMethod())) {
+		  return (false);
+	  }
+	  switch(target) {
+		  case MODEL_IMAGE:
+		  case MODEL_TILE:
+		  case MODEL_JSON:
+			  return (true);
+		  default:
+			  return (false);
+	  }
+  }
+  
+ /****************************************************************************
+  **
+  ** Hand the request off to the render pool, freeing the container thread. If
+  ** the pool is saturated, the client is told to come back later.
+  */
+  
+  private void dispatchToRenderPool(HttpServletRequest request, HttpServletResponse response, 
+		  							final RequestTargetType target) throws IOException {
+	  final AsyncContext async = request.startAsync(request, response);
+	  // Queued work is bounded by the pool, so it need not time out as well:
+	  async.setTimeout(0L);
+	  boolean queued = renderPool_.submit(new RenderWorkPool.Work() {
+		  public void refuse() {
+			  try {
+				  sendBusy((HttpServletResponse)async.getResponse());
+			  } catch(IOException ioex) {
+				  // Client is gone anyway
+			  } finally {
+				  async.complete();
+			  }
+		  }
+		  public void run() {
+			  HttpServletResponse asyncResponse = (HttpServletResponse)async.getResponse();
+			  try {
+				  serviceGuts((HttpServletRequest)async.getRequest(), asyncResponse, target);
+			  } catch(Exception ex) {
+				  System.err.println("Exception rendering " + target + ": " + ex.getMessage());
+				  ex.printStackTrace();
+				  if(!asyncResponse.isCommitted()) {
+					  asyncResponse.setStatus(500);
+				  }
+			  } finally {
+				  async.complete();
+			  }
+		  }
+	  });
+	  if(!queued) {
+		  sendBusy(response);
+		  async.complete();
+	  }
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Tell the client the render pool cannot take the request, and when to retry
+  */
+  
+  private void sendBusy(HttpServletResponse response) throws IOException {
+	  if(response.isCommitted()) {
+		  return;
+	  }
+	  response.setStatus(503);
+	  response.setHeader("Retry-After", Integer.toString(renderPool_.getRetryAfterSeconds()));
+	  response.setContentType("application/json");
+	  response.setCharacterEncoding(charEncoding_);
+	  response.getOutputStream().write("{\"errormsg\": \"Server busy\"}".getBytes());
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Answer if the request can be answered straight from the render or tile
+  ** cache, so it need not wait for (or be refused by) the render pool. Only
+  ** looks: a session that is not resident counts as a miss. The key is read
+  ** without waiting for the session, so it may be stale; that only decides
+  ** which thread handles the request, which then rechecks under the lock.
+  */
+  
+  private boolean isCacheHit(HttpServletRequest request, RequestTargetType target) {
+	  HttpSession session = request.getSession(false);
+	  SessionPassivator.Slot slot = (session == null) ? null : (SessionPassivator.Slot)session.getAttribute(BT_STATE_ATTR_);
+	  BTState appState = (slot == null) ? null : passivator_.peekResident(slot);
+	  if(appState == null) {
+		  return (false);
+	  }
+	  String modelID = request.getParameter("model");
+	  switch(target) {
+		  case MODEL_IMAGE:
+			  return (isRenderCached(appState, "png", modelID));
+		  case MODEL_JSON:
+			  return ((request.getParameter("since") == null) && isRenderCached(appState, "json", modelID));
+		  case MODEL_TILE:
+			  if(tileCache_ == null) {
+				  return (false);
+			  }
+			  String key = wsa_.peekRenderCacheKey(appState, "tile", modelID);
+			  return ((key != null) && tileCache_.hasTile(key, tileParameter(request, "level"), 
+				  tileParameter(request, "x"), tileParameter(request, "y")));
+		  default:
+			  return (false);
+	  }
+  }
+  
+ /****************************************************************************
+  **
+  ** Answer if the render cache holds the output
+  */
+  
+  private boolean isRenderCached(BTState appState, String kind, String modelID) {
+	  if(renderCache_ == null) {
+		  return (false);
+	  }
+	  String key = wsa_.peekRenderCacheKey(appState, kind, modelID);
+	  return ((key != null) && renderCache_.contains(key));
+  }
+  
+ /****************************************************************************
+  **
+  ** Build the session manager. Passivation is off unless an idle time, resident
+  ** cap or heap fraction is configured.
+  */
+  
+  private void buildPassivator(Properties configProps) throws IOException {
+	  long idleMillis = 0L;
+	  int maxResident = 0;
+	  double heapFraction = 0.0;
+	  if(configProps.getProperty(this.PASSIVATE_IDLE_SECS_KEY_) != null) {
+		  idleMillis = Long.parseLong(configProps.getProperty(this.PASSIVATE_IDLE_SECS_KEY_).trim()) * 1000L;
+	  }
+	  if(configProps.getProperty(this.MAX_RESIDENT_SESSIONS_KEY_) != null) {
+		  maxResident = Integer.parseInt(configProps.getProperty(this.MAX_RESIDENT_SESSIONS_KEY_).trim());
+	  }
+	  if(configProps.getProperty(this.PASSIVATE_HEAP_FRACTION_KEY_) != null) {
+		  heapFraction = Double.parseDouble(configProps.getProperty(this.PASSIVATE_HEAP_FRACTION_KEY_).trim());
+	  }
+	  File dumpDir = null;
+	  if(configProps.getProperty(this.PASSIVATION_DIR_KEY_) != null) {
+		  dumpDir = new File(configProps.getProperty(this.PASSIVATION_DIR_KEY_).trim());
+	  } else if(getServletContext().getAttribute("javax.servlet.context.tempdir") instanceof File) {
+		  dumpDir = new File((File)getServletContext().getAttribute("javax.servlet.context.tempdir"), "sessions");
+	  }
+	  SessionPassivator.Restorer restorer = new SessionPassivator.Restorer() {
+		  public BTState restore(PassivatedState passive) throws Exception {
+			  return (restoreBTState(passive));
+		  }
+	  };
+	  try {
+		  passivator_ = new SessionPassivator(restorer, dumpDir, idleMillis, maxResident, heapFraction);
+	  } catch(IOException e) {
+		  System.out.println("[WARNING] Sessions will not be passivated: " + e.getMessage());
+		  passivator_ = new SessionPassivator(restorer, null, 0L, 0, 0.0);
+	  }
+	  if(passivator_.isEnabled()) {
+		  System.out.println("[STATUS] Sessions passivate after " + (idleMillis / 1000L) + " idle seconds (0 = never), " + 
+			  "resident cap " + maxResident + " (0 = none), heap fraction " + heapFraction + " (0 = ignore), in " + dumpDir);
+		  passivator_.start();
+	  }
+	  return;
+  }
+  
+ /****************************************************************************
+  **
+  ** Bring a passivated session state back
+  */
+  
+  private BTState restoreBTState(PassivatedState passive) throws Exception {
+	  BTState appState;
+	  if(passive.hasModelDump()) {
+		  appState = new BTState(passive.getSessionID(), new HashMap<String, Object>(), true, true);
+		  InputStream is = passive.openModelDump();
+		  try {
+			  wsa_.initNewState(appState, is);
+		  } finally {
+			  is.close();
+		  }
+	  } else {
+		  // If the published file has changed since, the session moves to the new version:
+		  appState = initNewBTState(passive.getSessionID());
+	  }
+	  appState.setServerBtpFileList(passive.getServerBtpFileList());
+	  passive.restoreViewState(appState);
+	  return (appState);
   }
-
 
 	private void basicPage(OutputStream os) throws IOException {
 
@@ -552,7 +1564,9 @@ public class BioTapServlet extends HttpServlet {
 		SET_MODEL,
 		MODEL_JSON,
 		MODEL_IMAGE,
+		MODEL_TILE,
 		COMMAND,
+		COMMAND_BATCH,
 		MODEL_TREE,
 		MENU_DEF,
 		ICON,
@@ -563,28 +1577,34 @@ public class BioTapServlet extends HttpServlet {
 		MODEL_ANNOT_IMAGE,
 		INIT,
 		LINKS_TO_INTERSECTIONS,
+		METRICS,
 		UNKNOWN;
 		
-		private static Map<String, RequestTargetType> stringToType = null;
+		private static final Map<String, RequestTargetType> stringToType;
+		
+		// Built eagerly: lazy building was a race with concurrent sessions
+		static {
+			stringToType = new Hashtable<String, RequestTargetType>();
+			stringToType.put("init", RequestTargetType.INIT);
+			stringToType.put("setmodel", RequestTargetType.SET_MODEL);
+			stringToType.put("modeljson", RequestTargetType.MODEL_JSON);
+			stringToType.put("modelimage", RequestTargetType.MODEL_IMAGE);
+			stringToType.put("modeltile", RequestTargetType.MODEL_TILE);
+			stringToType.put("command", RequestTargetType.COMMAND);
+			stringToType.put("commandbatch", RequestTargetType.COMMAND_BATCH);
+			stringToType.put("modeltree", RequestTargetType.MODEL_TREE);
+			stringToType.put("menudef", RequestTargetType.MENU_DEF);
+			stringToType.put("uploadfile", RequestTargetType.UPLOAD_FILE);
+			stringToType.put("iconimage", RequestTargetType.ICON);
+			stringToType.put("filelist", RequestTargetType.FILE_LIST);
+			stringToType.put("disablesessionexpiry", RequestTargetType.SESSION_NEVER_EXPIRES);
+			stringToType.put("setsessionexpiry", RequestTargetType.SESSION_EXPIRES_IN);
+			stringToType.put("modelannotimage", RequestTargetType.MODEL_ANNOT_IMAGE);
+			stringToType.put("linkstointersections", RequestTargetType.LINKS_TO_INTERSECTIONS);
+			stringToType.put("metrics", RequestTargetType.METRICS);
+		}
 		
 		public static RequestTargetType getRequestTargetType(String typeAsString) {
-			if(stringToType == null) {
-				stringToType = new Hashtable<String, RequestTargetType>();
-				stringToType.put("init", RequestTargetType.INIT);
-				stringToType.put("setmodel", RequestTargetType.SET_MODEL);
-				stringToType.put("modeljson", RequestTargetType.MODEL_JSON);
-				stringToType.put("modelimage", RequestTargetType.MODEL_IMAGE);
-				stringToType.put("command", RequestTargetType.COMMAND);
-				stringToType.put("modeltree", RequestTargetType.MODEL_TREE);
-				stringToType.put("menudef", RequestTargetType.MENU_DEF);
-				stringToType.put("uploadfile", RequestTargetType.UPLOAD_FILE);
-				stringToType.put("iconimage", RequestTargetType.ICON);
-				stringToType.put("filelist", RequestTargetType.FILE_LIST);
-				stringToType.put("disablesessionexpiry", RequestTargetType.SESSION_NEVER_EXPIRES);
-				stringToType.put("setsessionexpiry", RequestTargetType.SESSION_EXPIRES_IN);
-				stringToType.put("modelannotimage", RequestTargetType.MODEL_ANNOT_IMAGE);
-				stringToType.put("linkstointersections", RequestTargetType.LINKS_TO_INTERSECTIONS);
-			}
 			if(typeAsString == null) {
 				throw new IllegalArgumentException("String value of request type was null!");
 			}
@@ -0,0 +1,197 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.web;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/****************************************************************************
+**
+** A fixed set of worker threads, with a bounded queue, for requests that are
+** expensive to produce (model images, tiles, model maps). Work that does not
+** fit in the queue is refused outright rather than left to pile up, so the
+** container's own threads stay free for cheap requests.
+*/
+
+public class RenderWorkPool {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final ThreadPoolExecutor pool_;
+  private final int retryAfterSecs_;
+  private final AtomicLong accepted_;
+  private final AtomicLong rejected_;
+  private final AtomicLong queueWaitNanos_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public RenderWorkPool(int threads, int queueDepth, int retryAfterSecs) {
+    final AtomicInteger count = new AtomicInteger(0);
+    pool_ = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                   new ArrayBlockingQueue<Runnable>(Math.max(1, queueDepth)),
+                                   new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread retval = new Thread(r, "BioTapRender-" + count.incrementAndGet());
+        retval.setDaemon(true);
+        return (retval);
+      }
+    });
+    retryAfterSecs_ = retryAfterSecs;
+    accepted_ = new AtomicLong(0L);
+    rejected_ = new AtomicLong(0L);
+    queueWaitNanos_ = new AtomicLong(0L);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Queue up the work. Answers false if the pool is saturated (or shut down),
+  ** in which case the work will never run.
+  */
+
+  public boolean submit(Work work) {
+    try {
+      pool_.execute(new Queued(work));
+    } catch (RejectedExecutionException rex) {
+      rejected_.incrementAndGet();
+      return (false);
+    }
+    accepted_.incrementAndGet();
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** How long a refused client should wait before trying again
+  */
+
+  public int getRetryAfterSeconds() {
+    return (retryAfterSecs_);
+  }
+
+  /***************************************************************************
+  **
+  ** Stop taking work, and give what is queued or running the given time to
+  ** finish. Anything still running after that is interrupted, and anything
+  ** still queued is refused.
+  */
+
+  public void shutdown(long waitMillis) {
+    pool_.shutdown();
+    try {
+      pool_.awaitTermination(waitMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+    }
+    List<Runnable> dropped = pool_.shutdownNow();
+    int numDropped = dropped.size();
+    for (int i = 0; i < numDropped; i++) {
+      ((Queued)dropped.get(i)).work.refuse();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get counts for reporting
+  */
+
+  public Map<String, Object> getStatus() {
+    HashMap<String, Object> retval = new HashMap<String, Object>();
+    long accepted = accepted_.get();
+    retval.put("threads", Integer.valueOf(pool_.getMaximumPoolSize()));
+    retval.put("active", Integer.valueOf(pool_.getActiveCount()));
+    retval.put("queued", Integer.valueOf(pool_.getQueue().size()));
+    retval.put("queueCapacity", Integer.valueOf(pool_.getQueue().size() + pool_.getQueue().remainingCapacity()));
+    retval.put("accepted", Long.valueOf(accepted));
+    retval.put("rejected", Long.valueOf(rejected_.get()));
+    retval.put("meanQueueWaitMillis", Double.valueOf((accepted == 0L) ? 0.0 : (queueWaitNanos_.get() / 1.0E6) / accepted));
+    return (retval);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Work for the pool. If it is dropped at shutdown without running, it is
+  ** refused instead, so whoever is waiting on it hears back.
+  */
+
+  public interface Work extends Runnable {
+    public void refuse();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Work as queued, timed from when it went in
+  */
+
+  private class Queued implements Runnable {
+    final Work work;
+    private final long queued;
+
+    Queued(Work work) {
+      this.work = work;
+      this.queued = System.nanoTime();
+    }
+
+    public void run() {
+      queueWaitNanos_.addAndGet(System.nanoTime() - queued);
+      work.run();
+      return;
+    }
+  }
+}
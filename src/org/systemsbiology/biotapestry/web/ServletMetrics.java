@@ -0,0 +1,520 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.web;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import flexjson.JSONSerializer;
+
+/****************************************************************************
+**
+** Request metrics for the servlet: per target and per command key counts,
+** latency histograms, lock waits, serialization time and response bytes,
+** plus live session count and approximate heap per session. The request
+** being measured is tracked per thread, so code deep in a request can add
+** to it without passing it around.
+*/
+
+public class ServletMetrics implements ServletMetricsMBean {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  // Latency histogram bucket upper bounds, in milliseconds. Last bucket is open:
+  private static final long[] BUCKET_BOUNDS_ = {1L, 2L, 5L, 10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L};
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final HashMap<String, Stat> targets_;
+  private final HashMap<String, Stat> commands_;
+  private final ThreadLocal<Sample> current_;
+  private final AtomicInteger liveSessions_;
+  private final ThreadMXBean threads_;
+  private volatile boolean lockTiming_;
+  private final Stat stateInit_;
+  private long stateInitHeapBytes_;
+  private ExtraSource extras_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Lock waits are measured only if JVM thread contention
+  ** monitoring is already on; see setLockTiming().
+  */
+
+  public ServletMetrics() {
+    targets_ = new HashMap<String, Stat>();
+    commands_ = new HashMap<String, Stat>();
+    current_ = new ThreadLocal<Sample>();
+    liveSessions_ = new AtomicInteger(0);
+    stateInit_ = new Stat();
+    stateInitHeapBytes_ = 0L;
+    threads_ = ManagementFactory.getThreadMXBean();
+    lockTiming_ = threads_.isThreadContentionMonitoringSupported() && threads_.isThreadContentionMonitoringEnabled();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Turn on JVM thread contention monitoring so lock waits can be measured.
+  ** That setting is JVM-wide and costs something on every contended lock, so
+  ** it is only done when configured. Turning timing off leaves the JVM setting
+  ** alone, since something else may be using it.
+  */
+
+  public void setLockTiming(boolean enable) {
+    if (!enable) {
+      lockTiming_ = false;
+      return;
+    }
+    try {
+      if (threads_.isThreadContentionMonitoringSupported()) {
+        threads_.setThreadContentionMonitoringEnabled(true);
+        lockTiming_ = true;
+      }
+    } catch (SecurityException sex) {
+      lockTiming_ = false;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Set the source of additional metrics (caches, warm-up) to report
+  */
+
+  public void setExtraSource(ExtraSource extras) {
+    extras_ = extras;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Start measuring a request on this thread. If one is already being measured
+  ** (e.g. a GET handed off to POST), that one is returned, and only the
+  ** outermost end() counts.
+  */
+
+  public Sample begin(String target) {
+    Sample retval = current_.get();
+    if (retval != null) {
+      retval.depth_++;
+      return (retval);
+    }
+    retval = new Sample(target, System.nanoTime(), blockedMillis());
+    current_.set(retval);
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Finish measuring a request
+  */
+
+  public void end(Sample sample) {
+    if (sample.depth_-- > 0) {
+      return;
+    }
+    current_.remove();
+    long elapsed = System.nanoTime() - sample.start_;
+    long lockWait = (lockTiming_) ? Math.max(0L, blockedMillis() - sample.blockedStart_) : 0L;
+    record(targets_, sample.target_, elapsed, lockWait, sample.serialize_, sample.bytes_);
+    if (sample.command_ != null) {
+      record(commands_, sample.command_, elapsed, lockWait, sample.serialize_, sample.bytes_);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Note the command key of the current request
+  */
+
+  public void setCommand(String command) {
+    Sample sample = current_.get();
+    if (sample != null) {
+      sample.command_ = command;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Add serialization time to the current request
+  */
+
+  public void addSerializeTime(long nanos) {
+    Sample sample = current_.get();
+    if (sample != null) {
+      sample.serialize_ += nanos;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Wrap a response stream so that bytes written count against the current request
+  */
+
+  public OutputStream countBytes(OutputStream os) {
+    Sample sample = current_.get();
+    return ((sample == null) ? os : new CountingStream(os, sample));
+  }
+
+  /***************************************************************************
+  **
+  ** Record the time and approximate heap taken to build a new session state
+  */
+
+  public void stateBuilt(long nanos, long heapDelta) {
+    synchronized (stateInit_) {
+      stateInit_.add(nanos, 0L, 0L, 0L);
+      stateInitHeapBytes_ += Math.max(0L, heapDelta);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get a new tracker to hang on a session; it keeps the live session count
+  */
+
+  public HttpSessionBindingListener newSessionTracker() {
+    return (new SessionTracker());
+  }
+
+  /***************************************************************************
+  **
+  ** Get everything as a map, for serializing
+  */
+
+  public Map<String, Object> getMetrics() {
+    TreeMap<String, Object> retval = new TreeMap<String, Object>();
+    retval.put("targets", statsToMap(targets_));
+    retval.put("commands", statsToMap(commands_));
+    ArrayList<Long> bounds = new ArrayList<Long>();
+    for (int i = 0; i < BUCKET_BOUNDS_.length; i++) {
+      bounds.add(Long.valueOf(BUCKET_BOUNDS_[i]));
+    }
+    retval.put("histogramBoundsMs", bounds);
+    retval.put("lockTiming", Boolean.valueOf(lockTiming_));
+
+    Runtime rt = Runtime.getRuntime();
+    long used = rt.totalMemory() - rt.freeMemory();
+    TreeMap<String, Object> heap = new TreeMap<String, Object>();
+    heap.put("usedBytes", Long.valueOf(used));
+    heap.put("maxBytes", Long.valueOf(rt.maxMemory()));
+    heap.put("liveSessions", Integer.valueOf(liveSessions_.get()));
+    heap.put("approxBytesPerSession", Long.valueOf(getApproxHeapBytesPerSession()));
+    synchronized (stateInit_) {
+      heap.put("statesBuilt", Long.valueOf(stateInit_.count));
+      heap.put("meanStateBuildMs", Long.valueOf((stateInit_.count == 0L) ? 0L : (stateInit_.totalNanos / stateInit_.count) / 1000000L));
+      heap.put("meanStateBuildHeapBytes", Long.valueOf((stateInit_.count == 0L) ? 0L : stateInitHeapBytes_ / stateInit_.count));
+    }
+    retval.put("heap", heap);
+
+    ExtraSource extras = extras_;
+    if (extras != null) {
+      extras.addMetrics(retval);
+    }
+    return (retval);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // MBEAN METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public long getRequestCount() {
+    long retval = 0L;
+    synchronized (targets_) {
+      Iterator<Stat> sit = targets_.values().iterator();
+      while (sit.hasNext()) {
+        retval += sit.next().count;
+      }
+    }
+    return (retval);
+  }
+
+  public long getLockWaitMillis() {
+    long retval = 0L;
+    synchronized (targets_) {
+      Iterator<Stat> sit = targets_.values().iterator();
+      while (sit.hasNext()) {
+        retval += sit.next().lockWaitMillis;
+      }
+    }
+    return (retval);
+  }
+
+  public int getLiveSessions() {
+    return (liveSessions_.get());
+  }
+
+  /***************************************************************************
+  **
+  ** Very rough: heap in use over live sessions. Shared models and caches are
+  ** spread across sessions, which is the point when sizing a server.
+  */
+
+  public long getApproxHeapBytesPerSession() {
+    Runtime rt = Runtime.getRuntime();
+    long used = rt.totalMemory() - rt.freeMemory();
+    return (used / Math.max(1, liveSessions_.get()));
+  }
+
+  public String getMetricsJson() {
+    return (new JSONSerializer().exclude("*.class").deepSerialize(getMetrics()));
+  }
+
+  public void reset() {
+    synchronized (targets_) {
+      targets_.clear();
+    }
+    synchronized (commands_) {
+      commands_.clear();
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** One request being measured
+  */
+
+  public static class Sample {
+    private final String target_;
+    private final long start_;
+    private final long blockedStart_;
+    private String command_;
+    private long serialize_;
+    private long bytes_;
+    private int depth_;
+
+    Sample(String target, long start, long blockedStart) {
+      target_ = target;
+      start_ = start;
+      blockedStart_ = blockedStart;
+      command_ = null;
+      serialize_ = 0L;
+      bytes_ = 0L;
+      depth_ = 0;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Supplies additional metrics
+  */
+
+  public interface ExtraSource {
+    public void addMetrics(Map<String, Object> metrics);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Accumulated stats for one target or command
+  */
+
+  private static class Stat {
+    long count;
+    long totalNanos;
+    long maxNanos;
+    long lockWaitMillis;
+    long serializeNanos;
+    long bytes;
+    long[] buckets = new long[BUCKET_BOUNDS_.length + 1];
+
+    void add(long nanos, long lockWait, long serialize, long byteCount) {
+      count++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+      lockWaitMillis += lockWait;
+      serializeNanos += serialize;
+      bytes += byteCount;
+      long millis = nanos / 1000000L;
+      int bucket = 0;
+      while ((bucket < BUCKET_BOUNDS_.length) && (millis > BUCKET_BOUNDS_[bucket])) {
+        bucket++;
+      }
+      buckets[bucket]++;
+      return;
+    }
+
+    Map<String, Object> toMap() {
+      TreeMap<String, Object> retval = new TreeMap<String, Object>();
+      retval.put("count", Long.valueOf(count));
+      retval.put("meanMs", Double.valueOf((count == 0L) ? 0.0 : (totalNanos / (double)count) / 1.0E6));
+      retval.put("maxMs", Double.valueOf(maxNanos / 1.0E6));
+      retval.put("lockWaitMs", Long.valueOf(lockWaitMillis));
+      retval.put("serializeMs", Double.valueOf(serializeNanos / 1.0E6));
+      retval.put("bytes", Long.valueOf(bytes));
+      List<Long> hist = new ArrayList<Long>();
+      for (int i = 0; i < buckets.length; i++) {
+        hist.add(Long.valueOf(buckets[i]));
+      }
+      retval.put("histogram", hist);
+      return (retval);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Counts bytes written for a request
+  */
+
+  private static class CountingStream extends FilterOutputStream {
+    private final Sample sample_;
+
+    CountingStream(OutputStream os, Sample sample) {
+      super(os);
+      sample_ = sample;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      sample_.bytes_++;
+      return;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      sample_.bytes_ += len;
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Keeps the live session count as it is bound to and unbound from sessions
+  */
+
+  private class SessionTracker implements HttpSessionBindingListener {
+    public void valueBound(HttpSessionBindingEvent event) {
+      liveSessions_.incrementAndGet();
+      return;
+    }
+
+    public void valueUnbound(HttpSessionBindingEvent event) {
+      liveSessions_.decrementAndGet();
+      return;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Add a finished request to a stats table
+  */
+
+  private void record(HashMap<String, Stat> table, String key, long nanos, long lockWait, long serialize, long bytes) {
+    synchronized (table) {
+      Stat stat = table.get(key);
+      if (stat == null) {
+        stat = new Stat();
+        table.put(key, stat);
+      }
+      stat.add(nanos, lockWait, serialize, bytes);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Copy a stats table out as a map
+  */
+
+  private Map<String, Object> statsToMap(HashMap<String, Stat> table) {
+    TreeMap<String, Object> retval = new TreeMap<String, Object>();
+    synchronized (table) {
+      Iterator<Map.Entry<String, Stat>> sit = table.entrySet().iterator();
+      while (sit.hasNext()) {
+        Map.Entry<String, Stat> entry = sit.next();
+        retval.put(entry.getKey(), entry.getValue().toMap());
+      }
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Time this thread has spent blocked on monitors, in milliseconds
+  */
+
+  private long blockedMillis() {
+    if (!lockTiming_) {
+      return (0L);
+    }
+    ThreadInfo info = threads_.getThreadInfo(Thread.currentThread().getId());
+    return ((info == null) ? 0L : Math.max(0L, info.getBlockedTime()));
+  }
+}
@@ -0,0 +1,433 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.app.PassivatedState;
+
+/****************************************************************************
+**
+** Bounds the number of session states held in the heap. Each session holds a
+** Slot; a request acquires the slot's state for its duration, and a state
+** not in use can be passivated to a PassivatedState when it has been idle
+** long enough, when the heap is under pressure, or when there are more
+** resident states than the cap allows (least recently used go first). The
+** next request restores it transparently.
+*/
+
+public class SessionPassivator {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final long MAX_SWEEP_MILLIS_ = 30000L;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  // Insertion order is kept as use order by re-inserting on each acquire:
+  private final LinkedHashMap<String, Slot> resident_;
+  private final Restorer restorer_;
+  private final File dumpDir_;
+  private final long idleMillis_;
+  private final int maxResident_;
+  private final double heapFraction_;
+  private ScheduledExecutorService sweeper_;
+  private long passivations_;
+  private long restores_;
+  private long failures_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. A zero idle time, cap or heap fraction turns that trigger off.
+  */
+
+  public SessionPassivator(Restorer restorer, File dumpDir, long idleMillis, int maxResident, double heapFraction) throws IOException {
+    if ((dumpDir != null) && !dumpDir.isDirectory() && !dumpDir.mkdirs()) {
+      throw new IOException("Cannot create session passivation directory " + dumpDir);
+    }
+    resident_ = new LinkedHashMap<String, Slot>();
+    restorer_ = restorer;
+    dumpDir_ = dumpDir;
+    idleMillis_ = idleMillis;
+    maxResident_ = maxResident;
+    heapFraction_ = heapFraction;
+    passivations_ = 0L;
+    restores_ = 0L;
+    failures_ = 0L;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if passivation is turned on at all
+  */
+
+  public boolean isEnabled() {
+    return ((dumpDir_ != null) && ((idleMillis_ > 0L) || (maxResident_ > 0) || (heapFraction_ > 0.0)));
+  }
+
+  /***************************************************************************
+  **
+  ** Start the background sweep for idle sessions and heap pressure
+  */
+
+  public void start() {
+    if (!isEnabled() || ((idleMillis_ <= 0L) && (heapFraction_ <= 0.0))) {
+      return;
+    }
+    long period = (idleMillis_ > 0L) ? Math.min(MAX_SWEEP_MILLIS_, Math.max(1000L, idleMillis_ / 2L)) : MAX_SWEEP_MILLIS_;
+    sweeper_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread retval = new Thread(r, "BioTapSessionSweeper");
+        retval.setDaemon(true);
+        return (retval);
+      }
+    });
+    sweeper_.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          sweep();
+        } catch (Exception ex) {
+          System.err.println("[ERROR] Session sweep failed: " + ex.getMessage());
+          ex.printStackTrace();
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Stop the background sweep
+  */
+
+  public void stop() {
+    if (sweeper_ != null) {
+      sweeper_.shutdownNow();
+      sweeper_ = null;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Build the slot for a new session's state
+  */
+
+  public Slot newSlot(String sessionID, BTState appState) {
+    Slot retval = new Slot(sessionID, appState);
+    synchronized (resident_) {
+      resident_.put(sessionID, retval);
+    }
+    enforceCap();
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the slot's state for use by a request, restoring it if needed. Every
+  ** acquire must be matched by a release.
+  */
+
+  public BTState acquire(Slot slot) throws Exception {
+    BTState retval;
+    synchronized (slot) {
+      if (slot.ended_) {
+        throw new IllegalStateException("Session " + slot.sessionID_ + " has ended");
+      }
+      if (slot.state_ == null) {
+        slot.state_ = restorer_.restore(slot.passive_);
+        slot.passive_.discard();
+        slot.passive_ = null;
+        synchronized (this) {
+          restores_++;
+        }
+      }
+      slot.inUse_++;
+      slot.lastUse_ = System.currentTimeMillis();
+      retval = slot.state_;
+    }
+    synchronized (resident_) {
+      resident_.remove(slot.sessionID_);
+      resident_.put(slot.sessionID_, slot);
+    }
+    enforceCap();
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Get the state of a slot the caller has already acquired
+  */
+
+  public BTState peek(Slot slot) {
+    synchronized (slot) {
+      return (slot.state_);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Get the slot's state if it is in memory, without restoring or holding it.
+  ** Null if it is passivated or ended.
+  */
+
+  public BTState peekResident(Slot slot) {
+    synchronized (slot) {
+      return (slot.state_);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Done using the slot's state
+  */
+
+  public void release(Slot slot) {
+    synchronized (slot) {
+      slot.inUse_--;
+      slot.lastUse_ = System.currentTimeMillis();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get counts for reporting
+  */
+
+  public Map<String, Object> getStatus() {
+    HashMap<String, Object> retval = new HashMap<String, Object>();
+    retval.put("enabled", Boolean.valueOf(isEnabled()));
+    synchronized (resident_) {
+      retval.put("resident", Integer.valueOf(resident_.size()));
+    }
+    synchronized (this) {
+      retval.put("passivations", Long.valueOf(passivations_));
+      retval.put("restores", Long.valueOf(restores_));
+      retval.put("failures", Long.valueOf(failures_));
+    }
+    return (retval);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Rebuilds a live state from its passivated form
+  */
+
+  public interface Restorer {
+    public BTState restore(PassivatedState passive) throws Exception;
+  }
+
+  /***************************************************************************
+  **
+  ** Holds one session's state, live or passivated. Stored as a session
+  ** attribute, so it hears when the session goes away.
+  */
+
+  public class Slot implements HttpSessionBindingListener {
+    private final String sessionID_;
+    private BTState state_;
+    private PassivatedState passive_;
+    private volatile long lastUse_;
+    private int inUse_;
+    private boolean ended_;
+
+    Slot(String sessionID, BTState state) {
+      sessionID_ = sessionID;
+      state_ = state;
+      passive_ = null;
+      lastUse_ = System.currentTimeMillis();
+      inUse_ = 0;
+      ended_ = false;
+    }
+
+    public void valueBound(HttpSessionBindingEvent event) {
+      return;
+    }
+
+    public void valueUnbound(HttpSessionBindingEvent event) {
+      synchronized (this) {
+        ended_ = true;
+        state_ = null;
+        if (passive_ != null) {
+          passive_.discard();
+          passive_ = null;
+        }
+      }
+      synchronized (resident_) {
+        if (resident_.get(sessionID_) == this) {
+          resident_.remove(sessionID_);
+        }
+      }
+      return;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Passivate the slot's state if nobody is using it. Answers if it did.
+  */
+
+  private boolean passivate(Slot slot) {
+    synchronized (slot) {
+      if (slot.ended_ || (slot.state_ == null) || (slot.inUse_ > 0)) {
+        return (false);
+      }
+      try {
+        slot.passive_ = new PassivatedState(slot.sessionID_, slot.state_, dumpDir_);
+      } catch (IOException ioex) {
+        synchronized (this) {
+          failures_++;
+        }
+        System.err.println("[ERROR] Could not passivate session " + slot.sessionID_ + ": " + ioex.getMessage());
+        return (false);
+      }
+      slot.state_ = null;
+    }
+    synchronized (resident_) {
+      resident_.remove(slot.sessionID_);
+    }
+    synchronized (this) {
+      passivations_++;
+    }
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** Resident slots, least recently used first
+  */
+
+  private List<Slot> residentByAge() {
+    synchronized (resident_) {
+      return (new ArrayList<Slot>(resident_.values()));
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Passivate least recently used states until we are under the cap
+  */
+
+  private void enforceCap() {
+    if (!isEnabled() || (maxResident_ <= 0)) {
+      return;
+    }
+    int excess;
+    synchronized (resident_) {
+      excess = resident_.size() - maxResident_;
+    }
+    if (excess <= 0) {
+      return;
+    }
+    List<Slot> byAge = residentByAge();
+    for (int i = 0; (i < byAge.size()) && (excess > 0); i++) {
+      if (passivate(byAge.get(i))) {
+        excess--;
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Passivate idle states, and the older part of the rest if the heap is
+  ** under pressure
+  */
+
+  private void sweep() {
+    List<Slot> byAge = residentByAge();
+    long now = System.currentTimeMillis();
+    int count = 0;
+    if (idleMillis_ > 0L) {
+      for (int i = 0; i < byAge.size(); i++) {
+        Slot slot = byAge.get(i);
+        if (((now - slot.lastUse_) > idleMillis_) && passivate(slot)) {
+          count++;
+        }
+      }
+    }
+    if (heapFraction_ > 0.0) {
+      Runtime rt = Runtime.getRuntime();
+      double used = (double)(rt.totalMemory() - rt.freeMemory()) / (double)rt.maxMemory();
+      if (used > heapFraction_) {
+        // We cannot see what is freed until a collection, so shed the oldest quarter:
+        byAge = residentByAge();
+        int toShed = Math.max(1, byAge.size() / 4);
+        for (int i = 0; (i < byAge.size()) && (toShed > 0); i++) {
+          if (passivate(byAge.get(i))) {
+            toShed--;
+            count++;
+          }
+        }
+      }
+    }
+    if (count > 0) {
+      System.out.println("[STATUS] Passivated " + count + " idle sessions");
+    }
+    return;
+  }
+}
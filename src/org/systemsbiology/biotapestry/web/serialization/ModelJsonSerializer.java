@@ -20,16 +20,61 @@
 
 package org.systemsbiology.biotapestry.web.serialization;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
 import flexjson.JSONSerializer;
 
-import org.systemsbiology.biotapestry.ui.LinkSegment;
-import org.systemsbiology.biotapestry.ui.freerender.LinkSegmentGeometryExportTransformer;
+/****************************************************************************
+**
+** Streams the web model map straight to an output stream, optionally gzipped.
+** The serializer writes through a buffered Writer, so the JSON is never held
+** in memory as one String (and then copied again as bytes). Output is byte for
+** byte what BioTapSerializerFactory.getModelMapTransformer().deepSerialize()
+** gives, raw or gunzipped. The map itself is still built in full first.
+*/
 
 public class ModelJsonSerializer {
-  public void serialize() {
-    JSONSerializer serializer = new JSONSerializer().include("*").transform(new ExcludeTransformer(), void.class);
-
-    serializer.transform(new LinkSegmentGeometryExportTransformer(), LinkSegment.class);
-
+	
+  private static final int BUFFER_SIZE_ = 64 * 1024;
+	
+  private final String charEncoding_;
+  
+  public ModelJsonSerializer(String charEncoding) {
+    charEncoding_ = charEncoding;
+  }
+	
+  /***************************************************************************
+  **
+  ** Serialize the model map from WebServerApplication.getModelMap to the stream,
+  ** gzipped if asked. The stream is flushed, but not closed.
+  */
+  
+  public void serialize(Object modelMap, OutputStream os, boolean gzip) throws IOException {
+    serialize(modelMap, os, gzip, BioTapSerializerFactory.getModelMapTransformer());
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Serialize any object to the stream with the given serializer, gzipped if
+  ** asked. The stream is flushed, but not closed.
+  */
+  
+  public void serialize(Object toSerialize, OutputStream os, boolean gzip, JSONSerializer serializer) throws IOException {
+    GZIPOutputStream gzos = (gzip) ? new GZIPOutputStream(os, BUFFER_SIZE_) : null;
+    Writer writer = new BufferedWriter(new OutputStreamWriter((gzip) ? gzos : os, charEncoding_), BUFFER_SIZE_);
+    serializer.deepSerialize(toSerialize, writer);
+    writer.flush();
+    if (gzos != null) {
+      // Finish, but don't close: the caller owns the stream
+      gzos.finish();
+    }
+    os.flush();
+    return;
   }
 }